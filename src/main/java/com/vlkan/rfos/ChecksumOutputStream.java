@@ -0,0 +1,220 @@
+package com.vlkan.rfos;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+class ChecksumOutputStream extends FilterOutputStream {
+
+    // Checksum of a prefix of the file, which is restored on append instead of
+    // re-reading the file. Checksums cannot be seeded with a value, hence the
+    // checksum of the appended bytes gets combined with it instead.
+    static final class State {
+
+        private final long value;
+
+        private final long length;
+
+        State(long value, long length) {
+            this.value = value;
+            this.length = length;
+        }
+
+        long getValue() {
+            return value;
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("State{value=%08x, length=%d}", value, length);
+        }
+
+    }
+
+    private static final String CRC32C_CLASS_NAME = "java.util.zip.CRC32C";
+
+    static final String ALGORITHM = isCrc32cAvailable() ? "crc32c" : "crc32";
+
+    // Reversed polynomials of CRC32 and CRC32C.
+    private static final long POLYNOMIAL = "crc32c".equals(ALGORITHM) ? 0x82f63b78L : 0xedb88320L;
+
+    private final Checksum checksum;
+
+    private final State prefixState;
+
+    private long writtenLength;
+
+    ChecksumOutputStream(OutputStream outputStream, Checksum checksum) {
+        this(outputStream, checksum, new State(0, 0));
+    }
+
+    ChecksumOutputStream(OutputStream outputStream, Checksum checksum, State prefixState) {
+        super(outputStream);
+        this.checksum = checksum;
+        this.prefixState = prefixState;
+    }
+
+    private static boolean isCrc32cAvailable() {
+        try {
+            Class.forName(CRC32C_CLASS_NAME);
+            return true;
+        } catch (ClassNotFoundException ignored) {
+            return false;
+        }
+    }
+
+    static Checksum createChecksum() {
+        // CRC32C is available since Java 9, fallback to CRC32 otherwise.
+        if ("crc32c".equals(ALGORITHM)) {
+            try {
+                return (Checksum) Class.forName(CRC32C_CLASS_NAME).getDeclaredConstructor().newInstance();
+            } catch (Exception error) {
+                String message = String.format("failed creating checksum {className=%s}", CRC32C_CLASS_NAME);
+                throw new IllegalStateException(message, error);
+            }
+        }
+        return new CRC32();
+    }
+
+    static void update(Checksum checksum, File file) throws IOException {
+        byte[] buffer = new byte[8192];
+        try (InputStream inputStream = new FileInputStream(file)) {
+            int readByteCount;
+            while ((readByteCount = inputStream.read(buffer)) > 0) {
+                checksum.update(buffer, 0, readByteCount);
+            }
+        }
+    }
+
+    static File getChecksumFile(File file) {
+        String checksumFileName = String.format("%s.%s", file.getAbsolutePath(), ALGORITHM);
+        return new File(checksumFileName);
+    }
+
+    static File getStateFile(File file) {
+        String stateFileName = String.format("%s.%s.state", file.getAbsolutePath(), ALGORITHM);
+        return new File(stateFileName);
+    }
+
+    static void writeState(File stateFile, State state) throws IOException {
+        String stateText = String.format("%08x %d%n", state.value, state.length);
+        try (OutputStream stateStream = new FileOutputStream(stateFile)) {
+            stateStream.write(stateText.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    // Returns the state in the given file, or null if there is none.
+    static State readState(File stateFile) {
+        if (!stateFile.isFile()) {
+            return null;
+        }
+        try {
+            String stateText = new String(Files.readAllBytes(stateFile.toPath()), StandardCharsets.US_ASCII).trim();
+            String[] stateFields = stateText.split(" ");
+            return new State(Long.parseLong(stateFields[0], 16), Long.parseLong(stateFields[1]));
+        } catch (IOException | RuntimeException ignored) {
+            return null;
+        }
+    }
+
+    // Returns the checksum of the concatenation of two byte sequences, given
+    // their checksums, following crc32_combine() of zlib.
+    static long combine(long checksum1, long checksum2, long length2) {
+        if (length2 <= 0) {
+            return checksum1;
+        }
+        long[] evenOperator = new long[32];
+        long[] oddOperator = new long[32];
+        oddOperator[0] = POLYNOMIAL;
+        long row = 1;
+        for (int bitIndex = 1; bitIndex < 32; bitIndex++) {
+            oddOperator[bitIndex] = row;
+            row <<= 1;
+        }
+        square(evenOperator, oddOperator);
+        square(oddOperator, evenOperator);
+        long combinedChecksum = checksum1;
+        long remainingLength = length2;
+        do {
+            square(evenOperator, oddOperator);
+            if ((remainingLength & 1) != 0) {
+                combinedChecksum = times(evenOperator, combinedChecksum);
+            }
+            remainingLength >>= 1;
+            if (remainingLength == 0) {
+                break;
+            }
+            square(oddOperator, evenOperator);
+            if ((remainingLength & 1) != 0) {
+                combinedChecksum = times(oddOperator, combinedChecksum);
+            }
+            remainingLength >>= 1;
+        } while (remainingLength != 0);
+        return combinedChecksum ^ checksum2;
+    }
+
+    private static long times(long[] matrix, long vector) {
+        long product = 0;
+        for (int rowIndex = 0; vector != 0; rowIndex++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                product ^= matrix[rowIndex];
+            }
+        }
+        return product;
+    }
+
+    private static void square(long[] squareMatrix, long[] matrix) {
+        for (int rowIndex = 0; rowIndex < 32; rowIndex++) {
+            squareMatrix[rowIndex] = times(matrix, matrix[rowIndex]);
+        }
+    }
+
+    OutputStream getOut() {
+        return out;
+    }
+
+    // Writes are serialized, so that the checksum follows the order of bytes in the file.
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        out.write(b);
+        checksum.update(b);
+        writtenLength++;
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        checksum.update(b, off, len);
+        writtenLength += len;
+    }
+
+    synchronized long getChecksumValue() {
+        return getState().value;
+    }
+
+    synchronized State getState() {
+        long value = prefixState.length > 0
+                ? combine(prefixState.value, checksum.getValue(), writtenLength)
+                : checksum.getValue();
+        return new State(value, prefixState.length + writtenLength);
+    }
+
+}
@@ -0,0 +1,34 @@
+package com.vlkan.rfos;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+// Reads files written with RotationConfig#getEncryptionKey().
+public class DecryptionInputStream extends FilterInputStream {
+
+    public DecryptionInputStream(InputStream inputStream, SecretKey key) throws IOException {
+        super(inputStream);
+        byte[] header = new byte[EncryptionOutputStream.HEADER_LENGTH];
+        EncryptionOutputStream.readHeader(inputStream, header);
+        byte[] magic = Arrays.copyOf(header, EncryptionOutputStream.MAGIC.length);
+        if (!Arrays.equals(EncryptionOutputStream.MAGIC, magic)) {
+            throw new IOException("invalid encryption header");
+        }
+        byte[] iv = Arrays.copyOfRange(header, magic.length, header.length);
+        try {
+            Cipher cipher = Cipher.getInstance(EncryptionOutputStream.TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+            this.in = new CipherInputStream(inputStream, cipher);
+        } catch (GeneralSecurityException error) {
+            throw new IOException("cipher initialization failure", error);
+        }
+    }
+
+}
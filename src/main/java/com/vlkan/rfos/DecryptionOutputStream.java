@@ -0,0 +1,94 @@
+package com.vlkan.rfos;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+// Decrypts the bytes of a file written with RotationConfig#getEncryptionKey()
+// as they are written, e.g., by a stage fed with the rotated file.
+public class DecryptionOutputStream extends FilterOutputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final SecretKey key;
+
+    private final byte[] header;
+
+    private int headerLength;
+
+    private Cipher cipher;
+
+    private final byte[] buffer;
+
+    public DecryptionOutputStream(OutputStream outputStream, SecretKey key) {
+        super(outputStream);
+        this.key = key;
+        this.header = new byte[EncryptionOutputStream.HEADER_LENGTH];
+        this.buffer = new byte[BUFFER_SIZE];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int headerByteCount = Math.min(len, header.length - headerLength);
+        if (headerByteCount > 0) {
+            System.arraycopy(b, off, header, headerLength, headerByteCount);
+            headerLength += headerByteCount;
+            off += headerByteCount;
+            len -= headerByteCount;
+            if (headerLength == header.length) {
+                cipher = createCipher(key, header);
+            }
+        }
+        try {
+            for (int index = 0; index < len; ) {
+                int chunkLength = Math.min(BUFFER_SIZE, len - index);
+                int decryptedByteCount = cipher.update(b, off + index, chunkLength, buffer, 0);
+                out.write(buffer, 0, decryptedByteCount);
+                index += chunkLength;
+            }
+        } catch (ShortBufferException error) {
+            throw new IOException("decryption failure", error);
+        }
+    }
+
+    private static Cipher createCipher(SecretKey key, byte[] header) throws IOException {
+        byte[] magic = Arrays.copyOf(header, EncryptionOutputStream.MAGIC.length);
+        if (!Arrays.equals(EncryptionOutputStream.MAGIC, magic)) {
+            throw new IOException("invalid encryption header");
+        }
+        byte[] iv = Arrays.copyOfRange(header, magic.length, header.length);
+        try {
+            Cipher cipher = Cipher.getInstance(EncryptionOutputStream.TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+            return cipher;
+        } catch (GeneralSecurityException error) {
+            throw new IOException("cipher initialization failure", error);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (headerLength > 0 && headerLength < header.length) {
+            out.close();
+            throw new IOException("truncated encryption header");
+        }
+        super.close();
+    }
+
+}
@@ -0,0 +1,13 @@
+package com.vlkan.rfos;
+
+import java.io.File;
+
+// Optional extension of RotationCallback notified when the stream enters and
+// leaves degraded mode, if implemented by the configured callback.
+public interface DegradedModeCallback {
+
+    void onDegradedModeEnter(File file, Exception error);
+
+    void onDegradedModeExit(File file, long droppedByteCount);
+
+}
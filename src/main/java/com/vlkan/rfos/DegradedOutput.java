@@ -0,0 +1,162 @@
+package com.vlkan.rfos;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+// Holds the bytes written while the file is not writable (e.g., the disk is
+// full), first in the fallback file, if there is one, and then in an
+// off-heap buffer. Once a write falls back to the buffer, the rest follows,
+// so that draining the fallback file and then the buffer preserves the order.
+// Writes not fitting into either are dropped as a whole. Every degraded mode
+// episode gets its own fallback file, named after the file and the time the
+// episode started, hence leftovers of earlier episodes are never replayed.
+class DegradedOutput {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DegradedOutput.class);
+
+    private static final int DRAIN_CHUNK_SIZE = 8192;
+
+    private final File fallbackFile;
+
+    private final int spillBufferSize;
+
+    private OutputStream fallbackStream;
+
+    private boolean fallbackFailed;
+
+    // Byte count of the fallback file drained by an earlier, failed, drain.
+    private long drainedFallbackByteCount;
+
+    private ByteBuffer spillBuffer;
+
+    private long droppedByteCount;
+
+    DegradedOutput(RotationConfig config) {
+        File fallbackDirectory = config.getFallbackDirectory();
+        this.fallbackFile = fallbackDirectory != null
+                ? createFallbackFile(fallbackDirectory, config)
+                : null;
+        this.spillBufferSize = config.getSpillBufferSize();
+        this.fallbackFailed = fallbackFile == null;
+    }
+
+    private static File createFallbackFile(File fallbackDirectory, RotationConfig config) {
+        String fallbackFileName = String.format(
+                "%s.%s", config.getFile().getName(), config.getClock().now().toString("yyyyMMdd'T'HHmmss.SSS"));
+        File fallbackFile = new File(fallbackDirectory, fallbackFileName);
+        for (int suffix = 1; fallbackFile.exists(); suffix++) {
+            fallbackFile = new File(fallbackDirectory, fallbackFileName + '-' + suffix);
+        }
+        return fallbackFile;
+    }
+
+    File getFallbackFile() {
+        return fallbackFile;
+    }
+
+    synchronized long getDroppedByteCount() {
+        return droppedByteCount;
+    }
+
+    synchronized void write(byte[] b, int off, int len) {
+        if (!fallbackFailed) {
+            try {
+                if (fallbackStream == null) {
+                    LOGGER.debug("opening fallback file {fallbackFile={}}", fallbackFile);
+                    fallbackFile.getParentFile().mkdirs();
+                    fallbackStream = new FileOutputStream(fallbackFile);
+                }
+                fallbackStream.write(b, off, len);
+                return;
+            } catch (IOException error) {
+                LOGGER.warn("fallback file write failure {fallbackFile={}}", fallbackFile, error);
+                fallbackFailed = true;
+                closeFallbackStream();
+            }
+        }
+        if (spillBuffer == null && spillBufferSize > 0) {
+            spillBuffer = ByteBuffer.allocateDirect(spillBufferSize);
+        }
+        if (spillBuffer != null && spillBuffer.remaining() >= len) {
+            spillBuffer.put(b, off, len);
+        } else {
+            droppedByteCount += len;
+        }
+    }
+
+    // Writes the held bytes to the given stream. A failed drain can be
+    // retried, though the bytes of the failed chunk might get duplicated.
+    synchronized void drainTo(OutputStream stream) throws IOException {
+        byte[] buffer = new byte[DRAIN_CHUNK_SIZE];
+        if (fallbackFile != null && fallbackFile.exists()) {
+            closeFallbackStream();
+            try (InputStream fallbackInputStream = new FileInputStream(fallbackFile)) {
+                long skippedByteCount = 0;
+                while (skippedByteCount < drainedFallbackByteCount) {
+                    long skipped = fallbackInputStream.skip(drainedFallbackByteCount - skippedByteCount);
+                    if (skipped <= 0) {
+                        break;
+                    }
+                    skippedByteCount += skipped;
+                }
+                int readByteCount;
+                while ((readByteCount = fallbackInputStream.read(buffer)) > 0) {
+                    stream.write(buffer, 0, readByteCount);
+                    drainedFallbackByteCount += readByteCount;
+                }
+            }
+            if (!fallbackFile.delete()) {
+                LOGGER.warn("failed deleting fallback file {fallbackFile={}}", fallbackFile);
+            }
+            drainedFallbackByteCount = 0;
+        }
+        if (spillBuffer != null) {
+            spillBuffer.flip();
+            try {
+                while (spillBuffer.hasRemaining()) {
+                    int chunkSize = Math.min(buffer.length, spillBuffer.remaining());
+                    spillBuffer.mark();
+                    spillBuffer.get(buffer, 0, chunkSize);
+                    try {
+                        stream.write(buffer, 0, chunkSize);
+                    } catch (IOException error) {
+                        spillBuffer.reset();
+                        throw error;
+                    }
+                }
+            } finally {
+                spillBuffer.compact();
+            }
+        }
+    }
+
+    // Counts the bytes left in the buffer as dropped. (The fallback file, if
+    // there is one, is left on disk.)
+    synchronized void discard() {
+        closeFallbackStream();
+        if (spillBuffer != null) {
+            droppedByteCount += spillBuffer.position();
+            spillBuffer.clear();
+        }
+    }
+
+    private void closeFallbackStream() {
+        if (fallbackStream != null) {
+            try {
+                fallbackStream.close();
+            } catch (IOException error) {
+                LOGGER.warn("failed closing fallback file {fallbackFile={}}", fallbackFile, error);
+            }
+            fallbackStream = null;
+        }
+    }
+
+}
@@ -0,0 +1,267 @@
+package com.vlkan.rfos;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Queue;
+
+// Encrypts the written bytes with AES/CTR. Every file starts with a header
+// composed of a magic and a random IV, i.e., the initial counter block.
+public class EncryptionOutputStream extends FilterOutputStream {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EncryptionOutputStream.class);
+
+    static final String TRANSFORMATION = "AES/CTR/NoPadding";
+
+    static final byte[] MAGIC = "RFOSAES1".getBytes(StandardCharsets.US_ASCII);
+
+    static final int BLOCK_LENGTH = 16;
+
+    static final int HEADER_LENGTH = MAGIC.length + BLOCK_LENGTH;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Cipher cipher;
+
+    private final Queue<Cipher> cipherPool;
+
+    // File being written, if known, to position the counter after a failed write.
+    private final File file;
+
+    private final SecretKey key;
+
+    private final byte[] iv;
+
+    private final byte[] buffer;
+
+    private final byte[] singleByteBuffer;
+
+    // Whether the counter is ahead of the file, since a write has failed.
+    private boolean misaligned;
+
+    private boolean closed;
+
+    private EncryptionOutputStream(
+            OutputStream outputStream,
+            Cipher cipher,
+            Queue<Cipher> cipherPool,
+            File file,
+            SecretKey key,
+            byte[] iv) {
+        super(outputStream);
+        this.cipher = cipher;
+        this.cipherPool = cipherPool;
+        this.file = file;
+        this.key = key;
+        this.iv = iv;
+        this.buffer = new byte[BUFFER_SIZE];
+        this.singleByteBuffer = new byte[1];
+    }
+
+    // Creates an AES key from its hexadecimal representation, e.g., as given in
+    // the configuration of an appender.
+    public static SecretKey parseKey(String hexKey) {
+        int length = hexKey.length();
+        if (length != 32 && length != 48 && length != 64) {
+            String message = String.format("invalid AES key length {hexLength=%d}", length);
+            throw new IllegalArgumentException(message);
+        }
+        byte[] keyBytes = new byte[length / 2];
+        for (int byteIndex = 0; byteIndex < keyBytes.length; byteIndex++) {
+            int highDigit = Character.digit(hexKey.charAt(2 * byteIndex), 16);
+            int lowDigit = Character.digit(hexKey.charAt(2 * byteIndex + 1), 16);
+            if (highDigit < 0 || lowDigit < 0) {
+                String message = String.format("invalid hexadecimal AES key {index=%d}", 2 * byteIndex);
+                throw new IllegalArgumentException(message);
+            }
+            keyBytes[byteIndex] = (byte) ((highDigit << 4) | lowDigit);
+        }
+        return new SecretKeySpec(keyBytes, "AES");
+    }
+
+    // Writes the header to the given stream, e.g., of a compressed file.
+    public static EncryptionOutputStream create(OutputStream outputStream, SecretKey key) throws IOException {
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            byte[] iv = writeHeader(outputStream, cipher, key);
+            return new EncryptionOutputStream(outputStream, cipher, null, null, key, iv);
+        } catch (IOException | GeneralSecurityException error) {
+            outputStream.close();
+            throw new IOException("cipher initialization failure", error);
+        }
+    }
+
+    // Writes the header to an empty file, otherwise positions the counter at the end of the file.
+    static EncryptionOutputStream create(
+            OutputStream outputStream,
+            File file,
+            boolean append,
+            SecretKey key,
+            Queue<Cipher> cipherPool)
+            throws IOException {
+        Cipher cipher = cipherPool.poll();
+        try {
+            if (cipher == null) {
+                cipher = Cipher.getInstance(TRANSFORMATION);
+            }
+            long fileLength = append ? file.length() : 0;
+            byte[] iv;
+            if (fileLength == 0) {
+                iv = writeHeader(outputStream, cipher, key);
+            } else {
+                iv = readIv(file);
+                position(cipher, key, iv, fileLength);
+            }
+            return new EncryptionOutputStream(outputStream, cipher, cipherPool, file, key, iv);
+        } catch (IOException | GeneralSecurityException error) {
+            outputStream.close();
+            String message = String.format("cipher initialization failure {file=%s}", file);
+            throw new IOException(message, error);
+        }
+    }
+
+    private static byte[] writeHeader(OutputStream outputStream, Cipher cipher, SecretKey key)
+            throws IOException, GeneralSecurityException {
+        byte[] iv = new byte[BLOCK_LENGTH];
+        RANDOM.nextBytes(iv);
+        outputStream.write(MAGIC);
+        outputStream.write(iv);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+        return iv;
+    }
+
+    // Positions the counter at the end of the file of the given length.
+    private static void position(Cipher cipher, SecretKey key, byte[] iv, long fileLength)
+            throws IOException, GeneralSecurityException {
+        long offset = fileLength - HEADER_LENGTH;
+        if (offset < 0) {
+            throw new IOException("truncated encryption header");
+        }
+        byte[] counter = addCounter(iv, offset / BLOCK_LENGTH);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(counter));
+        int skippedByteCount = (int) (offset % BLOCK_LENGTH);
+        if (skippedByteCount > 0) {
+            cipher.update(new byte[skippedByteCount]);
+        }
+    }
+
+    private static byte[] readIv(File file) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        try (InputStream inputStream = new FileInputStream(file)) {
+            readHeader(inputStream, header);
+        }
+        if (!Arrays.equals(MAGIC, Arrays.copyOf(header, MAGIC.length))) {
+            String message = String.format("invalid encryption header {file=%s}", file);
+            throw new IOException(message);
+        }
+        return Arrays.copyOfRange(header, MAGIC.length, HEADER_LENGTH);
+    }
+
+    static void readHeader(InputStream inputStream, byte[] header) throws IOException {
+        int readByteCount = 0;
+        while (readByteCount < header.length) {
+            int count = inputStream.read(header, readByteCount, header.length - readByteCount);
+            if (count < 0) {
+                throw new IOException("truncated encryption header");
+            }
+            readByteCount += count;
+        }
+    }
+
+    // Adds the given number of blocks to the big-endian 128-bit counter.
+    private static byte[] addCounter(byte[] iv, long blockCount) {
+        byte[] counter = iv.clone();
+        long carry = blockCount;
+        for (int index = counter.length - 1; index >= 0 && carry != 0; index--) {
+            long sum = (counter[index] & 0xFFL) + (carry & 0xFFL);
+            counter[index] = (byte) sum;
+            carry = (carry >>> 8) + (sum >>> 8);
+        }
+        return counter;
+    }
+
+    OutputStream getOut() {
+        return out;
+    }
+
+    // Writes are serialized, since the cipher keeps the counter state.
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        singleByteBuffer[0] = (byte) b;
+        write(singleByteBuffer, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (misaligned) {
+            realign();
+        }
+        try {
+            for (int index = 0; index < len; ) {
+                int chunkLength = Math.min(BUFFER_SIZE, len - index);
+                int encryptedByteCount = cipher.update(b, off + index, chunkLength, buffer, 0);
+                // The counter has already advanced, hence it needs to be
+                // positioned at what has reached the file, if the write fails.
+                misaligned = true;
+                out.write(buffer, 0, encryptedByteCount);
+                misaligned = false;
+                index += chunkLength;
+            }
+        } catch (ShortBufferException error) {
+            throw new IOException("encryption failure", error);
+        }
+    }
+
+    private void realign() throws IOException {
+        if (file == null) {
+            throw new IOException("encryption failure after a failed write");
+        }
+        LOGGER.debug("positioning the counter after a failed write {file={}}", file);
+        try {
+            position(cipher, key, iv, file.length());
+        } catch (GeneralSecurityException error) {
+            String message = String.format("cipher initialization failure {file=%s}", file);
+            throw new IOException(message, error);
+        }
+        misaligned = false;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.close();
+        } finally {
+            if (cipherPool != null) {
+                cipherPool.offer(cipher);
+            }
+        }
+    }
+
+}
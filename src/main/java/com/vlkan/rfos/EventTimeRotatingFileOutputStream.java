@@ -0,0 +1,539 @@
+package com.vlkan.rfos;
+
+import com.vlkan.rfos.stage.GzipRotationStage;
+import com.vlkan.rfos.stage.RotationPipeline;
+import com.vlkan.rfos.stage.RotationStage;
+import com.vlkan.rfos.stage.RotationStageContext;
+import org.joda.time.Duration;
+import org.joda.time.LocalDateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class EventTimeRotatingFileOutputStream implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventTimeRotatingFileOutputStream.class);
+
+    private static final long EXPIRY_CHECK_PERIOD_MILLIS = 1_000;
+
+    // Segment of the events whose times render the same file. Guarded by itself.
+    private static final class Bucket {
+
+        private final File file;
+
+        private final LocalDateTime dateTime;
+
+        private LocalDateTime maxEventTime;
+
+        private OutputStream stream;
+
+        private volatile long lastWriteNanos;
+
+        private boolean closed;
+
+        private Bucket(File file, LocalDateTime dateTime) {
+            this.file = file;
+            this.dateTime = dateTime;
+            this.maxEventTime = dateTime;
+            this.lastWriteNanos = System.nanoTime();
+        }
+
+    }
+
+    private final RotatingFilePattern filePattern;
+
+    private final int maxOpenBucketCount;
+
+    private final long latenessMillis;
+
+    private final File lateFile;
+
+    private final Timer timer;
+
+    private final List<RotationStage> stages;
+
+    private final ExecutorService executor;
+
+    private final RotationCallback callback;
+
+    private final RotationPipeline pipeline;
+
+    private final ConcurrentMap<File, Bucket> bucketByFile;
+
+    private final AtomicInteger openBucketCount;
+
+    // Greatest event time written so far, which the watermark trails by the lateness.
+    private final AtomicReference<LocalDateTime> maxEventTime;
+
+    private final AtomicLong lateEventCount;
+
+    // Guards the late file stream.
+    private final Object lateLock;
+
+    private OutputStream lateStream;
+
+    private final TimerTask expiryTask;
+
+    private volatile boolean closed;
+
+    private EventTimeRotatingFileOutputStream(Builder builder) {
+        this.filePattern = builder.filePattern;
+        this.maxOpenBucketCount = builder.maxOpenBucketCount;
+        this.latenessMillis = builder.latenessMillis;
+        this.lateFile = builder.lateFile;
+        this.timer = builder.timer;
+        this.stages = builder.stages;
+        this.executor = builder.executor;
+        this.callback = builder.callback;
+        this.pipeline = new RotationPipeline(stages, callback);
+        this.bucketByFile = new ConcurrentHashMap<>();
+        this.openBucketCount = new AtomicInteger();
+        this.maxEventTime = new AtomicReference<>();
+        this.lateEventCount = new AtomicLong();
+        this.lateLock = new Object();
+        this.expiryTask = new TimerTask() {
+            @Override
+            public void run() {
+                closeExpiredBuckets();
+            }
+        };
+        timer.schedule(expiryTask, EXPIRY_CHECK_PERIOD_MILLIS, EXPIRY_CHECK_PERIOD_MILLIS);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public RotatingFilePattern getFilePattern() {
+        return filePattern;
+    }
+
+    public int getMaxOpenBucketCount() {
+        return maxOpenBucketCount;
+    }
+
+    public long getLatenessMillis() {
+        return latenessMillis;
+    }
+
+    public File getLateFile() {
+        return lateFile;
+    }
+
+    public List<RotationStage> getStages() {
+        return stages;
+    }
+
+    public RotationCallback getCallback() {
+        return callback;
+    }
+
+    public int getOpenBucketCount() {
+        return openBucketCount.get();
+    }
+
+    public long getLateEventCount() {
+        return lateEventCount.get();
+    }
+
+    // Events older than the watermark may belong to buckets already handed
+    // to the stages, hence are late, unless their bucket is still open.
+    private LocalDateTime getWatermark() {
+        LocalDateTime currentMaxEventTime = maxEventTime.get();
+        return currentMaxEventTime != null ? currentMaxEventTime.minus(new Duration(latenessMillis)) : null;
+    }
+
+    public void write(LocalDateTime eventTime, byte[] b) throws IOException {
+        write(eventTime, b, 0, b.length);
+    }
+
+    public void write(LocalDateTime eventTime, byte[] b, int off, int len) throws IOException {
+        File file = filePattern.create(eventTime).getAbsoluteFile();
+        for (;;) {
+            Bucket bucket = bucketByFile.get(file);
+            if (bucket == null) {
+                if (isLate(eventTime, file)) {
+                    writeLate(eventTime, b, off, len);
+                    return;
+                }
+                bucket = createBucket(file, eventTime);
+            }
+            synchronized (bucket) {
+                // Retry, if the bucket has just been closed.
+                if (bucket.closed) {
+                    continue;
+                }
+                if (bucket.stream == null) {
+                    LOGGER.debug("opening bucket {file={}}", file);
+                    bucket.stream = new FileOutputStream(file, true);
+                    openBucketCount.incrementAndGet();
+                }
+                bucket.stream.write(b, off, len);
+                bucket.lastWriteNanos = System.nanoTime();
+                if (eventTime.isAfter(bucket.maxEventTime)) {
+                    bucket.maxEventTime = eventTime;
+                }
+            }
+            updateMaxEventTime(eventTime);
+            releaseLeastRecentlyUsedBuckets();
+            return;
+        }
+    }
+
+    // Buckets get closed once the watermark leaves them, hence a bucket
+    // rendered by a time before the watermark might have been closed.
+    private boolean isLate(LocalDateTime eventTime, File file) {
+        LocalDateTime watermark = getWatermark();
+        return watermark != null &&
+                eventTime.isBefore(watermark) &&
+                !file.equals(filePattern.create(watermark).getAbsoluteFile());
+    }
+
+    // Appends the late event to the late file, if there is one, and drops it otherwise.
+    private void writeLate(LocalDateTime eventTime, byte[] b, int off, int len) throws IOException {
+        lateEventCount.incrementAndGet();
+        if (lateFile == null) {
+            LOGGER.debug("dropping late event {eventTime={}}", eventTime);
+            return;
+        }
+        synchronized (lateLock) {
+            checkState();
+            if (lateStream == null) {
+                LOGGER.debug("opening late file {lateFile={}}", lateFile);
+                createDirectory(lateFile);
+                lateStream = new FileOutputStream(lateFile, true);
+            }
+            lateStream.write(b, off, len);
+        }
+    }
+
+    private void updateMaxEventTime(LocalDateTime eventTime) {
+        for (;;) {
+            LocalDateTime currentMaxEventTime = maxEventTime.get();
+            if (currentMaxEventTime != null && !eventTime.isAfter(currentMaxEventTime)) {
+                return;
+            }
+            if (maxEventTime.compareAndSet(currentMaxEventTime, eventTime)) {
+                return;
+            }
+        }
+    }
+
+    private void checkState() throws IOException {
+        if (closed) {
+            throw new IOException("closed stream");
+        }
+    }
+
+    private Bucket createBucket(File file, LocalDateTime eventTime) throws IOException {
+        checkState();
+        createDirectory(file);
+        Bucket bucket = new Bucket(file, eventTime);
+        Bucket existingBucket = bucketByFile.putIfAbsent(file, bucket);
+        if (existingBucket != null) {
+            return existingBucket;
+        }
+        // Close might have collected the buckets in the meantime.
+        if (closed) {
+            bucketByFile.remove(file, bucket);
+            throw new IOException("closed stream");
+        }
+        return bucket;
+    }
+
+    private static void createDirectory(File file) throws IOException {
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            String message = String.format("directory creation failure {directory=%s}", directory);
+            throw new IOException(message);
+        }
+    }
+
+    // Closes the files of the least recently written buckets. They will be
+    // re-opened in append mode on the next write.
+    private void releaseLeastRecentlyUsedBuckets() {
+        while (openBucketCount.get() > maxOpenBucketCount) {
+            Bucket eldestOpenBucket = null;
+            for (Bucket bucket : bucketByFile.values()) {
+                if ((eldestOpenBucket == null || bucket.lastWriteNanos - eldestOpenBucket.lastWriteNanos < 0) &&
+                        isOpen(bucket)) {
+                    eldestOpenBucket = bucket;
+                }
+            }
+            if (eldestOpenBucket == null) {
+                return;
+            }
+            LOGGER.debug("releasing bucket {file={}}", eldestOpenBucket.file);
+            try {
+                closeStream(eldestOpenBucket);
+            } catch (IOException error) {
+                LOGGER.error("failed releasing bucket {file={}}", eldestOpenBucket.file, error);
+            }
+        }
+    }
+
+    private static boolean isOpen(Bucket bucket) {
+        synchronized (bucket) {
+            return bucket.stream != null;
+        }
+    }
+
+    private void closeStream(Bucket bucket) throws IOException {
+        synchronized (bucket) {
+            OutputStream stream = bucket.stream;
+            if (stream != null) {
+                bucket.stream = null;
+                openBucketCount.decrementAndGet();
+                stream.close();
+            }
+        }
+    }
+
+    // Closes the buckets left behind by the watermark, i.e., the ones whose
+    // events are all older than the watermark, which renders another file.
+    private void closeExpiredBuckets() {
+        LocalDateTime watermark = getWatermark();
+        if (watermark == null) {
+            return;
+        }
+        File watermarkFile = filePattern.create(watermark).getAbsoluteFile();
+        for (Bucket bucket : bucketByFile.values()) {
+            boolean expired;
+            synchronized (bucket) {
+                expired = !bucket.closed &&
+                        bucket.maxEventTime.isBefore(watermark) &&
+                        !bucket.file.equals(watermarkFile);
+            }
+            if (expired && bucketByFile.remove(bucket.file, bucket)) {
+                closeBucket(bucket);
+            }
+        }
+    }
+
+    private void closeBucket(Bucket bucket) {
+        LOGGER.debug("closing bucket {file={}}", bucket.file);
+        try {
+            synchronized (bucket) {
+                bucket.closed = true;
+                closeStream(bucket);
+            }
+        } catch (IOException error) {
+            String message = String.format("bucket close failure {file=%s}", bucket.file);
+            RuntimeException extendedError = new RuntimeException(message, error);
+            callback.onFailure(null, bucket.dateTime, bucket.file, extendedError);
+            return;
+        }
+        if (pipeline.isEmpty()) {
+            callback.onSuccess(null, bucket.dateTime, bucket.file);
+        } else {
+            final RotationStageContext context = new RotationStageContext(null, bucket.dateTime, bucket.file);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    pipeline.execute(context);
+                }
+            });
+        }
+    }
+
+    public void flush() throws IOException {
+        for (Bucket bucket : bucketByFile.values()) {
+            synchronized (bucket) {
+                OutputStream stream = bucket.stream;
+                if (stream != null) {
+                    stream.flush();
+                }
+            }
+        }
+        synchronized (lateLock) {
+            if (lateStream != null) {
+                lateStream.flush();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        timer.cancel();
+        for (Bucket bucket : bucketByFile.values()) {
+            if (bucketByFile.remove(bucket.file, bucket)) {
+                closeBucket(bucket);
+            }
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+        synchronized (lateLock) {
+            if (lateStream != null) {
+                lateStream.close();
+                lateStream = null;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("EventTimeRotatingFileOutputStream{filePattern=%s}", filePattern);
+    }
+
+    public static class Builder {
+
+        private static final int DEFAULT_MAX_OPEN_BUCKET_COUNT = 16;
+
+        private static final long DEFAULT_LATENESS_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+        private static final int DEFAULT_STAGE_THREAD_COUNT = 1;
+
+        private static final int DEFAULT_STAGE_BACKLOG_SIZE = 16;
+
+        private RotatingFilePattern filePattern;
+
+        private int maxOpenBucketCount = DEFAULT_MAX_OPEN_BUCKET_COUNT;
+
+        private long latenessMillis = DEFAULT_LATENESS_MILLIS;
+
+        private File lateFile;
+
+        private Timer timer;
+
+        private boolean compress = false;
+
+        private List<RotationStage> stages;
+
+        private ExecutorService executor;
+
+        private RotationCallback callback = LoggingRotationCallback.getInstance();
+
+        private Builder() {
+            // Do nothing.
+        }
+
+        public Builder filePattern(RotatingFilePattern filePattern) {
+            this.filePattern = filePattern;
+            return this;
+        }
+
+        public Builder filePattern(String filePattern) {
+            this.filePattern = new RotatingFilePattern(filePattern);
+            return this;
+        }
+
+        public Builder maxOpenBucketCount(int maxOpenBucketCount) {
+            this.maxOpenBucketCount = maxOpenBucketCount;
+            return this;
+        }
+
+        public Builder latenessMillis(long latenessMillis) {
+            this.latenessMillis = latenessMillis;
+            return this;
+        }
+
+        public Builder lateFile(File lateFile) {
+            this.lateFile = lateFile;
+            return this;
+        }
+
+        public Builder lateFile(String lateFileName) {
+            this.lateFile = new File(lateFileName);
+            return this;
+        }
+
+        public Builder timer(Timer timer) {
+            this.timer = timer;
+            return this;
+        }
+
+        public Builder compress(boolean compress) {
+            this.compress = compress;
+            return this;
+        }
+
+        public Builder stages(List<RotationStage> stages) {
+            this.stages = stages;
+            return this;
+        }
+
+        public Builder stage(RotationStage stage) {
+            if (stages == null) {
+                stages = new ArrayList<>();
+            }
+            stages.add(stage);
+            return this;
+        }
+
+        public Builder executor(ExecutorService executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public Builder callback(RotationCallback callback) {
+            this.callback = callback;
+            return this;
+        }
+
+        public EventTimeRotatingFileOutputStream build() {
+            validate();
+            prepare();
+            return new EventTimeRotatingFileOutputStream(this);
+        }
+
+        private void validate() {
+            Objects.requireNonNull(filePattern, "filePattern");
+            if (maxOpenBucketCount < 1) {
+                String message = String.format("invalid open bucket count {maxOpenBucketCount=%d}", maxOpenBucketCount);
+                throw new IllegalArgumentException(message);
+            }
+            if (latenessMillis < 1) {
+                String message = String.format("invalid lateness {latenessMillis=%d}", latenessMillis);
+                throw new IllegalArgumentException(message);
+            }
+            if (stages != null) {
+                for (RotationStage stage : stages) {
+                    Objects.requireNonNull(stage, "stage");
+                }
+            }
+            Objects.requireNonNull(callback, "callback");
+        }
+
+        private void prepare() {
+            if (timer == null) {
+                timer = new Timer();
+            }
+            List<RotationStage> preparedStages = new ArrayList<>();
+            if (compress) {
+                preparedStages.add(GzipRotationStage.getInstance());
+            }
+            if (stages != null) {
+                preparedStages.addAll(stages);
+            }
+            stages = Collections.unmodifiableList(preparedStages);
+            if (executor == null && !stages.isEmpty()) {
+                executor = RotationConfig.Builder.createExecutor(DEFAULT_STAGE_THREAD_COUNT, DEFAULT_STAGE_BACKLOG_SIZE);
+            }
+        }
+
+    }
+
+}
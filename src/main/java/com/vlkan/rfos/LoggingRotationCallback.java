@@ -1,13 +1,14 @@
 package com.vlkan.rfos;
 
 import com.vlkan.rfos.policy.RotationPolicy;
+import com.vlkan.rfos.stage.RotationStage;
 import org.joda.time.LocalDateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 
-public class LoggingRotationCallback implements RotationCallback {
+public class LoggingRotationCallback implements RotationCallback, RotationStageCallback, DegradedModeCallback {
 
     private static final LoggingRotationCallback INSTANCE = new LoggingRotationCallback();
 
@@ -36,10 +37,28 @@ public class LoggingRotationCallback implements RotationCallback {
         LOGGER.debug("rotation success {policy={}, dateTime={}, file={}}", policy, dateTime, file);
     }
 
+    @Override
+    public void onStageSuccess(RotationPolicy policy, LocalDateTime dateTime, RotationStage stage, File file, long durationNanos) {
+        LOGGER.debug(
+                "rotation stage success {policy={}, dateTime={}, stage={}, file={}, durationNanos={}}",
+                policy, dateTime, stage, file, durationNanos);
+    }
+
     @Override
     public void onFailure(RotationPolicy policy, LocalDateTime dateTime, File file, Exception error) {
         String message = String.format("rotation failure {policy=%s, dateTime=%s, file=%s}", policy, dateTime, file);
         LOGGER.error(message, error);
     }
 
+    @Override
+    public void onDegradedModeEnter(File file, Exception error) {
+        String message = String.format("entering degraded mode {file=%s}", file);
+        LOGGER.warn(message, error);
+    }
+
+    @Override
+    public void onDegradedModeExit(File file, long droppedByteCount) {
+        LOGGER.warn("leaving degraded mode {file={}, droppedByteCount={}}", file, droppedByteCount);
+    }
+
 }
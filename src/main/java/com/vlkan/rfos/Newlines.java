@@ -0,0 +1,53 @@
+package com.vlkan.rfos;
+
+final class Newlines {
+
+    private static final byte NEWLINE = '\n';
+
+    private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+
+    private static final long LOW_BITS = 0x0101010101010101L;
+
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private Newlines() {
+        // Do nothing.
+    }
+
+    static boolean isNewline(byte b) {
+        return b == NEWLINE;
+    }
+
+    // Returns the index of the first newline in the given range, or -1 if there is none.
+    // Scans 8 bytes at a time: a zero byte in (word ^ NEWLINES) marks a newline, and
+    // the lowest byte flagged by the SWAR zero-byte test is always exact.
+    static int indexOf(byte[] bytes, int offset, int length) {
+        int index = offset;
+        int end = offset + length;
+        for (; index + 8 <= end; index += 8) {
+            long word = readLittleEndianLong(bytes, index) ^ NEWLINES;
+            long matches = (word - LOW_BITS) & ~word & HIGH_BITS;
+            if (matches != 0) {
+                return index + (Long.numberOfTrailingZeros(matches) >>> 3);
+            }
+        }
+        for (; index < end; index++) {
+            if (bytes[index] == NEWLINE) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private static long readLittleEndianLong(byte[] bytes, int index) {
+        return (bytes[index] & 0xFFL) |
+                (bytes[index + 1] & 0xFFL) << 8 |
+                (bytes[index + 2] & 0xFFL) << 16 |
+                (bytes[index + 3] & 0xFFL) << 24 |
+                (bytes[index + 4] & 0xFFL) << 32 |
+                (bytes[index + 5] & 0xFFL) << 40 |
+                (bytes[index + 6] & 0xFFL) << 48 |
+                (bytes[index + 7] & 0xFFL) << 56;
+    }
+
+}
@@ -0,0 +1,123 @@
+package com.vlkan.rfos;
+
+import org.joda.time.LocalDateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+// Claims the next index of an indexed file pattern per date time. Indices are
+// tracked in memory and seeded once by scanning the existing rotated files.
+// Only the index of the last claimed date time is retained, hence revisiting
+// an earlier one (e.g., due to a clock adjustment) lists its directory to
+// continue after the existing files, including the compressed and sidecar ones.
+class RotatedFileIndexes {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RotatedFileIndexes.class);
+
+    private final RotatingFilePattern filePattern;
+
+    // Seeded indices, discarded on the first claim.
+    private final Map<File, Long> nextIndexBySeededBucket;
+
+    private boolean seeded;
+
+    private File bucket;
+
+    private long nextIndex;
+
+    RotatedFileIndexes(RotatingFilePattern filePattern) {
+        this.filePattern = filePattern;
+        this.nextIndexBySeededBucket = new HashMap<>();
+    }
+
+    synchronized File claim(LocalDateTime dateTime) throws IOException {
+        seed();
+        File claimedBucket = normalize(filePattern.create(dateTime, 0));
+        if (!claimedBucket.equals(bucket)) {
+            Long seededNextIndex = nextIndexBySeededBucket.get(claimedBucket);
+            nextIndexBySeededBucket.clear();
+            bucket = claimedBucket;
+            nextIndex = seededNextIndex != null ? seededNextIndex : list(claimedBucket);
+        }
+        File file;
+        do {
+            file = filePattern.create(dateTime, nextIndex++);
+        } while (file.exists());
+        return file;
+    }
+
+    synchronized void seed() throws IOException {
+        if (!seeded) {
+            File directory = filePattern.getDirectory();
+            if (directory.isDirectory()) {
+                LOGGER.debug("seeding indices {directory={}}", directory);
+                scan(directory);
+            }
+            seeded = true;
+        }
+    }
+
+    // Bucket files of relative patterns are relative to the working directory,
+    // hence normalize them to compare against those created off "./" patterns.
+    private static File normalize(File file) {
+        return file.getAbsoluteFile().toPath().normalize().toFile();
+    }
+
+    // Returns the next index of the given bucket by listing its directory,
+    // where the files derived from a rotated one (e.g., "-0.log.gz") match too.
+    private long list(File claimedBucket) {
+        long listedNextIndex = 0;
+        File[] files = claimedBucket.getParentFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                File listedBucket = filePattern.getIndexBucket(file);
+                if (listedBucket != null && claimedBucket.equals(normalize(listedBucket))) {
+                    listedNextIndex = Math.max(listedNextIndex, filePattern.getIndex(file) + 1);
+                }
+            }
+        }
+        return listedNextIndex;
+    }
+
+    private void scan(File directory) throws IOException {
+        Set<FileVisitOption> options = EnumSet.noneOf(FileVisitOption.class);
+        int maxDepth = filePattern.getMaxDepth();
+        Files.walkFileTree(directory.toPath(), options, maxDepth, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                File file = path.toFile().getAbsoluteFile();
+                File seededBucket = filePattern.getIndexBucket(file);
+                if (seededBucket != null) {
+                    seededBucket = normalize(seededBucket);
+                    long index = filePattern.getIndex(file);
+                    Long seededNextIndex = nextIndexBySeededBucket.get(seededBucket);
+                    if (seededNextIndex == null || seededNextIndex <= index) {
+                        nextIndexBySeededBucket.put(seededBucket, index + 1);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException error) {
+                LOGGER.warn("failed accessing file {path={}}", path, error);
+                return FileVisitResult.CONTINUE;
+            }
+
+        });
+    }
+
+}
@@ -1,55 +1,413 @@
 package com.vlkan.rfos;
 
+import com.vlkan.rfos.event.RotationEvents;
+import com.vlkan.rfos.job.RotationJob;
 import com.vlkan.rfos.policy.RotationPolicy;
+import com.vlkan.rfos.stage.CompressionBudget;
+import com.vlkan.rfos.stage.RotationPipeline;
+import com.vlkan.rfos.stage.RotationStageContext;
 import org.joda.time.LocalDateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.crypto.Cipher;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Checksum;
 
 public class RotatingFileOutputStream extends OutputStream implements Rotatable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(RotatingFileOutputStream.class);
 
+    private static final RotationEvents EVENTS = RotationEvents.getInstance();
+
+    private static final int MAX_CREATED_DIRECTORY_COUNT = 1024;
+
+    // Rotation whose file is renamed, but whose stream swap awaits a newline.
+    private static final class PendingRotation {
+
+        private final RotationPolicy policy;
+
+        private final LocalDateTime dateTime;
+
+        private final File rotatedFile;
+
+        private final OutputStream newStream;
+
+        // Checksum state of the rotated file, if it got released.
+        private final ChecksumOutputStream.State checksumState;
+
+        private PendingRotation(
+                RotationPolicy policy,
+                LocalDateTime dateTime,
+                File rotatedFile,
+                OutputStream newStream,
+                ChecksumOutputStream.State checksumState) {
+            this.policy = policy;
+            this.dateTime = dateTime;
+            this.rotatedFile = rotatedFile;
+            this.newStream = newStream;
+            this.checksumState = checksumState;
+        }
+
+    }
+
+    // Failure to open the file, which is spilled in degraded mode, unlike
+    // other runtime exceptions.
+    private static final class FileOpenException extends RuntimeException {
+
+        private static final long serialVersionUID = 0L;
+
+        private FileOpenException(String message, Throwable cause) {
+            super(message, cause);
+        }
+
+    }
+
+    // Rotation whose completion awaits the other processes to re-open the
+    // file, and/or its turn in the coordinator.
+    private final class DelayedRotation extends TimerTask {
+
+        private final PendingRotation rotation;
+
+        private final OutputStream oldStream;
+
+        private final boolean coordinated;
+
+        private volatile Future<?> coordinatedFuture;
+
+        private DelayedRotation(PendingRotation rotation, OutputStream oldStream, boolean coordinated) {
+            this.rotation = rotation;
+            this.oldStream = oldStream;
+            this.coordinated = coordinated;
+        }
+
+        // Coordinated rotations run the stages in the coordinator thread,
+        // so that the coordinator bounds their concurrency.
+        @Override
+        public void run() {
+            if (delayedRotations.remove(this)) {
+                completeRotation(rotation, oldStream, coordinated);
+            }
+        }
+
+        // Frees the slot in the coordinator queue as well.
+        @Override
+        public boolean cancel() {
+            Future<?> future = coordinatedFuture;
+            if (future != null) {
+                future.cancel(false);
+            }
+            return super.cancel();
+        }
+
+    }
+
     private final RotationConfig config;
 
+    private final Rotatable policyTarget;
+
+    private final RotationPipeline pipeline;
+
     private final List<Thread> runningThreads;
 
+    private final RotationRecovery recovery;
+
+    private final Queue<Cipher> cipherPool;
+
+    private final Set<File> createdDirectories;
+
+    private final RotatedFileIndexes rotatedFileIndexes;
+
+    private final Set<DelayedRotation> delayedRotations;
+
     private final Lock rotationLock;
 
-    private volatile FileOutputStream stream;
+    private final Object startLock;
+
+    private final Object flushLock;
+
+    private final Object lineLock;
+
+    private final AtomicLong flushRequestCount;
+
+    // Checksum state of the released stream, restored on re-open.
+    private final AtomicReference<ChecksumOutputStream.State> releasedChecksumState;
+
+    // Guarded by the flush lock.
+    private long completedFlushTicket;
+
+    private long physicalFlushCount;
+
+    private long physicalFlushNanos;
+
+    private volatile OutputStream stream;
+
+    // Identity (e.g., the inode) of the file the stream is opened on, if
+    // multi-process and supported by the filesystem.
+    private volatile Object fileKey;
+
+    // Guarded by the write lock, read under the read lock.
+    private volatile PendingRotation pendingRotation;
+
+    // Holds the writes while the file is not writable, if degradable. Set
+    // under the start lock, and cleared under the write lock.
+    private volatile DegradedOutput degradedOutput;
+
+    // Whether the last written byte is not a newline, in line-aware mode.
+    // Writers update it together with their write while holding the line
+    // lock (besides the read lock), hence its value follows the order of the
+    // bytes in the file. Rotations access it under the write lock, which
+    // excludes the writers.
+    private boolean midLine;
+
+    private boolean started;
+
+    private boolean closed;
 
     public RotatingFileOutputStream(RotationConfig config) {
+        this(config, null);
+    }
+
+    // Policies trigger the rotations of the given target, if there is one.
+    RotatingFileOutputStream(RotationConfig config, Rotatable policyTarget) {
         this.config = config;
+        this.policyTarget = policyTarget != null ? policyTarget : this;
+        this.pipeline = new RotationPipeline(config.getStages(), config.getCallback(), config.getCompressionBudget());
         this.runningThreads = Collections.synchronizedList(new LinkedList<Thread>());
+        this.recovery = config.isRecovery() ? new RotationRecovery(config, pipeline, runningThreads) : null;
+        this.cipherPool = new ConcurrentLinkedQueue<>();
+        this.createdDirectories = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+        this.rotatedFileIndexes = config.getFilePattern().isIndexed()
+                ? new RotatedFileIndexes(config.getFilePattern())
+                : null;
+        this.delayedRotations = Collections.newSetFromMap(new ConcurrentHashMap<DelayedRotation, Boolean>());
         this.rotationLock = new ReentrantLock();
-        this.stream = open();
+        this.startLock = new Object();
+        this.flushLock = new Object();
+        this.lineLock = new Object();
+        this.flushRequestCount = new AtomicLong();
+        this.releasedChecksumState = new AtomicReference<>();
+        if (!config.isLazy()) {
+            this.stream = open(config.isAppend());
+            start();
+        }
+    }
+
+    private void start() {
+        started = true;
+        if (rotatedFileIndexes != null) {
+            try {
+                rotatedFileIndexes.seed();
+            } catch (IOException error) {
+                // Will be retried on the next rotation.
+                LOGGER.warn("failed seeding indices {filePattern={}}", config.getFilePattern(), error);
+            }
+        }
         startPolicies();
+        startJobs();
+        if (recovery != null) {
+            recovery.start();
+        }
+        if (config.isMultiProcess()) {
+            startFileCheck();
+        }
     }
 
     private void startPolicies() {
         for (RotationPolicy policy : config.getPolicies()) {
-            policy.start(this);
+            policy.start(policyTarget);
         }
     }
 
-    private FileOutputStream open() {
+    private void startJobs() {
+        for (RotationJob job : config.getJobs()) {
+            job.start(policyTarget);
+        }
+    }
+
+    // Periodically checks whether another process has rotated the file, and
+    // re-opens it, if so.
+    private void startFileCheck() {
+        TimerTask task = new TimerTask() {
+            @Override
+            public void run() {
+                if (!rotationLock.tryLock()) {
+                    return;
+                }
+                try {
+                    if (stream != null && isFileReplaced()) {
+                        reopen();
+                    }
+                } catch (Exception error) {
+                    LOGGER.warn("file check failure {file={}}", config.getFile(), error);
+                } finally {
+                    rotationLock.unlock();
+                }
+            }
+        };
+        long intervalMillis = config.getInodeCheckIntervalMillis();
+        config.schedule(task, intervalMillis, intervalMillis);
+    }
+
+    // Filesystems without file keys (e.g., on Windows) never report a replacement.
+    private boolean isFileReplaced() throws IOException {
+        Object currentFileKey;
+        try {
+            currentFileKey = readFileKey(config.getFile().toPath());
+        } catch (NoSuchFileException ignored) {
+            return true;
+        }
+        return currentFileKey != null && !currentFileKey.equals(fileKey);
+    }
+
+    private static Object readFileKey(Path path) throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+    }
+
+    // Must be called while holding the rotation lock.
+    private void reopen() throws IOException {
+        LOGGER.debug("re-opening file replaced by another process {file={}}", config.getFile());
+        OutputStream newStream = open(true);
+        OutputStream oldStream;
+        Lock writeLock = config.getLock().writeLock();
+        lock(writeLock);
         try {
-            return new FileOutputStream(config.getFile(), config.isAppend());
+            oldStream = stream;
+            stream = newStream;
+        } finally {
+            writeLock.unlock();
+        }
+        if (oldStream != null) {
+            oldStream.close();
+        }
+    }
+
+    private OutputStream open(boolean append) {
+        try {
+            createDirectory(config.getFile());
+            OutputStream fileStream = new FileOutputStream(config.getFile(), append);
+            if (config.isMultiProcess()) {
+                fileKey = readFileKey(config.getFile().toPath());
+            }
+            if (config.isChecksum()) {
+                Checksum checksum = ChecksumOutputStream.createChecksum();
+                ChecksumOutputStream.State prefixState = takeChecksumState();
+                if (!append) {
+                    prefixState = new ChecksumOutputStream.State(0, 0);
+                } else if (prefixState == null || prefixState.getLength() != config.getFile().length()) {
+                    // There is no state matching the file, hence read it.
+                    LOGGER.debug("reading checksum {file={}, state={}}", config.getFile(), prefixState);
+                    ChecksumOutputStream.update(checksum, config.getFile());
+                    prefixState = new ChecksumOutputStream.State(0, 0);
+                }
+                fileStream = new ChecksumOutputStream(fileStream, checksum, prefixState);
+            }
+            // Encrypt before checksumming, so that the checksum covers the file contents.
+            if (config.getEncryptionKey() != null) {
+                fileStream = EncryptionOutputStream.create(
+                        fileStream, config.getFile(), append, config.getEncryptionKey(), cipherPool);
+            }
+            return fileStream;
         } catch (IOException error) {
             String message = String.format("file open failure {file=%s}", config.getFile());
-            throw new RuntimeException(message);
+            throw new FileOpenException(message, error);
+        }
+    }
+
+    // Returns the checksum state persisted on release, or on close by an
+    // earlier stream, if there is one. The persisted state is consumed.
+    private ChecksumOutputStream.State takeChecksumState() {
+        ChecksumOutputStream.State state = releasedChecksumState.getAndSet(null);
+        File stateFile = ChecksumOutputStream.getStateFile(config.getFile());
+        if (state == null) {
+            state = ChecksumOutputStream.readState(stateFile);
+        }
+        if (stateFile.exists() && !stateFile.delete()) {
+            LOGGER.warn("failed deleting checksum state {stateFile={}}", stateFile);
+        }
+        return state;
+    }
+
+    // Must be called while holding the read lock, which prevents the stream
+    // from being replaced by a rotation in the meantime.
+    private OutputStream getOrOpenStream() throws IOException {
+        OutputStream currentStream = stream;
+        if (currentStream != null) {
+            return currentStream;
+        }
+        synchronized (startLock) {
+            if (closed) {
+                String message = String.format("closed stream {file=%s}", config.getFile());
+                throw new IOException(message);
+            }
+            if (stream == null) {
+                LOGGER.debug("opening file {file={}}", config.getFile());
+                stream = open(started || config.isAppend());
+                onOpen();
+            }
+            if (!started) {
+                start();
+            }
+            return stream;
+        }
+    }
+
+    // Hook for the registry to keep track of open files. Called while holding
+    // the read lock, hence must not block on other streams.
+    void onOpen() {
+        // Do nothing.
+    }
+
+    boolean isOpen() {
+        return stream != null;
+    }
+
+    // Closes the file, if it is open. It will be re-opened in append mode on the next write.
+    boolean release() throws IOException {
+        completePendingRotation();
+        Lock writeLock = config.getLock().writeLock();
+        writeLock.lock();
+        try {
+            OutputStream currentStream = stream;
+            if (currentStream == null) {
+                return false;
+            }
+            LOGGER.debug("releasing file {file={}}", config.getFile());
+            stream = null;
+            currentStream.close();
+            if (config.isChecksum()) {
+                releasedChecksumState.set(getChecksumStream(currentStream).getState());
+            }
+            return true;
+        } finally {
+            writeLock.unlock();
         }
     }
 
@@ -60,7 +418,13 @@ public class RotatingFileOutputStream extends OutputStream implements Rotatable
             config.getCallback().onConflict(policy, dateTime);
         } else {
             try {
-                unsafeRotate(policy, dateTime);
+                if (pendingRotation != null) {
+                    config.getCallback().onConflict(policy, dateTime);
+                } else if (config.isMultiProcess()) {
+                    unsafeRotateShared(policy, dateTime);
+                } else {
+                    unsafeRotate(policy, dateTime);
+                }
             } catch (Exception error) {
                 String message = String.format("rotation failure {dateTime=%s}", dateTime);
                 RuntimeException extendedError = new RuntimeException(message);
@@ -71,6 +435,37 @@ public class RotatingFileOutputStream extends OutputStream implements Rotatable
         }
     }
 
+    // Processes race for the lock file, and the losers re-open the file
+    // rotated by the winner.
+    private void unsafeRotateShared(RotationPolicy policy, LocalDateTime dateTime) throws Exception {
+        File lockFile = new File(config.getFile().getAbsolutePath() + ".lock");
+        createDirectory(lockFile);
+        try (FileChannel lockChannel = FileChannel.open(
+                lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock fileLock;
+            try {
+                fileLock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException ignored) {
+                fileLock = null;
+            }
+            if (fileLock == null) {
+                LOGGER.debug("file is locked by another rotation {lockFile={}}", lockFile);
+                config.getCallback().onConflict(policy, dateTime);
+                return;
+            }
+            try {
+                if (stream != null && isFileReplaced()) {
+                    reopen();
+                    config.getCallback().onConflict(policy, dateTime);
+                } else {
+                    unsafeRotate(policy, dateTime);
+                }
+            } finally {
+                fileLock.release();
+            }
+        }
+    }
+
     private void unsafeRotate(RotationPolicy policy, LocalDateTime dateTime) throws Exception {
 
         // Skip rotation if file is empty.
@@ -81,93 +476,363 @@ public class RotatingFileOutputStream extends OutputStream implements Rotatable
         }
 
         // Rename the file.
-        File rotatedFile = config.getFilePattern().create(dateTime).getAbsoluteFile();
+        Object event = EVENTS.beginRotation();
+        long renameStartNanos = System.nanoTime();
+        File rotatedFile = (rotatedFileIndexes != null
+                ? rotatedFileIndexes.claim(dateTime)
+                : config.getFilePattern().create(dateTime)).getAbsoluteFile();
+        if (config.isMultiProcess()) {
+            // Another process might have rotated to the same file already.
+            while (rotatedFileIndexes != null && rotatedFile.exists()) {
+                rotatedFile = rotatedFileIndexes.claim(dateTime).getAbsoluteFile();
+            }
+            if (rotatedFile.exists()) {
+                LOGGER.debug("rotated by another process {rotatedFile={}}", rotatedFile);
+                config.getCallback().onConflict(policy, dateTime);
+                return;
+            }
+        }
+        if (recovery != null) {
+            recovery.exclude(rotatedFile);
+            createDirectory(rotatedFile);
+            RotationRecovery.mark(rotatedFile);
+        }
+        if (config.isCopyTruncate()) {
+            unsafeCopyTruncate(policy, dateTime, rotatedFile, event, renameStartNanos);
+            return;
+        }
+        // A failed rename leaves the next open to read the checksum from the file.
+        ChecksumOutputStream.State checksumState = releasedChecksumState.getAndSet(null);
         LOGGER.debug("renaming {file={}, rotatedFile={}}", config.getFile(), rotatedFile);
-        boolean renamed = config.getFile().renameTo(rotatedFile);
+        boolean renamed = rename(rotatedFile);
         if (!renamed) {
             String message = String.format("rename failure {file=%s, rotatedFile=%s}", config.getFile(), rotatedFile);
             IOException error = new IOException(message);
+            if (recovery != null) {
+                RotationRecovery.unmark(rotatedFile);
+            }
             config.getCallback().onFailure(policy, dateTime, rotatedFile, error);
             return;
         }
 
         // Re-open the file.
+        long openStartNanos = System.nanoTime();
         LOGGER.debug("re-opening file {file={}}", config.getFile());
-        FileOutputStream newStream = open();
-        FileOutputStream oldStream;
+        OutputStream newStream = open(config.isAppend());
+        long swapStartNanos = System.nanoTime();
+        OutputStream oldStream;
+        boolean deferred = false;
         Lock writeLock = config.getLock().writeLock();
-        writeLock.lock();
+        lock(writeLock);
         try {
             oldStream = stream;
-            stream = newStream;
+            // Defer the swap to the next newline, if the last line is incomplete.
+            if (oldStream != null && config.isLineAware() && midLine) {
+                LOGGER.debug("deferring swap to the next newline {file={}}", config.getFile());
+                pendingRotation = new PendingRotation(policy, dateTime, rotatedFile, newStream, null);
+                deferred = true;
+            } else {
+                stream = oldStream != null ? newStream : null;
+                midLine = false;
+            }
         } finally {
             writeLock.unlock();
         }
-        oldStream.close();
+        if (event != null) {
+            long swapEndNanos = System.nanoTime();
+            EVENTS.commitRotation(
+                    event, config.getFile(), rotatedFile,
+                    openStartNanos - renameStartNanos,
+                    swapStartNanos - openStartNanos,
+                    swapEndNanos - swapStartNanos);
+        }
+        if (!deferred) {
+            scheduleCompletion(new PendingRotation(policy, dateTime, rotatedFile, newStream, checksumState), oldStream);
+        }
 
-        // Compress the old file, if necessary.
-        if (config.isCompress()) {
-            asyncCompress(policy, dateTime, rotatedFile, config.getCallback());
+    }
+
+    // Copies the file to the rotated file and truncates it in place, for the
+    // readers following the file by its path rather than by its inode. The
+    // bulk of the file gets copied by the kernel without blocking the writers,
+    // which are only blocked to copy the tail written in the meantime.
+    private void unsafeCopyTruncate(
+            RotationPolicy policy,
+            LocalDateTime dateTime,
+            File rotatedFile,
+            Object event,
+            long copyStartNanos) {
+        createDirectory(rotatedFile);
+        LOGGER.debug("copying {file={}, rotatedFile={}}", config.getFile(), rotatedFile);
+        boolean truncated = false;
+        long tailCopyStartNanos;
+        try (FileChannel fileChannel = FileChannel.open(
+                config.getFile().toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel rotatedFileChannel = FileChannel.open(
+                     rotatedFile.toPath(),
+                     StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long copiedByteCount = transfer(fileChannel, 0, fileChannel.size(), rotatedFileChannel);
+            if (config.isFsync()) {
+                rotatedFileChannel.force(true);
+            }
+            tailCopyStartNanos = System.nanoTime();
+            Lock writeLock = config.getLock().writeLock();
+            lock(writeLock);
+            try {
+                long tailByteCount = transfer(fileChannel, copiedByteCount, fileChannel.size(), rotatedFileChannel);
+                LOGGER.debug("truncating {file={}, tailByteCount={}}", config.getFile(), tailByteCount);
+                if (config.isFsync()) {
+                    rotatedFileChannel.force(true);
+                }
+                // Streams not opened in append mode would leave a hole otherwise.
+                OutputStream currentStream = stream;
+                if (currentStream != null) {
+                    getFileStream(currentStream).getChannel().position(0);
+                }
+                fileChannel.truncate(0);
+                truncated = true;
+            } finally {
+                writeLock.unlock();
+            }
+        } catch (IOException error) {
+            // Keep the copy, if the file is truncated already.
+            if (!truncated) {
+                if (!rotatedFile.delete() && rotatedFile.exists()) {
+                    LOGGER.warn("failed deleting partial copy {rotatedFile={}}", rotatedFile);
+                }
+                if (recovery != null) {
+                    RotationRecovery.unmark(rotatedFile);
+                }
+            }
+            String message = String.format("copy failure {file=%s, rotatedFile=%s}", config.getFile(), rotatedFile);
+            config.getCallback().onFailure(policy, dateTime, rotatedFile, new IOException(message, error));
             return;
         }
+        if (event != null) {
+            long tailCopyEndNanos = System.nanoTime();
+            EVENTS.commitRotation(
+                    event, config.getFile(), rotatedFile,
+                    tailCopyStartNanos - copyStartNanos,
+                    0,
+                    tailCopyEndNanos - tailCopyStartNanos);
+        }
 
-        // So far, so good;
-        config.getCallback().onSuccess(policy, dateTime, rotatedFile);
+        // There is no stream to close, though the stages still need to run.
+        scheduleCompletion(new PendingRotation(policy, dateTime, rotatedFile, null, null), null);
 
     }
 
-    private void asyncCompress(final RotationPolicy policy, final LocalDateTime dateTime, final File rotatedFile, final RotationCallback callback) {
-        String threadName = String.format("%s.compress(%s)", RotatingFileOutputStream.class.getSimpleName(), rotatedFile);
-        Runnable threadTask = new Runnable() {
-            @Override
-            public void run() {
-                Thread thread = Thread.currentThread();
-                runningThreads.add(thread);
-                File compressedFile = getCompressedFile(rotatedFile);
-                try {
-                    unsafeSyncCompress(rotatedFile, compressedFile);
-                    callback.onSuccess(policy, dateTime, compressedFile);
-                } catch (Exception error) {
-                    String message = String.format(
-                            "compression failure {dateTime=%s, rotatedFile=%s, compressedFile=%s}",
-                            dateTime, rotatedFile, compressedFile);
-                    RuntimeException extendedError = new RuntimeException(message, error);
-                    callback.onFailure(policy, dateTime, rotatedFile, extendedError);
-                } finally {
-                    runningThreads.remove(thread);
-                }
+    // Returns the position the transfer has reached, which falls short of
+    // the limit, if the file is truncated by someone else in the meantime.
+    private static long transfer(FileChannel source, long position, long limit, FileChannel target)
+            throws IOException {
+        long offset = position;
+        while (offset < limit) {
+            long transferredByteCount = source.transferTo(offset, limit - offset, target);
+            if (transferredByteCount <= 0) {
+                break;
             }
-        };
-        new Thread(threadTask, threadName).start();
+            offset += transferredByteCount;
+        }
+        return offset - position;
     }
 
-    private File getCompressedFile(File rotatedFile) {
-        String compressedFileName = String.format("%s.gz", rotatedFile.getAbsolutePath());
-        return new File(compressedFileName);
+    private boolean rename(File rotatedFile) {
+        createDirectory(rotatedFile);
+        if (config.getFile().renameTo(rotatedFile)) {
+            return true;
+        }
+        // Retry, if the directory is removed in the meantime, e.g., by a cleanup.
+        File directory = rotatedFile.getParentFile();
+        if (directory == null || !createdDirectories.remove(directory)) {
+            return false;
+        }
+        createDirectory(rotatedFile);
+        return config.getFile().renameTo(rotatedFile);
     }
 
-    private static void unsafeSyncCompress(File rotatedFile, File compressedFile) throws IOException {
-        LOGGER.debug("compressing {rotatedFile={}, compressedFile={}}", rotatedFile, compressedFile);
-        try (InputStream sourceStream = new FileInputStream(rotatedFile)) {
-            try (OutputStream targetStream = new FileOutputStream(compressedFile)) {
-                try (GZIPOutputStream gzipTargetStream = new GZIPOutputStream(targetStream)) {
-                    copy(sourceStream, gzipTargetStream);
-                    LOGGER.debug("deleting old file {rotatedFile={}}", rotatedFile);
-                    boolean deleted = rotatedFile.delete();
-                    if (!deleted) {
-                        String message = String.format("failed deleting old file {rotatedFile=%s}", rotatedFile);
-                        throw new IOException(message);
-                    }
-                }
+    // Creates the missing directory of the given file. Created directories are
+    // cached to avoid hitting the filesystem on every rotation.
+    private void createDirectory(File file) {
+        File directory = file.getParentFile();
+        if (directory == null || createdDirectories.contains(directory)) {
+            return;
+        }
+        if (!directory.isDirectory()) {
+            LOGGER.debug("creating directory {directory={}}", directory);
+            if (!directory.mkdirs() && !directory.isDirectory()) {
+                return;
+            }
+        }
+        if (createdDirectories.size() >= MAX_CREATED_DIRECTORY_COUNT) {
+            createdDirectories.clear();
+        }
+        createdDirectories.add(directory);
+    }
+
+    private void completeRotation(PendingRotation rotation, OutputStream oldStream, boolean inline) {
+        try {
+            unsafeCompleteRotation(rotation, oldStream, inline);
+        } catch (Exception error) {
+            String message = String.format("rotation failure {dateTime=%s}", rotation.dateTime);
+            RuntimeException extendedError = new RuntimeException(message, error);
+            config.getCallback().onFailure(rotation.policy, rotation.dateTime, rotation.rotatedFile, extendedError);
+        }
+    }
+
+    // Swaps the streams of the pending rotation, if there is one, regardless of the last line.
+    private void completePendingRotation() {
+        PendingRotation rotation;
+        OutputStream oldStream = null;
+        Lock writeLock = config.getLock().writeLock();
+        writeLock.lock();
+        try {
+            rotation = pendingRotation;
+            if (rotation != null) {
+                oldStream = stream;
+                stream = rotation.newStream;
+                pendingRotation = null;
+                midLine = false;
             }
+        } finally {
+            writeLock.unlock();
+        }
+        if (rotation != null) {
+            completeRotation(rotation, oldStream, false);
+        }
+    }
+
+    // Other processes keep on appending to the rotated file until they notice
+    // the rotation, hence the completion is delayed by two check intervals.
+    // Coordinated completions are further delayed by the coordinator.
+    private void scheduleCompletion(PendingRotation rotation, OutputStream oldStream) {
+        RotationCoordinator coordinator = config.getCoordinator();
+        long delayMillis = config.isMultiProcess() ? 2 * config.getInodeCheckIntervalMillis() : 0;
+        if (coordinator == null && delayMillis == 0) {
+            completeRotation(rotation, oldStream, false);
+            return;
+        }
+        DelayedRotation delayedRotation = new DelayedRotation(rotation, oldStream, coordinator != null);
+        delayedRotations.add(delayedRotation);
+        if (coordinator == null) {
+            config.schedule(delayedRotation, delayMillis);
+            return;
+        }
+        try {
+            delayedRotation.coordinatedFuture = coordinator.schedule(delayedRotation, delayMillis);
+        } catch (RejectedExecutionException ignored) {
+            LOGGER.debug("closed coordinator, completing rotation {rotatedFile={}}", rotation.rotatedFile);
+            if (delayedRotations.remove(delayedRotation)) {
+                completeRotation(rotation, oldStream, false);
+            }
+        }
+    }
+
+    private void completeDelayedRotations() {
+        for (DelayedRotation delayedRotation : delayedRotations) {
+            if (delayedRotations.remove(delayedRotation)) {
+                delayedRotation.cancel();
+                completeRotation(delayedRotation.rotation, delayedRotation.oldStream, false);
+            }
+        }
+    }
+
+    private void unsafeCompleteRotation(PendingRotation rotation, OutputStream oldStream, boolean inline)
+            throws Exception {
+        RotationPolicy policy = rotation.policy;
+        LocalDateTime dateTime = rotation.dateTime;
+        File rotatedFile = rotation.rotatedFile;
+        OutputStream newStream = rotation.newStream;
+
+        // Close the old stream, if there is one. Copy-truncate rotations have neither.
+        if (oldStream != null) {
+            oldStream.close();
+        } else if (newStream != null) {
+            newStream.close();
+        }
+
+        // Write the checksum, if necessary.
+        File checksumFile = null;
+        Long checksum = null;
+        if (config.isChecksum()) {
+            // A released stream has no running checksum, hence use its state, or read it from the file.
+            checksum = oldStream != null
+                    ? getChecksumValue(oldStream)
+                    : readChecksumValue(rotatedFile, rotation.checksumState);
+            checksumFile = ChecksumOutputStream.getChecksumFile(rotatedFile);
+            writeChecksum(checksumFile, checksum);
+        }
+
+        // Run the post-rotation stages, if there are any.
+        if (!pipeline.isEmpty()) {
+            RotationStageContext context = new RotationStageContext(policy, dateTime, rotatedFile);
+            if (checksumFile != null) {
+                context.setChecksum(checksum);
+                context.getSidecarFiles().add(checksumFile);
+            }
+            if (inline) {
+                executePipeline(context);
+            } else {
+                asyncExecutePipeline(context);
+            }
+            return;
+        }
+
+        // So far, so good;
+        config.getCallback().onSuccess(policy, dateTime, rotatedFile);
+
+    }
+
+    private static long getChecksumValue(OutputStream stream) {
+        return getChecksumStream(stream).getChecksumValue();
+    }
+
+    private static ChecksumOutputStream getChecksumStream(OutputStream stream) {
+        OutputStream checksumStream = stream instanceof EncryptionOutputStream
+                ? ((EncryptionOutputStream) stream).getOut()
+                : stream;
+        return (ChecksumOutputStream) checksumStream;
+    }
+
+    private static long readChecksumValue(File file, ChecksumOutputStream.State state) throws IOException {
+        if (state != null && state.getLength() == file.length()) {
+            return state.getValue();
+        }
+        Checksum checksum = ChecksumOutputStream.createChecksum();
+        ChecksumOutputStream.update(checksum, file);
+        return checksum.getValue();
+    }
+
+    private static void writeChecksum(File checksumFile, long checksum) throws IOException {
+        String checksumText = String.format("%08x%n", checksum);
+        LOGGER.debug("writing checksum {checksumFile={}, checksum={}}", checksumFile, checksumText.trim());
+        try (OutputStream checksumStream = new FileOutputStream(checksumFile)) {
+            checksumStream.write(checksumText.getBytes(StandardCharsets.US_ASCII));
         }
     }
 
-    private static void copy(InputStream source, OutputStream target) throws IOException {
-        byte[] buffer = new byte[8192];
-        int readByteCount;
-        while ((readByteCount = source.read(buffer)) > 0) {
-            target.write(buffer, 0, readByteCount);
+    private void asyncExecutePipeline(final RotationStageContext context) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                executePipeline(context);
+            }
+        };
+        config.getExecutor().execute(task);
+    }
+
+    private void executePipeline(RotationStageContext context) {
+        Thread thread = Thread.currentThread();
+        runningThreads.add(thread);
+        try {
+            boolean succeeded = pipeline.execute(context);
+            if (succeeded && recovery != null) {
+                RotationRecovery.unmark(context.getRotatedFile());
+            }
+        } finally {
+            runningThreads.remove(thread);
         }
     }
 
@@ -183,59 +848,355 @@ public class RotatingFileOutputStream extends OutputStream implements Rotatable
     @Override
     public void write(int b) throws IOException {
         Lock readLock = config.getLock().readLock();
-        readLock.lock();
+        lock(readLock);
         try {
-            stream.write(b);
+            if (pendingRotation == null) {
+                if (config.isLineAware()) {
+                    synchronized (lineLock) {
+                        writeOrSpill(b);
+                        midLine = !Newlines.isNewline((byte) b);
+                    }
+                } else {
+                    writeOrSpill(b);
+                }
+                return;
+            }
         } finally {
             readLock.unlock();
         }
+        writeAcrossPendingRotation(new byte[]{(byte) b}, 0, 1);
+    }
+
+    // Must be called while holding the read lock.
+    private void writeOrSpill(int b) throws IOException {
+        DegradedOutput currentDegradedOutput = degradedOutput;
+        if (currentDegradedOutput != null) {
+            currentDegradedOutput.write(new byte[]{(byte) b}, 0, 1);
+        } else {
+            try {
+                getOrOpenStream().write(b);
+            } catch (IOException | FileOpenException error) {
+                spill(error, new byte[]{(byte) b}, 0, 1);
+            }
+        }
     }
 
     @Override
     public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
         Lock readLock = config.getLock().readLock();
-        readLock.lock();
+        lock(readLock);
         try {
-            stream.write(b);
+            if (pendingRotation == null) {
+                if (config.isLineAware()) {
+                    synchronized (lineLock) {
+                        writeOrSpill(b, off, len);
+                        if (len > 0) {
+                            midLine = !Newlines.isNewline(b[off + len - 1]);
+                        }
+                    }
+                } else {
+                    writeOrSpill(b, off, len);
+                }
+                return;
+            }
         } finally {
             readLock.unlock();
         }
+        writeAcrossPendingRotation(b, off, len);
     }
 
-    @Override
-    public void write(byte[] b, int off, int len) throws IOException {
-        Lock readLock = config.getLock().readLock();
-        readLock.lock();
+    // Must be called while holding the read lock.
+    private void writeOrSpill(byte[] b, int off, int len) throws IOException {
+        DegradedOutput currentDegradedOutput = degradedOutput;
+        if (currentDegradedOutput != null) {
+            currentDegradedOutput.write(b, off, len);
+        } else {
+            try {
+                write(getOrOpenStream(), b, off, len);
+            } catch (IOException | FileOpenException error) {
+                spill(error, b, off, len);
+            }
+        }
+    }
+
+    // Spills the bytes of the failed write in degraded mode, and rethrows the error otherwise.
+    private void spill(Exception error, byte[] b, int off, int len) throws IOException {
+        DegradedOutput currentDegradedOutput = enterDegradedMode(error);
+        if (currentDegradedOutput == null) {
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            }
+            throw (RuntimeException) error;
+        }
+        currentDegradedOutput.write(b, off, len);
+    }
+
+    // Returns the degraded output, or null, if not degradable.
+    private DegradedOutput enterDegradedMode(Exception error) {
+        if (!config.isDegradable()) {
+            return null;
+        }
+        DegradedOutput currentDegradedOutput;
+        boolean entered = false;
+        synchronized (startLock) {
+            if (closed) {
+                return null;
+            }
+            currentDegradedOutput = degradedOutput;
+            if (currentDegradedOutput == null) {
+                LOGGER.debug("entering degraded mode {file={}}", config.getFile());
+                currentDegradedOutput = degradedOutput = new DegradedOutput(config);
+                entered = true;
+                TimerTask task = new TimerTask() {
+                    @Override
+                    public void run() {
+                        if (exitDegradedMode()) {
+                            cancel();
+                        }
+                    }
+                };
+                long intervalMillis = config.getDegradedCheckIntervalMillis();
+                config.schedule(task, intervalMillis, intervalMillis);
+            }
+        }
+        RotationCallback callback = config.getCallback();
+        if (entered && callback instanceof DegradedModeCallback) {
+            ((DegradedModeCallback) callback).onDegradedModeEnter(config.getFile(), error);
+        }
+        return currentDegradedOutput;
+    }
+
+    // Drains the degraded output into the file, and returns whether the
+    // stream is not in degraded mode anymore.
+    private boolean exitDegradedMode() {
+        DegradedOutput currentDegradedOutput;
+        Lock writeLock = config.getLock().writeLock();
+        lock(writeLock);
         try {
-            stream.write(b, off, len);
+            currentDegradedOutput = degradedOutput;
+            if (currentDegradedOutput == null) {
+                return true;
+            }
+            OutputStream currentStream = stream;
+            currentDegradedOutput.drainTo(currentStream != null ? currentStream : getOrOpenStream());
+            degradedOutput = null;
+        } catch (IOException | FileOpenException error) {
+            LOGGER.debug("failed leaving degraded mode {file={}}", config.getFile(), error);
+            return false;
         } finally {
-            readLock.unlock();
+            writeLock.unlock();
+        }
+        LOGGER.debug("left degraded mode {file={}}", config.getFile());
+        notifyDegradedModeExit(currentDegradedOutput);
+        return true;
+    }
+
+    // Leaves the degraded mode, dropping the bytes that cannot be drained.
+    private void discardDegradedOutput() {
+        DegradedOutput currentDegradedOutput;
+        Lock writeLock = config.getLock().writeLock();
+        writeLock.lock();
+        try {
+            currentDegradedOutput = degradedOutput;
+            degradedOutput = null;
+        } finally {
+            writeLock.unlock();
+        }
+        if (currentDegradedOutput != null) {
+            currentDegradedOutput.discard();
+            File fallbackFile = currentDegradedOutput.getFallbackFile();
+            if (fallbackFile != null && fallbackFile.exists()) {
+                LOGGER.warn(
+                        "leaving undrained fallback file {file={}, fallbackFile={}}",
+                        config.getFile(), fallbackFile);
+            }
+            notifyDegradedModeExit(currentDegradedOutput);
+        }
+    }
+
+    private void notifyDegradedModeExit(DegradedOutput exitedDegradedOutput) {
+        RotationCallback callback = config.getCallback();
+        if (callback instanceof DegradedModeCallback) {
+            ((DegradedModeCallback) callback).onDegradedModeExit(
+                    config.getFile(), exitedDegradedOutput.getDroppedByteCount());
+        }
+    }
+
+    // Feeds the compression budget with sampled write latencies, and JFR with slow writes.
+    private void write(OutputStream currentStream, byte[] b, int off, int len) throws IOException {
+        Object event = EVENTS.beginWrite();
+        CompressionBudget budget = config.getCompressionBudget();
+        if (budget == null || !budget.isWriteSampled()) {
+            currentStream.write(b, off, len);
+        } else {
+            long startNanos = System.nanoTime();
+            currentStream.write(b, off, len);
+            budget.recordWriteLatency(System.nanoTime() - startNanos);
+        }
+        if (event != null) {
+            EVENTS.commitWrite(event, config.getFile(), len);
+        }
+    }
+
+    // Reports lock waits to JFR. (tryLock() is avoided, since it barges ahead of
+    // queued rotations, which then starve under a steady stream of writes.)
+    private void lock(Lock lock) {
+        Object event = EVENTS.beginLockWait();
+        lock.lock();
+        if (event != null) {
+            EVENTS.commitLockWait(event, config.getFile());
+        }
+    }
+
+    // Writes the bytes up to the first newline to the rotated file and the rest to the new one.
+    private void writeAcrossPendingRotation(byte[] b, int off, int len) throws IOException {
+        PendingRotation rotation;
+        OutputStream oldStream = null;
+        Lock writeLock = config.getLock().writeLock();
+        writeLock.lock();
+        try {
+            rotation = pendingRotation;
+            int newlineIndex = rotation != null ? Newlines.indexOf(b, off, len) : -1;
+            if (newlineIndex < 0) {
+                rotation = null;
+                getOrOpenStream().write(b, off, len);
+            } else {
+                oldStream = stream;
+                int headLength = newlineIndex - off + 1;
+                oldStream.write(b, off, headLength);
+                LOGGER.debug("swapping streams of the deferred rotation {file={}}", config.getFile());
+                stream = rotation.newStream;
+                pendingRotation = null;
+                stream.write(b, off + headLength, len - headLength);
+            }
+            if (len > 0) {
+                midLine = !Newlines.isNewline(b[off + len - 1]);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        if (rotation != null) {
+            scheduleCompletion(rotation, oldStream);
         }
     }
 
+    // Concurrent flushes are combined: every request takes a ticket, and returns
+    // as soon as a physical flush starting after the ticket has completed.
     @Override
     public void flush() throws IOException {
+        long ticket = flushRequestCount.incrementAndGet();
+        synchronized (flushLock) {
+            if (completedFlushTicket >= ticket) {
+                return;
+            }
+            long lastTicket = flushRequestCount.get();
+            long startNanos = System.nanoTime();
+            unsafeFlush();
+            physicalFlushNanos += System.nanoTime() - startNanos;
+            physicalFlushCount++;
+            completedFlushTicket = lastTicket;
+        }
+    }
+
+    private void unsafeFlush() throws IOException {
         Lock readLock = config.getLock().readLock();
         readLock.lock();
         try {
-            stream.flush();
+            OutputStream currentStream = stream;
+            if (currentStream != null) {
+                currentStream.flush();
+                if (config.isFsync()) {
+                    getFileStream(currentStream).getFD().sync();
+                }
+            }
         } finally {
             readLock.unlock();
         }
     }
 
+    private static FileOutputStream getFileStream(OutputStream stream) {
+        if (stream instanceof EncryptionOutputStream) {
+            stream = ((EncryptionOutputStream) stream).getOut();
+        }
+        if (stream instanceof ChecksumOutputStream) {
+            stream = ((ChecksumOutputStream) stream).getOut();
+        }
+        return (FileOutputStream) stream;
+    }
+
+    public long getFlushRequestCount() {
+        return flushRequestCount.get();
+    }
+
+    public long getPhysicalFlushCount() {
+        synchronized (flushLock) {
+            return physicalFlushCount;
+        }
+    }
+
+    public long getPhysicalFlushNanos() {
+        synchronized (flushLock) {
+            return physicalFlushNanos;
+        }
+    }
+
     @Override
     public void close() throws IOException {
-        config.getTimer().cancel();
+        synchronized (startLock) {
+            closed = true;
+            if (started) {
+                // A shared timer only gets the tasks of this stream cancelled.
+                config.cancelTimer();
+            }
+        }
+        completePendingRotation();
+        completeDelayedRotations();
+        if (!exitDegradedMode()) {
+            discardDegradedOutput();
+        }
+        // A shared executor is shut down by its owner, e.g., the registry.
+        ExecutorService executor = config.getExecutor();
+        if (executor != null && !config.isExecutorShared()) {
+            executor.shutdown();
+        }
         Lock readLock = config.getLock().readLock();
         readLock.lock();
         try {
-            stream.close();
+            OutputStream currentStream = stream;
+            if (currentStream != null) {
+                currentStream.close();
+            }
+            if (config.isChecksum()) {
+                persistChecksumState(currentStream);
+            }
         } finally {
             readLock.unlock();
         }
     }
 
+    // Persists the checksum state next to the file, so that the next stream
+    // appending to it does not need to read the file.
+    private void persistChecksumState(OutputStream currentStream) {
+        ChecksumOutputStream.State state = currentStream != null
+                ? getChecksumStream(currentStream).getState()
+                : releasedChecksumState.get();
+        if (state == null) {
+            return;
+        }
+        File stateFile = ChecksumOutputStream.getStateFile(config.getFile());
+        LOGGER.debug("writing checksum state {stateFile={}, state={}}", stateFile, state);
+        try {
+            ChecksumOutputStream.writeState(stateFile, state);
+        } catch (IOException error) {
+            LOGGER.warn("failed writing checksum state {stateFile={}}", stateFile, error);
+        }
+    }
+
     @Override
     public String toString() {
         return String.format("RotatingFileOutputStream{file=%s}", config.getFile());
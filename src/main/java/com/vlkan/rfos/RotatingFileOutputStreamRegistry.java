@@ -0,0 +1,337 @@
+package com.vlkan.rfos;
+
+import com.vlkan.rfos.job.CompactionJob;
+import com.vlkan.rfos.job.RotationJob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class RotatingFileOutputStreamRegistry implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RotatingFileOutputStreamRegistry.class);
+
+    public static final String KEY_PLACEHOLDER = "${key}";
+
+    private static final int STRIPE_COUNT = 64;
+
+    private static final long SWEEP_PERIOD_MILLIS = 60_000;
+
+    private final class Entry {
+
+        private final String key;
+
+        private final RotatingFileOutputStream stream;
+
+        private volatile boolean referenced;
+
+        // Whether the entry got accessed since the last sweep.
+        private volatile boolean accessed = true;
+
+        private Entry(String key, RotationConfig config) {
+            this.key = key;
+            this.stream = new RotatingFileOutputStream(config) {
+                @Override
+                void onOpen() {
+                    opened(Entry.this);
+                }
+            };
+        }
+
+    }
+
+    private final RotationConfig template;
+
+    private final int maxOpenFileCount;
+
+    private final ConcurrentMap<String, Entry> entryByKey;
+
+    private final Lock[] stripes;
+
+    private final Queue<Entry> openEntries;
+
+    private final AtomicInteger openFileCount;
+
+    private final AtomicBoolean evictionScheduled;
+
+    // Shared by the streams, hence owned by the registry rather than the streams.
+    private final Timer timer;
+
+    private final ExecutorService executor;
+
+    private volatile boolean closed;
+
+    public RotatingFileOutputStreamRegistry(RotationConfig template, int maxOpenFileCount) {
+        if (!template.getFile().getPath().contains(KEY_PLACEHOLDER) ||
+                !template.getFilePattern().getPattern().contains(KEY_PLACEHOLDER)) {
+            String message = String.format(
+                    "missing key placeholder {placeholder=%s, file=%s, filePattern=%s}",
+                    KEY_PLACEHOLDER, template.getFile(), template.getFilePattern().getPattern());
+            throw new IllegalArgumentException(message);
+        }
+        // Archives are shared by all the streams otherwise.
+        for (RotationJob job : template.getJobs()) {
+            if (job instanceof CompactionJob &&
+                    !((CompactionJob) job).getArchiveFilePattern().getPattern().contains(KEY_PLACEHOLDER)) {
+                String message = String.format(
+                        "missing key placeholder {placeholder=%s, archiveFilePattern=%s}",
+                        KEY_PLACEHOLDER, ((CompactionJob) job).getArchiveFilePattern().getPattern());
+                throw new IllegalArgumentException(message);
+            }
+        }
+        if (maxOpenFileCount < 1) {
+            String message = String.format("invalid open file count {maxOpenFileCount=%d}", maxOpenFileCount);
+            throw new IllegalArgumentException(message);
+        }
+        this.template = template;
+        this.maxOpenFileCount = maxOpenFileCount;
+        this.entryByKey = new ConcurrentHashMap<>();
+        this.stripes = new Lock[STRIPE_COUNT];
+        for (int stripeIndex = 0; stripeIndex < STRIPE_COUNT; stripeIndex++) {
+            stripes[stripeIndex] = new ReentrantLock();
+        }
+        this.openEntries = new ConcurrentLinkedQueue<>();
+        this.openFileCount = new AtomicInteger();
+        this.evictionScheduled = new AtomicBoolean();
+        this.timer = template.getTimer();
+        this.executor = template.getExecutor();
+        timer.schedule(createSweepTask(), SWEEP_PERIOD_MILLIS, SWEEP_PERIOD_MILLIS);
+    }
+
+    private TimerTask createSweepTask() {
+        return new TimerTask() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        };
+    }
+
+    public RotationConfig getTemplate() {
+        return template;
+    }
+
+    public int getMaxOpenFileCount() {
+        return maxOpenFileCount;
+    }
+
+    public int getOpenFileCount() {
+        return openFileCount.get();
+    }
+
+    public int getStreamCount() {
+        return entryByKey.size();
+    }
+
+    public RotatingFileOutputStream get(String key) {
+        Entry entry = entryByKey.get(key);
+        if (entry == null) {
+            entry = create(key);
+        }
+        entry.referenced = true;
+        entry.accessed = true;
+        evict();
+        return entry.stream;
+    }
+
+    private Entry create(String key) {
+        validateKey(key);
+        Lock stripe = stripes[(key.hashCode() & Integer.MAX_VALUE) % STRIPE_COUNT];
+        stripe.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("closed registry");
+            }
+            Entry entry = entryByKey.get(key);
+            if (entry == null) {
+                LOGGER.debug("creating stream {key={}}", key);
+                RotationConfig config = createConfig(key);
+                entry = new Entry(key, config);
+                entryByKey.put(key, entry);
+            }
+            return entry;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    private static void validateKey(String key) {
+        if (key.isEmpty() ||
+                key.equals(".") ||
+                key.equals("..") ||
+                key.indexOf('/') >= 0 ||
+                key.indexOf(File.separatorChar) >= 0 ||
+                key.indexOf('%') >= 0) {
+            String message = String.format("invalid key {key=%s}", key);
+            throw new IllegalArgumentException(message);
+        }
+    }
+
+    private RotationConfig createConfig(String key) {
+        String fileName = template.getFile().getPath().replace(KEY_PLACEHOLDER, key);
+        RotatingFilePattern filePattern = new RotatingFilePattern(
+                template.getFilePattern().getPattern().replace(KEY_PLACEHOLDER, key),
+                template.getFilePattern().getLocale());
+        return template
+                .derive()
+                .file(fileName)
+                .filePattern(filePattern)
+                .jobs(createJobs(key))
+                .lazy(true)
+                .build();
+    }
+
+    private Set<RotationJob> createJobs(String key) {
+        Set<RotationJob> jobs = new LinkedHashSet<>();
+        for (RotationJob job : template.getJobs()) {
+            if (job instanceof CompactionJob) {
+                CompactionJob compactionJob = (CompactionJob) job;
+                RotatingFilePattern archiveFilePattern = compactionJob.getArchiveFilePattern();
+                job = compactionJob.withArchiveFilePattern(new RotatingFilePattern(
+                        archiveFilePattern.getPattern().replace(KEY_PLACEHOLDER, key),
+                        archiveFilePattern.getLocale()));
+            }
+            jobs.add(job);
+        }
+        return jobs;
+    }
+
+    private void opened(Entry entry) {
+        entry.referenced = true;
+        entry.accessed = true;
+        openEntries.add(entry);
+        if (openFileCount.incrementAndGet() > maxOpenFileCount) {
+            scheduleEviction();
+        }
+    }
+
+    // Writes through held streams re-open released files without calling
+    // get(), hence evict in the background. (The opening stream holds its
+    // read lock, and hence cannot release other streams itself.)
+    private void scheduleEviction() {
+        if (closed || !evictionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        TimerTask evictionTask = new TimerTask() {
+            @Override
+            public void run() {
+                evictionScheduled.set(false);
+                evict();
+            }
+        };
+        try {
+            timer.schedule(evictionTask, 0);
+        } catch (IllegalStateException ignored) {
+            // Registry got closed in the meantime.
+            evictionScheduled.set(false);
+        }
+    }
+
+    // Approximates LRU using the CLOCK algorithm: recently referenced entries
+    // get a second chance, the rest gets released.
+    private void evict() {
+        while (openFileCount.get() > maxOpenFileCount) {
+            Entry entry = openEntries.poll();
+            if (entry == null) {
+                return;
+            }
+            if (entry.referenced) {
+                entry.referenced = false;
+                openEntries.add(entry);
+                continue;
+            }
+            try {
+                if (entry.stream.release()) {
+                    openFileCount.decrementAndGet();
+                }
+            } catch (IOException error) {
+                openFileCount.decrementAndGet();
+                LOGGER.error("failed releasing stream {key={}}", entry.key, error);
+            }
+        }
+    }
+
+    // Removes the entries that are neither accessed since the last sweep nor
+    // have any content, e.g., the ones released and then rotated. Their
+    // streams get closed, hence get() a stream per use rather than holding it.
+    void sweep() {
+        Iterator<Entry> entryIterator = entryByKey.values().iterator();
+        while (!closed && entryIterator.hasNext()) {
+            Entry entry = entryIterator.next();
+            if (entry.accessed) {
+                entry.accessed = false;
+            } else if (!entry.stream.isOpen() && entry.stream.getConfig().getFile().length() == 0) {
+                remove(entry);
+            }
+        }
+    }
+
+    private void remove(Entry entry) {
+        Lock stripe = stripes[(entry.key.hashCode() & Integer.MAX_VALUE) % STRIPE_COUNT];
+        stripe.lock();
+        try {
+            if (entry.accessed || !entryByKey.remove(entry.key, entry)) {
+                return;
+            }
+            LOGGER.debug("removing idle stream {key={}}", entry.key);
+            entry.stream.close();
+        } catch (IOException error) {
+            LOGGER.error("failed closing stream {key={}}", entry.key, error);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        IOException lastError = null;
+        // Wait for in-flight stream creations.
+        for (Lock stripe : stripes) {
+            stripe.lock();
+            stripe.unlock();
+        }
+        for (Entry entry : entryByKey.values()) {
+            try {
+                entry.stream.close();
+            } catch (IOException error) {
+                LOGGER.error("failed closing stream {key={}}", entry.key, error);
+                lastError = error;
+            }
+        }
+        entryByKey.clear();
+        openEntries.clear();
+        openFileCount.set(0);
+        timer.cancel();
+        if (executor != null) {
+            executor.shutdown();
+        }
+        if (lastError != null) {
+            throw lastError;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "RotatingFileOutputStreamRegistry{template=%s, maxOpenFileCount=%d}",
+                template, maxOpenFileCount);
+    }
+
+}
@@ -5,10 +5,13 @@ import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
 import java.io.File;
+import java.nio.file.Path;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class RotatingFilePattern {
 
@@ -20,9 +23,23 @@ public class RotatingFilePattern {
 
     private static final char DATE_TIME_BLOCK_END_CHAR = '}';
 
+    private static final char SHARD_DIRECTIVE_CHAR = 's';
+
+    private static final char HASH_DIRECTIVE_CHAR = 'h';
+
+    private static final char INDEX_DIRECTIVE_CHAR = 'i';
+
+    private static final long NO_INDEX = -1;
+
+    private static final int NO_SHARD_INDEX = -1;
+
+    private static final String DATE_TIME_SEPARATOR = "|";
+
     private interface Field {
 
-        void render(StringBuilder builder, LocalDateTime dateTime);
+        void render(StringBuilder builder, LocalDateTime dateTime, long index);
+
+        void renderRegex(StringBuilder builder);
 
     }
 
@@ -35,52 +52,268 @@ public class RotatingFilePattern {
         }
 
         @Override
-        public void render(StringBuilder builder, LocalDateTime ignored) {
+        public void render(StringBuilder builder, LocalDateTime ignoredDateTime, long ignoredIndex) {
             builder.append(text);
         }
 
+        @Override
+        public void renderRegex(StringBuilder builder) {
+            builder.append(Pattern.quote(text));
+        }
+
     }
 
     private static class DateTimeField implements Field {
 
+        private final String dateTimePattern;
+
         private final DateTimeFormatter dateTimeFormatter;
 
-        private DateTimeField(DateTimeFormatter dateTimeFormatter) {
+        private final String regex;
+
+        private DateTimeField(String dateTimePattern, DateTimeFormatter dateTimeFormatter) {
+            this.dateTimePattern = dateTimePattern;
             this.dateTimeFormatter = dateTimeFormatter;
+            this.regex = createDateTimeRegex(dateTimePattern);
         }
 
         @Override
-        public void render(StringBuilder builder, LocalDateTime dateTime) {
+        public void render(StringBuilder builder, LocalDateTime dateTime, long ignoredIndex) {
             String formattedDateTime = dateTimeFormatter.print(dateTime);
             builder.append(formattedDateTime);
         }
 
+        @Override
+        public void renderRegex(StringBuilder builder) {
+            builder.append(regex);
+        }
+
+    }
+
+    // Creates a regex matching only the output of the given Joda date time
+    // pattern, so that, e.g., "app.log.%d{yyyy}" does not match "app.log.2017.gz".
+    private static String createDateTimeRegex(String dateTimePattern) {
+        StringBuilder regexBuilder = new StringBuilder();
+        int charCount = dateTimePattern.length();
+        for (int charIndex = 0; charIndex < charCount;) {
+            char c = dateTimePattern.charAt(charIndex);
+
+            // Quoted text, where two single quotes stand for one.
+            if (c == '\'') {
+                StringBuilder textBuilder = new StringBuilder();
+                charIndex++;
+                if (charIndex < charCount && dateTimePattern.charAt(charIndex) == '\'') {
+                    textBuilder.append('\'');
+                    charIndex++;
+                } else {
+                    while (charIndex < charCount) {
+                        char textChar = dateTimePattern.charAt(charIndex++);
+                        if (textChar != '\'') {
+                            textBuilder.append(textChar);
+                        } else if (charIndex < charCount && dateTimePattern.charAt(charIndex) == '\'') {
+                            textBuilder.append('\'');
+                            charIndex++;
+                        } else {
+                            break;
+                        }
+                    }
+                }
+                regexBuilder.append(Pattern.quote(textBuilder.toString()));
+            }
+
+            // Field letters.
+            else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+                int letterCount = 1;
+                while (charIndex + letterCount < charCount && dateTimePattern.charAt(charIndex + letterCount) == c) {
+                    letterCount++;
+                }
+                regexBuilder.append(createDateTimeFieldRegex(c, letterCount));
+                charIndex += letterCount;
+            }
+
+            // Literals.
+            else {
+                regexBuilder.append(Pattern.quote(String.valueOf(c)));
+                charIndex++;
+            }
+
+        }
+        return regexBuilder.toString();
+    }
+
+    private static String createDateTimeFieldRegex(char letter, int letterCount) {
+        switch (letter) {
+
+            // Text fields, e.g., era, day of week, and half of day.
+            case 'G':
+            case 'E':
+            case 'a':
+            case 'z':
+                return "[^\\d/\\\\]+?";
+
+            // Month is either a number or a text.
+            case 'M':
+                return letterCount < 3 ? createNumberRegex(letterCount) : "[^\\d/\\\\]+?";
+
+            // Zone offset (e.g., "Z", "+0100", or "+01:00") or zone ID (e.g., "Europe/Amsterdam").
+            case 'Z':
+                return letterCount < 3
+                        ? "(?:Z|[+-]\\d{2}:?\\d{2})"
+                        : "[\\w+-]+(?:/[\\w+-]+)*";
+
+            // Two-letter years are truncated to exactly two digits.
+            case 'y':
+            case 'Y':
+            case 'x':
+                return letterCount == 2 ? "\\d{2}" : "-?" + createNumberRegex(letterCount);
+
+            // Fraction of second is truncated to exactly the given digits.
+            case 'S':
+                return "\\d{" + letterCount + "}";
+
+            // Numbers are zero-padded to the given digits.
+            default:
+                return createNumberRegex(letterCount);
+
+        }
+    }
+
+    private static String createNumberRegex(int minDigitCount) {
+        return minDigitCount == 1 ? "\\d+" : "\\d{" + minDigitCount + ",}";
+    }
+
+    private static class ShardField implements Field {
+
+        private final String pattern;
+
+        private final int shardIndex;
+
+        private ShardField(String pattern, int shardIndex) {
+            this.pattern = pattern;
+            this.shardIndex = shardIndex;
+        }
+
+        @Override
+        public void render(StringBuilder builder, LocalDateTime ignoredDateTime, long ignoredIndex) {
+            if (shardIndex == NO_SHARD_INDEX) {
+                String message = String.format("missing shard index (pattern=%s)", pattern);
+                throw new IllegalStateException(message);
+            }
+            builder.append(shardIndex);
+        }
+
+        @Override
+        public void renderRegex(StringBuilder builder) {
+            builder.append(shardIndex == NO_SHARD_INDEX ? "\\d+" : String.valueOf(shardIndex));
+        }
+
+    }
+
+    // Renders the hash of the rest of the fields modulo the bucket count, e.g., to
+    // spread files over a bounded number of directories.
+    private static class HashField implements Field {
+
+        private final int bucketCount;
+
+        private final String format;
+
+        private final List<Field> fields;
+
+        private HashField(int bucketCount, List<Field> fields) {
+            this.bucketCount = bucketCount;
+            int width = String.valueOf(bucketCount - 1).length();
+            this.format = "%0" + width + "d";
+            this.fields = fields;
+        }
+
+        @Override
+        public void render(StringBuilder builder, LocalDateTime dateTime, long index) {
+            // Index is excluded, so that all indices of a date time share the same hash.
+            StringBuilder keyBuilder = new StringBuilder();
+            for (Field field : fields) {
+                if (!(field instanceof HashField) && !(field instanceof IndexField)) {
+                    field.render(keyBuilder, dateTime, index);
+                }
+            }
+            // String#hashCode() is specified, hence stable across runs.
+            int hash = keyBuilder.toString().hashCode() & Integer.MAX_VALUE;
+            builder.append(String.format(format, hash % bucketCount));
+        }
+
+        @Override
+        public void renderRegex(StringBuilder builder) {
+            builder.append("\\d{").append(String.valueOf(bucketCount - 1).length()).append('}');
+        }
+
+    }
+
+    private static class IndexField implements Field {
+
+        private final String pattern;
+
+        private IndexField(String pattern) {
+            this.pattern = pattern;
+        }
+
+        @Override
+        public void render(StringBuilder builder, LocalDateTime ignoredDateTime, long index) {
+            if (index == NO_INDEX) {
+                String message = String.format("missing index (pattern=%s)", pattern);
+                throw new IllegalStateException(message);
+            }
+            builder.append(index);
+        }
+
+        @Override
+        public void renderRegex(StringBuilder builder) {
+            builder.append("(\\d+)");
+        }
+
     }
 
     private final String pattern;
 
     private final Locale locale;
 
+    private final int shardIndex;
+
     private final List<Field> fields;
 
+    private final Pattern regex;
+
+    // Captures the date time fields (rather than the index) for parsing.
+    private final Pattern dateTimeRegex;
+
+    private final DateTimeFormatter dateTimeParser;
+
+    private final boolean indexed;
+
     public RotatingFilePattern(String pattern) {
-        this.pattern = pattern;
-        this.locale = Locale.getDefault();
-        this.fields = readPattern(pattern, locale);
+        this(pattern, Locale.getDefault());
     }
 
     public RotatingFilePattern(String pattern, Locale locale) {
+        this(pattern, locale, NO_SHARD_INDEX);
+    }
+
+    private RotatingFilePattern(String pattern, Locale locale, int shardIndex) {
         this.pattern = pattern;
         this.locale = locale;
-        this.fields = readPattern(pattern, locale);
+        this.shardIndex = shardIndex;
+        this.fields = readPattern(pattern, locale, shardIndex);
+        this.regex = createRegex(fields, new File(pattern).isAbsolute(), false);
+        this.dateTimeRegex = createRegex(fields, new File(pattern).isAbsolute(), true);
+        this.dateTimeParser = createDateTimeParser(fields, locale);
+        this.indexed = containsIndexField(fields);
     }
 
-    private static List<Field> readPattern(String pattern, Locale locale) {
+    private static List<Field> readPattern(String pattern, Locale locale, int shardIndex) {
 
         List<Field> fields = new LinkedList<>();
         StringBuilder textBuilder = new StringBuilder();
         int totalCharCount = pattern.length();
         boolean foundDateTimeDirective = false;
+        boolean foundIndexDirective = false;
         for (int charIndex = 0; charIndex < totalCharCount;) {
 
             char c0 = pattern.charAt(charIndex);
@@ -105,7 +338,57 @@ public class RotatingFilePattern {
                     textBuilder = new StringBuilder();
                 }
 
-                // Try to read the directive.
+                // Try to read the shard directive.
+                if (hasOneMoreChar) {
+                    char c1 = pattern.charAt(charIndex + 1);
+                    if (c1 == SHARD_DIRECTIVE_CHAR) {
+                        ShardField shardField = new ShardField(pattern, shardIndex);
+                        fields.add(shardField);
+                        charIndex += 2;
+                        continue;
+                    }
+                }
+
+                // Try to read the index directive.
+                if (hasOneMoreChar) {
+                    char c1 = pattern.charAt(charIndex + 1);
+                    if (c1 == INDEX_DIRECTIVE_CHAR) {
+                        if (foundIndexDirective) {
+                            String message = String.format(
+                                    "multiple index directives (position=%d, pattern=%s)", charIndex, pattern);
+                            throw new RotatingFilePatternException(message);
+                        }
+                        IndexField indexField = new IndexField(pattern);
+                        fields.add(indexField);
+                        foundIndexDirective = true;
+                        charIndex += 2;
+                        continue;
+                    }
+                }
+
+                // Try to read the hash directive.
+                int hashBlockEndIndex = findBlockEndIndex(pattern, charIndex, HASH_DIRECTIVE_CHAR);
+                if (hashBlockEndIndex >= 0) {
+                    String bucketCountText = pattern.substring(charIndex + 3, hashBlockEndIndex);
+                    int bucketCount;
+                    try {
+                        bucketCount = Integer.parseInt(bucketCountText);
+                    } catch (NumberFormatException error) {
+                        bucketCount = 0;
+                    }
+                    if (bucketCount < 1) {
+                        String message = String.format(
+                                "invalid hash bucket count (position=%d, pattern=%s, bucketCount=%s)",
+                                charIndex, pattern, bucketCountText);
+                        throw new RotatingFilePatternException(message);
+                    }
+                    HashField hashField = new HashField(bucketCount, fields);
+                    fields.add(hashField);
+                    charIndex = hashBlockEndIndex + 1;
+                    continue;
+                }
+
+                // Try to read the date time directive.
                 boolean hasSufficientDateTimeChars = (totalCharCount - charIndex - 3) > 0;
                 if (hasSufficientDateTimeChars) {
                     char c1 = pattern.charAt(charIndex + 1);
@@ -125,7 +408,7 @@ public class RotatingFilePattern {
                                             charIndex, pattern, dateTimePattern);
                                     throw new RotatingFilePatternException(message, error);
                                 }
-                                DateTimeField dateTimeField = new DateTimeField(dateTimeFormatter);
+                                DateTimeField dateTimeField = new DateTimeField(dateTimePattern, dateTimeFormatter);
                                 fields.add(dateTimeField);
                                 foundDateTimeDirective = true;
                                 charIndex = blockEndIndex + 1;
@@ -165,15 +448,220 @@ public class RotatingFilePattern {
 
     }
 
+    // Returns the index of the block end of the given directive at the given index, or -1 if there is none.
+    private static int findBlockEndIndex(String pattern, int charIndex, char directiveChar) {
+        boolean hasSufficientChars = (pattern.length() - charIndex - 3) > 0;
+        if (hasSufficientChars &&
+                pattern.charAt(charIndex + 1) == directiveChar &&
+                pattern.charAt(charIndex + 2) == DATE_TIME_BLOCK_START_CHAR) {
+            return pattern.indexOf(DATE_TIME_BLOCK_END_CHAR, charIndex + 3);
+        }
+        return -1;
+    }
+
+    private static boolean containsIndexField(List<Field> fields) {
+        for (Field field : fields) {
+            if (field instanceof IndexField) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Pattern createRegex(List<Field> fields, boolean absolute, boolean dateTimeCaptured) {
+        StringBuilder regexBuilder = new StringBuilder();
+        for (int fieldIndex = 0; fieldIndex < fields.size(); fieldIndex++) {
+            Field field = fields.get(fieldIndex);
+            // Relative files are matched by their path relative to the working
+            // directory, which has no leading "./", hence strip it here too.
+            if (!absolute && fieldIndex == 0 && field instanceof TextField) {
+                String text = stripCurrentDirectory(((TextField) field).text);
+                regexBuilder.append(Pattern.quote(text));
+            } else if (dateTimeCaptured && field instanceof DateTimeField) {
+                regexBuilder.append('(').append(((DateTimeField) field).regex).append(')');
+            } else if (dateTimeCaptured && field instanceof IndexField) {
+                regexBuilder.append("\\d+");
+            } else {
+                field.renderRegex(regexBuilder);
+            }
+        }
+        String regex = regexBuilder.toString();
+        return Pattern.compile(regex);
+    }
+
+    // Joins the date time fields, so that a single parse combines, e.g., the
+    // year and the day of "%d{yyyy}/app-%d{MMdd}.log".
+    private static DateTimeFormatter createDateTimeParser(List<Field> fields, Locale locale) {
+        StringBuilder patternBuilder = new StringBuilder();
+        for (Field field : fields) {
+            if (field instanceof DateTimeField) {
+                if (patternBuilder.length() > 0) {
+                    patternBuilder.append('\'').append(DATE_TIME_SEPARATOR).append('\'');
+                }
+                patternBuilder.append(((DateTimeField) field).dateTimePattern);
+            }
+        }
+        return DateTimeFormat.forPattern(patternBuilder.toString()).withLocale(locale);
+    }
+
+    private static String stripCurrentDirectory(String text) {
+        String prefix = "." + File.separatorChar;
+        while (text.startsWith(prefix)) {
+            text = text.substring(prefix.length());
+        }
+        return text;
+    }
+
     public File create(LocalDateTime dateTime) {
+        return create(dateTime, NO_INDEX);
+    }
+
+    public File create(LocalDateTime dateTime, long index) {
         StringBuilder pathNameBuilder = new StringBuilder();
         for (Field field : fields) {
-            field.render(pathNameBuilder, dateTime);
+            field.render(pathNameBuilder, dateTime, index);
         }
         String pathName = pathNameBuilder.toString();
         return new File(pathName);
     }
 
+    public RotatingFilePattern withShardIndex(int shardIndex) {
+        if (shardIndex < 0) {
+            String message = String.format("invalid shard index (shardIndex=%d)", shardIndex);
+            throw new IllegalArgumentException(message);
+        }
+        return new RotatingFilePattern(pattern, locale, shardIndex);
+    }
+
+    public boolean isSharded() {
+        for (Field field : fields) {
+            if (field instanceof ShardField) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    public boolean matches(File file) {
+        return regex.matcher(getPathName(file)).matches();
+    }
+
+    // Returns the index of the given file (or of the file it is derived from,
+    // e.g., a compressed one), or -1 if it does not match an indexed pattern.
+    public long getIndex(File file) {
+        if (!indexed) {
+            return NO_INDEX;
+        }
+        Matcher matcher = regex.matcher(getPathName(file));
+        if (!matcher.lookingAt()) {
+            return NO_INDEX;
+        }
+        try {
+            return Long.parseLong(matcher.group(1));
+        } catch (NumberFormatException ignored) {
+            return NO_INDEX;
+        }
+    }
+
+    // Returns the date time the given file (or the file it is derived from,
+    // e.g., a compressed one) is rendered with, or null if it does not match.
+    public LocalDateTime getDateTime(File file) {
+        Matcher matcher = dateTimeRegex.matcher(getPathName(file));
+        if (!matcher.lookingAt()) {
+            return null;
+        }
+        StringBuilder textBuilder = new StringBuilder();
+        for (int groupIndex = 1; groupIndex <= matcher.groupCount(); groupIndex++) {
+            if (groupIndex > 1) {
+                textBuilder.append(DATE_TIME_SEPARATOR);
+            }
+            textBuilder.append(matcher.group(groupIndex));
+        }
+        try {
+            return dateTimeParser.parseLocalDateTime(textBuilder.toString());
+        } catch (IllegalArgumentException ignored) {
+            return null;
+        }
+    }
+
+    // Returns the given file with its index replaced by 0, which is shared by all
+    // indices of the same date time, or null if it does not match an indexed pattern.
+    File getIndexBucket(File file) {
+        if (!indexed) {
+            return null;
+        }
+        String pathName = getPathName(file);
+        Matcher matcher = regex.matcher(pathName);
+        if (!matcher.lookingAt()) {
+            return null;
+        }
+        String bucketPathName = pathName.substring(0, matcher.start(1)) + '0' + pathName.substring(matcher.end(1), matcher.end());
+        return new File(bucketPathName);
+    }
+
+    private String getPathName(File file) {
+        return new File(pattern).isAbsolute()
+                ? file.getAbsolutePath()
+                : relativize(file);
+    }
+
+    private static String relativize(File file) {
+        Path workingDirectory = new File("").getAbsoluteFile().toPath();
+        Path path = file.getAbsoluteFile().toPath();
+        return workingDirectory.relativize(path).toString();
+    }
+
+    public File getDirectory() {
+        int directoryEndIndex = getDirectoryEndIndex();
+        if (directoryEndIndex >= 0) {
+            String directoryName = ((TextField) fields.get(0)).text.substring(0, directoryEndIndex + 1);
+            return new File(directoryName).getAbsoluteFile();
+        }
+        return new File("").getAbsoluteFile();
+    }
+
+    // Returns the index of the last separator in the leading text, if there is one, otherwise -1.
+    private int getDirectoryEndIndex() {
+        Field firstField = fields.get(0);
+        return firstField instanceof TextField
+                ? ((TextField) firstField).text.lastIndexOf(File.separatorChar)
+                : -1;
+    }
+
+    // Returns the maximum depth of the matching files relative to the
+    // directory, which bounds the directory walks, e.g., to a single level,
+    // rather than the entire working directory, for "%d{yyyy}.log".
+    public int getMaxDepth() {
+        int separatorCount = 0;
+        for (Field field : fields) {
+            if (field instanceof TextField) {
+                separatorCount += countSeparators(((TextField) field).text);
+            } else if (field instanceof DateTimeField) {
+                separatorCount += countSeparators(((DateTimeField) field).dateTimePattern);
+            }
+        }
+        int directoryEndIndex = getDirectoryEndIndex();
+        if (directoryEndIndex >= 0) {
+            String directoryName = ((TextField) fields.get(0)).text.substring(0, directoryEndIndex + 1);
+            separatorCount -= countSeparators(directoryName);
+        }
+        return separatorCount + 1;
+    }
+
+    private static int countSeparators(String text) {
+        int separatorCount = 0;
+        for (int charIndex = 0; charIndex < text.length(); charIndex++) {
+            if (text.charAt(charIndex) == File.separatorChar) {
+                separatorCount++;
+            }
+        }
+        return separatorCount;
+    }
+
     public String getPattern() {
         return pattern;
     }
@@ -182,23 +670,30 @@ public class RotatingFilePattern {
         return locale;
     }
 
+    public int getShardIndex() {
+        return shardIndex;
+    }
+
     @Override
     public boolean equals(Object instance) {
         if (this == instance) return true;
         if (instance == null || getClass() != instance.getClass()) return false;
         RotatingFilePattern that = (RotatingFilePattern) instance;
-        return Objects.equals(pattern, that.pattern) &&
+        return shardIndex == that.shardIndex &&
+                Objects.equals(pattern, that.pattern) &&
                 Objects.equals(locale, that.locale);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(pattern, locale);
+        return Objects.hash(pattern, locale, shardIndex);
     }
 
     @Override
     public String toString() {
-        return String.format("RotatingFilePattern{pattern=%s, locale=%s}", pattern, locale);
+        return shardIndex == NO_SHARD_INDEX
+                ? String.format("RotatingFilePattern{pattern=%s, locale=%s}", pattern, locale)
+                : String.format("RotatingFilePattern{pattern=%s, locale=%s, shardIndex=%d}", pattern, locale, shardIndex);
     }
 
 }
@@ -1,12 +1,33 @@
 package com.vlkan.rfos;
 
+import com.vlkan.rfos.job.CompactionJob;
+import com.vlkan.rfos.job.RotationJob;
 import com.vlkan.rfos.policy.RotationPolicy;
-
+import com.vlkan.rfos.stage.BlockGzipRotationStage;
+import com.vlkan.rfos.stage.CompressionBudget;
+import com.vlkan.rfos.stage.DictionaryDeflateRotationStage;
+import com.vlkan.rfos.stage.GzipRotationStage;
+import com.vlkan.rfos.stage.MoveRotationStage;
+import com.vlkan.rfos.stage.RotationStage;
+
+import javax.crypto.SecretKey;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 import java.util.Timer;
+import java.util.TimerTask;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -16,16 +37,66 @@ public class RotationConfig {
 
     private final RotatingFilePattern filePattern;
 
-    private final Timer timer;
+    private volatile Timer timer;
 
     private final ReadWriteLock lock;
 
     private final Set<RotationPolicy> policies;
 
+    private final Set<RotationJob> jobs;
+
     private final boolean append;
 
     private final boolean compress;
 
+    private final boolean checksum;
+
+    private final boolean lazy;
+
+    private final boolean lineAware;
+
+    private final boolean fsync;
+
+    private final SecretKey encryptionKey;
+
+    private final boolean multiProcess;
+
+    private final long inodeCheckIntervalMillis;
+
+    private final boolean copyTruncate;
+
+    private final int spillBufferSize;
+
+    private final File fallbackDirectory;
+
+    private final long degradedCheckIntervalMillis;
+
+    private final List<RotationStage> stages;
+
+    private final ExecutorService executor;
+
+    // Whether the executor is owned, and hence shut down, by someone else.
+    private final boolean executorShared;
+
+    private final boolean timerShared;
+
+    // Tasks scheduled on a shared timer, which get cancelled rather than the timer.
+    private final Set<TimerTask> timerTasks;
+
+    private boolean timerCancelled;
+
+    private final int stageThreadCount;
+
+    private final int stageBacklogSize;
+
+    private final CompressionBudget compressionBudget;
+
+    private final RotationCoordinator coordinator;
+
+    private final boolean recovery;
+
+    private final int recoveryThreadCount;
+
     private final Clock clock;
 
     private final RotationCallback callback;
@@ -36,8 +107,31 @@ public class RotationConfig {
         this.timer = builder.timer;
         this.lock = builder.lock;
         this.policies = builder.policies;
+        this.jobs = builder.jobs;
         this.append = builder.append;
         this.compress = builder.compress;
+        this.checksum = builder.checksum;
+        this.lazy = builder.lazy;
+        this.lineAware = builder.lineAware;
+        this.fsync = builder.fsync;
+        this.encryptionKey = builder.encryptionKey;
+        this.multiProcess = builder.multiProcess;
+        this.inodeCheckIntervalMillis = builder.inodeCheckIntervalMillis;
+        this.copyTruncate = builder.copyTruncate;
+        this.spillBufferSize = builder.spillBufferSize;
+        this.fallbackDirectory = builder.fallbackDirectory;
+        this.degradedCheckIntervalMillis = builder.degradedCheckIntervalMillis;
+        this.stages = builder.stages;
+        this.executor = builder.executor;
+        this.executorShared = builder.executorShared;
+        this.timerShared = builder.timerShared;
+        this.timerTasks = Collections.newSetFromMap(new WeakHashMap<TimerTask, Boolean>());
+        this.stageThreadCount = builder.stageThreadCount;
+        this.stageBacklogSize = builder.stageBacklogSize;
+        this.compressionBudget = builder.compressionBudget;
+        this.coordinator = builder.coordinator;
+        this.recovery = builder.recovery;
+        this.recoveryThreadCount = builder.recoveryThreadCount;
         this.clock = builder.clock;
         this.callback = builder.callback;
     }
@@ -51,7 +145,17 @@ public class RotationConfig {
     }
 
     public Timer getTimer() {
-        return timer;
+        // Timer (and hence its thread) is created on first access in lazy mode.
+        Timer currentTimer = timer;
+        if (currentTimer == null) {
+            synchronized (this) {
+                if (timer == null) {
+                    timer = new Timer();
+                }
+                currentTimer = timer;
+            }
+        }
+        return currentTimer;
     }
 
     public ReadWriteLock getLock() {
@@ -62,6 +166,10 @@ public class RotationConfig {
         return policies;
     }
 
+    public Set<RotationJob> getJobs() {
+        return jobs;
+    }
+
     public boolean isAppend() {
         return append;
     }
@@ -70,6 +178,142 @@ public class RotationConfig {
         return compress;
     }
 
+    public boolean isChecksum() {
+        return checksum;
+    }
+
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    public boolean isLineAware() {
+        return lineAware;
+    }
+
+    public boolean isFsync() {
+        return fsync;
+    }
+
+    public SecretKey getEncryptionKey() {
+        return encryptionKey;
+    }
+
+    public boolean isMultiProcess() {
+        return multiProcess;
+    }
+
+    public long getInodeCheckIntervalMillis() {
+        return inodeCheckIntervalMillis;
+    }
+
+    public boolean isCopyTruncate() {
+        return copyTruncate;
+    }
+
+    public int getSpillBufferSize() {
+        return spillBufferSize;
+    }
+
+    public File getFallbackDirectory() {
+        return fallbackDirectory;
+    }
+
+    public long getDegradedCheckIntervalMillis() {
+        return degradedCheckIntervalMillis;
+    }
+
+    // Whether failed writes get spilled rather than thrown.
+    public boolean isDegradable() {
+        return spillBufferSize > 0 || fallbackDirectory != null;
+    }
+
+    public List<RotationStage> getStages() {
+        return stages;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    boolean isExecutorShared() {
+        return executorShared;
+    }
+
+    boolean isTimerShared() {
+        return timerShared;
+    }
+
+    // Policies and jobs schedule their tasks via the following methods, so
+    // that a stream sharing its timer (e.g., with the other streams of a
+    // registry) only cancels its own tasks on close.
+    public void schedule(TimerTask task, long delayMillis) {
+        track(task);
+        getTimer().schedule(task, delayMillis);
+    }
+
+    public void schedule(TimerTask task, Date time) {
+        track(task);
+        getTimer().schedule(task, time);
+    }
+
+    public void schedule(TimerTask task, long delayMillis, long periodMillis) {
+        track(task);
+        getTimer().schedule(task, delayMillis, periodMillis);
+    }
+
+    private void track(TimerTask task) {
+        if (!timerShared) {
+            return;
+        }
+        synchronized (timerTasks) {
+            if (timerCancelled) {
+                throw new IllegalStateException("Timer already cancelled.");
+            }
+            // Executed one-shot tasks are not referenced by the timer anymore,
+            // hence weak references suffice to track the pending ones.
+            timerTasks.add(task);
+        }
+    }
+
+    void cancelTimer() {
+        if (!timerShared) {
+            getTimer().cancel();
+            return;
+        }
+        synchronized (timerTasks) {
+            timerCancelled = true;
+            for (TimerTask task : timerTasks) {
+                task.cancel();
+            }
+            timerTasks.clear();
+        }
+        getTimer().purge();
+    }
+
+    public int getStageThreadCount() {
+        return stageThreadCount;
+    }
+
+    public int getStageBacklogSize() {
+        return stageBacklogSize;
+    }
+
+    public CompressionBudget getCompressionBudget() {
+        return compressionBudget;
+    }
+
+    public RotationCoordinator getCoordinator() {
+        return coordinator;
+    }
+
+    public boolean isRecovery() {
+        return recovery;
+    }
+
+    public int getRecoveryThreadCount() {
+        return recoveryThreadCount;
+    }
+
     public Clock getClock() {
         return clock;
     }
@@ -85,18 +329,44 @@ public class RotationConfig {
         RotationConfig that = (RotationConfig) instance;
         return append == that.append &&
                 compress == that.compress &&
+                checksum == that.checksum &&
+                lazy == that.lazy &&
+                lineAware == that.lineAware &&
+                fsync == that.fsync &&
+                multiProcess == that.multiProcess &&
+                inodeCheckIntervalMillis == that.inodeCheckIntervalMillis &&
+                copyTruncate == that.copyTruncate &&
+                spillBufferSize == that.spillBufferSize &&
+                degradedCheckIntervalMillis == that.degradedCheckIntervalMillis &&
+                executorShared == that.executorShared &&
+                timerShared == that.timerShared &&
+                stageThreadCount == that.stageThreadCount &&
+                stageBacklogSize == that.stageBacklogSize &&
+                recovery == that.recovery &&
+                recoveryThreadCount == that.recoveryThreadCount &&
                 Objects.equals(file, that.file) &&
                 Objects.equals(filePattern, that.filePattern) &&
                 Objects.equals(timer, that.timer) &&
                 Objects.equals(lock, that.lock) &&
                 Objects.equals(policies, that.policies) &&
+                Objects.equals(jobs, that.jobs) &&
+                Objects.equals(encryptionKey, that.encryptionKey) &&
+                Objects.equals(fallbackDirectory, that.fallbackDirectory) &&
+                Objects.equals(stages, that.stages) &&
+                Objects.equals(executor, that.executor) &&
+                Objects.equals(compressionBudget, that.compressionBudget) &&
+                Objects.equals(coordinator, that.coordinator) &&
                 Objects.equals(clock, that.clock) &&
                 Objects.equals(callback, that.callback);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(file, filePattern, timer, lock, policies, append, compress, clock, callback);
+        return Objects.hash(
+                file, filePattern, timer, lock, policies, jobs, append, compress, checksum, lazy, lineAware, fsync,
+                encryptionKey, multiProcess, inodeCheckIntervalMillis, copyTruncate, spillBufferSize, fallbackDirectory,
+                degradedCheckIntervalMillis, stages, executor, executorShared, timerShared, stageThreadCount, stageBacklogSize,
+                compressionBudget, coordinator, recovery, recoveryThreadCount, clock, callback);
     }
 
     @Override
@@ -104,12 +374,57 @@ public class RotationConfig {
         return String.format("RotationConfig{file=%s}", file);
     }
 
+    // Creates a builder sharing the timer, the stage executor, and the stages of
+    // this config, but not the lock. Both the timer and the executor get marked
+    // as shared, so that closing a derived stream neither cancels the tasks of
+    // the others nor shuts down the executor.
+    Builder derive() {
+        return builder()
+                .file(file)
+                .filePattern(filePattern)
+                .timer(getTimer())
+                .timerShared(true)
+                .policies(policies)
+                .jobs(jobs)
+                .append(append)
+                .checksum(checksum)
+                .lazy(lazy)
+                .lineAware(lineAware)
+                .fsync(fsync)
+                .encryptionKey(encryptionKey)
+                .multiProcess(multiProcess)
+                .inodeCheckIntervalMillis(inodeCheckIntervalMillis)
+                .copyTruncate(copyTruncate)
+                .spillBufferSize(spillBufferSize)
+                .fallbackDirectory(fallbackDirectory)
+                .degradedCheckIntervalMillis(degradedCheckIntervalMillis)
+                .stages(stages)
+                .executor(executor)
+                .executorShared(executor != null)
+                .compressionBudget(compressionBudget)
+                .coordinator(coordinator)
+                .recovery(recovery)
+                .recoveryThreadCount(recoveryThreadCount)
+                .clock(clock)
+                .callback(callback);
+    }
+
     public static Builder builder() {
         return new Builder();
     }
 
     public static class Builder {
 
+        private static final int DEFAULT_STAGE_THREAD_COUNT = 1;
+
+        private static final int DEFAULT_STAGE_BACKLOG_SIZE = 16;
+
+        private static final long DEFAULT_INODE_CHECK_INTERVAL_MILLIS = 1_000;
+
+        private static final long DEFAULT_DEGRADED_CHECK_INTERVAL_MILLIS = 1_000;
+
+        private static final int DEFAULT_RECOVERY_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+
         private File file;
 
         private RotatingFilePattern filePattern;
@@ -120,10 +435,54 @@ public class RotationConfig {
 
         private Set<RotationPolicy> policies;
 
+        private Set<RotationJob> jobs;
+
         private boolean append = true;
 
         private boolean compress = false;
 
+        private boolean checksum = false;
+
+        private boolean lazy = false;
+
+        private boolean lineAware = false;
+
+        private boolean fsync = false;
+
+        private SecretKey encryptionKey;
+
+        private boolean multiProcess = false;
+
+        private long inodeCheckIntervalMillis = DEFAULT_INODE_CHECK_INTERVAL_MILLIS;
+
+        private boolean copyTruncate = false;
+
+        private int spillBufferSize = 0;
+
+        private File fallbackDirectory;
+
+        private long degradedCheckIntervalMillis = DEFAULT_DEGRADED_CHECK_INTERVAL_MILLIS;
+
+        private List<RotationStage> stages;
+
+        private ExecutorService executor;
+
+        private boolean executorShared = false;
+
+        private boolean timerShared = false;
+
+        private int stageThreadCount = DEFAULT_STAGE_THREAD_COUNT;
+
+        private int stageBacklogSize = DEFAULT_STAGE_BACKLOG_SIZE;
+
+        private CompressionBudget compressionBudget;
+
+        private RotationCoordinator coordinator;
+
+        private boolean recovery = false;
+
+        private int recoveryThreadCount = DEFAULT_RECOVERY_THREAD_COUNT;
+
         private Clock clock = SystemClock.getInstance();
 
         private RotationCallback callback = LoggingRotationCallback.getInstance();
@@ -175,6 +534,19 @@ public class RotationConfig {
             return this;
         }
 
+        public Builder jobs(Set<RotationJob> jobs) {
+            this.jobs = jobs;
+            return this;
+        }
+
+        public Builder job(RotationJob job) {
+            if (jobs == null) {
+                jobs = new LinkedHashSet<>();
+            }
+            jobs.add(job);
+            return this;
+        }
+
         public Builder append(boolean append) {
             this.append = append;
             return this;
@@ -185,6 +557,124 @@ public class RotationConfig {
             return this;
         }
 
+        public Builder checksum(boolean checksum) {
+            this.checksum = checksum;
+            return this;
+        }
+
+        public Builder lazy(boolean lazy) {
+            this.lazy = lazy;
+            return this;
+        }
+
+        public Builder lineAware(boolean lineAware) {
+            this.lineAware = lineAware;
+            return this;
+        }
+
+        public Builder fsync(boolean fsync) {
+            this.fsync = fsync;
+            return this;
+        }
+
+        public Builder encryptionKey(SecretKey encryptionKey) {
+            this.encryptionKey = encryptionKey;
+            return this;
+        }
+
+        public Builder multiProcess(boolean multiProcess) {
+            this.multiProcess = multiProcess;
+            return this;
+        }
+
+        public Builder inodeCheckIntervalMillis(long inodeCheckIntervalMillis) {
+            this.inodeCheckIntervalMillis = inodeCheckIntervalMillis;
+            return this;
+        }
+
+        public Builder copyTruncate(boolean copyTruncate) {
+            this.copyTruncate = copyTruncate;
+            return this;
+        }
+
+        public Builder spillBufferSize(int spillBufferSize) {
+            this.spillBufferSize = spillBufferSize;
+            return this;
+        }
+
+        public Builder fallbackDirectory(File fallbackDirectory) {
+            this.fallbackDirectory = fallbackDirectory;
+            return this;
+        }
+
+        public Builder fallbackDirectory(String fallbackDirectory) {
+            this.fallbackDirectory = new File(fallbackDirectory);
+            return this;
+        }
+
+        public Builder degradedCheckIntervalMillis(long degradedCheckIntervalMillis) {
+            this.degradedCheckIntervalMillis = degradedCheckIntervalMillis;
+            return this;
+        }
+
+        public Builder stages(List<RotationStage> stages) {
+            this.stages = stages;
+            return this;
+        }
+
+        public Builder stage(RotationStage stage) {
+            if (stages == null) {
+                stages = new ArrayList<>();
+            }
+            stages.add(stage);
+            return this;
+        }
+
+        public Builder executor(ExecutorService executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        Builder timerShared(boolean timerShared) {
+            this.timerShared = timerShared;
+            return this;
+        }
+
+        Builder executorShared(boolean executorShared) {
+            this.executorShared = executorShared;
+            return this;
+        }
+
+        public Builder stageThreadCount(int stageThreadCount) {
+            this.stageThreadCount = stageThreadCount;
+            return this;
+        }
+
+        public Builder stageBacklogSize(int stageBacklogSize) {
+            this.stageBacklogSize = stageBacklogSize;
+            return this;
+        }
+
+        public Builder compressionBudget(CompressionBudget compressionBudget) {
+            this.compressionBudget = compressionBudget;
+            return this;
+        }
+
+        public Builder coordinator(RotationCoordinator coordinator) {
+            this.coordinator = coordinator;
+            return this;
+        }
+
+        public Builder recovery(boolean recovery) {
+            this.recovery = recovery;
+            return this;
+        }
+
+        public Builder recoveryThreadCount(int recoveryThreadCount) {
+            this.recoveryThreadCount = recoveryThreadCount;
+            return this;
+        }
+
         public Builder clock(Clock clock) {
             this.clock = clock;
             return this;
@@ -202,12 +692,63 @@ public class RotationConfig {
         }
 
         private void prepare() {
-            if (timer == null) {
+            if (timer == null && !lazy) {
                 timer = new Timer();
             }
             if (lock == null) {
                 lock = new ReentrantReadWriteLock();
             }
+            if (jobs == null) {
+                jobs = Collections.emptySet();
+            }
+            prepareStages();
+            if (executor == null && !stages.isEmpty()) {
+                executor = createExecutor(stageThreadCount, stageBacklogSize);
+            }
+        }
+
+        private void prepareStages() {
+            List<RotationStage> preparedStages = new ArrayList<>();
+            if (compress) {
+                preparedStages.add(encryptionKey != null
+                        ? GzipRotationStage.withEncryptionKey(encryptionKey)
+                        : GzipRotationStage.getInstance());
+            }
+            if (stages != null) {
+                preparedStages.addAll(stages);
+            }
+            stages = Collections.unmodifiableList(preparedStages);
+        }
+
+        static ExecutorService createExecutor(int threadCount, int backlogSize) {
+            if (threadCount < 1) {
+                String message = String.format("invalid thread count {stageThreadCount=%d}", threadCount);
+                throw new IllegalArgumentException(message);
+            }
+            if (backlogSize < 1) {
+                String message = String.format("invalid backlog size {stageBacklogSize=%d}", backlogSize);
+                throw new IllegalArgumentException(message);
+            }
+            final AtomicInteger threadCounter = new AtomicInteger();
+            ThreadFactory threadFactory = new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    String threadName = String.format(
+                            "%s.stage-%d",
+                            RotatingFileOutputStream.class.getSimpleName(),
+                            threadCounter.incrementAndGet());
+                    return new Thread(runnable, threadName);
+                }
+            };
+            // Once the backlog is full, the rotating thread executes the stages itself, which in turn
+            // holds back further rotations until the pipeline catches up.
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    threadCount, threadCount, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(backlogSize),
+                    threadFactory,
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
         }
 
         private void validate() {
@@ -216,10 +757,138 @@ public class RotationConfig {
             if (policies == null || policies.isEmpty()) {
                 throw new IllegalArgumentException("empty policies");
             }
+            if (multiProcess) {
+                validateMultiProcess();
+            }
+            if (copyTruncate) {
+                validateCopyTruncate();
+            }
+            validateDegradedMode();
+            validateJobs();
+            validateStages();
+            if (encryptionKey != null) {
+                validateEncryption();
+            }
+            if (recovery && stages.isEmpty()) {
+                throw new IllegalArgumentException("recovery without stages");
+            }
+            if (recoveryThreadCount < 1) {
+                String message = String.format("invalid thread count {recoveryThreadCount=%d}", recoveryThreadCount);
+                throw new IllegalArgumentException(message);
+            }
             Objects.requireNonNull(clock, "clock");
             Objects.requireNonNull(callback, "callback");
         }
 
+        private void validateDegradedMode() {
+            if (spillBufferSize < 0) {
+                String message = String.format("invalid spill buffer size {spillBufferSize=%d}", spillBufferSize);
+                throw new IllegalArgumentException(message);
+            }
+            if (spillBufferSize == 0 && fallbackDirectory == null) {
+                return;
+            }
+            // The cipher state cannot be rewound to retry the failed bytes.
+            if (encryptionKey != null) {
+                throw new IllegalArgumentException("degraded mode with encryption");
+            }
+            if (degradedCheckIntervalMillis < 1) {
+                String message = String.format(
+                        "invalid interval {degradedCheckIntervalMillis=%d}", degradedCheckIntervalMillis);
+                throw new IllegalArgumentException(message);
+            }
+        }
+
+        // Stages are finished in order, whereas a moved file cannot be
+        // finished by the stages reading from its original location.
+        private void validateStages() {
+            boolean moved = false;
+            for (RotationStage stage : stages) {
+                Objects.requireNonNull(stage, "stage");
+                if (stage instanceof MoveRotationStage) {
+                    moved = true;
+                } else if (moved) {
+                    String message = String.format("stage after move {stage=%s}", stage);
+                    throw new IllegalArgumentException(message);
+                }
+            }
+        }
+
+        // Compaction would race with the one of other processes on the same
+        // archive, and encrypted segments cannot be concatenated, since each
+        // one starts with its own header.
+        private void validateJobs() {
+            for (RotationJob job : jobs) {
+                Objects.requireNonNull(job, "job");
+                if (job instanceof CompactionJob) {
+                    if (multiProcess) {
+                        throw new IllegalArgumentException("compaction with multi-process");
+                    }
+                    if (encryptionKey != null) {
+                        throw new IllegalArgumentException("compaction with encryption");
+                    }
+                }
+            }
+        }
+
+        // Only GzipRotationStage decrypts the rotated file before compressing
+        // it, whereas the block and dictionary ones would compress ciphertext
+        // into an output that neither gunzip nor their readers can decrypt.
+        private void validateEncryption() {
+            if (!"AES".equals(encryptionKey.getAlgorithm())) {
+                String message = String.format(
+                        "unsupported encryption key {algorithm=%s}", encryptionKey.getAlgorithm());
+                throw new IllegalArgumentException(message);
+            }
+            for (RotationStage stage : stages) {
+                if (stage instanceof BlockGzipRotationStage || stage instanceof DictionaryDeflateRotationStage) {
+                    String message = String.format("compression stage with encryption {stage=%s}", stage);
+                    throw new IllegalArgumentException(message);
+                }
+            }
+        }
+
+        // The file is kept open across rotations, whereas a checksum, an
+        // encryption stream, and a newline tracker are bound to a single
+        // segment. Other processes would not notice the truncation either.
+        private void validateCopyTruncate() {
+            if (checksum) {
+                throw new IllegalArgumentException("copy-truncate with checksum");
+            }
+            if (encryptionKey != null) {
+                throw new IllegalArgumentException("copy-truncate with encryption");
+            }
+            if (lineAware) {
+                throw new IllegalArgumentException("copy-truncate with line awareness");
+            }
+            if (multiProcess) {
+                throw new IllegalArgumentException("copy-truncate with multi-process");
+            }
+        }
+
+        // Processes can only share the file via appends, and neither a
+        // checksum, nor an encryption stream, nor a newline tracker can see
+        // the bytes written by other processes.
+        private void validateMultiProcess() {
+            if (!append) {
+                throw new IllegalArgumentException("multi-process without append");
+            }
+            if (checksum) {
+                throw new IllegalArgumentException("multi-process with checksum");
+            }
+            if (encryptionKey != null) {
+                throw new IllegalArgumentException("multi-process with encryption");
+            }
+            if (lineAware) {
+                throw new IllegalArgumentException("multi-process with line awareness");
+            }
+            if (inodeCheckIntervalMillis < 1) {
+                String message = String.format(
+                        "invalid interval {inodeCheckIntervalMillis=%d}", inodeCheckIntervalMillis);
+                throw new IllegalArgumentException(message);
+            }
+        }
+
     }
 
 }
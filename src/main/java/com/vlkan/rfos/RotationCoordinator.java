@@ -0,0 +1,101 @@
+package com.vlkan.rfos;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Staggers the completion of rotations shared by many streams, e.g., the
+// ones triggered at midnight by daily policies. Files are still rotated at
+// the boundary, but closing the rotated file and running its stages are
+// delayed by a random duration within the jitter window, and run by at most
+// the given number of threads at once.
+public class RotationCoordinator implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RotationCoordinator.class);
+
+    private static final AtomicInteger INSTANCE_COUNTER = new AtomicInteger();
+
+    private final long jitterWindowMillis;
+
+    private final int maxConcurrency;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    public RotationCoordinator(long jitterWindowMillis, int maxConcurrency) {
+        if (jitterWindowMillis < 0) {
+            String message = String.format("invalid jitter window {jitterWindowMillis=%d}", jitterWindowMillis);
+            throw new IllegalArgumentException(message);
+        }
+        if (maxConcurrency < 1) {
+            String message = String.format("invalid concurrency {maxConcurrency=%d}", maxConcurrency);
+            throw new IllegalArgumentException(message);
+        }
+        this.jitterWindowMillis = jitterWindowMillis;
+        this.maxConcurrency = maxConcurrency;
+        this.executor = new ScheduledThreadPoolExecutor(maxConcurrency, createThreadFactory());
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    private static ThreadFactory createThreadFactory() {
+        final int instanceIndex = INSTANCE_COUNTER.incrementAndGet();
+        final AtomicInteger threadCounter = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                String threadName = String.format(
+                        "%s-%d-%d",
+                        RotationCoordinator.class.getSimpleName(),
+                        instanceIndex,
+                        threadCounter.incrementAndGet());
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    public long getJitterWindowMillis() {
+        return jitterWindowMillis;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    // Number of completions waiting for their turn.
+    public int getQueuedTaskCount() {
+        return executor.getQueue().size();
+    }
+
+    // Throws RejectedExecutionException, if closed.
+    Future<?> schedule(Runnable task, long minDelayMillis) {
+        long jitterMillis = jitterWindowMillis > 0
+                ? ThreadLocalRandom.current().nextLong(jitterWindowMillis)
+                : 0;
+        long delayMillis = minDelayMillis + jitterMillis;
+        LOGGER.debug("scheduling rotation completion {delayMillis={}}", delayMillis);
+        return executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Scheduled completions still run, whereas the streams complete the
+    // rotations afterwards right away.
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "RotationCoordinator{jitterWindowMillis=%d, maxConcurrency=%d}",
+                jitterWindowMillis, maxConcurrency);
+    }
+
+}
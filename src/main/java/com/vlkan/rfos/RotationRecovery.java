@@ -0,0 +1,244 @@
+package com.vlkan.rfos;
+
+import com.vlkan.rfos.stage.RotationPipeline;
+import com.vlkan.rfos.stage.RotationStage;
+import com.vlkan.rfos.stage.RotationStageContext;
+import org.joda.time.LocalDateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs the stages of the rotated files left over by a previous run. Rotated
+// files are marked as pending by an empty hidden file next to them, which is
+// created before the rotation and deleted once the stages succeed. Hence, the
+// files already processed (e.g., by a checksum stage keeping the file as is)
+// are not processed again.
+class RotationRecovery implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RotationRecovery.class);
+
+    private static final String MARKER_FILE_PREFIX = ".";
+
+    private static final String MARKER_FILE_SUFFIX = ".pending";
+
+    private final RotationConfig config;
+
+    private final RotationPipeline pipeline;
+
+    private final List<Thread> runningThreads;
+
+    private final Set<File> excludedFiles;
+
+    private volatile boolean completed;
+
+    RotationRecovery(RotationConfig config, RotationPipeline pipeline, List<Thread> runningThreads) {
+        this.config = config;
+        this.pipeline = pipeline;
+        this.runningThreads = runningThreads;
+        this.excludedFiles = Collections.synchronizedSet(new HashSet<File>());
+    }
+
+    static File getMarkerFile(File rotatedFile) {
+        File absoluteRotatedFile = rotatedFile.getAbsoluteFile();
+        String markerFileName = MARKER_FILE_PREFIX + absoluteRotatedFile.getName() + MARKER_FILE_SUFFIX;
+        return new File(absoluteRotatedFile.getParentFile(), markerFileName);
+    }
+
+    // Returns the rotated file of the given marker file, or null if it is not a marker file.
+    private static File getMarkedFile(File file) {
+        String fileName = file.getName();
+        int markedFileNameLength = fileName.length() - MARKER_FILE_PREFIX.length() - MARKER_FILE_SUFFIX.length();
+        if (markedFileNameLength < 1 ||
+                !fileName.startsWith(MARKER_FILE_PREFIX) ||
+                !fileName.endsWith(MARKER_FILE_SUFFIX)) {
+            return null;
+        }
+        String markedFileName = fileName.substring(
+                MARKER_FILE_PREFIX.length(),
+                MARKER_FILE_PREFIX.length() + markedFileNameLength);
+        return new File(file.getParentFile(), markedFileName);
+    }
+
+    // Failures are only logged, since they merely lose the recovery of the file.
+    static void mark(File rotatedFile) {
+        File markerFile = getMarkerFile(rotatedFile);
+        try {
+            Files.deleteIfExists(markerFile.toPath());
+            Files.createFile(markerFile.toPath());
+        } catch (IOException error) {
+            LOGGER.warn("failed creating marker file {markerFile={}}", markerFile, error);
+        }
+    }
+
+    static void unmark(File rotatedFile) {
+        File markerFile = getMarkerFile(rotatedFile);
+        try {
+            Files.deleteIfExists(markerFile.toPath());
+        } catch (IOException error) {
+            LOGGER.warn("failed deleting marker file {markerFile={}}", markerFile, error);
+        }
+    }
+
+    void start() {
+        String threadName = String.format("%s.recovery", RotatingFileOutputStream.class.getSimpleName());
+        new Thread(this, threadName).start();
+    }
+
+    // Rotations taking place while the recovery is running are excluded, since
+    // their stages are already taken care of.
+    void exclude(File rotatedFile) {
+        if (!completed) {
+            excludedFiles.add(rotatedFile.getAbsoluteFile());
+        }
+    }
+
+    @Override
+    public void run() {
+        Thread thread = Thread.currentThread();
+        runningThreads.add(thread);
+        try {
+            List<File> rotatedFiles = findRotatedFiles();
+            if (!rotatedFiles.isEmpty()) {
+                LOGGER.debug("recovering rotated files {rotatedFileCount={}}", rotatedFiles.size());
+                recover(rotatedFiles);
+            }
+        } catch (Exception error) {
+            String message = String.format("recovery failure {filePattern=%s}", config.getFilePattern());
+            RuntimeException extendedError = new RuntimeException(message, error);
+            config.getCallback().onFailure(null, config.getClock().now(), null, extendedError);
+        } finally {
+            completed = true;
+            excludedFiles.clear();
+            runningThreads.remove(thread);
+        }
+    }
+
+    private List<File> findRotatedFiles() throws IOException {
+        final List<File> rotatedFiles = new ArrayList<>();
+        File directory = config.getFilePattern().getDirectory();
+        if (!directory.isDirectory()) {
+            return rotatedFiles;
+        }
+        final File activeFile = config.getFile().getAbsoluteFile();
+        Set<FileVisitOption> options = EnumSet.noneOf(FileVisitOption.class);
+        int maxDepth = config.getFilePattern().getMaxDepth();
+        Files.walkFileTree(directory.toPath(), options, maxDepth, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                File markedFile = getMarkedFile(path.toFile().getAbsoluteFile());
+                if (markedFile == null ||
+                        markedFile.equals(activeFile) ||
+                        !config.getFilePattern().matches(markedFile)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                // The stages might have completed, though not the deletion of the marker.
+                if (markedFile.isFile()) {
+                    rotatedFiles.add(markedFile);
+                } else {
+                    LOGGER.debug("deleting stale marker file {markedFile={}}", markedFile);
+                    unmark(markedFile);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException error) {
+                LOGGER.warn("failed accessing file {path={}}", path, error);
+                return FileVisitResult.CONTINUE;
+            }
+
+        });
+        return rotatedFiles;
+    }
+
+    private void recover(List<File> rotatedFiles) throws InterruptedException {
+        int threadCount = Math.min(config.getRecoveryThreadCount(), rotatedFiles.size());
+        final AtomicInteger threadCounter = new AtomicInteger();
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                String threadName = String.format(
+                        "%s.recovery-%d",
+                        RotatingFileOutputStream.class.getSimpleName(),
+                        threadCounter.incrementAndGet());
+                return new Thread(runnable, threadName);
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount, threadFactory);
+        try {
+            for (final File rotatedFile : rotatedFiles) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Thread thread = Thread.currentThread();
+                        runningThreads.add(thread);
+                        try {
+                            recover(rotatedFile);
+                        } finally {
+                            runningThreads.remove(thread);
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+        }
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            LOGGER.debug("awaiting recovery {rotatedFileCount={}}", rotatedFiles.size());
+        }
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void recover(File rotatedFile) {
+
+        // Skip files rotated after the recovery has started.
+        if (excludedFiles.contains(rotatedFile)) {
+            LOGGER.debug("skipping recently rotated file {rotatedFile={}}", rotatedFile);
+            return;
+        }
+
+        // Remove the partial output of an interrupted execution.
+        for (RotationStage stage : config.getStages()) {
+            for (File outputFile : stage.getOutputFiles(rotatedFile)) {
+                if (outputFile.exists()) {
+                    LOGGER.debug("deleting partial output file {outputFile={}}", outputFile);
+                    outputFile.delete();
+                }
+            }
+        }
+
+        // Run the stages.
+        LocalDateTime dateTime = new LocalDateTime(rotatedFile.lastModified());
+        RotationStageContext context = new RotationStageContext(null, dateTime, rotatedFile);
+        File checksumFile = ChecksumOutputStream.getChecksumFile(rotatedFile);
+        if (checksumFile.exists()) {
+            context.getSidecarFiles().add(checksumFile);
+        }
+        LOGGER.debug("recovering rotated file {rotatedFile={}}", rotatedFile);
+        if (pipeline.execute(context)) {
+            unmark(rotatedFile);
+        }
+
+    }
+
+}
@@ -0,0 +1,15 @@
+package com.vlkan.rfos;
+
+import com.vlkan.rfos.policy.RotationPolicy;
+import com.vlkan.rfos.stage.RotationStage;
+import org.joda.time.LocalDateTime;
+
+import java.io.File;
+
+// Optional extension of RotationCallback notified per completed stage, if
+// implemented by the configured callback.
+public interface RotationStageCallback {
+
+    void onStageSuccess(RotationPolicy policy, LocalDateTime dateTime, RotationStage stage, File file, long durationNanos);
+
+}
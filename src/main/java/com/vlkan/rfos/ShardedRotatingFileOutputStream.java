@@ -0,0 +1,218 @@
+package com.vlkan.rfos;
+
+import com.vlkan.rfos.job.CompactionJob;
+import com.vlkan.rfos.job.RotationJob;
+import com.vlkan.rfos.policy.RotationPolicy;
+import org.joda.time.LocalDateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class ShardedRotatingFileOutputStream extends OutputStream implements Rotatable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardedRotatingFileOutputStream.class);
+
+    private final RotationConfig config;
+
+    private final RotatingFileOutputStream[] shards;
+
+    private final Lock rotationLock;
+
+    private RotationPolicy lastRotationPolicy;
+
+    private LocalDateTime lastRotationDateTime;
+
+    public ShardedRotatingFileOutputStream(RotationConfig config, int shardCount) {
+        if (shardCount < 1) {
+            String message = String.format("invalid shard count {shardCount=%d}", shardCount);
+            throw new IllegalArgumentException(message);
+        }
+        if (!config.getFilePattern().isSharded()) {
+            String message = String.format("missing shard directive {filePattern=%s}", config.getFilePattern());
+            throw new IllegalArgumentException(message);
+        }
+        // Archives are shared by all the shards otherwise.
+        for (RotationJob job : config.getJobs()) {
+            if (job instanceof CompactionJob && !((CompactionJob) job).getArchiveFilePattern().isSharded()) {
+                String message = String.format(
+                        "missing shard directive {archiveFilePattern=%s}",
+                        ((CompactionJob) job).getArchiveFilePattern());
+                throw new IllegalArgumentException(message);
+            }
+        }
+        this.config = config;
+        this.rotationLock = new ReentrantLock();
+        this.shards = new RotatingFileOutputStream[shardCount];
+        for (int shardIndex = 0; shardIndex < shardCount; shardIndex++) {
+            shards[shardIndex] = createShard(shardIndex);
+        }
+    }
+
+    private RotatingFileOutputStream createShard(int shardIndex) {
+        final RotationConfig shardConfig = config
+                .derive()
+                .file(getShardFile(config.getFile(), shardIndex))
+                .filePattern(config.getFilePattern().withShardIndex(shardIndex))
+                .jobs(createJobs(shardIndex))
+                .build();
+        Rotatable policyTarget = new Rotatable() {
+
+            @Override
+            public void rotate(RotationPolicy policy, LocalDateTime dateTime) {
+                ShardedRotatingFileOutputStream.this.rotate(policy, dateTime);
+            }
+
+            @Override
+            public RotationConfig getConfig() {
+                return shardConfig;
+            }
+
+        };
+        return new RotatingFileOutputStream(shardConfig, policyTarget);
+    }
+
+    private Set<RotationJob> createJobs(int shardIndex) {
+        Set<RotationJob> jobs = new LinkedHashSet<>();
+        for (RotationJob job : config.getJobs()) {
+            if (job instanceof CompactionJob) {
+                CompactionJob compactionJob = (CompactionJob) job;
+                RotatingFilePattern archiveFilePattern = compactionJob.getArchiveFilePattern();
+                job = compactionJob.withArchiveFilePattern(archiveFilePattern.withShardIndex(shardIndex));
+            }
+            jobs.add(job);
+        }
+        return jobs;
+    }
+
+    // Inserts the shard index before the file extension, e.g., "app.log" becomes "app.1.log".
+    static File getShardFile(File file, int shardIndex) {
+        String fileName = file.getName();
+        int extensionIndex = fileName.lastIndexOf('.');
+        String shardFileName = extensionIndex > 0
+                ? String.format("%s.%d%s", fileName.substring(0, extensionIndex), shardIndex, fileName.substring(extensionIndex))
+                : String.format("%s.%d", fileName, shardIndex);
+        return new File(file.getParentFile(), shardFileName);
+    }
+
+    // Each shard runs its own policies, hence the same trigger may arrive
+    // once per shard. Rotating all shards on the first one keeps their
+    // segments aligned to the same date time.
+    @Override
+    public void rotate(RotationPolicy policy, LocalDateTime dateTime) {
+        rotationLock.lock();
+        try {
+            if (Objects.equals(policy, lastRotationPolicy) && Objects.equals(dateTime, lastRotationDateTime)) {
+                LOGGER.debug("skipping already performed rotation {policy={}, dateTime={}}", policy, dateTime);
+                return;
+            }
+            lastRotationPolicy = policy;
+            lastRotationDateTime = dateTime;
+            for (RotatingFileOutputStream shard : shards) {
+                shard.rotate(policy, dateTime);
+            }
+        } finally {
+            rotationLock.unlock();
+        }
+    }
+
+    @Override
+    public RotationConfig getConfig() {
+        return config;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public RotatingFileOutputStream getShard(int shardIndex) {
+        return shards[shardIndex];
+    }
+
+    public RotatingFileOutputStream getShardByKey(Object key) {
+        Objects.requireNonNull(key, "key");
+        int shardIndex = (key.hashCode() & Integer.MAX_VALUE) % shards.length;
+        return shards[shardIndex];
+    }
+
+    // Writes with the same key go to the same shard, hence stay in order.
+
+    public void write(Object key, int b) throws IOException {
+        getShardByKey(key).write(b);
+    }
+
+    public void write(Object key, byte[] b) throws IOException {
+        getShardByKey(key).write(b);
+    }
+
+    public void write(Object key, byte[] b, int off, int len) throws IOException {
+        getShardByKey(key).write(b, off, len);
+    }
+
+    // Writes without a key are spread by the calling thread, which keeps the
+    // writes of a thread in order, though not the ones of a key.
+    private RotatingFileOutputStream getThreadShard() {
+        int shardIndex = (int) (Thread.currentThread().getId() % shards.length);
+        return shards[shardIndex];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        getThreadShard().write(b);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        getThreadShard().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        getThreadShard().write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (RotatingFileOutputStream shard : shards) {
+            shard.flush();
+        }
+    }
+
+    // Shards only cancel their own timer tasks, whereas the timer and the
+    // executor they share are owned by the sharded stream.
+    @Override
+    public void close() throws IOException {
+        IOException lastError = null;
+        for (RotatingFileOutputStream shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException error) {
+                lastError = error;
+            }
+        }
+        config.getTimer().cancel();
+        ExecutorService executor = config.getExecutor();
+        if (executor != null) {
+            executor.shutdown();
+        }
+        if (lastError != null) {
+            throw lastError;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "ShardedRotatingFileOutputStream{file=%s, shardCount=%d}",
+                config.getFile(), shards.length);
+    }
+
+}
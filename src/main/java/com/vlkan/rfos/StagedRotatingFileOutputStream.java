@@ -0,0 +1,316 @@
+package com.vlkan.rfos;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class StagedRotatingFileOutputStream extends OutputStream {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StagedRotatingFileOutputStream.class);
+
+    private static final long IDLE_SEQUENCE_NUMBER = Long.MAX_VALUE;
+
+    private static final int DEFAULT_MAX_STAGED_RECORD_COUNT = 1024;
+
+    private static final class Record {
+
+        private final long sequenceNumber;
+
+        private final byte[] bytes;
+
+        private Record(long sequenceNumber, byte[] bytes) {
+            this.sequenceNumber = sequenceNumber;
+            this.bytes = bytes;
+        }
+
+    }
+
+    private static final Comparator<Record> RECORD_COMPARATOR = new Comparator<Record>() {
+        @Override
+        public int compare(Record record1, Record record2) {
+            return Long.compare(record1.sequenceNumber, record2.sequenceNumber);
+        }
+    };
+
+    // Buffer of a single writer thread. Since records are enqueued by their
+    // owner thread only, they are ordered by their sequence numbers.
+    private static final class StagingBuffer {
+
+        private final WeakReference<Thread> threadRef;
+
+        private final Queue<Record> records;
+
+        // Size of the records queue, since the queue cannot count in constant time.
+        private final AtomicInteger recordCount;
+
+        // Lower bound of the sequence number of the record being staged, if there is one.
+        private volatile long inFlightSequenceNumber;
+
+        private StagingBuffer(Thread thread) {
+            this.threadRef = new WeakReference<>(thread);
+            this.records = new ConcurrentLinkedQueue<>();
+            this.recordCount = new AtomicInteger();
+            this.inFlightSequenceNumber = IDLE_SEQUENCE_NUMBER;
+        }
+
+    }
+
+    private final RotatingFileOutputStream stream;
+
+    private final long mergeIntervalMillis;
+
+    private final int maxStagedRecordCount;
+
+    private final AtomicLong sequenceNumberCounter;
+
+    private final List<StagingBuffer> stagingBuffers;
+
+    private final ThreadLocal<StagingBuffer> threadStagingBuffer;
+
+    private final Lock mergeLock;
+
+    // Signalled after every merge, guarded by the merge lock.
+    private final Condition mergeCondition;
+
+    private final PriorityQueue<Record> pendingRecords;
+
+    private final Thread combinerThread;
+
+    private volatile long mergedSequenceNumber;
+
+    // Error of the last merge, if it failed. Cleared by the next successful merge.
+    private volatile IOException mergeError;
+
+    private volatile boolean closed;
+
+    public StagedRotatingFileOutputStream(RotationConfig config, long mergeIntervalMillis) {
+        this(config, mergeIntervalMillis, DEFAULT_MAX_STAGED_RECORD_COUNT);
+    }
+
+    public StagedRotatingFileOutputStream(RotationConfig config, long mergeIntervalMillis, int maxStagedRecordCount) {
+        if (mergeIntervalMillis < 1) {
+            String message = String.format("invalid interval {mergeIntervalMillis=%d}", mergeIntervalMillis);
+            throw new IllegalArgumentException(message);
+        }
+        if (maxStagedRecordCount < 1) {
+            String message = String.format(
+                    "invalid staged record count {maxStagedRecordCount=%d}", maxStagedRecordCount);
+            throw new IllegalArgumentException(message);
+        }
+        this.stream = new RotatingFileOutputStream(config);
+        this.mergeIntervalMillis = mergeIntervalMillis;
+        this.maxStagedRecordCount = maxStagedRecordCount;
+        this.sequenceNumberCounter = new AtomicLong();
+        this.stagingBuffers = new CopyOnWriteArrayList<>();
+        this.threadStagingBuffer = new ThreadLocal<StagingBuffer>() {
+            @Override
+            protected StagingBuffer initialValue() {
+                StagingBuffer stagingBuffer = new StagingBuffer(Thread.currentThread());
+                stagingBuffers.add(stagingBuffer);
+                return stagingBuffer;
+            }
+        };
+        this.mergeLock = new ReentrantLock();
+        this.mergeCondition = mergeLock.newCondition();
+        this.pendingRecords = new PriorityQueue<>(64, RECORD_COMPARATOR);
+        this.mergedSequenceNumber = -1;
+        this.combinerThread = createCombinerThread();
+        combinerThread.start();
+    }
+
+    private Thread createCombinerThread() {
+        String threadName = String.format("%s.combiner", StagedRotatingFileOutputStream.class.getSimpleName());
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!closed) {
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(mergeIntervalMillis);
+                    } catch (InterruptedException ignored) {
+                        break;
+                    }
+                    try {
+                        merge(false);
+                    } catch (IOException error) {
+                        LOGGER.error("merge failure {file={}}", stream.getConfig().getFile(), error);
+                    }
+                }
+            }
+        }, threadName);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    public RotatingFileOutputStream getStream() {
+        return stream;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        stage(new byte[]{(byte) b});
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        byte[] bytes = new byte[len];
+        System.arraycopy(b, off, bytes, 0, len);
+        stage(bytes);
+    }
+
+    private void stage(byte[] bytes) throws IOException {
+        checkState();
+        StagingBuffer stagingBuffer = threadStagingBuffer.get();
+        stagingBuffer.inFlightSequenceNumber = sequenceNumberCounter.get();
+        long sequenceNumber = sequenceNumberCounter.getAndIncrement();
+        stagingBuffer.records.add(new Record(sequenceNumber, bytes));
+        stagingBuffer.inFlightSequenceNumber = IDLE_SEQUENCE_NUMBER;
+        // Merge in the writer thread if the combiner falls behind. Merging
+        // collects all staged records of this thread, hence bounds the buffer,
+        // and keeps the order, unlike writing the record directly would.
+        if (stagingBuffer.recordCount.incrementAndGet() >= maxStagedRecordCount) {
+            merge(false);
+        }
+    }
+
+    private void checkState() throws IOException {
+        if (closed) {
+            String message = String.format("closed stream {file=%s}", stream.getConfig().getFile());
+            throw new IOException(message);
+        }
+        IOException error = mergeError;
+        if (error != null) {
+            String message = String.format("merge failure {file=%s}", stream.getConfig().getFile());
+            throw new IOException(message, error);
+        }
+    }
+
+    // Writes the staged records in the order of their sequence numbers with a single
+    // write, so that a rotation cannot split a merge.
+    private void merge(boolean all) throws IOException {
+        mergeLock.lock();
+        try {
+
+            // Determine the sequence number below which all records are staged.
+            long watermark = IDLE_SEQUENCE_NUMBER;
+            if (!all) {
+                watermark = sequenceNumberCounter.get();
+                for (StagingBuffer stagingBuffer : stagingBuffers) {
+                    watermark = Math.min(watermark, stagingBuffer.inFlightSequenceNumber);
+                }
+            }
+
+            // Collect the staged records.
+            for (StagingBuffer stagingBuffer : stagingBuffers) {
+                Record record;
+                while ((record = stagingBuffer.records.poll()) != null) {
+                    stagingBuffer.recordCount.decrementAndGet();
+                    pendingRecords.add(record);
+                }
+                if (stagingBuffer.threadRef.get() == null) {
+                    stagingBuffers.remove(stagingBuffer);
+                }
+            }
+
+            // Write the records below the watermark.
+            List<Record> batchRecords = new ArrayList<>();
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            while (!pendingRecords.isEmpty() && pendingRecords.peek().sequenceNumber < watermark) {
+                Record record = pendingRecords.poll();
+                batchRecords.add(record);
+                batch.write(record.bytes);
+            }
+            if (!batchRecords.isEmpty()) {
+                try {
+                    batch.writeTo(stream);
+                } catch (IOException error) {
+                    // Put the records back to retry them with the next merge. (A
+                    // partially written batch gets written again in full.)
+                    pendingRecords.addAll(batchRecords);
+                    mergeError = error;
+                    throw error;
+                }
+                mergedSequenceNumber = batchRecords.get(batchRecords.size() - 1).sequenceNumber;
+            }
+            mergeError = null;
+            mergeCondition.signalAll();
+
+        } finally {
+            mergeLock.unlock();
+        }
+    }
+
+    // Records staged by other threads in the meantime can hold back the
+    // watermark, hence wait for the merges of the combiner, if necessary.
+    @Override
+    public void flush() throws IOException {
+        checkState();
+        long lastSequenceNumber = sequenceNumberCounter.get() - 1;
+        mergeLock.lock();
+        try {
+            merge(false);
+            while (mergedSequenceNumber < lastSequenceNumber) {
+                if (closed) {
+                    String message = String.format("closed stream {file=%s}", stream.getConfig().getFile());
+                    throw new IOException(message);
+                }
+                mergeCondition.await(mergeIntervalMillis, TimeUnit.MILLISECONDS);
+                merge(false);
+            }
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+            String message = String.format("interrupted flush {file=%s}", stream.getConfig().getFile());
+            throw new InterruptedIOException(message);
+        } finally {
+            mergeLock.unlock();
+        }
+        stream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        combinerThread.interrupt();
+        try {
+            combinerThread.join();
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            merge(true);
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("StagedRotatingFileOutputStream{file=%s}", stream.getConfig().getFile());
+    }
+
+}
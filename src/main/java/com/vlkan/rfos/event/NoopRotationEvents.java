@@ -0,0 +1,64 @@
+package com.vlkan.rfos.event;
+
+import java.io.File;
+
+class NoopRotationEvents extends RotationEvents {
+
+    static final NoopRotationEvents INSTANCE = new NoopRotationEvents();
+
+    private NoopRotationEvents() {
+        // Do nothing.
+    }
+
+    @Override
+    public Object beginWrite() {
+        return null;
+    }
+
+    @Override
+    public void commitWrite(Object event, File file, int byteCount) {
+        // Do nothing.
+    }
+
+    @Override
+    public Object beginLockWait() {
+        return null;
+    }
+
+    @Override
+    public void commitLockWait(Object event, File file) {
+        // Do nothing.
+    }
+
+    @Override
+    public Object beginRotation() {
+        return null;
+    }
+
+    @Override
+    public void commitRotation(
+            Object event,
+            File file,
+            File rotatedFile,
+            long renameNanos,
+            long openNanos,
+            long swapNanos) {
+        // Do nothing.
+    }
+
+    @Override
+    public Object beginCompression() {
+        return null;
+    }
+
+    @Override
+    public void commitCompression(
+            Object event,
+            File file,
+            File compressedFile,
+            long inputByteCount,
+            long outputByteCount) {
+        // Do nothing.
+    }
+
+}
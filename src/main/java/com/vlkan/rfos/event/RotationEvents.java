@@ -0,0 +1,72 @@
+package com.vlkan.rfos.event;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+
+// Emits JDK Flight Recorder events, if JFR is available. Every begin*() method
+// returns null if the event is disabled, in which case the commit can be skipped.
+// The JFR implementation is compiled for Java 11 (src/main/java11) and shipped
+// in the multi-release jar, hence it is only found on Java 11 and later.
+public abstract class RotationEvents {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RotationEvents.class);
+
+    private static final String JFR_EVENT_CLASS_NAME = "jdk.jfr.Event";
+
+    private static final String JFR_EVENTS_CLASS_NAME = "com.vlkan.rfos.event.JfrRotationEvents";
+
+    private static final RotationEvents INSTANCE = createInstance();
+
+    RotationEvents() {
+        // Do nothing.
+    }
+
+    private static RotationEvents createInstance() {
+        try {
+            Class.forName(JFR_EVENT_CLASS_NAME);
+        } catch (ClassNotFoundException ignored) {
+            return NoopRotationEvents.INSTANCE;
+        }
+        // JFR classes are only linked if JFR is available.
+        try {
+            return (RotationEvents) Class.forName(JFR_EVENTS_CLASS_NAME).getDeclaredConstructor().newInstance();
+        } catch (Exception | LinkageError error) {
+            LOGGER.warn("failed loading JFR events", error);
+            return NoopRotationEvents.INSTANCE;
+        }
+    }
+
+    public static RotationEvents getInstance() {
+        return INSTANCE;
+    }
+
+    public abstract Object beginWrite();
+
+    public abstract void commitWrite(Object event, File file, int byteCount);
+
+    public abstract Object beginLockWait();
+
+    public abstract void commitLockWait(Object event, File file);
+
+    public abstract Object beginRotation();
+
+    public abstract void commitRotation(
+            Object event,
+            File file,
+            File rotatedFile,
+            long renameNanos,
+            long openNanos,
+            long swapNanos);
+
+    public abstract Object beginCompression();
+
+    public abstract void commitCompression(
+            Object event,
+            File file,
+            File compressedFile,
+            long inputByteCount,
+            long outputByteCount);
+
+}
@@ -0,0 +1,431 @@
+package com.vlkan.rfos.job;
+
+import com.vlkan.rfos.RotatingFilePattern;
+import com.vlkan.rfos.RotationConfig;
+import com.vlkan.rfos.stage.BlockGzipRotationStage;
+import org.joda.time.LocalDateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+// Merges small compressed segments into a single gzip archive per group
+// (e.g., hour or day) determined by rendering the archive file pattern with
+// the date time parsed from the name of each segment. Gzip members concatenate
+// into a valid gzip file, hence segments get merged without recompression.
+public class CompactionJob extends PeriodicRotationJob {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompactionJob.class);
+
+    private static final String SEGMENT_FILE_EXTENSION = ".gz";
+
+    private static final String LOCK_FILE_EXTENSION = ".lock";
+
+    // Segments modified recently might still be written by a compression stage.
+    private static final long MIN_SEGMENT_AGE_MILLIS = 60_000;
+
+    private static final Comparator<File> SEGMENT_COMPARATOR = new Comparator<File>() {
+        @Override
+        public int compare(File file1, File file2) {
+            int comparison = Long.compare(file1.lastModified(), file2.lastModified());
+            return comparison != 0 ? comparison : file1.getName().compareTo(file2.getName());
+        }
+    };
+
+    static final class Member {
+
+        private final long offset;
+
+        private final long length;
+
+        private final String name;
+
+        Member(long offset, long length, String name) {
+            this.offset = offset;
+            this.length = length;
+            this.name = name;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        String getName() {
+            return name;
+        }
+
+    }
+
+    private final RotatingFilePattern archiveFilePattern;
+
+    private final long maxSegmentSize;
+
+    private final long periodMillis;
+
+    public CompactionJob(RotatingFilePattern archiveFilePattern, long maxSegmentSize, long periodMillis) {
+        this.archiveFilePattern = Objects.requireNonNull(archiveFilePattern, "archiveFilePattern");
+        if (maxSegmentSize < 1) {
+            String message = String.format("invalid segment size {maxSegmentSize=%d}", maxSegmentSize);
+            throw new IllegalArgumentException(message);
+        }
+        if (periodMillis < 1) {
+            String message = String.format("invalid period {periodMillis=%d}", periodMillis);
+            throw new IllegalArgumentException(message);
+        }
+        this.maxSegmentSize = maxSegmentSize;
+        this.periodMillis = periodMillis;
+    }
+
+    // Creates a copy with the given archive file pattern, e.g., with the key
+    // placeholder of a registry substituted.
+    public CompactionJob withArchiveFilePattern(RotatingFilePattern archiveFilePattern) {
+        return new CompactionJob(archiveFilePattern, maxSegmentSize, periodMillis);
+    }
+
+    public RotatingFilePattern getArchiveFilePattern() {
+        return archiveFilePattern;
+    }
+
+    public long getMaxSegmentSize() {
+        return maxSegmentSize;
+    }
+
+    @Override
+    public long getPeriodMillis() {
+        return periodMillis;
+    }
+
+    public static File getIndexFile(File archiveFile) {
+        String indexFileName = String.format("%s.idx", archiveFile.getAbsolutePath());
+        return new File(indexFileName);
+    }
+
+    @Override
+    protected void run(RotationConfig config) throws IOException {
+        compact(config);
+    }
+
+    void compact(RotationConfig config) throws IOException {
+        File currentArchiveFile = archiveFilePattern.create(config.getClock().now()).getAbsoluteFile();
+        Map<File, List<File>> segmentsByArchiveFile = findSegments(config.getFilePattern(), currentArchiveFile);
+        for (Map.Entry<File, List<File>> entry : segmentsByArchiveFile.entrySet()) {
+            File archiveFile = entry.getKey();
+            List<File> segments = entry.getValue();
+            if (segments.size() < 2 && !archiveFile.exists()) {
+                continue;
+            }
+            Collections.sort(segments, SEGMENT_COMPARATOR);
+            try {
+                compact(archiveFile, config.getFilePattern().getDirectory(), segments);
+            } catch (IOException error) {
+                LOGGER.error("failed compacting segments {archiveFile={}}", archiveFile, error);
+            }
+        }
+    }
+
+    private Map<File, List<File>> findSegments(
+            final RotatingFilePattern filePattern,
+            final File currentArchiveFile)
+            throws IOException {
+        final Map<File, List<File>> segmentsByArchiveFile = new LinkedHashMap<>();
+        File directory = filePattern.getDirectory();
+        if (!directory.isDirectory()) {
+            return segmentsByArchiveFile;
+        }
+        final long maxLastModified = System.currentTimeMillis() - MIN_SEGMENT_AGE_MILLIS;
+        Set<FileVisitOption> options = EnumSet.noneOf(FileVisitOption.class);
+        int maxDepth = filePattern.getMaxDepth();
+        Files.walkFileTree(directory.toPath(), options, maxDepth, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                if (!attributes.isRegularFile() ||
+                        attributes.size() >= maxSegmentSize ||
+                        attributes.lastModifiedTime().toMillis() > maxLastModified) {
+                    return FileVisitResult.CONTINUE;
+                }
+                File file = path.toFile().getAbsoluteFile();
+                String fileName = file.getPath();
+                if (!fileName.endsWith(SEGMENT_FILE_EXTENSION)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                File uncompressedFile = new File(
+                        fileName.substring(0, fileName.length() - SEGMENT_FILE_EXTENSION.length()));
+                if (!filePattern.matches(uncompressedFile)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                // Block compressed segments are already randomly accessible
+                // via their own index, which would be orphaned by a merge.
+                if (BlockGzipRotationStage.getIndexFile(file).exists()) {
+                    return FileVisitResult.CONTINUE;
+                }
+                // Segments of the current group can still grow, whereas
+                // archives are never segments of themselves.
+                LocalDateTime dateTime = filePattern.getDateTime(uncompressedFile);
+                if (dateTime == null) {
+                    return FileVisitResult.CONTINUE;
+                }
+                File archiveFile = archiveFilePattern.create(dateTime).getAbsoluteFile();
+                if (archiveFile.equals(currentArchiveFile) || archiveFile.equals(file)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                List<File> segments = segmentsByArchiveFile.get(archiveFile);
+                if (segments == null) {
+                    segments = new ArrayList<>();
+                    segmentsByArchiveFile.put(archiveFile, segments);
+                }
+                segments.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException error) {
+                LOGGER.warn("failed visiting file {path={}}", path, error);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return segmentsByArchiveFile;
+    }
+
+    // Merges the segments into the archive while holding a lock on its
+    // sidecar, so that compactions sharing an archive (e.g., of another
+    // stream instance) skip it rather than racing on the temporary files.
+    private static void compact(File archiveFile, File directory, List<File> segments) throws IOException {
+        File archiveDirectory = archiveFile.getParentFile();
+        if (archiveDirectory != null &&
+                !archiveDirectory.isDirectory() &&
+                !archiveDirectory.mkdirs() &&
+                !archiveDirectory.isDirectory()) {
+            String message = String.format("failed creating directory {directory=%s}", archiveDirectory);
+            throw new IOException(message);
+        }
+        File lockFile = new File(archiveFile.getPath() + LOCK_FILE_EXTENSION);
+        try (FileChannel lockChannel = FileChannel.open(
+                lockFile.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            FileLock lock;
+            try {
+                lock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException ignored) {
+                lock = null;
+            }
+            if (lock == null) {
+                LOGGER.debug("skipping locked archive {archiveFile={}}", archiveFile);
+                return;
+            }
+            compactLocked(archiveFile, directory, segments);
+        }
+    }
+
+    // Concatenates the segments to the existing archive (if any) in a
+    // temporary file, which then atomically replaces the archive. The index
+    // is replaced before, hence its members past the end of the archive are
+    // stale, and segments listed within the archive (by their path relative
+    // to the directory and their length) are already merged, yet not deleted
+    // due to a crash.
+    private static void compactLocked(File archiveFile, File directory, List<File> segments) throws IOException {
+        LOGGER.debug("compacting segments {archiveFile={}, segmentCount={}}", archiveFile, segments.size());
+        List<Member> members = archiveFile.exists() ? readMembers(archiveFile) : new ArrayList<Member>();
+        Set<String> memberKeys = new HashSet<>();
+        for (Member member : members) {
+            memberKeys.add(getMemberKey(member.name, member.length));
+        }
+        List<File> mergedSegments = new ArrayList<>();
+        List<File> pendingSegments = new ArrayList<>();
+        for (File segment : segments) {
+            String name = getMemberName(directory, segment);
+            if (memberKeys.contains(getMemberKey(name, segment.length()))) {
+                mergedSegments.add(segment);
+            } else {
+                pendingSegments.add(segment);
+            }
+        }
+        if (!pendingSegments.isEmpty()) {
+            merge(archiveFile, directory, members, pendingSegments);
+        }
+        for (File segment : mergedSegments) {
+            LOGGER.debug("deleting already compacted segment {segment={}}", segment);
+            if (!segment.delete()) {
+                LOGGER.warn("failed deleting compacted segment {segment={}}", segment);
+            }
+        }
+    }
+
+    // Segments of different directories might share a name, e.g., for
+    // "%d{yyyyMMdd}/app-%d{HH}.log", hence members are named by their path.
+    private static String getMemberName(File directory, File segment) {
+        return directory.toPath().relativize(segment.toPath()).toString();
+    }
+
+    private static String getMemberKey(String name, long length) {
+        return length + " " + name;
+    }
+
+    private static void merge(File archiveFile, File directory, List<Member> members, List<File> segments)
+            throws IOException {
+        File tmpArchiveFile = new File(archiveFile.getPath() + ".tmp");
+        File indexFile = getIndexFile(archiveFile);
+        File tmpIndexFile = new File(indexFile.getPath() + ".tmp");
+        long lastModified = archiveFile.lastModified();
+        try {
+            try (FileChannel archiveChannel = FileChannel.open(
+                    tmpArchiveFile.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+                if (archiveFile.exists()) {
+                    append(archiveChannel, archiveFile);
+                }
+                for (File segment : segments) {
+                    long offset = archiveChannel.position();
+                    long length = append(archiveChannel, segment);
+                    members.add(new Member(offset, length, getMemberName(directory, segment)));
+                    lastModified = Math.max(lastModified, segment.lastModified());
+                }
+                archiveChannel.force(true);
+            }
+            writeMembers(tmpIndexFile, members);
+            // Keeping the last modification time of the segments retains
+            // the age of the archive, e.g., for tiering.
+            if (!tmpArchiveFile.setLastModified(lastModified)) {
+                LOGGER.warn("failed setting last modification time {file={}}", tmpArchiveFile);
+            }
+            Files.move(
+                    tmpIndexFile.toPath(), indexFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(
+                    tmpArchiveFile.toPath(), archiveFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException error) {
+            Files.deleteIfExists(tmpArchiveFile.toPath());
+            Files.deleteIfExists(tmpIndexFile.toPath());
+            throw error;
+        }
+        for (File segment : segments) {
+            LOGGER.debug("deleting compacted segment {segment={}}", segment);
+            if (!segment.delete()) {
+                LOGGER.warn("failed deleting compacted segment {segment={}}", segment);
+            }
+        }
+    }
+
+    private static long append(FileChannel archiveChannel, File file) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            long position = 0;
+            while (position < size) {
+                long transferredByteCount = fileChannel.transferTo(position, size - position, archiveChannel);
+                // Bail out rather than spinning, e.g., if the file got truncated.
+                if (transferredByteCount <= 0) {
+                    String message = String.format(
+                            "stalled transfer {file=%s, position=%d, size=%d}", file, position, size);
+                    throw new IOException(message);
+                }
+                position += transferredByteCount;
+            }
+            return size;
+        }
+    }
+
+    // Reads the members of the given archive from its index, if there is one,
+    // or treats the entire archive as a single member otherwise. Members past
+    // the end of the archive are skipped, since the index is replaced first.
+    static List<Member> readMembers(File archiveFile) throws IOException {
+        List<Member> members = new ArrayList<>();
+        File indexFile = getIndexFile(archiveFile);
+        if (!indexFile.exists()) {
+            members.add(new Member(0, archiveFile.length(), archiveFile.getName()));
+            return members;
+        }
+        long archiveLength = archiveFile.length();
+        try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ", 3);
+                if (fields.length != 3) {
+                    String message = String.format("invalid index entry {indexFile=%s, line=%s}", indexFile, line);
+                    throw new IOException(message);
+                }
+                Member member;
+                try {
+                    member = new Member(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]);
+                } catch (NumberFormatException error) {
+                    String message = String.format("invalid index entry {indexFile=%s, line=%s}", indexFile, line);
+                    throw new IOException(message, error);
+                }
+                if (member.offset + member.length <= archiveLength) {
+                    members.add(member);
+                }
+            }
+        }
+        return members;
+    }
+
+    private static void writeMembers(File indexFile, List<Member> members) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            for (Member member : members) {
+                writer.write(String.format("%d %d %s\n", member.offset, member.length, member.name));
+            }
+        }
+        try (FileChannel indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.WRITE)) {
+            indexChannel.force(true);
+        }
+    }
+
+    @Override
+    protected Logger getLogger() {
+        return LOGGER;
+    }
+
+    @Override
+    public boolean equals(Object instance) {
+        if (this == instance) return true;
+        if (instance == null || getClass() != instance.getClass()) return false;
+        CompactionJob that = (CompactionJob) instance;
+        return maxSegmentSize == that.maxSegmentSize &&
+                periodMillis == that.periodMillis &&
+                Objects.equals(archiveFilePattern, that.archiveFilePattern);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(archiveFilePattern, maxSegmentSize, periodMillis);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "CompactionJob{archiveFilePattern=%s, maxSegmentSize=%d, periodMillis=%d}",
+                archiveFilePattern, maxSegmentSize, periodMillis);
+    }
+
+}
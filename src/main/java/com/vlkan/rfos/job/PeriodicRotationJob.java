@@ -0,0 +1,59 @@
+package com.vlkan.rfos.job;
+
+import com.vlkan.rfos.Rotatable;
+import com.vlkan.rfos.RotationConfig;
+import org.slf4j.Logger;
+
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public abstract class PeriodicRotationJob implements RotationJob {
+
+    // Jobs are shared by derived configs, hence the running state is per start.
+    @Override
+    public void start(Rotatable rotatable) {
+        final RotationConfig config = rotatable.getConfig();
+        final AtomicBoolean running = new AtomicBoolean();
+        final Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                // Skip the round if the previous one is still running.
+                if (!running.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    PeriodicRotationJob.this.run(config);
+                } catch (Exception error) {
+                    getLogger().error(
+                            "job failure {job={}, filePattern={}}",
+                            PeriodicRotationJob.this, config.getFilePattern(), error);
+                } finally {
+                    running.set(false);
+                }
+            }
+        };
+        // Jobs are I/O heavy, hence they are offloaded from the timer thread
+        // to the stage executor, if there is one.
+        TimerTask timerTask = new TimerTask() {
+            @Override
+            public void run() {
+                ExecutorService executor = config.getExecutor();
+                if (executor != null) {
+                    executor.execute(runnable);
+                } else {
+                    runnable.run();
+                }
+            }
+        };
+        long periodMillis = getPeriodMillis();
+        config.schedule(timerTask, periodMillis, periodMillis);
+    }
+
+    abstract public long getPeriodMillis();
+
+    abstract protected void run(RotationConfig config) throws Exception;
+
+    abstract protected Logger getLogger();
+
+}
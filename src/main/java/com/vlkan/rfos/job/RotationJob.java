@@ -0,0 +1,9 @@
+package com.vlkan.rfos.job;
+
+import com.vlkan.rfos.Rotatable;
+
+public interface RotationJob {
+
+    void start(Rotatable rotatable);
+
+}
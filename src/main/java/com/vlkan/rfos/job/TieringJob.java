@@ -0,0 +1,373 @@
+package com.vlkan.rfos.job;
+
+import com.vlkan.rfos.RotatingFilePattern;
+import com.vlkan.rfos.RotationConfig;
+import com.vlkan.rfos.stage.CompressionBudget;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Moves rotated files (and their sidecars) from the directory of the file
+// pattern, i.e., the hot tier, to a secondary directory, e.g., on a cheaper
+// filesystem, once they get older than the given age or the hot tier exceeds
+// the given size. Moved files keep their path relative to the directory of
+// the file pattern, hence stay addressable via the pattern.
+public class TieringJob extends PeriodicRotationJob {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TieringJob.class);
+
+    // Files modified recently might still be written by a stage.
+    private static final long MIN_FILE_AGE_MILLIS = 60_000;
+
+    private static final int TRANSFER_CHUNK_SIZE = 1024 * 1024;
+
+    private static final String TMP_FILE_EXTENSION = ".tmp";
+
+    private static final int MAX_STRIPPED_EXTENSION_COUNT = 2;
+
+    private static final Comparator<File> FILE_COMPARATOR = new Comparator<File>() {
+        @Override
+        public int compare(File file1, File file2) {
+            int comparison = Long.compare(file1.lastModified(), file2.lastModified());
+            return comparison != 0 ? comparison : file1.getName().compareTo(file2.getName());
+        }
+    };
+
+    private final File directory;
+
+    private final long maxAgeMillis;
+
+    private final long maxHotTierSize;
+
+    private final CompressionBudget budget;
+
+    private final long periodMillis;
+
+    private TieringJob(Builder builder) {
+        this.directory = builder.directory.getAbsoluteFile();
+        this.maxAgeMillis = builder.maxAgeMillis;
+        this.maxHotTierSize = builder.maxHotTierSize;
+        this.budget = builder.budget;
+        this.periodMillis = builder.periodMillis;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    public long getMaxHotTierSize() {
+        return maxHotTierSize;
+    }
+
+    public CompressionBudget getBudget() {
+        return budget;
+    }
+
+    @Override
+    public long getPeriodMillis() {
+        return periodMillis;
+    }
+
+    // Resolves the given rotated file to its hot or secondary tier location.
+    public File locate(RotatingFilePattern filePattern, File file) {
+        File absoluteFile = file.getAbsoluteFile();
+        if (absoluteFile.exists()) {
+            return absoluteFile;
+        }
+        File tieredFile = getTieredFile(filePattern, absoluteFile);
+        return tieredFile != null && tieredFile.exists() ? tieredFile : absoluteFile;
+    }
+
+    private File getTieredFile(RotatingFilePattern filePattern, File file) {
+        Path patternDirectory = filePattern.getDirectory().toPath();
+        Path path = file.toPath();
+        if (!path.startsWith(patternDirectory)) {
+            return null;
+        }
+        Path relativePath = patternDirectory.relativize(path);
+        return directory.toPath().resolve(relativePath).toFile();
+    }
+
+    @Override
+    protected void run(RotationConfig config) throws IOException, InterruptedException {
+        RotatingFilePattern filePattern = config.getFilePattern();
+        List<File> files = findFiles(filePattern, config.getFile().getAbsoluteFile());
+        long hotTierSize = 0;
+        for (File file : files) {
+            hotTierSize += file.length();
+        }
+        Collections.sort(files, FILE_COMPARATOR);
+        long nowMillis = System.currentTimeMillis();
+        for (File file : files) {
+            long lastModified = file.lastModified();
+            boolean aged = nowMillis - lastModified > maxAgeMillis;
+            boolean overflown = hotTierSize > maxHotTierSize;
+            if (!aged && !overflown) {
+                break;
+            }
+            if (nowMillis - lastModified < MIN_FILE_AGE_MILLIS) {
+                continue;
+            }
+            long size = file.length();
+            File tieredFile = getTieredFile(filePattern, file);
+            try {
+                move(file, tieredFile);
+                hotTierSize -= size;
+            } catch (IOException error) {
+                LOGGER.error("failed moving file {file={}, tieredFile={}}", file, tieredFile, error);
+            }
+        }
+    }
+
+    private List<File> findFiles(final RotatingFilePattern filePattern, final File activeFile) throws IOException {
+        final List<File> files = new ArrayList<>();
+        File patternDirectory = filePattern.getDirectory();
+        if (!patternDirectory.isDirectory()) {
+            return files;
+        }
+        final Path directoryPath = directory.toPath();
+        Set<FileVisitOption> options = EnumSet.noneOf(FileVisitOption.class);
+        int maxDepth = filePattern.getMaxDepth();
+        Files.walkFileTree(patternDirectory.toPath(), options, maxDepth, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attributes) {
+                // The secondary tier might reside in the hot one.
+                return path.toAbsolutePath().equals(directoryPath)
+                        ? FileVisitResult.SKIP_SUBTREE
+                        : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                File file = path.toFile().getAbsoluteFile();
+                if (attributes.isRegularFile() &&
+                        !file.equals(activeFile) &&
+                        !file.getName().endsWith(TMP_FILE_EXTENSION) &&
+                        isRotatedFile(filePattern, file)) {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException error) {
+                LOGGER.warn("failed visiting file {path={}}", path, error);
+                return FileVisitResult.CONTINUE;
+            }
+
+        });
+        return files;
+    }
+
+    // Matches rotated files and their derivations, e.g., compressed files and
+    // checksum sidecars, and the sidecars of the latter (e.g., ".gz.gzi").
+    private static boolean isRotatedFile(RotatingFilePattern filePattern, File file) {
+        String fileName = file.getPath();
+        int nameIndex = fileName.lastIndexOf(File.separatorChar);
+        for (int strippedCount = 0; ; strippedCount++) {
+            if (filePattern.matches(new File(fileName))) {
+                return true;
+            }
+            int extensionIndex = fileName.lastIndexOf('.');
+            if (strippedCount == MAX_STRIPPED_EXTENSION_COUNT || extensionIndex <= nameIndex) {
+                return false;
+            }
+            fileName = fileName.substring(0, extensionIndex);
+        }
+    }
+
+    private void move(File file, File tieredFile) throws IOException, InterruptedException {
+        File tieredDirectory = tieredFile.getParentFile();
+        if (!tieredDirectory.isDirectory() && !tieredDirectory.mkdirs() && !tieredDirectory.isDirectory()) {
+            String message = String.format("failed creating directory {directory=%s}", tieredDirectory);
+            throw new IOException(message);
+        }
+        LOGGER.debug("moving file {file={}, tieredFile={}}", file, tieredFile);
+        if (Files.getFileStore(file.toPath()).equals(Files.getFileStore(tieredDirectory.toPath()))) {
+            Files.move(file.toPath(), tieredFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            transfer(file, tieredFile);
+        }
+    }
+
+    // Copies the file to a temporary one in the target directory, which is
+    // then atomically renamed, hence the target never contains partial files.
+    void transfer(File file, File tieredFile) throws IOException, InterruptedException {
+        File tmpFile = new File(tieredFile.getPath() + TMP_FILE_EXTENSION);
+        try {
+            copy(file, tmpFile);
+            if (!tmpFile.setLastModified(file.lastModified())) {
+                LOGGER.warn("failed setting last modification time {file={}}", tmpFile);
+            }
+            Files.move(tmpFile.toPath(), tieredFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | InterruptedException error) {
+            Files.deleteIfExists(tmpFile.toPath());
+            throw error;
+        }
+        Files.delete(file.toPath());
+    }
+
+    private void copy(File file, File targetFile) throws IOException, InterruptedException {
+        if (budget != null) {
+            budget.acquire();
+        }
+        try (FileChannel sourceChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             FileChannel targetChannel = FileChannel.open(
+                     targetFile.toPath(),
+                     StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING,
+                     StandardOpenOption.WRITE)) {
+            long size = sourceChannel.size();
+            long position = 0;
+            while (position < size) {
+                int chunkSize = (int) Math.min(TRANSFER_CHUNK_SIZE, size - position);
+                if (budget != null) {
+                    budget.pace(chunkSize);
+                }
+                long transferredByteCount = sourceChannel.transferTo(position, chunkSize, targetChannel);
+                if (transferredByteCount == 0 && Thread.interrupted()) {
+                    throw new InterruptedIOException();
+                }
+                position += transferredByteCount;
+            }
+            targetChannel.force(true);
+        } finally {
+            if (budget != null) {
+                budget.release();
+            }
+        }
+    }
+
+    @Override
+    protected Logger getLogger() {
+        return LOGGER;
+    }
+
+    @Override
+    public boolean equals(Object instance) {
+        if (this == instance) return true;
+        if (instance == null || getClass() != instance.getClass()) return false;
+        TieringJob that = (TieringJob) instance;
+        return maxAgeMillis == that.maxAgeMillis &&
+                maxHotTierSize == that.maxHotTierSize &&
+                periodMillis == that.periodMillis &&
+                Objects.equals(directory, that.directory) &&
+                Objects.equals(budget, that.budget);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(directory, maxAgeMillis, maxHotTierSize, budget, periodMillis);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "TieringJob{directory=%s, maxAgeMillis=%d, maxHotTierSize=%d, periodMillis=%d}",
+                directory, maxAgeMillis, maxHotTierSize, periodMillis);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private static final long DEFAULT_PERIOD_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+        private File directory;
+
+        private long maxAgeMillis = Long.MAX_VALUE;
+
+        private long maxHotTierSize = Long.MAX_VALUE;
+
+        private CompressionBudget budget;
+
+        private long periodMillis = DEFAULT_PERIOD_MILLIS;
+
+        private Builder() {
+            // Do nothing.
+        }
+
+        public Builder directory(File directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        public Builder directory(String directoryName) {
+            this.directory = new File(directoryName);
+            return this;
+        }
+
+        public Builder maxAgeMillis(long maxAgeMillis) {
+            this.maxAgeMillis = maxAgeMillis;
+            return this;
+        }
+
+        public Builder maxHotTierSize(long maxHotTierSize) {
+            this.maxHotTierSize = maxHotTierSize;
+            return this;
+        }
+
+        public Builder budget(CompressionBudget budget) {
+            this.budget = budget;
+            return this;
+        }
+
+        public Builder periodMillis(long periodMillis) {
+            this.periodMillis = periodMillis;
+            return this;
+        }
+
+        public TieringJob build() {
+            validate();
+            return new TieringJob(this);
+        }
+
+        private void validate() {
+            Objects.requireNonNull(directory, "directory");
+            if (maxAgeMillis < 0) {
+                String message = String.format("invalid age {maxAgeMillis=%d}", maxAgeMillis);
+                throw new IllegalArgumentException(message);
+            }
+            if (maxHotTierSize < 0) {
+                String message = String.format("invalid size {maxHotTierSize=%d}", maxHotTierSize);
+                throw new IllegalArgumentException(message);
+            }
+            if (maxAgeMillis == Long.MAX_VALUE && maxHotTierSize == Long.MAX_VALUE) {
+                throw new IllegalArgumentException("missing age or size limit");
+            }
+            if (periodMillis < 1) {
+                String message = String.format("invalid period {periodMillis=%d}", periodMillis);
+                throw new IllegalArgumentException(message);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,299 @@
+package com.vlkan.rfos.log4j2;
+
+import com.vlkan.rfos.EncryptionOutputStream;
+import com.vlkan.rfos.RotationConfig;
+import com.vlkan.rfos.policy.DailyRotationPolicy;
+import com.vlkan.rfos.policy.SizeBasedRotationPolicy;
+import com.vlkan.rfos.policy.WeeklyRotationPolicy;
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.Core;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.appender.AbstractOutputStreamAppender;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.Property;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+import org.apache.logging.log4j.core.config.plugins.validation.constraints.Required;
+
+import java.io.Serializable;
+
+// Appends events to a RotatingFileOutputStream, e.g.,
+//
+//     <RotatingFile name="FILE" fileName="/tmp/app.log" filePattern="/tmp/app-%d{yyyyMMdd-HHmmss.SSS}.log"
+//                   maxFileSize="104857600" daily="true" compress="true">
+//         <PatternLayout pattern="%d %p %c - %m%n"/>
+//     </RotatingFile>
+//
+@Plugin(
+        name = "RotatingFile",
+        category = Core.CATEGORY_NAME,
+        elementType = Appender.ELEMENT_TYPE,
+        printObject = true)
+public class RotatingFileAppender extends AbstractOutputStreamAppender<RotatingFileManager> {
+
+    private RotatingFileAppender(
+            String name,
+            Layout<? extends Serializable> layout,
+            Filter filter,
+            boolean ignoreExceptions,
+            boolean immediateFlush,
+            Property[] properties,
+            RotatingFileManager manager) {
+        super(name, layout, filter, ignoreExceptions, immediateFlush, properties, manager);
+    }
+
+    @PluginBuilderFactory
+    public static <B extends Builder<B>> B newBuilder() {
+        return new Builder<B>().asBuilder();
+    }
+
+    public static class Builder<B extends Builder<B>>
+            extends AbstractOutputStreamAppender.Builder<B>
+            implements org.apache.logging.log4j.core.util.Builder<RotatingFileAppender> {
+
+        @PluginBuilderAttribute
+        @Required
+        private String fileName;
+
+        @PluginBuilderAttribute
+        @Required
+        private String filePattern;
+
+        @PluginBuilderAttribute
+        private long maxFileSize;
+
+        @PluginBuilderAttribute
+        private long sizeCheckIntervalMillis = 1_000;
+
+        @PluginBuilderAttribute
+        private boolean daily;
+
+        @PluginBuilderAttribute
+        private boolean weekly;
+
+        @PluginBuilderAttribute
+        private boolean append = true;
+
+        @PluginBuilderAttribute
+        private boolean compress;
+
+        @PluginBuilderAttribute
+        private boolean checksum;
+
+        @PluginBuilderAttribute
+        private boolean lazy;
+
+        @PluginBuilderAttribute
+        private boolean lineAware;
+
+        @PluginBuilderAttribute
+        private boolean fsync;
+
+        @PluginBuilderAttribute
+        private String encryptionKey;
+
+        @PluginBuilderAttribute
+        private boolean multiProcess;
+
+        @PluginBuilderAttribute
+        private long inodeCheckIntervalMillis = 1_000;
+
+        @PluginBuilderAttribute
+        private boolean copyTruncate;
+
+        @PluginBuilderAttribute
+        private int stageThreadCount = 1;
+
+        @PluginBuilderAttribute
+        private int stageBacklogSize = 16;
+
+        @PluginBuilderAttribute
+        private boolean recovery;
+
+        @PluginBuilderAttribute
+        private int recoveryThreadCount = Runtime.getRuntime().availableProcessors();
+
+        @PluginBuilderAttribute
+        private int spillBufferSize;
+
+        @PluginBuilderAttribute
+        private String fallbackDirectory;
+
+        @PluginBuilderAttribute
+        private long degradedCheckIntervalMillis = 1_000;
+
+        public B withFileName(String fileName) {
+            this.fileName = fileName;
+            return asBuilder();
+        }
+
+        public B withFilePattern(String filePattern) {
+            this.filePattern = filePattern;
+            return asBuilder();
+        }
+
+        public B withMaxFileSize(long maxFileSize) {
+            this.maxFileSize = maxFileSize;
+            return asBuilder();
+        }
+
+        public B withSizeCheckIntervalMillis(long sizeCheckIntervalMillis) {
+            this.sizeCheckIntervalMillis = sizeCheckIntervalMillis;
+            return asBuilder();
+        }
+
+        public B withDaily(boolean daily) {
+            this.daily = daily;
+            return asBuilder();
+        }
+
+        public B withWeekly(boolean weekly) {
+            this.weekly = weekly;
+            return asBuilder();
+        }
+
+        public B withAppend(boolean append) {
+            this.append = append;
+            return asBuilder();
+        }
+
+        public B withCompress(boolean compress) {
+            this.compress = compress;
+            return asBuilder();
+        }
+
+        public B withChecksum(boolean checksum) {
+            this.checksum = checksum;
+            return asBuilder();
+        }
+
+        public B withLazy(boolean lazy) {
+            this.lazy = lazy;
+            return asBuilder();
+        }
+
+        public B withLineAware(boolean lineAware) {
+            this.lineAware = lineAware;
+            return asBuilder();
+        }
+
+        public B withFsync(boolean fsync) {
+            this.fsync = fsync;
+            return asBuilder();
+        }
+
+        // Hexadecimal AES key, see EncryptionOutputStream#parseKey().
+        public B withEncryptionKey(String encryptionKey) {
+            this.encryptionKey = encryptionKey;
+            return asBuilder();
+        }
+
+        public B withMultiProcess(boolean multiProcess) {
+            this.multiProcess = multiProcess;
+            return asBuilder();
+        }
+
+        public B withInodeCheckIntervalMillis(long inodeCheckIntervalMillis) {
+            this.inodeCheckIntervalMillis = inodeCheckIntervalMillis;
+            return asBuilder();
+        }
+
+        public B withCopyTruncate(boolean copyTruncate) {
+            this.copyTruncate = copyTruncate;
+            return asBuilder();
+        }
+
+        public B withStageThreadCount(int stageThreadCount) {
+            this.stageThreadCount = stageThreadCount;
+            return asBuilder();
+        }
+
+        public B withStageBacklogSize(int stageBacklogSize) {
+            this.stageBacklogSize = stageBacklogSize;
+            return asBuilder();
+        }
+
+        public B withRecovery(boolean recovery) {
+            this.recovery = recovery;
+            return asBuilder();
+        }
+
+        public B withRecoveryThreadCount(int recoveryThreadCount) {
+            this.recoveryThreadCount = recoveryThreadCount;
+            return asBuilder();
+        }
+
+        public B withSpillBufferSize(int spillBufferSize) {
+            this.spillBufferSize = spillBufferSize;
+            return asBuilder();
+        }
+
+        public B withFallbackDirectory(String fallbackDirectory) {
+            this.fallbackDirectory = fallbackDirectory;
+            return asBuilder();
+        }
+
+        public B withDegradedCheckIntervalMillis(long degradedCheckIntervalMillis) {
+            this.degradedCheckIntervalMillis = degradedCheckIntervalMillis;
+            return asBuilder();
+        }
+
+        @Override
+        public RotatingFileAppender build() {
+            Layout<? extends Serializable> layout = getOrCreateLayout();
+            Configuration configuration = getConfiguration();
+            LoggerContext loggerContext = configuration != null ? configuration.getLoggerContext() : null;
+            RotatingFileManager manager = RotatingFileManager.getManager(
+                    loggerContext, fileName, createConfigBuilder(), layout, getBufferSize());
+            return new RotatingFileAppender(
+                    getName(), layout, getFilter(), isIgnoreExceptions(), isImmediateFlush(),
+                    getPropertyArray(), manager);
+        }
+
+        // The config gets built by the manager factory only if there is no
+        // manager of the file yet (e.g., on reconfiguration), since building
+        // it creates the timer and the stage executor.
+        private RotationConfig.Builder createConfigBuilder() {
+            RotationConfig.Builder builder = RotationConfig
+                    .builder()
+                    .file(fileName)
+                    .filePattern(filePattern)
+                    .append(append)
+                    .compress(compress)
+                    .checksum(checksum)
+                    .lazy(lazy)
+                    .lineAware(lineAware)
+                    .fsync(fsync)
+                    .multiProcess(multiProcess)
+                    .inodeCheckIntervalMillis(inodeCheckIntervalMillis)
+                    .copyTruncate(copyTruncate)
+                    .stageThreadCount(stageThreadCount)
+                    .stageBacklogSize(stageBacklogSize)
+                    .recovery(recovery)
+                    .recoveryThreadCount(recoveryThreadCount)
+                    .spillBufferSize(spillBufferSize)
+                    .degradedCheckIntervalMillis(degradedCheckIntervalMillis);
+            if (encryptionKey != null) {
+                builder.encryptionKey(EncryptionOutputStream.parseKey(encryptionKey));
+            }
+            if (fallbackDirectory != null) {
+                builder.fallbackDirectory(fallbackDirectory);
+            }
+            if (maxFileSize > 0) {
+                builder.policy(new SizeBasedRotationPolicy(sizeCheckIntervalMillis, maxFileSize));
+            }
+            if (daily) {
+                builder.policy(DailyRotationPolicy.getInstance());
+            }
+            if (weekly) {
+                builder.policy(WeeklyRotationPolicy.getInstance());
+            }
+            return builder;
+        }
+
+    }
+
+}
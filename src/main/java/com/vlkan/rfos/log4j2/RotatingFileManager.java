@@ -0,0 +1,89 @@
+package com.vlkan.rfos.log4j2;
+
+import com.vlkan.rfos.RotatingFileOutputStream;
+import com.vlkan.rfos.RotationConfig;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.appender.ManagerFactory;
+import org.apache.logging.log4j.core.appender.OutputStreamManager;
+
+import java.io.File;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+// Layouts encode events into the reused byte buffer of the manager, which
+// gets written to the stream as a whole, hence the steady-state path does not
+// allocate.
+public class RotatingFileManager extends OutputStreamManager {
+
+    private static final class FactoryData {
+
+        private final LoggerContext loggerContext;
+
+        private final RotationConfig.Builder configBuilder;
+
+        private final Layout<? extends Serializable> layout;
+
+        private final int bufferSize;
+
+        private FactoryData(
+                LoggerContext loggerContext,
+                RotationConfig.Builder configBuilder,
+                Layout<? extends Serializable> layout,
+                int bufferSize) {
+            this.loggerContext = loggerContext;
+            this.configBuilder = configBuilder;
+            this.layout = layout;
+            this.bufferSize = bufferSize;
+        }
+
+    }
+
+    private static final ManagerFactory<RotatingFileManager, FactoryData> FACTORY =
+            new ManagerFactory<RotatingFileManager, FactoryData>() {
+                @Override
+                public RotatingFileManager createManager(String name, FactoryData data) {
+                    RotatingFileOutputStream stream = new RotatingFileOutputStream(data.configBuilder.build());
+                    return new RotatingFileManager(
+                            data.loggerContext, stream, name, data.layout, ByteBuffer.allocate(data.bufferSize));
+                }
+            };
+
+    private final RotatingFileOutputStream stream;
+
+    private RotatingFileManager(
+            LoggerContext loggerContext,
+            RotatingFileOutputStream stream,
+            String name,
+            Layout<? extends Serializable> layout,
+            ByteBuffer byteBuffer) {
+        super(loggerContext, stream, name, false, layout, true, byteBuffer);
+        this.stream = stream;
+    }
+
+    // Managers are shared per file, hence the config is only built if there
+    // is no manager of the file yet.
+    static RotatingFileManager getManager(
+            LoggerContext loggerContext,
+            String fileName,
+            RotationConfig.Builder configBuilder,
+            Layout<? extends Serializable> layout,
+            int bufferSize) {
+        String name = new File(fileName).getAbsolutePath();
+        FactoryData data = new FactoryData(loggerContext, configBuilder, layout, bufferSize);
+        return (RotatingFileManager) getManager(name, data, FACTORY);
+    }
+
+    // The stream does not buffer, hence a flush is only needed to fsync.
+    @Override
+    protected synchronized void flushDestination() {
+        if (stream.getConfig().isFsync()) {
+            super.flushDestination();
+        }
+    }
+
+    public RotatingFileOutputStream getStream() {
+        return stream;
+    }
+
+}
@@ -0,0 +1,465 @@
+package com.vlkan.rfos.logback;
+
+import ch.qos.logback.core.Layout;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.encoder.Encoder;
+import ch.qos.logback.core.encoder.LayoutWrappingEncoder;
+import com.vlkan.rfos.EncryptionOutputStream;
+import com.vlkan.rfos.RotatingFileOutputStream;
+import com.vlkan.rfos.RotationConfig;
+import com.vlkan.rfos.policy.DailyRotationPolicy;
+import com.vlkan.rfos.policy.SizeBasedRotationPolicy;
+import com.vlkan.rfos.policy.WeeklyRotationPolicy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+// Appends events to a RotatingFileOutputStream, e.g.,
+//
+//     <appender name="FILE" class="com.vlkan.rfos.logback.RotatingFileAppender">
+//         <file>/tmp/app.log</file>
+//         <filePattern>/tmp/app-%d{yyyyMMdd-HHmmss.SSS}.log</filePattern>
+//         <maxFileSize>104857600</maxFileSize>
+//         <daily>true</daily>
+//         <encoder>
+//             <pattern>%d %p %c - %m%n</pattern>
+//         </encoder>
+//     </appender>
+//
+// The stream is thread-safe, hence the appender does not lock on its own.
+public class RotatingFileAppender<E> extends UnsynchronizedAppenderBase<E> {
+
+    // Buffers grown beyond this size (e.g., due to a huge stack trace) are not retained.
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    private static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    // Per-thread buffers, which the layout output gets encoded into, so that,
+    // unlike Encoder#encode(), no byte array is allocated per event.
+    private static final class Encoding {
+
+        private final CharsetEncoder charsetEncoder;
+
+        private CharBuffer charBuffer;
+
+        private ByteBuffer byteBuffer;
+
+        private Encoding(Charset charset) {
+            this.charsetEncoder = charset
+                    .newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            this.charBuffer = CharBuffer.allocate(DEFAULT_BUFFER_SIZE);
+            this.byteBuffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+        }
+
+        private void encode(String text) {
+            int length = text.length();
+            if (charBuffer.capacity() < length) {
+                charBuffer = CharBuffer.allocate(length);
+            }
+            text.getChars(0, length, charBuffer.array(), 0);
+            charBuffer.limit(length).position(0);
+            byteBuffer.clear();
+            charsetEncoder.reset();
+            while (charsetEncoder.encode(charBuffer, byteBuffer, true).isOverflow()) {
+                grow();
+            }
+            while (charsetEncoder.flush(byteBuffer).isOverflow()) {
+                grow();
+            }
+        }
+
+        private void grow() {
+            ByteBuffer grownByteBuffer = ByteBuffer.allocate(2 * byteBuffer.capacity());
+            byteBuffer.flip();
+            grownByteBuffer.put(byteBuffer);
+            byteBuffer = grownByteBuffer;
+        }
+
+        private void trim() {
+            if (charBuffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+                charBuffer = CharBuffer.allocate(DEFAULT_BUFFER_SIZE);
+            }
+            if (byteBuffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+                byteBuffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+            }
+        }
+
+    }
+
+    private final ThreadLocal<Encoding> encodingRef = new ThreadLocal<Encoding>() {
+        @Override
+        protected Encoding initialValue() {
+            return new Encoding(charset);
+        }
+    };
+
+    private Encoder<E> encoder;
+
+    private Layout<E> layout;
+
+    private Charset charset;
+
+    private String file;
+
+    private String filePattern;
+
+    private long maxFileSize;
+
+    private long sizeCheckIntervalMillis = 1_000;
+
+    private boolean daily;
+
+    private boolean weekly;
+
+    private boolean append = true;
+
+    private boolean compress;
+
+    private boolean checksum;
+
+    private boolean lazy;
+
+    private boolean lineAware;
+
+    private boolean fsync;
+
+    private String encryptionKey;
+
+    private boolean multiProcess;
+
+    private long inodeCheckIntervalMillis = 1_000;
+
+    private boolean copyTruncate;
+
+    private int stageThreadCount = 1;
+
+    private int stageBacklogSize = 16;
+
+    private boolean recovery;
+
+    private int recoveryThreadCount = Runtime.getRuntime().availableProcessors();
+
+    private int spillBufferSize;
+
+    private String fallbackDirectory;
+
+    private long degradedCheckIntervalMillis = 1_000;
+
+    private boolean immediateFlush = true;
+
+    private volatile RotatingFileOutputStream stream;
+
+    public Encoder<E> getEncoder() {
+        return encoder;
+    }
+
+    public void setEncoder(Encoder<E> encoder) {
+        this.encoder = encoder;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public void setFile(String file) {
+        this.file = file;
+    }
+
+    public String getFilePattern() {
+        return filePattern;
+    }
+
+    public void setFilePattern(String filePattern) {
+        this.filePattern = filePattern;
+    }
+
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    public long getSizeCheckIntervalMillis() {
+        return sizeCheckIntervalMillis;
+    }
+
+    public void setSizeCheckIntervalMillis(long sizeCheckIntervalMillis) {
+        this.sizeCheckIntervalMillis = sizeCheckIntervalMillis;
+    }
+
+    public boolean isDaily() {
+        return daily;
+    }
+
+    public void setDaily(boolean daily) {
+        this.daily = daily;
+    }
+
+    public boolean isWeekly() {
+        return weekly;
+    }
+
+    public void setWeekly(boolean weekly) {
+        this.weekly = weekly;
+    }
+
+    public boolean isAppend() {
+        return append;
+    }
+
+    public void setAppend(boolean append) {
+        this.append = append;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    public boolean isChecksum() {
+        return checksum;
+    }
+
+    public void setChecksum(boolean checksum) {
+        this.checksum = checksum;
+    }
+
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    public boolean isLineAware() {
+        return lineAware;
+    }
+
+    public void setLineAware(boolean lineAware) {
+        this.lineAware = lineAware;
+    }
+
+    public boolean isFsync() {
+        return fsync;
+    }
+
+    public void setFsync(boolean fsync) {
+        this.fsync = fsync;
+    }
+
+    public String getEncryptionKey() {
+        return encryptionKey;
+    }
+
+    // Hexadecimal AES key, see EncryptionOutputStream#parseKey().
+    public void setEncryptionKey(String encryptionKey) {
+        this.encryptionKey = encryptionKey;
+    }
+
+    public boolean isMultiProcess() {
+        return multiProcess;
+    }
+
+    public void setMultiProcess(boolean multiProcess) {
+        this.multiProcess = multiProcess;
+    }
+
+    public long getInodeCheckIntervalMillis() {
+        return inodeCheckIntervalMillis;
+    }
+
+    public void setInodeCheckIntervalMillis(long inodeCheckIntervalMillis) {
+        this.inodeCheckIntervalMillis = inodeCheckIntervalMillis;
+    }
+
+    public boolean isCopyTruncate() {
+        return copyTruncate;
+    }
+
+    public void setCopyTruncate(boolean copyTruncate) {
+        this.copyTruncate = copyTruncate;
+    }
+
+    public int getStageThreadCount() {
+        return stageThreadCount;
+    }
+
+    public void setStageThreadCount(int stageThreadCount) {
+        this.stageThreadCount = stageThreadCount;
+    }
+
+    public int getStageBacklogSize() {
+        return stageBacklogSize;
+    }
+
+    public void setStageBacklogSize(int stageBacklogSize) {
+        this.stageBacklogSize = stageBacklogSize;
+    }
+
+    public boolean isRecovery() {
+        return recovery;
+    }
+
+    public void setRecovery(boolean recovery) {
+        this.recovery = recovery;
+    }
+
+    public int getRecoveryThreadCount() {
+        return recoveryThreadCount;
+    }
+
+    public void setRecoveryThreadCount(int recoveryThreadCount) {
+        this.recoveryThreadCount = recoveryThreadCount;
+    }
+
+    public int getSpillBufferSize() {
+        return spillBufferSize;
+    }
+
+    public void setSpillBufferSize(int spillBufferSize) {
+        this.spillBufferSize = spillBufferSize;
+    }
+
+    public String getFallbackDirectory() {
+        return fallbackDirectory;
+    }
+
+    public void setFallbackDirectory(String fallbackDirectory) {
+        this.fallbackDirectory = fallbackDirectory;
+    }
+
+    public long getDegradedCheckIntervalMillis() {
+        return degradedCheckIntervalMillis;
+    }
+
+    public void setDegradedCheckIntervalMillis(long degradedCheckIntervalMillis) {
+        this.degradedCheckIntervalMillis = degradedCheckIntervalMillis;
+    }
+
+    public boolean isImmediateFlush() {
+        return immediateFlush;
+    }
+
+    public void setImmediateFlush(boolean immediateFlush) {
+        this.immediateFlush = immediateFlush;
+    }
+
+    public RotatingFileOutputStream getStream() {
+        return stream;
+    }
+
+    @Override
+    public void start() {
+        if (encoder == null) {
+            addError(String.format("missing encoder {appender=%s}", name));
+            return;
+        }
+        if (encoder instanceof LayoutWrappingEncoder) {
+            LayoutWrappingEncoder<E> layoutWrappingEncoder = (LayoutWrappingEncoder<E>) encoder;
+            layout = layoutWrappingEncoder.getLayout();
+            charset = layoutWrappingEncoder.getCharset() != null
+                    ? layoutWrappingEncoder.getCharset()
+                    : Charset.defaultCharset();
+        }
+        try {
+            stream = new RotatingFileOutputStream(createConfig());
+            write(encoder.headerBytes());
+        } catch (Exception error) {
+            addError(String.format("failed opening stream {appender=%s, file=%s}", name, file), error);
+            return;
+        }
+        super.start();
+    }
+
+    private RotationConfig createConfig() {
+        RotationConfig.Builder builder = RotationConfig
+                .builder()
+                .file(file)
+                .filePattern(filePattern)
+                .append(append)
+                .compress(compress)
+                .checksum(checksum)
+                .lazy(lazy)
+                .lineAware(lineAware)
+                .fsync(fsync)
+                .multiProcess(multiProcess)
+                .inodeCheckIntervalMillis(inodeCheckIntervalMillis)
+                .copyTruncate(copyTruncate)
+                .stageThreadCount(stageThreadCount)
+                .stageBacklogSize(stageBacklogSize)
+                .recovery(recovery)
+                .recoveryThreadCount(recoveryThreadCount)
+                .spillBufferSize(spillBufferSize)
+                .degradedCheckIntervalMillis(degradedCheckIntervalMillis);
+        if (encryptionKey != null) {
+            builder.encryptionKey(EncryptionOutputStream.parseKey(encryptionKey));
+        }
+        if (fallbackDirectory != null) {
+            builder.fallbackDirectory(fallbackDirectory);
+        }
+        if (maxFileSize > 0) {
+            builder.policy(new SizeBasedRotationPolicy(sizeCheckIntervalMillis, maxFileSize));
+        }
+        if (daily) {
+            builder.policy(DailyRotationPolicy.getInstance());
+        }
+        if (weekly) {
+            builder.policy(WeeklyRotationPolicy.getInstance());
+        }
+        return builder.build();
+    }
+
+    @Override
+    protected void append(E event) {
+        try {
+            if (layout != null) {
+                Encoding encoding = encodingRef.get();
+                encoding.encode(layout.doLayout(event));
+                stream.write(encoding.byteBuffer.array(), 0, encoding.byteBuffer.position());
+                encoding.trim();
+            } else {
+                write(encoder.encode(event));
+            }
+            // The stream does not buffer, hence a flush is only needed to fsync.
+            if (immediateFlush && fsync) {
+                stream.flush();
+            }
+        } catch (IOException error) {
+            started = false;
+            addError(String.format("failed writing event {appender=%s}", name), error);
+        }
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        if (bytes != null && bytes.length > 0) {
+            stream.write(bytes);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (!isStarted()) {
+            return;
+        }
+        super.stop();
+        try {
+            write(encoder.footerBytes());
+            stream.close();
+        } catch (IOException error) {
+            addError(String.format("failed closing stream {appender=%s}", name), error);
+        }
+    }
+
+}
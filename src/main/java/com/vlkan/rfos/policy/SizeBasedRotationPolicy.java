@@ -46,7 +46,7 @@ public class SizeBasedRotationPolicy implements RotationPolicy {
     @Override
     public void start(Rotatable rotatable) {
         TimerTask timerTask = createTimerTask(rotatable);
-        rotatable.getConfig().getTimer().schedule(timerTask, 0, checkIntervalMillis);
+        rotatable.getConfig().schedule(timerTask, 0, checkIntervalMillis);
     }
 
     private TimerTask createTimerTask(final Rotatable rotatable) {
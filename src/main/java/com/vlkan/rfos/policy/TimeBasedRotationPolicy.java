@@ -15,7 +15,7 @@ public abstract class TimeBasedRotationPolicy implements RotationPolicy {
         RotationConfig config = rotatable.getConfig();
         LocalDateTime triggerDateTime = getTriggerDateTime(config.getClock());
         TimerTask timerTask = createTimerTask(rotatable, triggerDateTime);
-        config.getTimer().schedule(timerTask, triggerDateTime.toDate());
+        config.schedule(timerTask, triggerDateTime.toDate());
     }
 
     private TimerTask createTimerTask(final Rotatable rotatable, final LocalDateTime triggerDateTime) {
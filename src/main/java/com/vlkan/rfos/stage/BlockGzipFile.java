@@ -0,0 +1,209 @@
+package com.vlkan.rfos.stage;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Reads arbitrary ranges of a file compressed by BlockGzipRotationStage,
+// decompressing only the blocks covering the range via the ".gzi" index.
+public class BlockGzipFile implements Closeable {
+
+    private final File file;
+
+    private final FileChannel channel;
+
+    private final Inflater inflater;
+
+    // Compressed and uncompressed offsets of the blocks, starting with the first.
+    private final long[] compressedOffsets;
+
+    private final long[] uncompressedOffsets;
+
+    private final long uncompressedSize;
+
+    private final ByteBuffer blockBuffer;
+
+    private final byte[] decompressedBlock;
+
+    // Index of the block in the decompressed block buffer, if any.
+    private int decompressedBlockIndex;
+
+    private int decompressedBlockLength;
+
+    public BlockGzipFile(File file) throws IOException {
+        this.file = file;
+        this.inflater = new Inflater(true);
+        this.blockBuffer = ByteBuffer.allocate(BlockGzipRotationStage.MAX_BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        this.decompressedBlock = new byte[BlockGzipRotationStage.MAX_BLOCK_SIZE];
+        this.decompressedBlockIndex = -1;
+        File indexFile = BlockGzipRotationStage.getIndexFile(file);
+        try (DataInputStream indexStream = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)))) {
+            long entryCount = Long.reverseBytes(indexStream.readLong());
+            if (entryCount < 0 || entryCount >= Integer.MAX_VALUE) {
+                String message = String.format("invalid index {indexFile=%s, entryCount=%d}", indexFile, entryCount);
+                throw new IOException(message);
+            }
+            this.compressedOffsets = new long[(int) entryCount + 1];
+            this.uncompressedOffsets = new long[(int) entryCount + 1];
+            for (int blockIndex = 1; blockIndex <= entryCount; blockIndex++) {
+                compressedOffsets[blockIndex] = Long.reverseBytes(indexStream.readLong());
+                uncompressedOffsets[blockIndex] = Long.reverseBytes(indexStream.readLong());
+            }
+        }
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            int lastBlockIndex = compressedOffsets.length - 1;
+            readBlock(lastBlockIndex);
+            this.uncompressedSize = uncompressedOffsets[lastBlockIndex] + readBlockSize();
+        } catch (IOException error) {
+            close();
+            throw error;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getBlockCount() {
+        return compressedOffsets.length;
+    }
+
+    public long getUncompressedSize() {
+        return uncompressedSize;
+    }
+
+    // Reads up to the given length of bytes at the given uncompressed
+    // position, without crossing a block boundary. Returns -1 at the end.
+    public synchronized int read(long position, byte[] buffer, int offset, int length) throws IOException {
+        if (position < 0) {
+            String message = String.format("invalid position {position=%d}", position);
+            throw new IllegalArgumentException(message);
+        }
+        if (position >= uncompressedSize) {
+            return -1;
+        }
+        int blockIndex = findBlock(position);
+        if (blockIndex != decompressedBlockIndex) {
+            decompressBlock(blockIndex);
+        }
+        int blockOffset = (int) (position - uncompressedOffsets[blockIndex]);
+        int readLength = Math.min(length, decompressedBlockLength - blockOffset);
+        System.arraycopy(decompressedBlock, blockOffset, buffer, offset, readLength);
+        return readLength;
+    }
+
+    // Reads the given length of bytes at the given uncompressed position.
+    public void readFully(long position, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int readLength = read(position, buffer, offset, length);
+            if (readLength < 0) {
+                String message = String.format("premature end of file {file=%s, position=%d}", file, position);
+                throw new EOFException(message);
+            }
+            position += readLength;
+            offset += readLength;
+            length -= readLength;
+        }
+    }
+
+    private int findBlock(long position) {
+        int index = Arrays.binarySearch(uncompressedOffsets, position);
+        if (index < 0) {
+            return -index - 2;
+        }
+        // Skip empty blocks sharing the same offset.
+        while (index + 1 < uncompressedOffsets.length && uncompressedOffsets[index + 1] == position) {
+            index++;
+        }
+        return index;
+    }
+
+    private void decompressBlock(int blockIndex) throws IOException {
+        int blockSize = readBlock(blockIndex);
+        int dataLength = blockSize - BlockGzipRotationStage.HEADER_SIZE - BlockGzipRotationStage.FOOTER_SIZE;
+        int expectedLength = readBlockSize();
+        inflater.reset();
+        inflater.setInput(blockBuffer.array(), BlockGzipRotationStage.HEADER_SIZE, dataLength);
+        int decompressedLength = 0;
+        try {
+            while (!inflater.finished() && decompressedLength < expectedLength) {
+                int inflatedLength = inflater.inflate(
+                        decompressedBlock, decompressedLength, expectedLength - decompressedLength);
+                if (inflatedLength == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                decompressedLength += inflatedLength;
+            }
+        } catch (DataFormatException error) {
+            throw new IOException(createBlockErrorMessage("corrupt", blockIndex), error);
+        }
+        if (decompressedLength != expectedLength) {
+            throw new IOException(createBlockErrorMessage("truncated", blockIndex));
+        }
+        decompressedBlockIndex = blockIndex;
+        decompressedBlockLength = decompressedLength;
+    }
+
+    // Reads the block into the block buffer, and returns its size.
+    private int readBlock(int blockIndex) throws IOException {
+        long blockOffset = compressedOffsets[blockIndex];
+        blockBuffer.clear().limit(BlockGzipRotationStage.HEADER_SIZE);
+        readBlockBuffer(blockIndex, blockOffset);
+        if (blockBuffer.get(0) != 31 ||
+                blockBuffer.get(1) != (byte) 139 ||
+                blockBuffer.get(2) != 8 ||
+                (blockBuffer.get(3) & 4) == 0 ||
+                blockBuffer.get(12) != 'B' ||
+                blockBuffer.get(13) != 'C') {
+            throw new IOException(createBlockErrorMessage("invalid header of", blockIndex));
+        }
+        int blockSize = (blockBuffer.getShort(16) & 0xffff) + 1;
+        if (blockSize < BlockGzipRotationStage.HEADER_SIZE + BlockGzipRotationStage.FOOTER_SIZE) {
+            throw new IOException(createBlockErrorMessage("invalid size of", blockIndex));
+        }
+        blockBuffer.limit(blockSize);
+        readBlockBuffer(blockIndex, blockOffset + BlockGzipRotationStage.HEADER_SIZE);
+        return blockSize;
+    }
+
+    private void readBlockBuffer(int blockIndex, long position) throws IOException {
+        while (blockBuffer.hasRemaining()) {
+            int readLength = channel.read(blockBuffer, position);
+            if (readLength < 0) {
+                throw new EOFException(createBlockErrorMessage("truncated", blockIndex));
+            }
+            position += readLength;
+        }
+    }
+
+    // Reads the uncompressed size from the footer of the block in the block buffer.
+    private int readBlockSize() {
+        return blockBuffer.getInt(blockBuffer.limit() - 4);
+    }
+
+    private String createBlockErrorMessage(String prefix, int blockIndex) {
+        return String.format(
+                "%s block {file=%s, blockIndex=%d, offset=%d}",
+                prefix, file, blockIndex, compressedOffsets[blockIndex]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        channel.close();
+    }
+
+}
@@ -0,0 +1,267 @@
+package com.vlkan.rfos.stage;
+
+import com.vlkan.rfos.event.RotationEvents;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Compresses the rotated file into independently compressed gzip members of
+// at most 64KiB each, i.e., the BGZF format of SAMtools. Every member header
+// carries the compressed size of the member in a "BC" extra field. Gzip
+// members concatenate into a valid gzip file, hence the output can be read
+// by gunzip as is. A ".gzi" sidecar indexes the compressed and the
+// uncompressed offsets of the members, which BlockGzipFile uses to read any
+// range by decompressing only the members covering it.
+public class BlockGzipRotationStage implements RotationStage {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlockGzipRotationStage.class);
+
+    private static final BlockGzipRotationStage INSTANCE = new BlockGzipRotationStage();
+
+    // Leaves room for the deflate overhead of incompressible input.
+    static final int MAX_INPUT_BLOCK_SIZE = 0xff00;
+
+    static final int MAX_BLOCK_SIZE = 0x10000;
+
+    static final int HEADER_SIZE = 18;
+
+    static final int FOOTER_SIZE = 8;
+
+    private BlockGzipRotationStage() {
+        // Do nothing.
+    }
+
+    public static BlockGzipRotationStage getInstance() {
+        return INSTANCE;
+    }
+
+    public static File getIndexFile(File compressedFile) {
+        String indexFileName = String.format("%s.gzi", compressedFile.getAbsolutePath());
+        return new File(indexFileName);
+    }
+
+    @Override
+    public List<File> getOutputFiles(File file) {
+        File compressedFile = GzipRotationStage.getCompressedFile(file);
+        return Arrays.asList(compressedFile, getIndexFile(compressedFile));
+    }
+
+    @Override
+    public RotationStageExecution start(final RotationStageContext context) throws IOException {
+        final File sourceFile = context.getFile();
+        final File compressedFile = GzipRotationStage.getCompressedFile(sourceFile);
+        final File indexFile = getIndexFile(compressedFile);
+        LOGGER.debug("compressing {sourceFile={}, compressedFile={}}", sourceFile, compressedFile);
+        final BlockWriter writer = new BlockWriter(new FileOutputStream(compressedFile));
+        final RotationEvents events = RotationEvents.getInstance();
+        final Object event = events.beginCompression();
+        return new RotationStageExecution() {
+
+            @Override
+            public boolean isReading() {
+                return true;
+            }
+
+            @Override
+            public void update(byte[] buffer, int offset, int length) throws IOException {
+                writer.write(buffer, offset, length);
+            }
+
+            @Override
+            public void finish() throws IOException {
+                writer.close();
+                writer.writeIndex(indexFile);
+                if (event != null) {
+                    events.commitCompression(
+                            event, sourceFile, compressedFile, writer.uncompressedOffset, compressedFile.length());
+                }
+                LOGGER.debug("deleting old file {sourceFile={}}", sourceFile);
+                boolean deleted = sourceFile.delete();
+                if (!deleted) {
+                    String message = String.format("failed deleting old file {sourceFile=%s}", sourceFile);
+                    throw new IOException(message);
+                }
+                context.setFile(compressedFile);
+                context.getSidecarFiles().add(indexFile);
+            }
+
+            @Override
+            @SuppressWarnings("ResultOfMethodCallIgnored")
+            public void abort() {
+                try {
+                    writer.close();
+                } catch (IOException error) {
+                    LOGGER.warn("failed closing compressed file {compressedFile={}}", compressedFile, error);
+                }
+                compressedFile.delete();
+                indexFile.delete();
+            }
+
+        };
+    }
+
+    private static final class BlockWriter {
+
+        private final OutputStream outputStream;
+
+        private final Deflater deflater;
+
+        private final CRC32 crc;
+
+        private final byte[] inputBuffer;
+
+        private final byte[] outputBuffer;
+
+        // Compressed and uncompressed offsets of every block but the first.
+        private long[] indexEntries;
+
+        private int indexEntryCount;
+
+        private int inputLength;
+
+        private long compressedOffset;
+
+        private long uncompressedOffset;
+
+        private boolean closed;
+
+        private BlockWriter(OutputStream outputStream) {
+            this.outputStream = new BufferedOutputStream(outputStream, MAX_BLOCK_SIZE);
+            this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            this.crc = new CRC32();
+            this.inputBuffer = new byte[MAX_INPUT_BLOCK_SIZE];
+            this.outputBuffer = new byte[MAX_BLOCK_SIZE];
+            this.indexEntries = new long[32];
+        }
+
+        private void write(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                int copiedLength = Math.min(length, inputBuffer.length - inputLength);
+                System.arraycopy(buffer, offset, inputBuffer, inputLength, copiedLength);
+                inputLength += copiedLength;
+                offset += copiedLength;
+                length -= copiedLength;
+                if (inputLength == inputBuffer.length) {
+                    writeBlock();
+                }
+            }
+        }
+
+        private void writeBlock() throws IOException {
+
+            // Index every block but the first.
+            if (compressedOffset > 0) {
+                if (indexEntryCount * 2 == indexEntries.length) {
+                    long[] grownIndexEntries = new long[2 * indexEntries.length];
+                    System.arraycopy(indexEntries, 0, grownIndexEntries, 0, indexEntries.length);
+                    indexEntries = grownIndexEntries;
+                }
+                indexEntries[2 * indexEntryCount] = compressedOffset;
+                indexEntries[2 * indexEntryCount + 1] = uncompressedOffset;
+                indexEntryCount++;
+            }
+
+            // Compress the block, and store it as is, if it doesn't fit.
+            int dataLength = deflate(Deflater.DEFAULT_COMPRESSION);
+            if (dataLength < 0) {
+                dataLength = deflate(Deflater.NO_COMPRESSION);
+            }
+            crc.reset();
+            crc.update(inputBuffer, 0, inputLength);
+
+            // Write the block.
+            int blockSize = HEADER_SIZE + dataLength + FOOTER_SIZE;
+            writeHeader(blockSize);
+            outputStream.write(outputBuffer, HEADER_SIZE, dataLength);
+            writeInt((int) crc.getValue());
+            writeInt(inputLength);
+            compressedOffset += blockSize;
+            uncompressedOffset += inputLength;
+            inputLength = 0;
+
+        }
+
+        // Returns the compressed length, or -1, if the block gets too large.
+        private int deflate(int level) {
+            deflater.reset();
+            deflater.setLevel(level);
+            deflater.setInput(inputBuffer, 0, inputLength);
+            deflater.finish();
+            int maxDataLength = MAX_BLOCK_SIZE - HEADER_SIZE - FOOTER_SIZE;
+            int dataLength = 0;
+            while (!deflater.finished() && dataLength < maxDataLength) {
+                dataLength += deflater.deflate(outputBuffer, HEADER_SIZE + dataLength, maxDataLength - dataLength);
+            }
+            return deflater.finished() ? dataLength : -1;
+        }
+
+        private void writeHeader(int blockSize) throws IOException {
+            outputStream.write(new byte[]{
+                    31, (byte) 139,     // magic
+                    8,                  // deflate
+                    4,                  // FEXTRA
+                    0, 0, 0, 0,         // modification time
+                    0,                  // extra flags
+                    (byte) 255,         // unknown OS
+                    6, 0,               // extra length
+                    'B', 'C', 2, 0,     // block size subfield
+                    (byte) (blockSize - 1), (byte) ((blockSize - 1) >>> 8)});
+        }
+
+        private void writeInt(int value) throws IOException {
+            outputStream.write(value);
+            outputStream.write(value >>> 8);
+            outputStream.write(value >>> 16);
+            outputStream.write(value >>> 24);
+        }
+
+        // Flushes the last block, and terminates the file with an empty block.
+        private void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (inputLength > 0) {
+                    writeBlock();
+                }
+                // The empty block is not indexed.
+                int dataIndexEntryCount = indexEntryCount;
+                writeBlock();
+                indexEntryCount = dataIndexEntryCount;
+            } finally {
+                deflater.end();
+                outputStream.close();
+            }
+        }
+
+        // Writes the index in the ".gzi" format of SAMtools, i.e., the entry
+        // count followed by the offset pairs, all as little-endian 64-bit integers.
+        private void writeIndex(File indexFile) throws IOException {
+            try (DataOutputStream indexStream = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(indexFile)))) {
+                indexStream.writeLong(Long.reverseBytes(indexEntryCount));
+                for (int entryIndex = 0; entryIndex < 2 * indexEntryCount; entryIndex++) {
+                    indexStream.writeLong(Long.reverseBytes(indexEntries[entryIndex]));
+                }
+            }
+        }
+
+    }
+
+    @Override
+    public String toString() {
+        return "BlockGzipRotationStage";
+    }
+
+}
@@ -0,0 +1,82 @@
+package com.vlkan.rfos.stage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+public class ChecksumRotationStage implements RotationStage {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChecksumRotationStage.class);
+
+    private static final ChecksumRotationStage INSTANCE = new ChecksumRotationStage();
+
+    private ChecksumRotationStage() {
+        // Do nothing.
+    }
+
+    public static ChecksumRotationStage getInstance() {
+        return INSTANCE;
+    }
+
+    public static File getChecksumFile(File file) {
+        String checksumFileName = String.format("%s.crc32", file.getAbsolutePath());
+        return new File(checksumFileName);
+    }
+
+    @Override
+    public List<File> getOutputFiles(File file) {
+        // The checksum is written in whole on finish.
+        return Collections.emptyList();
+    }
+
+    @Override
+    public RotationStageExecution start(final RotationStageContext context) {
+        final CRC32 checksum = new CRC32();
+        return new RotationStageExecution() {
+
+            @Override
+            public boolean isReading() {
+                return true;
+            }
+
+            @Override
+            public void update(byte[] buffer, int offset, int length) {
+                checksum.update(buffer, offset, length);
+            }
+
+            @Override
+            public void finish() throws IOException {
+                // Stages read the rotated file, hence the checksum is named
+                // after it, though placed next to the (e.g., compressed) file.
+                File directory = context.getFile().getAbsoluteFile().getParentFile();
+                File checksumFile = new File(directory, getChecksumFile(context.getRotatedFile()).getName());
+                String checksumText = String.format("%08x%n", checksum.getValue());
+                LOGGER.debug("writing checksum {checksumFile={}, checksum={}}", checksumFile, checksumText.trim());
+                try (OutputStream checksumStream = new FileOutputStream(checksumFile)) {
+                    checksumStream.write(checksumText.getBytes(StandardCharsets.US_ASCII));
+                }
+                context.getSidecarFiles().add(checksumFile);
+            }
+
+            @Override
+            public void abort() {
+                // Do nothing.
+            }
+
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "ChecksumRotationStage";
+    }
+
+}
@@ -0,0 +1,176 @@
+package com.vlkan.rfos.stage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Limits the I/O bandwidth and the concurrency of the reading stages (e.g.,
+// compression). The bandwidth is paced by a token bucket, whose rate is halved
+// whenever a sampled write exceeds the latency threshold and is increased by a
+// step per interval without such a write otherwise, i.e., AIMD. The state is
+// kept in atomics, since writers sample concurrently.
+public class CompressionBudget {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompressionBudget.class);
+
+    private static final int WRITE_SAMPLING_PERIOD = 64;
+
+    private static final int RATE_STEP_COUNT = 16;
+
+    private static final long DECREASE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final long INCREASE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // Allow bursts of up to a second.
+    private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final long maxBytesPerSecond;
+
+    private final int maxConcurrency;
+
+    private final long writeLatencyThresholdNanos;
+
+    private final long minBytesPerSecond;
+
+    private final Semaphore permits;
+
+    private final AtomicLong bytesPerSecond;
+
+    // Time at which the bucket gets empty again, i.e., the paced bytes so far
+    // are accounted for. Lagging behind by up to a burst grants its tokens.
+    private final AtomicLong emptyNanos;
+
+    private final AtomicLong lastDecreaseNanos;
+
+    private final AtomicLong lastSlowWriteNanos;
+
+    private final AtomicLong lastIncreaseNanos;
+
+    public CompressionBudget(long maxBytesPerSecond, int maxConcurrency, long writeLatencyThresholdNanos) {
+
+        if (maxBytesPerSecond < RATE_STEP_COUNT) {
+            String message = String.format("invalid rate {maxBytesPerSecond=%d}", maxBytesPerSecond);
+            throw new IllegalArgumentException(message);
+        }
+        this.maxBytesPerSecond = maxBytesPerSecond;
+
+        if (maxConcurrency < 1) {
+            String message = String.format("invalid concurrency {maxConcurrency=%d}", maxConcurrency);
+            throw new IllegalArgumentException(message);
+        }
+        this.maxConcurrency = maxConcurrency;
+
+        if (writeLatencyThresholdNanos < 1) {
+            String message = String.format(
+                    "invalid latency threshold {writeLatencyThresholdNanos=%d}", writeLatencyThresholdNanos);
+            throw new IllegalArgumentException(message);
+        }
+        this.writeLatencyThresholdNanos = writeLatencyThresholdNanos;
+
+        this.minBytesPerSecond = maxBytesPerSecond / RATE_STEP_COUNT;
+        this.permits = new Semaphore(maxConcurrency, true);
+        this.bytesPerSecond = new AtomicLong(maxBytesPerSecond);
+        long nowNanos = System.nanoTime();
+        this.emptyNanos = new AtomicLong(nowNanos);
+        this.lastDecreaseNanos = new AtomicLong(nowNanos - DECREASE_INTERVAL_NANOS);
+        this.lastSlowWriteNanos = new AtomicLong(nowNanos - INCREASE_INTERVAL_NANOS);
+        this.lastIncreaseNanos = new AtomicLong(nowNanos - INCREASE_INTERVAL_NANOS);
+
+    }
+
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public long getWriteLatencyThresholdNanos() {
+        return writeLatencyThresholdNanos;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond.get();
+    }
+
+    public void acquire() throws InterruptedException {
+        permits.acquire();
+    }
+
+    public void release() {
+        permits.release();
+    }
+
+    // Blocks until the given number of bytes fits into the budget.
+    public void pace(int byteCount) throws InterruptedException {
+        long costNanos = (long) (byteCount * 1e9 / bytesPerSecond.get());
+        long waitNanos;
+        for (;;) {
+            long lastEmptyNanos = emptyNanos.get();
+            long nowNanos = System.nanoTime();
+            long nextEmptyNanos = Math.max(lastEmptyNanos, nowNanos - BURST_NANOS) + costNanos;
+            if (emptyNanos.compareAndSet(lastEmptyNanos, nextEmptyNanos)) {
+                waitNanos = nextEmptyNanos - nowNanos;
+                break;
+            }
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    public boolean isWriteSampled() {
+        return ThreadLocalRandom.current().nextInt(WRITE_SAMPLING_PERIOD) == 0;
+    }
+
+    public void recordWriteLatency(long latencyNanos) {
+        recordWriteLatency(latencyNanos, System.nanoTime());
+    }
+
+    void recordWriteLatency(long latencyNanos, long nowNanos) {
+        if (latencyNanos > writeLatencyThresholdNanos) {
+            lastSlowWriteNanos.set(nowNanos);
+            // Decrease at most once per interval, so that a single slow burst does not starve compression.
+            long lastNanos = lastDecreaseNanos.get();
+            if (nowNanos - lastNanos >= DECREASE_INTERVAL_NANOS &&
+                    lastDecreaseNanos.compareAndSet(lastNanos, nowNanos)) {
+                long rate = updateRate(false);
+                LOGGER.debug("decreased compression rate {bytesPerSecond={}, latencyNanos={}}", rate, latencyNanos);
+            }
+        } else {
+            // Increase at most once per interval without slow writes, regardless of the sampled write count.
+            long lastNanos = lastIncreaseNanos.get();
+            if (nowNanos - lastSlowWriteNanos.get() >= INCREASE_INTERVAL_NANOS &&
+                    nowNanos - lastNanos >= INCREASE_INTERVAL_NANOS &&
+                    lastIncreaseNanos.compareAndSet(lastNanos, nowNanos)) {
+                updateRate(true);
+            }
+        }
+    }
+
+    // Adds a step to the rate, or halves it.
+    private long updateRate(boolean increase) {
+        for (;;) {
+            long rate = bytesPerSecond.get();
+            long nextRate = increase
+                    ? Math.min(maxBytesPerSecond, rate + minBytesPerSecond)
+                    : Math.max(minBytesPerSecond, rate / 2);
+            if (rate == nextRate || bytesPerSecond.compareAndSet(rate, nextRate)) {
+                return nextRate;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "CompressionBudget{maxBytesPerSecond=%d, maxConcurrency=%d, writeLatencyThresholdNanos=%d}",
+                maxBytesPerSecond, maxConcurrency, writeLatencyThresholdNanos);
+    }
+
+}
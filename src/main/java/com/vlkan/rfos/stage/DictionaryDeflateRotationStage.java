@@ -0,0 +1,309 @@
+package com.vlkan.rfos.stage;
+
+import com.vlkan.rfos.event.RotationEvents;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+// Compresses rotated files into zlib streams using a preset dictionary, which
+// is periodically trained from the heads of recently compressed files. Small
+// files sharing the same structure (e.g., JSON keys) then compress almost as
+// well as if they were concatenated. The zlib header of every compressed file
+// carries the ID (i.e., the Adler-32 checksum) of its dictionary, which is
+// stored in the dictionary directory as "<id>.dict", and read back by
+// DictionaryInflaterInputStream.
+public class DictionaryDeflateRotationStage implements RotationStage {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DictionaryDeflateRotationStage.class);
+
+    private static final String DICTIONARY_FILE_EXTENSION = ".dict";
+
+    // Deflate cannot refer further back than its 32KiB window.
+    static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    private static final int DEFAULT_TRAINING_INTERVAL = 16;
+
+    private static final int MAX_SAMPLE_SIZE = 8 * 1024;
+
+    private static final int MAX_SAMPLE_COUNT = 32;
+
+    private static final class Dictionary {
+
+        private final byte[] bytes;
+
+        private final int id;
+
+        private Dictionary(byte[] bytes) {
+            this.bytes = bytes;
+            Adler32 adler32 = new Adler32();
+            adler32.update(bytes, 0, bytes.length);
+            this.id = (int) adler32.getValue();
+        }
+
+    }
+
+    private final File dictionaryDirectory;
+
+    private final int maxDictionarySize;
+
+    private final int trainingInterval;
+
+    private final int level;
+
+    // Guarded by itself.
+    private final Deque<byte[]> samples;
+
+    // Guarded by the samples.
+    private int sampleCountSinceTraining;
+
+    // Guarded by the samples.
+    private boolean dictionaryLoaded;
+
+    private volatile Dictionary dictionary;
+
+    public DictionaryDeflateRotationStage(File dictionaryDirectory) {
+        this(dictionaryDirectory, MAX_DICTIONARY_SIZE, DEFAULT_TRAINING_INTERVAL, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public DictionaryDeflateRotationStage(
+            File dictionaryDirectory,
+            int maxDictionarySize,
+            int trainingInterval,
+            int level) {
+        this.dictionaryDirectory = Objects.requireNonNull(dictionaryDirectory, "dictionaryDirectory");
+        if (maxDictionarySize < 1 || maxDictionarySize > MAX_DICTIONARY_SIZE) {
+            String message = String.format("invalid dictionary size {maxDictionarySize=%d}", maxDictionarySize);
+            throw new IllegalArgumentException(message);
+        }
+        if (trainingInterval < 1) {
+            String message = String.format("invalid training interval {trainingInterval=%d}", trainingInterval);
+            throw new IllegalArgumentException(message);
+        }
+        if (level != Deflater.DEFAULT_COMPRESSION &&
+                (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            String message = String.format("invalid compression level {level=%d}", level);
+            throw new IllegalArgumentException(message);
+        }
+        this.maxDictionarySize = maxDictionarySize;
+        this.trainingInterval = trainingInterval;
+        this.level = level;
+        this.samples = new ArrayDeque<>();
+    }
+
+    public File getDictionaryDirectory() {
+        return dictionaryDirectory;
+    }
+
+    public int getMaxDictionarySize() {
+        return maxDictionarySize;
+    }
+
+    public int getTrainingInterval() {
+        return trainingInterval;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public static File getCompressedFile(File file) {
+        String compressedFileName = String.format("%s.zz", file.getAbsolutePath());
+        return new File(compressedFileName);
+    }
+
+    public static File getDictionaryFile(File dictionaryDirectory, int dictionaryId) {
+        String dictionaryFileName = String.format("%08x%s", dictionaryId, DICTIONARY_FILE_EXTENSION);
+        return new File(dictionaryDirectory, dictionaryFileName);
+    }
+
+    @Override
+    public List<File> getOutputFiles(File file) {
+        return Collections.singletonList(getCompressedFile(file));
+    }
+
+    @Override
+    public RotationStageExecution start(final RotationStageContext context) throws IOException {
+        loadDictionary();
+        final File sourceFile = context.getFile();
+        final File compressedFile = getCompressedFile(sourceFile);
+        final Dictionary currentDictionary = dictionary;
+        LOGGER.debug(
+                "compressing {sourceFile={}, compressedFile={}, dictionaryId={}}",
+                sourceFile, compressedFile,
+                currentDictionary != null ? String.format("%08x", currentDictionary.id) : null);
+        final Deflater deflater = new Deflater(level);
+        if (currentDictionary != null) {
+            deflater.setDictionary(currentDictionary.bytes);
+        }
+        final DeflaterOutputStream deflaterStream =
+                new DeflaterOutputStream(new FileOutputStream(compressedFile), deflater, 8192);
+        final RotationEvents events = RotationEvents.getInstance();
+        final Object event = events.beginCompression();
+        return new RotationStageExecution() {
+
+            private final byte[] sample = new byte[MAX_SAMPLE_SIZE];
+
+            private long inputByteCount = 0;
+
+            @Override
+            public boolean isReading() {
+                return true;
+            }
+
+            @Override
+            public void update(byte[] buffer, int offset, int length) throws IOException {
+                deflaterStream.write(buffer, offset, length);
+                if (inputByteCount < sample.length) {
+                    int sampleLength = (int) Math.min(length, sample.length - inputByteCount);
+                    System.arraycopy(buffer, offset, sample, (int) inputByteCount, sampleLength);
+                }
+                inputByteCount += length;
+            }
+
+            @Override
+            public void finish() throws IOException {
+                try {
+                    deflaterStream.close();
+                } finally {
+                    deflater.end();
+                }
+                if (event != null) {
+                    events.commitCompression(event, sourceFile, compressedFile, inputByteCount, compressedFile.length());
+                }
+                LOGGER.debug("deleting old file {sourceFile={}}", sourceFile);
+                boolean deleted = sourceFile.delete();
+                if (!deleted) {
+                    String message = String.format("failed deleting old file {sourceFile=%s}", sourceFile);
+                    throw new IOException(message);
+                }
+                context.setFile(compressedFile);
+                int sampleLength = (int) Math.min(inputByteCount, sample.length);
+                addSample(Arrays.copyOf(sample, sampleLength));
+            }
+
+            @Override
+            @SuppressWarnings("ResultOfMethodCallIgnored")
+            public void abort() {
+                try {
+                    deflaterStream.close();
+                } catch (IOException error) {
+                    LOGGER.warn("failed closing compressed file {compressedFile={}}", compressedFile, error);
+                } finally {
+                    deflater.end();
+                }
+                compressedFile.delete();
+            }
+
+        };
+    }
+
+    // Picks up the most recently trained dictionary of a previous run, if there is one.
+    private void loadDictionary() throws IOException {
+        synchronized (samples) {
+            if (dictionaryLoaded) {
+                return;
+            }
+            dictionaryLoaded = true;
+        }
+        File[] files = dictionaryDirectory.listFiles();
+        File lastDictionaryFile = null;
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(DICTIONARY_FILE_EXTENSION) &&
+                        (lastDictionaryFile == null || file.lastModified() > lastDictionaryFile.lastModified())) {
+                    lastDictionaryFile = file;
+                }
+            }
+        }
+        if (lastDictionaryFile != null && dictionary == null) {
+            LOGGER.debug("loading dictionary {dictionaryFile={}}", lastDictionaryFile);
+            dictionary = new Dictionary(Files.readAllBytes(lastDictionaryFile.toPath()));
+        }
+    }
+
+    private void addSample(byte[] sample) {
+        List<byte[]> trainingSamples = null;
+        synchronized (samples) {
+            if (samples.size() == MAX_SAMPLE_COUNT) {
+                samples.removeFirst();
+            }
+            samples.addLast(sample);
+            if (++sampleCountSinceTraining >= trainingInterval) {
+                sampleCountSinceTraining = 0;
+                trainingSamples = new ArrayList<>(samples);
+            }
+        }
+        if (trainingSamples != null) {
+            // The file is compressed already, hence keep on using the current dictionary.
+            try {
+                train(trainingSamples);
+            } catch (IOException error) {
+                LOGGER.warn("dictionary training failure {dictionaryDirectory={}}", dictionaryDirectory, error);
+            }
+        }
+    }
+
+    private void train(List<byte[]> trainingSamples) throws IOException {
+        long startNanos = System.nanoTime();
+        byte[] dictionaryBytes = DictionaryTrainer.train(trainingSamples, maxDictionarySize);
+        if (dictionaryBytes.length == 0) {
+            LOGGER.debug("no dictionary is trained {sampleCount={}}", trainingSamples.size());
+            return;
+        }
+        Dictionary trainedDictionary = new Dictionary(dictionaryBytes);
+        File dictionaryFile = getDictionaryFile(dictionaryDirectory, trainedDictionary.id);
+        LOGGER.debug(
+                "trained dictionary {dictionaryFile={}, size={}, sampleCount={}, durationNanos={}}",
+                dictionaryFile, dictionaryBytes.length, trainingSamples.size(), System.nanoTime() - startNanos);
+        // Files compressed with an existing dictionary of the same ID (i.e.,
+        // an Adler-32 collision) need its bytes, hence keep the current one.
+        if (!dictionaryFile.exists()) {
+            writeDictionary(dictionaryFile, dictionaryBytes);
+        } else if (!Arrays.equals(Files.readAllBytes(dictionaryFile.toPath()), dictionaryBytes)) {
+            LOGGER.warn("skipping dictionary colliding with an existing one {dictionaryFile={}}", dictionaryFile);
+            return;
+        }
+        dictionary = trainedDictionary;
+    }
+
+    // The dictionary gets stored before its first use, and atomically, since
+    // compressed files are not readable without it.
+    private void writeDictionary(File dictionaryFile, byte[] dictionaryBytes) throws IOException {
+        if (!dictionaryDirectory.isDirectory() && !dictionaryDirectory.mkdirs() && !dictionaryDirectory.isDirectory()) {
+            String message = String.format("failed creating directory {directory=%s}", dictionaryDirectory);
+            throw new IOException(message);
+        }
+        File tmpDictionaryFile = new File(dictionaryFile.getAbsolutePath() + ".tmp");
+        try {
+            try (FileOutputStream outputStream = new FileOutputStream(tmpDictionaryFile)) {
+                outputStream.write(dictionaryBytes);
+                outputStream.getFD().sync();
+            }
+            Files.move(tmpDictionaryFile.toPath(), dictionaryFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException error) {
+            Files.deleteIfExists(tmpDictionaryFile.toPath());
+            throw error;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DictionaryDeflateRotationStage{dictionaryDirectory=%s}", dictionaryDirectory);
+    }
+
+}
@@ -0,0 +1,121 @@
+package com.vlkan.rfos.stage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Objects;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Decompresses a file compressed by DictionaryDeflateRotationStage, loading
+// the dictionary referred by the zlib header from the given directory.
+public class DictionaryInflaterInputStream extends FilterInputStream {
+
+    private final File dictionaryDirectory;
+
+    private final Inflater inflater;
+
+    private final byte[] buffer;
+
+    private final byte[] singleByte;
+
+    private boolean closed;
+
+    public DictionaryInflaterInputStream(InputStream in, File dictionaryDirectory) {
+        super(in);
+        this.dictionaryDirectory = Objects.requireNonNull(dictionaryDirectory, "dictionaryDirectory");
+        this.inflater = new Inflater();
+        this.buffer = new byte[8192];
+        this.singleByte = new byte[1];
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(singleByte, 0, 1) < 0 ? -1 : singleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("closed stream");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        try {
+            int inflatedLength;
+            while ((inflatedLength = inflater.inflate(b, off, len)) == 0) {
+                if (inflater.finished()) {
+                    return -1;
+                } else if (inflater.needsDictionary()) {
+                    inflater.setDictionary(readDictionary(inflater.getAdler()));
+                } else if (inflater.needsInput()) {
+                    int readLength = in.read(buffer);
+                    if (readLength < 0) {
+                        throw new EOFException("unexpected end of compressed stream");
+                    }
+                    inflater.setInput(buffer, 0, readLength);
+                }
+            }
+            return inflatedLength;
+        } catch (DataFormatException error) {
+            throw new IOException("corrupt compressed stream", error);
+        }
+    }
+
+    private byte[] readDictionary(int dictionaryId) throws IOException {
+        File dictionaryFile = DictionaryDeflateRotationStage.getDictionaryFile(dictionaryDirectory, dictionaryId);
+        if (!dictionaryFile.exists()) {
+            String message = String.format("missing dictionary {dictionaryFile=%s}", dictionaryFile);
+            throw new IOException(message);
+        }
+        return Files.readAllBytes(dictionaryFile.toPath());
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] skipBuffer = new byte[(int) Math.min(n, buffer.length)];
+        long skippedLength = 0;
+        while (skippedLength < n) {
+            int readLength = read(skipBuffer, 0, (int) Math.min(n - skippedLength, skipBuffer.length));
+            if (readLength < 0) {
+                break;
+            }
+            skippedLength += readLength;
+        }
+        return skippedLength;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return closed || inflater.finished() ? 0 : 1;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        // Do nothing.
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            inflater.end();
+            in.close();
+        }
+    }
+
+}
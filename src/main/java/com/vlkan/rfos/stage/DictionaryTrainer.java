@@ -0,0 +1,128 @@
+package com.vlkan.rfos.stage;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// Builds a deflate dictionary from sample segments, following the COVER
+// algorithm of zstd: fixed-size candidate chunks of the samples are scored by
+// the number of samples containing each of their k-mers, and the best ones are
+// greedily picked, discounting the k-mers covered by earlier picks. The best
+// chunks are placed at the end of the dictionary, since deflate encodes
+// closer matches with fewer bits.
+final class DictionaryTrainer {
+
+    private static final int KMER_SIZE = 8;
+
+    private static final int CHUNK_SIZE = 128;
+
+    private static final int CHUNK_STEP = 16;
+
+    private static final int TABLE_BITS = 18;
+
+    private static final int TABLE_MASK = (1 << TABLE_BITS) - 1;
+
+    private static final class Chunk implements Comparable<Chunk> {
+
+        private final byte[] sample;
+
+        private final int offset;
+
+        private final int length;
+
+        private long score;
+
+        private Chunk(byte[] sample, int offset, int length) {
+            this.sample = sample;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int compareTo(Chunk that) {
+            return Long.compare(that.score, score);
+        }
+
+    }
+
+    private DictionaryTrainer() {
+        // Do nothing.
+    }
+
+    // Returns an empty dictionary, if no k-mer occurs in multiple samples.
+    static byte[] train(List<byte[]> samples, int maxDictionarySize) {
+
+        // Count the samples containing each k-mer (modulo hash collisions).
+        int[] sampleCounts = new int[1 << TABLE_BITS];
+        int[] lastSampleIndexes = new int[1 << TABLE_BITS];
+        Arrays.fill(lastSampleIndexes, -1);
+        for (int sampleIndex = 0; sampleIndex < samples.size(); sampleIndex++) {
+            byte[] sample = samples.get(sampleIndex);
+            for (int offset = 0; offset + KMER_SIZE <= sample.length; offset++) {
+                int slot = hash(sample, offset);
+                if (lastSampleIndexes[slot] != sampleIndex) {
+                    lastSampleIndexes[slot] = sampleIndex;
+                    sampleCounts[slot]++;
+                }
+            }
+        }
+
+        // Score the chunks.
+        PriorityQueue<Chunk> chunks = new PriorityQueue<>();
+        for (byte[] sample : samples) {
+            for (int offset = 0; offset + KMER_SIZE <= sample.length; offset += CHUNK_STEP) {
+                Chunk chunk = new Chunk(sample, offset, Math.min(CHUNK_SIZE, sample.length - offset));
+                chunk.score = score(chunk, sampleCounts);
+                if (chunk.score > 0) {
+                    chunks.add(chunk);
+                }
+            }
+        }
+
+        // Greedily pick the best chunks, re-scoring them lazily, since the
+        // scores only decrease as k-mers get covered.
+        byte[] dictionary = new byte[maxDictionarySize];
+        int dictionaryOffset = maxDictionarySize;
+        while (dictionaryOffset > 0 && !chunks.isEmpty()) {
+            Chunk chunk = chunks.poll();
+            chunk.score = score(chunk, sampleCounts);
+            if (chunk.score <= 0) {
+                continue;
+            }
+            Chunk nextChunk = chunks.peek();
+            if (nextChunk != null && chunk.score < nextChunk.score) {
+                chunks.add(chunk);
+                continue;
+            }
+            int length = Math.min(chunk.length, dictionaryOffset);
+            dictionaryOffset -= length;
+            System.arraycopy(chunk.sample, chunk.offset, dictionary, dictionaryOffset, length);
+            for (int offset = chunk.offset; offset + KMER_SIZE <= chunk.offset + chunk.length; offset++) {
+                sampleCounts[hash(chunk.sample, offset)] = 0;
+            }
+        }
+        return Arrays.copyOfRange(dictionary, dictionaryOffset, maxDictionarySize);
+
+    }
+
+    // Sums the sample counts of the k-mers occurring in multiple samples.
+    private static long score(Chunk chunk, int[] sampleCounts) {
+        long score = 0;
+        for (int offset = chunk.offset; offset + KMER_SIZE <= chunk.offset + chunk.length; offset++) {
+            int sampleCount = sampleCounts[hash(chunk.sample, offset)];
+            if (sampleCount > 1) {
+                score += sampleCount;
+            }
+        }
+        return score;
+    }
+
+    private static int hash(byte[] bytes, int offset) {
+        long kmer = 0;
+        for (int index = offset; index < offset + KMER_SIZE; index++) {
+            kmer = (kmer << 8) | (bytes[index] & 0xff);
+        }
+        return (int) ((kmer * 0x9e3779b97f4a7c15L) >>> (64 - TABLE_BITS)) & TABLE_MASK;
+    }
+
+}
@@ -0,0 +1,120 @@
+package com.vlkan.rfos.stage;
+
+import com.vlkan.rfos.DecryptionOutputStream;
+import com.vlkan.rfos.EncryptionOutputStream;
+import com.vlkan.rfos.event.RotationEvents;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.GZIPOutputStream;
+
+public class GzipRotationStage implements RotationStage {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GzipRotationStage.class);
+
+    private static final GzipRotationStage INSTANCE = new GzipRotationStage(null);
+
+    // Key of the encrypted rotated files, if there is one.
+    private final SecretKey encryptionKey;
+
+    private GzipRotationStage(SecretKey encryptionKey) {
+        this.encryptionKey = encryptionKey;
+    }
+
+    public static GzipRotationStage getInstance() {
+        return INSTANCE;
+    }
+
+    // Compresses files encrypted with the given key, i.e., decrypts, compresses,
+    // and then encrypts the compressed bytes, since ciphertext does not compress.
+    public static GzipRotationStage withEncryptionKey(SecretKey encryptionKey) {
+        Objects.requireNonNull(encryptionKey, "encryptionKey");
+        return new GzipRotationStage(encryptionKey);
+    }
+
+    public SecretKey getEncryptionKey() {
+        return encryptionKey;
+    }
+
+    public static File getCompressedFile(File file) {
+        String compressedFileName = String.format("%s.gz", file.getAbsolutePath());
+        return new File(compressedFileName);
+    }
+
+    @Override
+    public List<File> getOutputFiles(File file) {
+        return Collections.singletonList(getCompressedFile(file));
+    }
+
+    @Override
+    public RotationStageExecution start(final RotationStageContext context) throws IOException {
+        final File sourceFile = context.getFile();
+        final File compressedFile = getCompressedFile(sourceFile);
+        LOGGER.debug("compressing {sourceFile={}, compressedFile={}}", sourceFile, compressedFile);
+        final OutputStream compressedStream = encryptionKey != null
+                ? EncryptionOutputStream.create(new FileOutputStream(compressedFile), encryptionKey)
+                : new FileOutputStream(compressedFile);
+        final GZIPOutputStream gzipStream = new GZIPOutputStream(compressedStream);
+        final OutputStream inputStream = encryptionKey != null
+                ? new DecryptionOutputStream(gzipStream, encryptionKey)
+                : gzipStream;
+        final RotationEvents events = RotationEvents.getInstance();
+        final Object event = events.beginCompression();
+        return new RotationStageExecution() {
+
+            private long inputByteCount = 0;
+
+            @Override
+            public boolean isReading() {
+                return true;
+            }
+
+            @Override
+            public void update(byte[] buffer, int offset, int length) throws IOException {
+                inputStream.write(buffer, offset, length);
+                inputByteCount += length;
+            }
+
+            @Override
+            public void finish() throws IOException {
+                inputStream.close();
+                if (event != null) {
+                    events.commitCompression(event, sourceFile, compressedFile, inputByteCount, compressedFile.length());
+                }
+                LOGGER.debug("deleting old file {sourceFile={}}", sourceFile);
+                boolean deleted = sourceFile.delete();
+                if (!deleted) {
+                    String message = String.format("failed deleting old file {sourceFile=%s}", sourceFile);
+                    throw new IOException(message);
+                }
+                context.setFile(compressedFile);
+            }
+
+            @Override
+            @SuppressWarnings("ResultOfMethodCallIgnored")
+            public void abort() {
+                try {
+                    inputStream.close();
+                } catch (IOException error) {
+                    LOGGER.warn("failed closing compressed file {compressedFile={}}", compressedFile, error);
+                }
+                compressedFile.delete();
+            }
+
+        };
+    }
+
+    @Override
+    public String toString() {
+        return encryptionKey != null ? "GzipRotationStage{encrypted}" : "GzipRotationStage";
+    }
+
+}
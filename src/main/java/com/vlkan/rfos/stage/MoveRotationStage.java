@@ -0,0 +1,98 @@
+package com.vlkan.rfos.stage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+public class MoveRotationStage implements RotationStage {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MoveRotationStage.class);
+
+    private final File directory;
+
+    public MoveRotationStage(File directory) {
+        this.directory = Objects.requireNonNull(directory, "directory");
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public List<File> getOutputFiles(File file) {
+        // Files are renamed rather than written.
+        return Collections.emptyList();
+    }
+
+    @Override
+    public RotationStageExecution start(final RotationStageContext context) {
+        return new RotationStageExecution() {
+
+            @Override
+            public boolean isReading() {
+                return false;
+            }
+
+            @Override
+            public void update(byte[] buffer, int offset, int length) {
+                // Do nothing.
+            }
+
+            @Override
+            public void finish() throws IOException {
+                if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+                    String message = String.format("failed creating directory {directory=%s}", directory);
+                    throw new IOException(message);
+                }
+                File movedFile = move(context.getFile());
+                List<File> sidecarFiles = context.getSidecarFiles();
+                for (int sidecarIndex = 0; sidecarIndex < sidecarFiles.size(); sidecarIndex++) {
+                    File movedSidecarFile = move(sidecarFiles.get(sidecarIndex));
+                    sidecarFiles.set(sidecarIndex, movedSidecarFile);
+                }
+                context.setFile(movedFile);
+            }
+
+            @Override
+            public void abort() {
+                // Do nothing.
+            }
+
+        };
+    }
+
+    private File move(File file) throws IOException {
+        File movedFile = new File(directory, file.getName());
+        LOGGER.debug("moving {file={}, movedFile={}}", file, movedFile);
+        boolean renamed = file.renameTo(movedFile);
+        if (!renamed) {
+            String message = String.format("move failure {file=%s, movedFile=%s}", file, movedFile);
+            throw new IOException(message);
+        }
+        return movedFile;
+    }
+
+    @Override
+    public boolean equals(Object instance) {
+        if (this == instance) return true;
+        if (instance == null || getClass() != instance.getClass()) return false;
+        MoveRotationStage that = (MoveRotationStage) instance;
+        return Objects.equals(directory, that.directory);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(directory);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MoveRotationStage{directory=%s}", directory);
+    }
+
+}
@@ -0,0 +1,165 @@
+package com.vlkan.rfos.stage;
+
+import com.vlkan.rfos.RotationCallback;
+import com.vlkan.rfos.RotationStageCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Objects;
+
+public class RotationPipeline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RotationPipeline.class);
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final List<RotationStage> stages;
+
+    private final RotationCallback callback;
+
+    private final CompressionBudget budget;
+
+    public RotationPipeline(List<RotationStage> stages, RotationCallback callback) {
+        this(stages, callback, null);
+    }
+
+    public RotationPipeline(List<RotationStage> stages, RotationCallback callback, CompressionBudget budget) {
+        this.stages = Objects.requireNonNull(stages, "stages");
+        this.callback = Objects.requireNonNull(callback, "callback");
+        this.budget = budget;
+    }
+
+    public List<RotationStage> getStages() {
+        return stages;
+    }
+
+    public CompressionBudget getBudget() {
+        return budget;
+    }
+
+    public boolean isEmpty() {
+        return stages.isEmpty();
+    }
+
+    // Returns whether all stages have succeeded, whereas failures are reported to the callback.
+    public boolean execute(RotationStageContext context) {
+        int stageCount = stages.size();
+        RotationStageExecution[] executions = new RotationStageExecution[stageCount];
+        long[] durationsNanos = new long[stageCount];
+        int stageIndex = 0;
+        try {
+
+            // Start stages.
+            boolean reading = false;
+            for (; stageIndex < stageCount; stageIndex++) {
+                long startNanos = System.nanoTime();
+                RotationStageExecution execution = stages.get(stageIndex).start(context);
+                durationsNanos[stageIndex] += System.nanoTime() - startNanos;
+                executions[stageIndex] = execution;
+                reading |= execution.isReading();
+            }
+
+            // Feed the reading stages with a single pass over the file.
+            stageIndex = -1;
+            if (reading) {
+                read(context, executions, durationsNanos);
+            }
+
+            // Finish stages. (Finished executions are discarded to avoid aborting them.)
+            for (stageIndex = 0; stageIndex < stageCount; stageIndex++) {
+                long startNanos = System.nanoTime();
+                executions[stageIndex].finish();
+                executions[stageIndex] = null;
+                durationsNanos[stageIndex] += System.nanoTime() - startNanos;
+                if (callback instanceof RotationStageCallback) {
+                    ((RotationStageCallback) callback).onStageSuccess(
+                            context.getPolicy(), context.getDateTime(), stages.get(stageIndex),
+                            context.getFile(), durationsNanos[stageIndex]);
+                }
+            }
+
+        } catch (Exception error) {
+            abort(executions);
+            RotationStage stage = stageIndex >= 0 && stageIndex < stageCount ? stages.get(stageIndex) : null;
+            String message = String.format(
+                    "rotation stage failure {stage=%s, dateTime=%s, rotatedFile=%s, file=%s}",
+                    stage, context.getDateTime(), context.getRotatedFile(), context.getFile());
+            RuntimeException extendedError = new RuntimeException(message, error);
+            callback.onFailure(context.getPolicy(), context.getDateTime(), context.getFile(), extendedError);
+            return false;
+        }
+
+        // So far, so good.
+        callback.onSuccess(context.getPolicy(), context.getDateTime(), context.getFile());
+        return true;
+
+    }
+
+    private void read(
+            RotationStageContext context,
+            RotationStageExecution[] executions,
+            long[] durationsNanos)
+            throws IOException {
+        if (budget != null) {
+            try {
+                budget.acquire();
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while acquiring budget", error);
+            }
+        }
+        LOGGER.debug("reading {file={}}", context.getFile());
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream inputStream = new FileInputStream(context.getFile())) {
+            int readByteCount;
+            while ((readByteCount = inputStream.read(buffer)) > 0) {
+                if (budget != null) {
+                    pace(readByteCount);
+                }
+                for (int stageIndex = 0; stageIndex < executions.length; stageIndex++) {
+                    RotationStageExecution execution = executions[stageIndex];
+                    if (execution.isReading()) {
+                        long startNanos = System.nanoTime();
+                        execution.update(buffer, 0, readByteCount);
+                        durationsNanos[stageIndex] += System.nanoTime() - startNanos;
+                    }
+                }
+            }
+        } finally {
+            if (budget != null) {
+                budget.release();
+            }
+        }
+    }
+
+    private void pace(int byteCount) throws IOException {
+        try {
+            budget.pace(byteCount);
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while pacing", error);
+        }
+    }
+
+    private static void abort(RotationStageExecution[] executions) {
+        for (RotationStageExecution execution : executions) {
+            if (execution != null) {
+                try {
+                    execution.abort();
+                } catch (Exception error) {
+                    LOGGER.warn("rotation stage abort failure", error);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RotationPipeline{stages=%s}", stages);
+    }
+
+}
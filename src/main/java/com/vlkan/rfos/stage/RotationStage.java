@@ -0,0 +1,16 @@
+package com.vlkan.rfos.stage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+public interface RotationStage {
+
+    RotationStageExecution start(RotationStageContext context) throws IOException;
+
+    // Returns the files written off the given input file, which the recovery
+    // deletes as the partial output of an interrupted execution. Files that
+    // get written in whole on finish are not included.
+    List<File> getOutputFiles(File file);
+
+}
@@ -0,0 +1,71 @@
+package com.vlkan.rfos.stage;
+
+import com.vlkan.rfos.policy.RotationPolicy;
+import org.joda.time.LocalDateTime;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RotationStageContext {
+
+    private final RotationPolicy policy;
+
+    private final LocalDateTime dateTime;
+
+    private final File rotatedFile;
+
+    private final List<File> sidecarFiles;
+
+    private File file;
+
+    private Long checksum;
+
+    public RotationStageContext(RotationPolicy policy, LocalDateTime dateTime, File rotatedFile) {
+        this.policy = policy;
+        this.dateTime = dateTime;
+        this.rotatedFile = rotatedFile;
+        this.sidecarFiles = new ArrayList<>();
+        this.file = rotatedFile;
+    }
+
+    public RotationPolicy getPolicy() {
+        return policy;
+    }
+
+    public LocalDateTime getDateTime() {
+        return dateTime;
+    }
+
+    public File getRotatedFile() {
+        return rotatedFile;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    public Long getChecksum() {
+        return checksum;
+    }
+
+    public void setChecksum(Long checksum) {
+        this.checksum = checksum;
+    }
+
+    public List<File> getSidecarFiles() {
+        return sidecarFiles;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "RotationStageContext{policy=%s, dateTime=%s, rotatedFile=%s, file=%s}",
+                policy, dateTime, rotatedFile, file);
+    }
+
+}
@@ -0,0 +1,15 @@
+package com.vlkan.rfos.stage;
+
+import java.io.IOException;
+
+public interface RotationStageExecution {
+
+    boolean isReading();
+
+    void update(byte[] buffer, int offset, int length) throws IOException;
+
+    void finish() throws IOException;
+
+    void abort();
+
+}
@@ -0,0 +1,189 @@
+package com.vlkan.rfos.event;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+import java.io.File;
+
+// Loaded reflectively by RotationEvents, only if JFR is available. Shipped
+// in the Java 11 section of the multi-release jar.
+class JfrRotationEvents extends RotationEvents {
+
+    private static final String CATEGORY = "rotating-fos";
+
+    @Name("com.vlkan.rfos.Write")
+    @Label("Slow Write")
+    @Category(CATEGORY)
+    @Threshold("10 ms")
+    static class WriteEvent extends Event {
+
+        @Label("File")
+        String file;
+
+        @Label("Byte Count")
+        @DataAmount
+        int byteCount;
+
+    }
+
+    @Name("com.vlkan.rfos.LockWait")
+    @Label("Lock Wait")
+    @Description("Wait for the lock shared by writes and rotations")
+    @Category(CATEGORY)
+    @Threshold("1 ms")
+    static class LockWaitEvent extends Event {
+
+        @Label("File")
+        String file;
+
+    }
+
+    @Name("com.vlkan.rfos.Rotation")
+    @Label("Rotation")
+    @Category(CATEGORY)
+    static class RotationEvent extends Event {
+
+        @Label("File")
+        String file;
+
+        @Label("Rotated File")
+        String rotatedFile;
+
+        @Label("Rename Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long renameDuration;
+
+        @Label("Open Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long openDuration;
+
+        @Label("Swap Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long swapDuration;
+
+    }
+
+    @Name("com.vlkan.rfos.Compression")
+    @Label("Compression")
+    @Category(CATEGORY)
+    static class CompressionEvent extends Event {
+
+        @Label("File")
+        String file;
+
+        @Label("Compressed File")
+        String compressedFile;
+
+        @Label("Input Byte Count")
+        @DataAmount
+        long inputByteCount;
+
+        @Label("Output Byte Count")
+        @DataAmount
+        long outputByteCount;
+
+    }
+
+    // Event types are checked before allocating the events, since writes
+    // and lock waits are on the hot path.
+
+    private final EventType writeEventType = EventType.getEventType(WriteEvent.class);
+
+    private final EventType lockWaitEventType = EventType.getEventType(LockWaitEvent.class);
+
+    private final EventType rotationEventType = EventType.getEventType(RotationEvent.class);
+
+    private final EventType compressionEventType = EventType.getEventType(CompressionEvent.class);
+
+    @Override
+    public Object beginWrite() {
+        return writeEventType.isEnabled() ? begin(new WriteEvent()) : null;
+    }
+
+    @Override
+    public void commitWrite(Object event, File file, int byteCount) {
+        WriteEvent writeEvent = (WriteEvent) event;
+        writeEvent.end();
+        if (writeEvent.shouldCommit()) {
+            writeEvent.file = file.getPath();
+            writeEvent.byteCount = byteCount;
+            writeEvent.commit();
+        }
+    }
+
+    @Override
+    public Object beginLockWait() {
+        return lockWaitEventType.isEnabled() ? begin(new LockWaitEvent()) : null;
+    }
+
+    @Override
+    public void commitLockWait(Object event, File file) {
+        LockWaitEvent lockWaitEvent = (LockWaitEvent) event;
+        lockWaitEvent.end();
+        if (lockWaitEvent.shouldCommit()) {
+            lockWaitEvent.file = file.getPath();
+            lockWaitEvent.commit();
+        }
+    }
+
+    @Override
+    public Object beginRotation() {
+        return rotationEventType.isEnabled() ? begin(new RotationEvent()) : null;
+    }
+
+    @Override
+    public void commitRotation(
+            Object event,
+            File file,
+            File rotatedFile,
+            long renameNanos,
+            long openNanos,
+            long swapNanos) {
+        RotationEvent rotationEvent = (RotationEvent) event;
+        rotationEvent.end();
+        if (rotationEvent.shouldCommit()) {
+            rotationEvent.file = file.getPath();
+            rotationEvent.rotatedFile = rotatedFile.getPath();
+            rotationEvent.renameDuration = renameNanos;
+            rotationEvent.openDuration = openNanos;
+            rotationEvent.swapDuration = swapNanos;
+            rotationEvent.commit();
+        }
+    }
+
+    @Override
+    public Object beginCompression() {
+        return compressionEventType.isEnabled() ? begin(new CompressionEvent()) : null;
+    }
+
+    @Override
+    public void commitCompression(
+            Object event,
+            File file,
+            File compressedFile,
+            long inputByteCount,
+            long outputByteCount) {
+        CompressionEvent compressionEvent = (CompressionEvent) event;
+        compressionEvent.end();
+        if (compressionEvent.shouldCommit()) {
+            compressionEvent.file = file.getPath();
+            compressionEvent.compressedFile = compressedFile.getPath();
+            compressionEvent.inputByteCount = inputByteCount;
+            compressionEvent.outputByteCount = outputByteCount;
+            compressionEvent.commit();
+        }
+    }
+
+    private static Event begin(Event event) {
+        event.begin();
+        return event;
+    }
+
+}
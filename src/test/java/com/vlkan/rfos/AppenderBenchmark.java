@@ -0,0 +1,284 @@
+package com.vlkan.rfos;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.rolling.RollingFileAppender;
+import ch.qos.logback.core.rolling.TimeBasedRollingPolicy;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.rolling.TimeBasedTriggeringPolicy;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+
+// Compares the throughput and the allocation rate of the Logback and Log4j2
+// appenders of rotating-fos against the RollingFileAppender of the respective
+// framework. Events are reused, hence the reported allocations are the ones of
+// the appenders.
+// Not picked up by Surefire; run it via, e.g.,
+//
+//     mvn test-compile exec:java -Dexec.classpathScope=test \
+//         -Dexec.mainClass=com.vlkan.rfos.AppenderBenchmark \
+//         -Dexec.args="threadCount=4 eventCount=1000000"
+//
+public class AppenderBenchmark {
+
+    private static final String PATTERN = "%d %level %logger - %msg%n";
+
+    private static final class Options {
+
+        private int threadCount = 4;
+
+        private int eventCount = 1_000_000;
+
+        private int warmupEventCount = 100_000;
+
+        private File directory = new File(Filesystem.tmpDir(), AppenderBenchmark.class.getSimpleName());
+
+        private static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                int separatorIndex = arg.indexOf('=');
+                if (separatorIndex < 0) {
+                    String message = String.format("invalid argument, expecting key=value {arg=%s}", arg);
+                    throw new IllegalArgumentException(message);
+                }
+                String key = arg.substring(0, separatorIndex);
+                String value = arg.substring(separatorIndex + 1);
+                switch (key) {
+                    case "threadCount": options.threadCount = Integer.parseInt(value); break;
+                    case "eventCount": options.eventCount = Integer.parseInt(value); break;
+                    case "warmupEventCount": options.warmupEventCount = Integer.parseInt(value); break;
+                    case "directory": options.directory = new File(value); break;
+                    default:
+                        String message = String.format("unknown argument {key=%s}", key);
+                        throw new IllegalArgumentException(message);
+                }
+            }
+            return options;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "Options{threadCount=%d, eventCount=%d, warmupEventCount=%d, directory=%s}",
+                    threadCount, eventCount, warmupEventCount, directory);
+        }
+
+    }
+
+    private interface Target {
+
+        void append();
+
+        void close();
+
+    }
+
+    private static Target createLogbackTarget(File directory, boolean rolling) {
+        LoggerContext context = new LoggerContext();
+        PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+        encoder.setContext(context);
+        encoder.setPattern(PATTERN);
+        encoder.setCharset(StandardCharsets.UTF_8);
+        encoder.start();
+        final ch.qos.logback.core.Appender<ILoggingEvent> appender;
+        if (rolling) {
+            RollingFileAppender<ILoggingEvent> rollingAppender = new RollingFileAppender<>();
+            rollingAppender.setContext(context);
+            rollingAppender.setEncoder(encoder);
+            rollingAppender.setFile(new File(directory, "logback-rolling.log").getAbsolutePath());
+            TimeBasedRollingPolicy<ILoggingEvent> policy = new TimeBasedRollingPolicy<>();
+            policy.setContext(context);
+            policy.setParent(rollingAppender);
+            policy.setFileNamePattern(new File(directory, "logback-rolling-%d{yyyyMMdd}.log").getAbsolutePath());
+            policy.start();
+            rollingAppender.setRollingPolicy(policy);
+            appender = rollingAppender;
+        } else {
+            com.vlkan.rfos.logback.RotatingFileAppender<ILoggingEvent> rotatingAppender =
+                    new com.vlkan.rfos.logback.RotatingFileAppender<>();
+            rotatingAppender.setContext(context);
+            rotatingAppender.setEncoder(encoder);
+            rotatingAppender.setFile(new File(directory, "logback-rotating.log").getAbsolutePath());
+            rotatingAppender.setFilePattern(new File(directory, "logback-rotating-%d{yyyyMMdd}.log").getAbsolutePath());
+            rotatingAppender.setDaily(true);
+            appender = rotatingAppender;
+        }
+        appender.setName("benchmark");
+        appender.start();
+        Logger logger = context.getLogger(AppenderBenchmark.class);
+        final LoggingEvent event = new LoggingEvent(
+                Logger.class.getName(), logger, ch.qos.logback.classic.Level.INFO, "benchmark message", null, null);
+        return new Target() {
+
+            @Override
+            public void append() {
+                appender.doAppend(event);
+            }
+
+            @Override
+            public void close() {
+                appender.stop();
+            }
+
+        };
+    }
+
+    private static Target createLog4j2Target(File directory, boolean rolling) {
+        DefaultConfiguration configuration = new DefaultConfiguration();
+        PatternLayout layout = PatternLayout
+                .newBuilder()
+                .withConfiguration(configuration)
+                .withPattern(PATTERN)
+                .withCharset(StandardCharsets.UTF_8)
+                .build();
+        final org.apache.logging.log4j.core.Appender appender = rolling
+                ? org.apache.logging.log4j.core.appender.RollingFileAppender
+                        .newBuilder()
+                        .setConfiguration(configuration)
+                        .setName("benchmark")
+                        .setLayout(layout)
+                        .withFileName(new File(directory, "log4j2-rolling.log").getAbsolutePath())
+                        .withFilePattern(new File(directory, "log4j2-rolling-%d{yyyyMMdd}.log").getAbsolutePath())
+                        .withPolicy(TimeBasedTriggeringPolicy.newBuilder().build())
+                        .build()
+                : com.vlkan.rfos.log4j2.RotatingFileAppender
+                        .newBuilder()
+                        .setConfiguration(configuration)
+                        .setName("benchmark")
+                        .setLayout(layout)
+                        .withFileName(new File(directory, "log4j2-rotating.log").getAbsolutePath())
+                        .withFilePattern(new File(directory, "log4j2-rotating-%d{yyyyMMdd}.log").getAbsolutePath())
+                        .withDaily(true)
+                        .build();
+        appender.start();
+        final LogEvent event = Log4jLogEvent
+                .newBuilder()
+                .setLoggerName(AppenderBenchmark.class.getName())
+                .setLevel(Level.INFO)
+                .setMessage(new SimpleMessage("benchmark message"))
+                .build();
+        return new Target() {
+
+            @Override
+            public void append() {
+                appender.append(event);
+            }
+
+            @Override
+            public void close() {
+                appender.stop();
+            }
+
+        };
+    }
+
+    private static final class Appender extends Thread {
+
+        private final Target target;
+
+        private final int eventCount;
+
+        private final CountDownLatch startLatch;
+
+        private long allocatedByteCount;
+
+        private Appender(int index, Target target, int eventCount, CountDownLatch startLatch) {
+            super(String.format("%s.appender-%d", AppenderBenchmark.class.getSimpleName(), index));
+            this.target = target;
+            this.eventCount = eventCount;
+            this.startLatch = startLatch;
+        }
+
+        @Override
+        public void run() {
+            try {
+                startLatch.await();
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            long startAllocatedByteCount = getAllocatedByteCount();
+            for (int eventIndex = 0; eventIndex < eventCount; eventIndex++) {
+                target.append();
+            }
+            allocatedByteCount = getAllocatedByteCount() - startAllocatedByteCount;
+        }
+
+    }
+
+    private static long getAllocatedByteCount() {
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void run(String name, Target target, Options options) throws InterruptedException {
+
+        // Warm up.
+        for (int eventIndex = 0; eventIndex < options.warmupEventCount; eventIndex++) {
+            target.append();
+        }
+
+        // Run the appenders.
+        CountDownLatch startLatch = new CountDownLatch(1);
+        Appender[] appenders = new Appender[options.threadCount];
+        for (int threadIndex = 0; threadIndex < options.threadCount; threadIndex++) {
+            appenders[threadIndex] = new Appender(threadIndex, target, options.eventCount, startLatch);
+            appenders[threadIndex].start();
+        }
+        long startNanos = System.nanoTime();
+        startLatch.countDown();
+        long allocatedByteCount = 0;
+        for (Appender appender : appenders) {
+            appender.join();
+            allocatedByteCount += appender.allocatedByteCount;
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        target.close();
+
+        // Report the results.
+        long totalEventCount = (long) options.threadCount * options.eventCount;
+        System.out.format(
+                "%-16s %12.0f events/s %10.1f bytes/event%n",
+                name,
+                totalEventCount * 1e9 / elapsedNanos,
+                (double) allocatedByteCount / totalEventCount);
+
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        // Prepare the directory.
+        Options options = Options.parse(args);
+        System.out.println(options);
+        options.directory.mkdirs();
+        File[] existingFiles = options.directory.listFiles();
+        if (existingFiles != null) {
+            for (File existingFile : existingFiles) {
+                Filesystem.delete(existingFile.getAbsolutePath());
+            }
+        }
+
+        // Run the benchmarks.
+        run("logback-rotating", createLogbackTarget(options.directory, false), options);
+        run("logback-rolling", createLogbackTarget(options.directory, true), options);
+        run("log4j2-rotating", createLog4j2Target(options.directory, false), options);
+        run("log4j2-rolling", createLog4j2Target(options.directory, true), options);
+
+        // Stop the timers of the rotating appenders.
+        System.exit(0);
+
+    }
+
+}
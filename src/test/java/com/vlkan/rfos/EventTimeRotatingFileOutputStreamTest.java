@@ -0,0 +1,73 @@
+package com.vlkan.rfos;
+
+import org.joda.time.LocalDateTime;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EventTimeRotatingFileOutputStreamTest {
+
+    @Test
+    public void test() throws Exception {
+
+        // Create the directory.
+        String className = EventTimeRotatingFileOutputStream.class.getSimpleName();
+        File directory = new File(Filesystem.tmpDir(), className);
+        directory.mkdirs();
+        File[] existingFiles = directory.listFiles();
+        if (existingFiles != null) {
+            for (File existingFile : existingFiles) {
+                Filesystem.delete(existingFile.getAbsolutePath());
+            }
+        }
+
+        // Create the stream.
+        RecordingRotationCallback callback = new RecordingRotationCallback();
+        File lateFile = new File(directory, "late.log");
+        EventTimeRotatingFileOutputStream stream = EventTimeRotatingFileOutputStream
+                .builder()
+                .filePattern(new File(directory, "app-%d{yyyyMMdd-HH}.log").getAbsolutePath())
+                .maxOpenBucketCount(1)
+                .latenessMillis(TimeUnit.MINUTES.toMillis(10))
+                .lateFile(lateFile)
+                .callback(callback)
+                .build();
+        File file10 = new File(directory, "app-20171231-10.log").getAbsoluteFile();
+        File file11 = new File(directory, "app-20171231-11.log").getAbsoluteFile();
+        try {
+
+            // Write out of order events.
+            stream.write(LocalDateTime.parse("2017-12-31T10:15:00.000"), "a".getBytes(StandardCharsets.US_ASCII));
+            stream.write(LocalDateTime.parse("2017-12-31T11:05:00.000"), "b".getBytes(StandardCharsets.US_ASCII));
+            stream.write(LocalDateTime.parse("2017-12-31T10:55:00.000"), "c".getBytes(StandardCharsets.US_ASCII));
+            assertThat(stream.getOpenBucketCount()).isEqualTo(1);
+
+            // Advance the watermark past the first bucket, and wait for it to get closed.
+            stream.write(LocalDateTime.parse("2017-12-31T11:20:00.000"), "d".getBytes(StandardCharsets.US_ASCII));
+            File closedFile = callback.getSuccessFiles().poll(5, TimeUnit.SECONDS);
+            assertThat(closedFile).isEqualTo(file10);
+
+            // Write a late event of the closed bucket.
+            stream.write(LocalDateTime.parse("2017-12-31T10:30:00.000"), "e".getBytes(StandardCharsets.US_ASCII));
+            assertThat(stream.getLateEventCount()).isEqualTo(1);
+
+        } finally {
+            stream.close();
+        }
+
+        // Verify the files.
+        assertThat(callback.getSuccessFiles().poll(5, TimeUnit.SECONDS)).isEqualTo(file11);
+        assertThat(stream.getOpenBucketCount()).isEqualTo(0);
+        assertThat(callback.getFailureErrors()).isEmpty();
+        assertThat(new String(Files.readAllBytes(file10.toPath()), StandardCharsets.US_ASCII)).isEqualTo("ac");
+        assertThat(new String(Files.readAllBytes(file11.toPath()), StandardCharsets.US_ASCII)).isEqualTo("bd");
+        assertThat(new String(Files.readAllBytes(lateFile.toPath()), StandardCharsets.US_ASCII)).isEqualTo("e");
+
+    }
+
+}
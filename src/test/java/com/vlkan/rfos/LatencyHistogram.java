@@ -0,0 +1,79 @@
+package com.vlkan.rfos;
+
+// Log-linear histogram in the spirit of HdrHistogram: values are grouped by
+// their magnitude (power of two), and each magnitude is split into linear
+// sub-buckets, which bounds the relative error by 1/SUB_BUCKET_COUNT.
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+
+    private long totalCount;
+
+    private long maxValue;
+
+    void record(long value) {
+        long clampedValue = Math.max(0, value);
+        counts[index(clampedValue)]++;
+        totalCount++;
+        maxValue = Math.max(maxValue, clampedValue);
+    }
+
+    void add(LatencyHistogram histogram) {
+        for (int index = 0; index < BUCKET_COUNT; index++) {
+            counts[index] += histogram.counts[index];
+        }
+        totalCount += histogram.totalCount;
+        maxValue = Math.max(maxValue, histogram.maxValue);
+    }
+
+    long getTotalCount() {
+        return totalCount;
+    }
+
+    long getMaxValue() {
+        return maxValue;
+    }
+
+    // Returns the upper bound of the bucket containing the given percentile.
+    long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long targetCount = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        long count = 0;
+        for (int index = 0; index < BUCKET_COUNT; index++) {
+            count += counts[index];
+            if (count >= targetCount) {
+                return Math.min(maxValue, upperBound(index));
+            }
+        }
+        return maxValue;
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int subBucketIndex = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucketIndex;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucketIndex = index % SUB_BUCKET_COUNT;
+        long upperBound = ((SUB_BUCKET_COUNT + subBucketIndex + 1) << shift) - 1;
+        return upperBound < 0 ? Long.MAX_VALUE : upperBound;
+    }
+
+}
@@ -0,0 +1,361 @@
+package com.vlkan.rfos;
+
+import com.vlkan.rfos.policy.DailyRotationPolicy;
+import com.vlkan.rfos.policy.RotationPolicy;
+import com.vlkan.rfos.policy.SizeBasedRotationPolicy;
+import com.vlkan.rfos.policy.WeeklyRotationPolicy;
+import org.joda.time.LocalDateTime;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Drives concurrent writers against a RotatingFileOutputStream for a given
+// duration and reports the throughput, write latencies, and rotation latencies
+// (from the trigger to the completion of the stages, incl. stalls due to a full
+// stage backlog).
+// Not picked up by Surefire; run it via, e.g.,
+//
+//     mvn test-compile exec:java -Dexec.classpathScope=test \
+//         -Dexec.mainClass=com.vlkan.rfos.LoadTestHarness \
+//         -Dexec.args="threadCount=8 durationSeconds=60 policy=size checkIntervalMillis=50 compress=true"
+//
+public class LoadTestHarness {
+
+    private enum PayloadDistribution {
+
+        FIXED {
+            @Override
+            int next(Random random, int minByteCount, int maxByteCount) {
+                return maxByteCount;
+            }
+        },
+
+        UNIFORM {
+            @Override
+            int next(Random random, int minByteCount, int maxByteCount) {
+                return minByteCount + random.nextInt(maxByteCount - minByteCount + 1);
+            }
+        },
+
+        // Mostly small payloads with occasional large ones, like log events with stack traces.
+        EXPONENTIAL {
+            @Override
+            int next(Random random, int minByteCount, int maxByteCount) {
+                double mean = (maxByteCount - minByteCount) / 8.0;
+                long byteCount = minByteCount + (long) (-mean * Math.log(1 - random.nextDouble()));
+                return (int) Math.min(maxByteCount, byteCount);
+            }
+        };
+
+        abstract int next(Random random, int minByteCount, int maxByteCount);
+
+    }
+
+    private enum Policy {
+
+        SIZE {
+            @Override
+            RotationPolicy create(Options options) {
+                return new SizeBasedRotationPolicy(options.checkIntervalMillis, options.maxByteCount);
+            }
+        },
+
+        DAILY {
+            @Override
+            RotationPolicy create(Options options) {
+                return DailyRotationPolicy.getInstance();
+            }
+        },
+
+        WEEKLY {
+            @Override
+            RotationPolicy create(Options options) {
+                return WeeklyRotationPolicy.getInstance();
+            }
+        };
+
+        abstract RotationPolicy create(Options options);
+
+    }
+
+    private static final class Options {
+
+        private int threadCount = 4;
+
+        private int durationSeconds = 30;
+
+        private int minPayloadByteCount = 64;
+
+        private int maxPayloadByteCount = 1024;
+
+        private PayloadDistribution payloadDistribution = PayloadDistribution.EXPONENTIAL;
+
+        private Policy policy = Policy.SIZE;
+
+        private long checkIntervalMillis = 100;
+
+        private long maxByteCount = 10 * 1024 * 1024;
+
+        private boolean compress = false;
+
+        private boolean checksum = false;
+
+        private boolean flush = false;
+
+        private File directory = new File(Filesystem.tmpDir(), LoadTestHarness.class.getSimpleName());
+
+        private static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                int separatorIndex = arg.indexOf('=');
+                if (separatorIndex < 0) {
+                    String message = String.format("invalid argument, expecting key=value {arg=%s}", arg);
+                    throw new IllegalArgumentException(message);
+                }
+                String key = arg.substring(0, separatorIndex);
+                String value = arg.substring(separatorIndex + 1);
+                switch (key) {
+                    case "threadCount": options.threadCount = Integer.parseInt(value); break;
+                    case "durationSeconds": options.durationSeconds = Integer.parseInt(value); break;
+                    case "minPayloadByteCount": options.minPayloadByteCount = Integer.parseInt(value); break;
+                    case "maxPayloadByteCount": options.maxPayloadByteCount = Integer.parseInt(value); break;
+                    case "payloadDistribution": options.payloadDistribution = PayloadDistribution.valueOf(value.toUpperCase()); break;
+                    case "policy": options.policy = Policy.valueOf(value.toUpperCase()); break;
+                    case "checkIntervalMillis": options.checkIntervalMillis = Long.parseLong(value); break;
+                    case "maxByteCount": options.maxByteCount = Long.parseLong(value); break;
+                    case "compress": options.compress = Boolean.parseBoolean(value); break;
+                    case "checksum": options.checksum = Boolean.parseBoolean(value); break;
+                    case "flush": options.flush = Boolean.parseBoolean(value); break;
+                    case "directory": options.directory = new File(value); break;
+                    default:
+                        String message = String.format("unknown argument {key=%s}", key);
+                        throw new IllegalArgumentException(message);
+                }
+            }
+            return options;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "Options{threadCount=%d, durationSeconds=%d, minPayloadByteCount=%d, maxPayloadByteCount=%d, " +
+                            "payloadDistribution=%s, policy=%s, checkIntervalMillis=%d, maxByteCount=%d, " +
+                            "compress=%s, checksum=%s, flush=%s, directory=%s}",
+                    threadCount, durationSeconds, minPayloadByteCount, maxPayloadByteCount, payloadDistribution,
+                    policy, checkIntervalMillis, maxByteCount, compress, checksum, flush, directory);
+        }
+
+    }
+
+    // Measures the time from the rotation trigger to its completion, including the stages.
+    private static final class LatencyRecordingCallback implements RotationCallback {
+
+        private final ConcurrentMap<LocalDateTime, Long> triggerNanosByDateTime = new ConcurrentHashMap<>();
+
+        private final LatencyHistogram latencyHistogram = new LatencyHistogram();
+
+        private final AtomicInteger conflictCount = new AtomicInteger();
+
+        private final AtomicInteger failureCount = new AtomicInteger();
+
+        @Override
+        public void onTrigger(RotationPolicy policy, LocalDateTime dateTime) {
+            triggerNanosByDateTime.put(dateTime, System.nanoTime());
+        }
+
+        @Override
+        public void onConflict(RotationPolicy policy, LocalDateTime dateTime) {
+            conflictCount.incrementAndGet();
+        }
+
+        @Override
+        public void onSuccess(RotationPolicy policy, LocalDateTime dateTime, File file) {
+            Long triggerNanos = triggerNanosByDateTime.remove(dateTime);
+            if (triggerNanos != null && file != null) {
+                synchronized (latencyHistogram) {
+                    latencyHistogram.record(System.nanoTime() - triggerNanos);
+                }
+            }
+        }
+
+        @Override
+        public void onFailure(RotationPolicy policy, LocalDateTime dateTime, File file, Exception error) {
+            failureCount.incrementAndGet();
+            error.printStackTrace();
+        }
+
+    }
+
+    private static final class Writer extends Thread {
+
+        private final RotatingFileOutputStream stream;
+
+        private final Options options;
+
+        private final CountDownLatch startLatch;
+
+        private final long endNanos;
+
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        private long byteCount;
+
+        private Writer(int index, RotatingFileOutputStream stream, Options options, CountDownLatch startLatch, long endNanos) {
+            super(String.format("%s.writer-%d", LoadTestHarness.class.getSimpleName(), index));
+            this.stream = stream;
+            this.options = options;
+            this.startLatch = startLatch;
+            this.endNanos = endNanos;
+        }
+
+        @Override
+        public void run() {
+            Random random = new Random();
+            byte[] payload = new byte[options.maxPayloadByteCount];
+            for (int index = 0; index < payload.length; index++) {
+                payload[index] = (byte) ('a' + random.nextInt(26));
+            }
+            payload[payload.length - 1] = '\n';
+            try {
+                startLatch.await();
+                while (System.nanoTime() - endNanos < 0) {
+                    int payloadByteCount = options.payloadDistribution.next(
+                            random, options.minPayloadByteCount, options.maxPayloadByteCount);
+                    long startNanos = System.nanoTime();
+                    stream.write(payload, payload.length - payloadByteCount, payloadByteCount);
+                    if (options.flush) {
+                        stream.flush();
+                    }
+                    histogram.record(System.nanoTime() - startNanos);
+                    byteCount += payloadByteCount;
+                }
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            } catch (IOException error) {
+                throw new RuntimeException(error);
+            }
+        }
+
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        // Prepare the directory.
+        Options options = Options.parse(args);
+        System.out.println(options);
+        options.directory.mkdirs();
+        File[] existingFiles = options.directory.listFiles();
+        if (existingFiles != null) {
+            for (File existingFile : existingFiles) {
+                Filesystem.delete(existingFile.getAbsolutePath());
+            }
+        }
+
+        // Create the stream.
+        LatencyRecordingCallback callback = new LatencyRecordingCallback();
+        RotationConfig config = RotationConfig
+                .builder()
+                .file(new File(options.directory, "app.log"))
+                .filePattern(new File(options.directory, "app-%d{yyyyMMdd-HHmmss-SSS}.log").getAbsolutePath())
+                .policy(options.policy.create(options))
+                .compress(options.compress)
+                .checksum(options.checksum)
+                .callback(callback)
+                .build();
+        RotatingFileOutputStream stream = new RotatingFileOutputStream(config);
+
+        // Run the writers.
+        CountDownLatch startLatch = new CountDownLatch(1);
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        List<Writer> writers = new ArrayList<>(options.threadCount);
+        for (int index = 0; index < options.threadCount; index++) {
+            Writer writer = new Writer(index, stream, options, startLatch, endNanos);
+            writer.start();
+            writers.add(writer);
+        }
+        startLatch.countDown();
+        int maxStageBacklogSize = 0;
+        while (System.nanoTime() - endNanos < 0) {
+            TimeUnit.MILLISECONDS.sleep(100);
+            if (config.getExecutor() instanceof ThreadPoolExecutor) {
+                int stageBacklogSize = ((ThreadPoolExecutor) config.getExecutor()).getQueue().size();
+                maxStageBacklogSize = Math.max(maxStageBacklogSize, stageBacklogSize);
+            }
+        }
+        LatencyHistogram histogram = new LatencyHistogram();
+        long byteCount = 0;
+        for (Writer writer : writers) {
+            writer.join();
+            histogram.add(writer.histogram);
+            byteCount += writer.byteCount;
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        stream.close();
+        if (config.getExecutor() != null) {
+            config.getExecutor().awaitTermination(1, TimeUnit.MINUTES);
+        }
+        int leakedFileDescriptorCount = countFileDescriptors(options.directory);
+
+        // Report.
+        double elapsedSeconds = elapsedNanos / 1e9;
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("writeCount", histogram.getTotalCount());
+        report.put("writesPerSecond", String.format("%.0f", histogram.getTotalCount() / elapsedSeconds));
+        report.put("megabytesPerSecond", String.format("%.2f", byteCount / elapsedSeconds / 1024 / 1024));
+        reportLatencies(report, "writeLatency", histogram);
+        reportLatencies(report, "rotationLatency", callback.latencyHistogram);
+        report.put("rotationCount", callback.latencyHistogram.getTotalCount());
+        report.put("rotationConflictCount", callback.conflictCount.get());
+        report.put("rotationFailureCount", callback.failureCount.get());
+        report.put("maxStageBacklogSize", maxStageBacklogSize);
+        report.put("leakedFileDescriptorCount", leakedFileDescriptorCount < 0 ? "N/A" : leakedFileDescriptorCount);
+        for (Map.Entry<String, Object> entry : report.entrySet()) {
+            System.out.format("%-32s %s%n", entry.getKey(), entry.getValue());
+        }
+
+    }
+
+    private static void reportLatencies(Map<String, Object> report, String name, LatencyHistogram histogram) {
+        double[] percentiles = {50, 90, 99, 99.9, 99.99};
+        for (double percentile : percentiles) {
+            String key = String.format("%s.p%s.micros", name, String.valueOf(percentile).replaceAll("\\.0$", ""));
+            report.put(key, histogram.getValueAtPercentile(percentile) / 1000);
+        }
+        report.put(name + ".max.micros", histogram.getMaxValue() / 1000);
+    }
+
+    // Counts the file descriptors pointing into the given directory on Linux, returns -1 elsewhere.
+    private static int countFileDescriptors(File directory) {
+        File[] fileDescriptors = new File("/proc/self/fd").listFiles();
+        if (fileDescriptors == null) {
+            return -1;
+        }
+        Path directoryPath = directory.getAbsoluteFile().toPath();
+        int count = 0;
+        for (File fileDescriptor : fileDescriptors) {
+            try {
+                if (Files.readSymbolicLink(fileDescriptor.toPath()).startsWith(directoryPath)) {
+                    count++;
+                }
+            } catch (IOException ignored) {
+                // File descriptor is already closed.
+            }
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,31 @@
+package com.vlkan.rfos;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NewlinesTest {
+
+    @Test
+    public void test_indexOf() {
+        for (int length = 0; length < 24; length++) {
+            byte[] bytes = new byte[length];
+            // Fill with bytes that can produce false positives in a sloppy SWAR test.
+            Arrays.fill(bytes, (byte) 0x8A);
+            assertThat(Newlines.indexOf(bytes, 0, length)).isEqualTo(-1);
+            for (int newlineIndex = 0; newlineIndex < length; newlineIndex++) {
+                bytes[newlineIndex] = '\n';
+                if (newlineIndex + 1 < length) {
+                    bytes[newlineIndex + 1] = 0x0B;
+                }
+                assertThat(Newlines.indexOf(bytes, 0, length)).isEqualTo(newlineIndex);
+                assertThat(Newlines.indexOf(bytes, newlineIndex, length - newlineIndex)).isEqualTo(newlineIndex);
+                assertThat(Newlines.indexOf(bytes, 0, newlineIndex)).isEqualTo(-1);
+                Arrays.fill(bytes, (byte) 0x8A);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.vlkan.rfos;
+
+import com.vlkan.rfos.policy.RotationPolicy;
+import com.vlkan.rfos.stage.RotationStage;
+import org.joda.time.LocalDateTime;
+
+import java.io.File;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+
+public class RecordingRotationCallback implements RotationCallback, RotationStageCallback, DegradedModeCallback {
+
+    private final BlockingQueue<LocalDateTime> conflictDateTimes = new LinkedBlockingDeque<>();
+
+    private final BlockingQueue<File> successFiles = new LinkedBlockingDeque<>();
+
+    private final BlockingQueue<RotationStage> stageSuccessStages = new LinkedBlockingDeque<>();
+
+    private final BlockingQueue<Exception> failureErrors = new LinkedBlockingDeque<>();
+
+    private final BlockingQueue<Exception> degradedModeEnterErrors = new LinkedBlockingDeque<>();
+
+    private final BlockingQueue<Long> degradedModeExitDroppedByteCounts = new LinkedBlockingDeque<>();
+
+    @Override
+    public void onTrigger(RotationPolicy policy, LocalDateTime dateTime) {
+        // Do nothing.
+    }
+
+    @Override
+    public void onConflict(RotationPolicy policy, LocalDateTime dateTime) {
+        conflictDateTimes.add(dateTime);
+    }
+
+    @Override
+    public void onSuccess(RotationPolicy policy, LocalDateTime dateTime, File file) {
+        successFiles.add(file);
+    }
+
+    @Override
+    public void onStageSuccess(RotationPolicy policy, LocalDateTime dateTime, RotationStage stage, File file, long durationNanos) {
+        stageSuccessStages.add(stage);
+    }
+
+    @Override
+    public void onFailure(RotationPolicy policy, LocalDateTime dateTime, File file, Exception error) {
+        failureErrors.add(error);
+    }
+
+    @Override
+    public void onDegradedModeEnter(File file, Exception error) {
+        degradedModeEnterErrors.add(error);
+    }
+
+    @Override
+    public void onDegradedModeExit(File file, long droppedByteCount) {
+        degradedModeExitDroppedByteCounts.add(droppedByteCount);
+    }
+
+    public BlockingQueue<LocalDateTime> getConflictDateTimes() {
+        return conflictDateTimes;
+    }
+
+    public BlockingQueue<File> getSuccessFiles() {
+        return successFiles;
+    }
+
+    public BlockingQueue<RotationStage> getStageSuccessStages() {
+        return stageSuccessStages;
+    }
+
+    public BlockingQueue<Exception> getFailureErrors() {
+        return failureErrors;
+    }
+
+    public BlockingQueue<Exception> getDegradedModeEnterErrors() {
+        return degradedModeEnterErrors;
+    }
+
+    public BlockingQueue<Long> getDegradedModeExitDroppedByteCounts() {
+        return degradedModeExitDroppedByteCounts;
+    }
+
+}
@@ -0,0 +1,156 @@
+package com.vlkan.rfos;
+
+import com.vlkan.rfos.job.CompactionJob;
+import com.vlkan.rfos.policy.SizeBasedRotationPolicy;
+import org.joda.time.LocalDateTime;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.TimerTask;
+import java.util.zip.Checksum;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RotatingFileOutputStreamRegistryTest {
+
+    @Test
+    public void test() throws Exception {
+
+        // Create the directory.
+        String className = RotatingFileOutputStreamRegistry.class.getSimpleName();
+        File directory = new File(Filesystem.tmpDir(), className);
+        directory.mkdirs();
+        String[] keys = {"a", "b", "c", "d"};
+        for (String key : keys) {
+            Filesystem.delete(new File(directory, key + ".log").getAbsolutePath());
+        }
+
+        // Create the registry.
+        RotationConfig template = RotationConfig
+                .builder()
+                .file(new File(directory, "${key}.log"))
+                .filePattern(new File(directory, "${key}-%d{yyyy}.log").getAbsolutePath())
+                .policy(new SizeBasedRotationPolicy(60_000, Long.MAX_VALUE))
+                .job(new CompactionJob(
+                        new RotatingFilePattern(new File(directory, "${key}-archive-%d{yyyy}.log.gz").getAbsolutePath()),
+                        1_024,
+                        60_000))
+                .lazy(true)
+                .build();
+        int maxOpenFileCount = 2;
+        try (RotatingFileOutputStreamRegistry registry = new RotatingFileOutputStreamRegistry(template, maxOpenFileCount)) {
+
+            // Write to streams in turns.
+            for (int round = 0; round < 3; round++) {
+                for (String key : keys) {
+                    RotatingFileOutputStream stream = registry.get(key);
+                    assertThat(registry.get(key)).isSameAs(stream);
+                    assertThat(registry.getOpenFileCount()).isLessThanOrEqualTo(maxOpenFileCount);
+                    stream.write(String.format("%s%d", key, round).getBytes(StandardCharsets.US_ASCII));
+                    stream.flush();
+                }
+            }
+
+            // Verify the streams share the timer, but not the lock.
+            RotationConfig configA = registry.get("a").getConfig();
+            RotationConfig configB = registry.get("b").getConfig();
+            assertThat(configA.getTimer())
+                    .isSameAs(configB.getTimer())
+                    .isSameAs(template.getTimer());
+            assertThat(configA.getLock()).isNotSameAs(configB.getLock());
+
+            // Verify the archives of the streams are kept apart.
+            CompactionJob jobA = (CompactionJob) configA.getJobs().iterator().next();
+            assertThat(jobA.getArchiveFilePattern().getPattern())
+                    .isEqualTo(new File(directory, "a-archive-%d{yyyy}.log.gz").getAbsolutePath());
+
+        }
+
+        // Verify the files.
+        for (String key : keys) {
+            File file = new File(directory, key + ".log");
+            String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII);
+            assertThat(content).isEqualTo(String.format("%s0%s1%s2", key, key, key));
+        }
+
+    }
+
+    @Test
+    public void test_close_release_and_sweep() throws Exception {
+
+        // Create the directory.
+        String className = RotatingFileOutputStreamRegistry.class.getSimpleName();
+        File directory = new File(Filesystem.tmpDir(), className + "-sweep");
+        Filesystem.delete(directory.getAbsolutePath());
+        directory.mkdirs();
+
+        // Create the registry.
+        SizeBasedRotationPolicy policy = new SizeBasedRotationPolicy(60_000, Long.MAX_VALUE);
+        RotationConfig template = RotationConfig
+                .builder()
+                .file(new File(directory, "${key}.log"))
+                .filePattern(new File(directory, "${key}-%d{yyyy}.log").getAbsolutePath())
+                .policy(policy)
+                .checksum(true)
+                .lazy(true)
+                .build();
+        try (RotatingFileOutputStreamRegistry registry = new RotatingFileOutputStreamRegistry(template, 1)) {
+
+            // Write through held streams, which should get evicted in the background.
+            RotatingFileOutputStream streamA = registry.get("a");
+            RotatingFileOutputStream streamB = registry.get("b");
+            streamA.write('a');
+            streamB.write('b');
+            for (int retryCount = 0; registry.getOpenFileCount() > 1 && retryCount < 100; retryCount++) {
+                Thread.sleep(10);
+            }
+            assertThat(registry.getOpenFileCount()).isEqualTo(1);
+
+            // Verify closing a stream leaves the timer of the others intact.
+            streamA.close();
+            streamB.getConfig().schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    // Do nothing.
+                }
+            }, 60_000);
+            streamB.write('b');
+
+            // Rotate the released stream and verify the checksum.
+            streamB.release();
+            LocalDateTime dateTime = LocalDateTime.now();
+            streamB.rotate(policy, dateTime);
+            File rotatedFile = new File(directory, String.format("b-%d.log", dateTime.getYear()));
+            assertThat(rotatedFile).hasContent("bb");
+            Checksum checksum = ChecksumOutputStream.createChecksum();
+            checksum.update(new byte[]{'b', 'b'}, 0, 2);
+            File checksumFile = ChecksumOutputStream.getChecksumFile(rotatedFile);
+            assertThat(checksumFile).hasContent(String.format("%08x", checksum.getValue()));
+
+            // Verify the sweep removes the idle streams without a file.
+            int streamCount = registry.getStreamCount();
+            registry.sweep();
+            assertThat(registry.getStreamCount()).isEqualTo(streamCount);
+            registry.sweep();
+            assertThat(registry.getStreamCount()).isEqualTo(streamCount - 1);
+            assertThat(registry.get("b")).isNotSameAs(streamB);
+
+        }
+
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_missing_placeholder() {
+        RotationConfig template = RotationConfig
+                .builder()
+                .file(new File(Filesystem.tmpDir(), "app.log"))
+                .filePattern(new File(Filesystem.tmpDir(), "app-%d{yyyy}.log").getAbsolutePath())
+                .policy(new SizeBasedRotationPolicy(60_000, Long.MAX_VALUE))
+                .lazy(true)
+                .build();
+        new RotatingFileOutputStreamRegistry(template, 1);
+    }
+
+}
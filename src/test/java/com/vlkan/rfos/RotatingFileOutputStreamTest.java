@@ -7,15 +7,38 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Checksum;
+import java.util.zip.GZIPInputStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
 
 public class RotatingFileOutputStreamTest {
 
@@ -211,4 +234,1062 @@ public class RotatingFileOutputStreamTest {
 
     }
 
+    @Test
+    public void test_checksum() throws Exception {
+
+        // Set file names.
+        String className = RotatingFileOutputStream.class.getSimpleName();
+        File file = new File(Filesystem.tmpDir(), className + "-checksum.log");
+        String fileNamePattern = new File(Filesystem.tmpDir(), className + "-checksum-%d{yyyy}.log").getAbsolutePath();
+        LocalDateTime dateTime = LocalDateTime.now();
+        File rotatedFile = new RotatingFilePattern(fileNamePattern).create(dateTime).getAbsoluteFile();
+        File checksumFile = ChecksumOutputStream.getChecksumFile(rotatedFile);
+        Filesystem.delete(checksumFile.getAbsolutePath());
+
+        // Create a file with existing content.
+        byte[] existingBytes = "existing\n".getBytes(StandardCharsets.US_ASCII);
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(existingBytes);
+        }
+
+        // Create the stream.
+        RecordingRotationCallback callback = new RecordingRotationCallback();
+        RotationPolicy policy = new SizeBasedRotationPolicy(60_000, Long.MAX_VALUE);
+        RotationConfig config = RotationConfig
+                .builder()
+                .file(file)
+                .filePattern(fileNamePattern)
+                .policy(policy)
+                .checksum(true)
+                .callback(callback)
+                .build();
+        byte[] writtenBytes = "written\n".getBytes(StandardCharsets.US_ASCII);
+        try (RotatingFileOutputStream stream = new RotatingFileOutputStream(config)) {
+            stream.write(writtenBytes);
+            stream.write('!');
+            stream.rotate(policy, dateTime);
+        }
+
+        // Verify the rotation.
+        assertThat(callback.getFailureErrors()).isEmpty();
+        assertThat(callback.getSuccessFiles().poll(1, TimeUnit.SECONDS)).isEqualTo(rotatedFile);
+
+        // Verify the checksum.
+        Checksum expectedChecksum = ChecksumOutputStream.createChecksum();
+        expectedChecksum.update(existingBytes, 0, existingBytes.length);
+        expectedChecksum.update(writtenBytes, 0, writtenBytes.length);
+        expectedChecksum.update('!');
+        String checksumText = new String(Files.readAllBytes(checksumFile.toPath()), StandardCharsets.US_ASCII).trim();
+        assertThat(checksumText).isEqualTo(String.format("%08x", expectedChecksum.getValue()));
+
+    }
+
+    @Test
+    public void test_checksum_state() throws Exception {
+
+        // Set file names.
+        String className = RotatingFileOutputStream.class.getSimpleName();
+        File file = new File(Filesystem.tmpDir(), className + "-checksum-state.log");
+        String fileNamePattern =
+                new File(Filesystem.tmpDir(), className + "-checksum-state-%d{yyyy}.log").getAbsolutePath();
+        LocalDateTime dateTime = LocalDateTime.parse("2017-12-31T00:00:00.000");
+        File rotatedFile = new RotatingFilePattern(fileNamePattern).create(dateTime).getAbsoluteFile();
+        File checksumFile = ChecksumOutputStream.getChecksumFile(rotatedFile);
+        File stateFile = ChecksumOutputStream.getStateFile(file);
+        for (File existingFile : Arrays.asList(file, rotatedFile, checksumFile, stateFile)) {
+            Filesystem.delete(existingFile.getAbsolutePath());
+        }
+
+        // Create the config.
+        RecordingRotationCallback callback = new RecordingRotationCallback();
+        RotationPolicy policy = new RotationPolicy() {
+            @Override
+            public void start(Rotatable rotatable) {
+                // Do nothing.
+            }
+        };
+        RotationConfig config = RotationConfig
+                .builder()
+                .file(file)
+                .filePattern(fileNamePattern)
+                .policy(policy)
+                .checksum(true)
+                .lazy(true)
+                .callback(callback)
+                .build();
+
+        // Write and close, which persists the state.
+        try (RotatingFileOutputStream stream = new RotatingFileOutputStream(config)) {
+            stream.write("first\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        Checksum expectedChecksum = ChecksumOutputStream.createChecksum();
+        expectedChecksum.update("first\n".getBytes(StandardCharsets.US_ASCII), 0, 6);
+        String stateText = new String(Files.readAllBytes(stateFile.toPath()), StandardCharsets.US_ASCII);
+        assertThat(stateText).isEqualTo(String.format("%08x 6%n", expectedChecksum.getValue()));
+
+        // Append with the restored state, release, append again, and rotate the released file.
+        try (RotatingFileOutputStream stream = new RotatingFileOutputStream(config)) {
+            stream.write("second\n".getBytes(StandardCharsets.US_ASCII));
+            assertThat(stateFile).doesNotExist();
+            assertThat(stream.release()).isTrue();
+            stream.write("third\n".getBytes(StandardCharsets.US_ASCII));
+            assertThat(stream.release()).isTrue();
+            stream.rotate(policy, dateTime);
+        }
+
+        // Verify the checksum.
+        assertThat(callback.getFailureErrors()).isEmpty();
+        assertThat(callback.getSuccessFiles().poll(1, TimeUnit.SECONDS)).isEqualTo(rotatedFile);
+        assertThat(stateFile).doesNotExist();
+        byte[] rotatedBytes = Files.readAllBytes(rotatedFile.toPath());
+        assertThat(new String(rotatedBytes, StandardCharsets.US_ASCII)).isEqualTo("first\nsecond\nthird\n");
+        expectedChecksum = ChecksumOutputStream.createChecksum();
+        expectedChecksum.update(rotatedBytes, 0, rotatedBytes.length);
+        String checksumText = new String(Files.readAllBytes(checksumFile.toPath()), StandardCharsets.US_ASCII).trim();
+        assertThat(checksumText).isEqualTo(String.format("%08x", expectedChecksum.getValue()));
+
+    }
+
+    @Test
+    public void test_recovery() throws Exception {
+
+        // Create the directory.
+        String className = RotatingFileOutputStream.class.getSimpleName();
+        File directory = new File(Filesystem.tmpDir(), className + "-recovery");
+        directory.mkdirs();
+        File[] existingFiles = directory.listFiles();
+        if (existingFiles != null) {
+            for (File existingFile : existingFiles) {
+                Filesystem.delete(existingFile.getAbsolutePath());
+            }
+        }
+
+        // Create leftover rotated files, one of them with a partial compressed file.
+        File file = new File(directory, "app.log");
+        File rotatedFile1 = new File(directory, "app-2016.log");
+        File rotatedFile2 = new File(directory, "app-2017.log");
+        File partialCompressedFile = new File(directory, "app-2017.log.gz");
+        byte[] content1 = "2016\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] content2 = "2017\n".getBytes(StandardCharsets.US_ASCII);
+        write(rotatedFile1, content1);
+        write(rotatedFile2, content2);
+        write(partialCompressedFile, new byte[]{0x1f});
+        RotationRecovery.mark(rotatedFile1);
+        RotationRecovery.mark(rotatedFile2);
+
+        // Create a processed rotated file, and a stale marker of a compressed one.
+        File processedFile = new File(directory, "app-2015.log");
+        write(processedFile, "2015\n".getBytes(StandardCharsets.US_ASCII));
+        File staleMarkerFile = RotationRecovery.getMarkerFile(new File(directory, "app-2014.log"));
+        write(staleMarkerFile, new byte[0]);
+
+        // Create the stream.
+        RecordingRotationCallback callback = new RecordingRotationCallback();
+        RotationConfig config = RotationConfig
+                .builder()
+                .file(file)
+                .filePattern(new File(directory, "app-%d{yyyy}.log").getAbsolutePath())
+                .policy(new SizeBasedRotationPolicy(60_000, Long.MAX_VALUE))
+                .compress(true)
+                .recovery(true)
+                .recoveryThreadCount(2)
+                .callback(callback)
+                .build();
+        try (RotatingFileOutputStream ignored = new RotatingFileOutputStream(config)) {
+
+            // Verify the recovery.
+            File compressedFile1 = callback.getSuccessFiles().poll(5, TimeUnit.SECONDS);
+            File compressedFile2 = callback.getSuccessFiles().poll(5, TimeUnit.SECONDS);
+            assertThat(callback.getFailureErrors()).isEmpty();
+            assertThat(Arrays.asList(compressedFile1, compressedFile2)).containsOnly(
+                    new File(directory, "app-2016.log.gz").getAbsoluteFile(),
+                    partialCompressedFile.getAbsoluteFile());
+
+        }
+
+        // Verify the files. (Markers get removed right after the success callback.)
+        assertThat(rotatedFile1).doesNotExist();
+        assertThat(rotatedFile2).doesNotExist();
+        for (int retryCount = 0;
+             (RotationRecovery.getMarkerFile(rotatedFile1).exists() ||
+                     RotationRecovery.getMarkerFile(rotatedFile2).exists()) && retryCount < 100;
+             retryCount++) {
+            Thread.sleep(10);
+        }
+        assertThat(RotationRecovery.getMarkerFile(rotatedFile1)).doesNotExist();
+        assertThat(RotationRecovery.getMarkerFile(rotatedFile2)).doesNotExist();
+        assertThat(processedFile).hasContent("2015\n");
+        assertThat(staleMarkerFile).doesNotExist();
+        assertThat(decompress(new File(directory, "app-2016.log.gz"))).isEqualTo(content1);
+        assertThat(decompress(partialCompressedFile)).isEqualTo(content2);
+
+    }
+
+    @Test
+    public void test_lazy() throws Exception {
+
+        // Set file names.
+        String className = RotatingFileOutputStream.class.getSimpleName();
+        File file = new File(Filesystem.tmpDir(), className + "-lazy.log");
+        Filesystem.delete(file.getAbsolutePath());
+
+        // Create a policy counting its starts.
+        final AtomicInteger policyStartCount = new AtomicInteger();
+        RotationPolicy policy = new RotationPolicy() {
+            @Override
+            public void start(Rotatable rotatable) {
+                policyStartCount.incrementAndGet();
+            }
+        };
+
+        // Create the stream.
+        RotationConfig config = RotationConfig
+                .builder()
+                .file(file)
+                .filePattern(new File(Filesystem.tmpDir(), className + "-lazy-%d{yyyy}.log").getAbsolutePath())
+                .policy(policy)
+                .lazy(true)
+                .build();
+        try (RotatingFileOutputStream stream = new RotatingFileOutputStream(config)) {
+
+            // Verify nothing is started before the first write.
+            stream.flush();
+            assertThat(file).doesNotExist();
+            assertThat(policyStartCount.get()).isEqualTo(0);
+
+            // Verify the first write starts the stream.
+            stream.write('a');
+            stream.write('b');
+            stream.flush();
+            assertThat(file.length()).isEqualTo(2);
+            assertThat(policyStartCount.get()).isEqualTo(1);
+
+        }
+
+    }
+
+    @Test
+    public void test_lineAware() throws Exception {
+
+        // Set file names.
+        String className = RotatingFileOutputStream.class.getSimpleName();
+        File file = new File(Filesystem.tmpDir(), className + "-lineAware.log");
+        Filesystem.delete(file.getAbsolutePath());
+        File rotatedFile = new File(Filesystem.tmpDir(), className + "-lineAware-2017.log").getAbsoluteFile();
+        Filesystem.delete(rotatedFile.getAbsolutePath());
+
+        // Create the stream.
+        RecordingRotationCallback callback = new RecordingRotationCallback();
+        RotationPolicy policy = new RotationPolicy() {
+            @Override
+            public void start(Rotatable rotatable) {
+                // Do nothing.
+            }
+        };
+        RotationConfig config = RotationConfig
+                .builder()
+                .file(file)
+                .filePattern(new File(Filesystem.tmpDir(), className + "-lineAware-%d{yyyy}.log").getAbsolutePath())
+                .policy(policy)
+                .lineAware(true)
+                .callback(callback)
+                .build();
+        LocalDateTime dateTime = LocalDateTime.parse("2017-12-31T00:00:00.000");
+        try (RotatingFileOutputStream stream = new RotatingFileOutputStream(config)) {
+
+            // Rotate in the middle of a line.
+            stream.write("foo\nba".getBytes(StandardCharsets.US_ASCII));
+            stream.rotate(policy, dateTime);
+            assertThat(callback.getSuccessFiles()).isEmpty();
+
+            // Verify that rotations conflict with the deferred one.
+            stream.rotate(policy, dateTime);
+            assertThat(callback.getConflictDateTimes()).containsExactly(dateTime);
+
+            // Complete the line, which completes the rotation.
+            stream.write('r');
+            assertThat(callback.getSuccessFiles()).isEmpty();
+            stream.write("baz\nqux\n".getBytes(StandardCharsets.US_ASCII));
+            assertThat(callback.getSuccessFiles().poll(1, TimeUnit.SECONDS)).isEqualTo(rotatedFile);
+            stream.flush();
+
+        }
+
+        // Verify the file contents.
+        assertThat(callback.getFailureErrors()).isEmpty();
+        String rotatedContent = new String(Files.readAllBytes(rotatedFile.toPath()), StandardCharsets.US_ASCII);
+        assertThat(rotatedContent).isEqualTo("foo\nbarbaz\n");
+        String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII);
+        assertThat(content).isEqualTo("qux\n");
+
+    }
+
+    @Test
+    public void test_encryption() throws Exception {
+
+        // Set file names.
+        String className = RotatingFileOutputStream.class.getSimpleName();
+        File file = new File(Filesystem.tmpDir(), className + "-encryption.log");
+        Filesystem.delete(file.getAbsolutePath());
+        File rotatedFile = new File(Filesystem.tmpDir(), className + "-encryption-2017.log").getAbsoluteFile();
+        File checksumFile = ChecksumOutputStream.getChecksumFile(rotatedFile);
+
+        // Create the config.
+        byte[] keyBytes = new byte[16];
+        new SecureRandom().nextBytes(keyBytes);
+        SecretKey key = new SecretKeySpec(keyBytes, "AES");
+        RecordingRotationCallback callback = new RecordingRotationCallback();
+        RotationPolicy policy = new RotationPolicy() {
+            @Override
+            public void start(Rotatable rotatable) {
+                // Do nothing.
+            }
+        };
+        RotationConfig config = RotationConfig
+                .builder()
+                .file(file)
+                .filePattern(new File(Filesystem.tmpDir(), className + "-encryption-%d{yyyy}.log").getAbsolutePath())
+                .policy(policy)
+                .checksum(true)
+                .encryptionKey(key)
+                .callback(callback)
+                .build();
+
+        // Write with a stream and append, leaving the counter in the middle of a block.
+        byte[] writtenBytes1 = "first write spanning more than a single block\n".getBytes(StandardCharsets.US_ASCII);
+        try (RotatingFileOutputStream stream = new RotatingFileOutputStream(config)) {
+            stream.write(writtenBytes1);
+        }
+        byte[] writtenBytes2 = "appended\n".getBytes(StandardCharsets.US_ASCII);
+        try (RotatingFileOutputStream stream = new RotatingFileOutputStream(config)) {
+            stream.write(writtenBytes2);
+            stream.write('!');
+            stream.rotate(policy, LocalDateTime.parse("2017-12-31T00:00:00.000"));
+        }
+
+        // Verify the rotation.
+        assertThat(callback.getFailureErrors()).isEmpty();
+        assertThat(callback.getSuccessFiles().poll(1, TimeUnit.SECONDS)).isEqualTo(rotatedFile);
+
+        // Verify the decrypted content.
+        byte[] encryptedBytes = Files.readAllBytes(rotatedFile.toPath());
+        ByteArrayOutputStream decryptedOutputStream = new ByteArrayOutputStream();
+        try (InputStream inputStream = new DecryptionInputStream(new FileInputStream(rotatedFile), key)) {
+            byte[] buffer = new byte[7];
+            int readByteCount;
+            while ((readByteCount = inputStream.read(buffer)) > 0) {
+                decryptedOutputStream.write(buffer, 0, readByteCount);
+            }
+        }
+        String decryptedContent = new String(decryptedOutputStream.toByteArray(), StandardCharsets.US_ASCII);
+        String expectedContent = new String(writtenBytes1, StandardCharsets.US_ASCII) +
+                new String(writtenBytes2, StandardCharsets.US_ASCII) + '!';
+        assertThat(decryptedContent).isEqualTo(expectedContent);
+        assertThat(encryptedBytes).hasSize(EncryptionOutputStream.HEADER_LENGTH + expectedContent.length());
+
+        // Verify the checksum covers the encrypted content.
+        Checksum expectedChecksum = ChecksumOutputStream.createChecksum();
+        expectedChecksum.update(encryptedBytes, 0, encryptedBytes.length);
+        String checksumText = new String(Files.readAllBytes(checksumFile.toPath()), StandardCharsets.US_ASCII).trim();
+        assertThat(checksumText).isEqualTo(String.format("%08x", expectedChecksum.getValue()));
+
+    }
+
+    @Test
+    public void test_encryption_compress() throws Exception {
+
+        // Set file names.
+        String className = RotatingFileOutputStream.class.getSimpleName();
+        File file = new File(Filesystem.tmpDir(), className + "-encryption-compress.log");
+        Filesystem.delete(file.getAbsolutePath());
+        File rotatedFile = new File(
+                Filesystem.tmpDir(), className + "-encryption-compress-2017.log").getAbsoluteFile();
+        File compressedFile = new File(rotatedFile.getPath() + ".gz");
+        Filesystem.delete(compressedFile.getAbsolutePath());
+
+        // Create the config.
+        byte[] keyBytes = new byte[16];
+        new SecureRandom().nextBytes(keyBytes);
+        SecretKey key = new SecretKeySpec(keyBytes, "AES");
+        RecordingRotationCallback callback = new RecordingRotationCallback();
+        RotationPolicy policy = new RotationPolicy() {
+            @Override
+            public void start(Rotatable rotatable) {
+                // Do nothing.
+            }
+        };
+        RotationConfig config = RotationConfig
+                .builder()
+                .file(file)
+                .filePattern(new File(
+                        Filesystem.tmpDir(), className + "-encryption-compress-%d{yyyy}.log").getAbsolutePath())
+                .policy(policy)
+                .encryptionKey(key)
+                .compress(true)
+                .callback(callback)
+                .build();
+
+        // Write and rotate.
+        byte[] writtenBytes = new byte[10_000];
+        Arrays.fill(writtenBytes, (byte) 'x');
+        try (RotatingFileOutputStream stream = new RotatingFileOutputStream(config)) {
+            stream.write(writtenBytes);
+            stream.rotate(policy, LocalDateTime.parse("2017-12-31T00:00:00.000"));
+        }
+
+        // Verify the compressed file is encrypted, and compressed before the encryption.
+        assertThat(callback.getFailureErrors()).isEmpty();
+        assertThat(callback.getSuccessFiles().poll(1, TimeUnit.SECONDS)).isEqualTo(compressedFile);
+        assertThat(rotatedFile).doesNotExist();
+        assertThat(compressedFile.length()).isLessThan(writtenBytes.length / 10);
+        try (InputStream inputStream = new GZIPInputStream(
+                new DecryptionInputStream(new FileInputStream(compressedFile), key))) {
+            assertThat(read(inputStream)).isEqualTo(writtenBytes);
+        }
+
+    }
+
+    @Test
+    public void test_encryption_failed_write() throws Exception {
+
+        // Set file names.
+        String className = RotatingFileOutputStream.class.getSimpleName();
+        File file = new File(Filesystem.tmpDir(), className + "-encryption-failure.log");
+        Filesystem.delete(file.getAbsolutePath());
+
+        // Create a stream failing its second write without writing anything.
+        byte[] keyBytes = new byte[16];
+        new SecureRandom().nextBytes(keyBytes);
+        SecretKey key = new SecretKeySpec(keyBytes, "AES");
+        final AtomicInteger writeCount = new AtomicInteger();
+        OutputStream fileStream = new FileOutputStream(file) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (writeCount.incrementAndGet() == 2) {
+                    throw new IOException("injected failure");
+                }
+                super.write(b, off, len);
+            }
+        };
+        Queue<Cipher> cipherPool = new ConcurrentLinkedQueue<>();
+
+        // Write around the failure.
+        try (OutputStream stream = EncryptionOutputStream.create(fileStream, file, false, key, cipherPool)) {
+            stream.write("first\n".getBytes(StandardCharsets.US_ASCII));
+            try {
+                stream.write("lost\n".getBytes(StandardCharsets.US_ASCII));
+                fail("should have thrown");
+            } catch (IOException ignored) {
+                // Expected.
+            }
+            stream.write("second\n".getBytes(StandardCharsets.US_ASCII));
+        }
+
+        // Verify the decrypted content.
+        try (InputStream inputStream = new DecryptionInputStream(new FileInputStream(file), key)) {
+            String content = new String(read(inputStream), StandardCharsets.US_ASCII);
+            assertThat(content).isEqualTo("first\nsecond\n");
+        }
+
+    }
+
+    @Test
+    public void test_flush() throws Exception {
+
+        // Set file names.
+        String className = RotatingFileOutputStream.class.getSimpleName();
+        File file = new File(Filesystem.tmpDir(), className + "-flush.log");
+        Filesystem.delete(file.getAbsolutePath());
+
+        // Create the stream.
+        RotationPolicy policy = new RotationPolicy() {
+            @Override
+            public void start(Rotatable rotatable) {
+                // Do nothing.
+            }
+        };
+        RotationConfig config = RotationConfig
+                .builder()
+                .file(file)
+                .filePattern(new File(Filesystem.tmpDir(), className + "-flush-%d{yyyy}.log").getAbsolutePath())
+                .policy(policy)
+                .fsync(true)
+                .build();
+        final int threadCount = 4;
+        final int flushCount = 200;
+        try (final RotatingFileOutputStream stream = new RotatingFileOutputStream(config)) {
+
+            // Write and flush concurrently.
+            final CountDownLatch startLatch = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>(threadCount);
+            for (int threadIndex = 0; threadIndex < threadCount; threadIndex++) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            startLatch.await();
+                            for (int flushIndex = 0; flushIndex < flushCount; flushIndex++) {
+                                stream.write('.');
+                                stream.flush();
+                            }
+                        } catch (Exception error) {
+                            throw new RuntimeException(error);
+                        }
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            startLatch.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            // Verify the flushes.
+            assertThat(file.length()).isEqualTo(threadCount * flushCount);
+            assertThat(stream.getFlushRequestCount()).isEqualTo(threadCount * flushCount);
+            assertThat(stream.getPhysicalFlushCount())
+                    .isGreaterThan(0)
+                    .isLessThanOrEqualTo(stream.getFlushRequestCount());
+            assertThat(stream.getPhysicalFlushNanos()).isGreaterThan(0);
+
+        }
+
+    }
+
+    @Test
+    public void test_directories() throws Exception {
+
+        // Set file names.
+        String className = RotatingFileOutputStream.class.getSimpleName();
+        File directory = new File(Filesystem.tmpDir(), className + "-directories");
+        File file = new File(directory, "app.log");
+        RotatingFilePattern filePattern = new RotatingFilePattern(
+                new File(directory, "%d{yyyy}/%d{MM}/app-%d{dd}.log").getAbsolutePath());
+        LocalDateTime dateTime1 = LocalDateTime.parse("2017-12-30T00:00:00.000");
+        LocalDateTime dateTime2 = LocalDateTime.parse("2017-12-31T00:00:00.000");
+        File rotatedFile1 = filePattern.create(dateTime1).getAbsoluteFile();
+        File rotatedFile2 = filePattern.create(dateTime2).getAbsoluteFile();
+        Filesystem.delete(rotatedFile1.getAbsolutePath());
+        Filesystem.delete(rotatedFile2.getAbsolutePath());
+        Filesystem.delete(rotatedFile1.getParentFile().getAbsolutePath());
+
+        // Create the stream.
+        RecordingRotationCallback callback = new RecordingRotationCallback();
+        RotationPolicy policy = new RotationPolicy() {
+            @Override
+            public void start(Rotatable rotatable) {
+                // Do nothing.
+            }
+        };
+        RotationConfig config = RotationConfig
+                .builder()
+                .file(file)
+                .filePattern(filePattern)
+                .policy(policy)
+                .callback(callback)
+                .build();
+        try (RotatingFileOutputStream stream = new RotatingFileOutputStream(config)) {
+
+            // Rotate into a missing directory.
+            stream.write('a');
+            stream.rotate(policy, dateTime1);
+            assertThat(callback.getSuccessFiles().poll()).isEqualTo(rotatedFile1);
+
+            // Rotate into the same directory, which is removed in the meantime.
+            Filesystem.delete(rotatedFile1.getAbsolutePath());
+            Filesystem.delete(rotatedFile1.getParentFile().getAbsolutePath());
+            stream.write('b');
+            stream.rotate(policy, dateTime2);
+            assertThat(callback.getSuccessFiles().poll()).isEqualTo(rotatedFile2);
+
+        }
+        assertThat(callback.getFailureErrors()).isEmpty();
+
+    }
+
+    @Test
+    public void test_index() throws Exception {
+
+        // Create the directory with an existing rotated file.
+        String className = RotatingFileOutputStream.class.getSimpleName();
+        File directory = new File(Filesystem.tmpDir(), className + "-index");
+        directory.mkdirs();
+        File[] existingFiles = directory.listFiles();
+        if (existingFiles != null) {
+            for (File existingFile : existingFiles) {
+                Filesystem.delete(existingFile.getAbsolutePath());
+            }
+        }
+        write(new File(directory, "app-2017-4.log.gz"), new byte[]{'x'});
+
+        // Create the stream.
+        RecordingRotationCallback callback = new RecordingRotationCallback();
+        RotationPolicy policy = new RotationPolicy() {
+            @Override
+            public void start(Rotatable rotatable) {
+                // Do nothing.
+            }
+        };
+        RotationConfig config = RotationConfig
+                .builder()
+                .file(new File(directory, "app.log"))
+                .filePattern(new File(directory, "app-%d{yyyy}-%i.log").getAbsolutePath())
+                .policy(policy)
+                .callback(callback)
+                .build();
+        LocalDateTime dateTime = LocalDateTime.parse("2017-12-31T00:00:00.000");
+        try (RotatingFileOutputStream stream = new RotatingFileOutputStream(config)) {
+
+            // Rotate twice within the same date time.
+            stream.write('a');
+            stream.rotate(policy, dateTime);
+            stream.write('b');
+            stream.rotate(policy, dateTime);
+
+            // Rotate for a new date time.
+            stream.write('c');
+            stream.rotate(policy, dateTime.plusYears(1));
+
+            // Revisit the earlier date time, whose last file got compressed meanwhile.
+            Filesystem.delete(new File(directory, "app-2017-6.log").getAbsolutePath());
+            write(new File(directory, "app-2017-6.log.gz"), new byte[]{'x'});
+            stream.write('d');
+            stream.rotate(policy, dateTime);
+
+        }
+
+        // Verify the rotated files.
+        assertThat(callback.getFailureErrors()).isEmpty();
+        assertThat(callback.getSuccessFiles()).containsExactly(
+                new File(directory, "app-2017-5.log").getAbsoluteFile(),
+                new File(directory, "app-2017-6.log").getAbsoluteFile(),
+                new File(directory, "app-2018-0.log").getAbsoluteFile(),
+                new File(directory, "app-2017-7.log").getAbsoluteFile());
+
+    }
+
+    @Test
+    public void test_multiProcess() throws Exception {
+
+        // Create the directory.
+        String className = RotatingFileOutputStream.class.getSimpleName();
+        File directory = new File(Filesystem.tmpDir(), className + "-multiProcess");
+        directory.mkdirs();
+        File[] existingFiles = directory.listFiles();
+        if (existingFiles != null) {
+            for (File existingFile : existingFiles) {
+                Filesystem.delete(existingFile.getAbsolutePath());
+            }
+        }
+
+        // Create the streams, standing in for two processes.
+        RotationPolicy policy = new RotationPolicy() {
+            @Override
+            public void start(Rotatable rotatable) {
+                // Do nothing.
+            }
+        };
+        RecordingRotationCallback callback1 = new RecordingRotationCallback();
+        RecordingRotationCallback callback2 = new RecordingRotationCallback();
+        long inodeCheckIntervalMillis = 200;
+        RotationConfig config1 = createMultiProcessConfig(directory, policy, callback1, inodeCheckIntervalMillis);
+        RotationConfig config2 = createMultiProcessConfig(directory, policy, callback2, inodeCheckIntervalMillis);
+        File file = config1.getFile();
+        File rotatedFile = new File(directory, "app-2017.log").getAbsoluteFile();
+        LocalDateTime dateTime = LocalDateTime.parse("2017-12-31T00:00:00.000");
+        try (RotatingFileOutputStream stream1 = new RotatingFileOutputStream(config1);
+             RotatingFileOutputStream stream2 = new RotatingFileOutputStream(config2)) {
+
+            // Write from both processes and let the first one rotate.
+            stream1.write(new byte[]{'a', '\n'});
+            stream2.write(new byte[]{'b', '\n'});
+            stream1.rotate(policy, dateTime);
+            assertThat(callback1.getConflictDateTimes()).isEmpty();
+
+            // Verify the completion awaits the other process.
+            stream2.write(new byte[]{'c', '\n'});
+            assertThat(callback1.getSuccessFiles()).isEmpty();
+
+            // Verify the second process loses the rotation, and re-opens the file.
+            stream2.rotate(policy, dateTime);
+            assertThat(callback2.getConflictDateTimes().poll()).isEqualTo(dateTime);
+            stream1.write(new byte[]{'d', '\n'});
+            stream2.write(new byte[]{'e', '\n'});
+
+            // Verify the completion of the rotation.
+            File successFile = callback1.getSuccessFiles().poll(10 * inodeCheckIntervalMillis, TimeUnit.MILLISECONDS);
+            assertThat(successFile).isEqualTo(rotatedFile);
+            assertThat(rotatedFile).hasContent("a\nb\nc\n");
+            assertThat(file).hasContent("d\ne\n");
+
+            // Verify the periodic check re-opens the file rotated by another process.
+            stream1.rotate(policy, dateTime.plusYears(1));
+            Thread.sleep(5 * inodeCheckIntervalMillis);
+            stream2.write(new byte[]{'f', '\n'});
+            assertThat(file).hasContent("f\n");
+            assertThat(callback2.getConflictDateTimes()).isEmpty();
+
+        }
+
+        // Verify the rotations.
+        assertThat(callback1.getFailureErrors()).isEmpty();
+        assertThat(callback2.getFailureErrors()).isEmpty();
+        assertThat(callback1.getSuccessFiles().poll()).isEqualTo(new File(directory, "app-2018.log").getAbsoluteFile());
+        assertThat(new File(directory, "app-2018.log")).hasContent("d\ne\n");
+
+    }
+
+    @Test
+    public void test_coordinator() throws Exception {
+
+        // Create the directory.
+        String className = RotatingFileOutputStream.class.getSimpleName();
+        File directory = new File(Filesystem.tmpDir(), className + "-coordinator");
+        directory.mkdirs();
+        File[] existingFiles = directory.listFiles();
+        if (existingFiles != null) {
+            for (File existingFile : existingFiles) {
+                Filesystem.delete(existingFile.getAbsolutePath());
+            }
+        }
+
+        // Create the streams sharing a coordinator with a jitter window long enough to hold the completions.
+        RotationPolicy policy = new RotationPolicy() {
+            @Override
+            public void start(Rotatable rotatable) {
+                // Do nothing.
+            }
+        };
+        RecordingRotationCallback callback = new RecordingRotationCallback();
+        LocalDateTime dateTime = LocalDateTime.parse("2017-12-31T00:00:00.000");
+        int streamCount = 4;
+        try (RotationCoordinator coordinator = new RotationCoordinator(60_000, 1)) {
+            List<RotatingFileOutputStream> streams = new ArrayList<>();
+            try {
+                for (int streamIndex = 0; streamIndex < streamCount; streamIndex++) {
+                    RotationConfig config =
+                            createCoordinatedConfig(directory, streamIndex, policy, callback, coordinator);
+                    streams.add(new RotatingFileOutputStream(config));
+                }
+
+                // Verify the files are rotated at once, whereas the completions are queued.
+                for (int streamIndex = 0; streamIndex < streamCount; streamIndex++) {
+                    RotatingFileOutputStream stream = streams.get(streamIndex);
+                    stream.write(new byte[]{'a', '\n'});
+                    stream.rotate(policy, dateTime);
+                    stream.write(new byte[]{'b', '\n'});
+                    assertThat(new File(directory, String.format("app%d-2017.log", streamIndex))).hasContent("a\n");
+                    assertThat(new File(directory, String.format("app%d.log", streamIndex))).hasContent("b\n");
+                }
+                assertThat(coordinator.getQueuedTaskCount()).isEqualTo(streamCount);
+                assertThat(callback.getSuccessFiles()).isEmpty();
+
+            } finally {
+                for (RotatingFileOutputStream stream : streams) {
+                    stream.close();
+                }
+            }
+
+            // Verify closing the streams completes the queued rotations.
+            assertThat(coordinator.getQueuedTaskCount()).isZero();
+            assertThat(callback.getSuccessFiles()).hasSize(streamCount);
+            callback.getSuccessFiles().clear();
+
+        }
+
+        // Verify the completion within the jitter window.
+        long jitterWindowMillis = 100;
+        try (RotationCoordinator coordinator = new RotationCoordinator(jitterWindowMillis, 1)) {
+            RotationConfig config = createCoordinatedConfig(directory, 0, policy, callback, coordinator);
+            try (RotatingFileOutputStream stream = new RotatingFileOutputStream(config)) {
+                stream.write(new byte[]{'c', '\n'});
+                stream.rotate(policy, dateTime.plusYears(1));
+                File successFile = callback.getSuccessFiles().poll(50 * jitterWindowMillis, TimeUnit.MILLISECONDS);
+                assertThat(successFile).isEqualTo(new File(directory, "app0-2018.log").getAbsoluteFile());
+                assertThat(successFile).hasContent("b\nc\n");
+
+                // Verify the rotations are completed right away, once the coordinator is closed.
+                coordinator.close();
+                stream.write(new byte[]{'d', '\n'});
+                stream.rotate(policy, dateTime.plusYears(2));
+                assertThat(callback.getSuccessFiles().poll())
+                        .isEqualTo(new File(directory, "app0-2019.log").getAbsoluteFile());
+            }
+        }
+
+        // Verify the rotations.
+        assertThat(callback.getFailureErrors()).isEmpty();
+
+    }
+
+    @Test
+    public void test_copyTruncate() throws Exception {
+
+        // Create the directory.
+        String className = RotatingFileOutputStream.class.getSimpleName();
+        File directory = new File(Filesystem.tmpDir(), className + "-copyTruncate");
+        directory.mkdirs();
+        File[] existingFiles = directory.listFiles();
+        if (existingFiles != null) {
+            for (File existingFile : existingFiles) {
+                Filesystem.delete(existingFile.getAbsolutePath());
+            }
+        }
+
+        // Create the stream, not in append mode to verify the position is reset.
+        RotationPolicy policy = new RotationPolicy() {
+            @Override
+            public void start(Rotatable rotatable) {
+                // Do nothing.
+            }
+        };
+        RecordingRotationCallback callback = new RecordingRotationCallback();
+        File file = new File(directory, "app.log");
+        RotationConfig config = RotationConfig
+                .builder()
+                .file(file)
+                .filePattern(new File(directory, "app-%d{yyyy}.log").getAbsolutePath())
+                .policy(policy)
+                .callback(callback)
+                .append(false)
+                .copyTruncate(true)
+                .build();
+        LocalDateTime dateTime = LocalDateTime.parse("2017-12-31T00:00:00.000");
+        int rotationCount = 5;
+        final AtomicInteger lineCount = new AtomicInteger();
+        try (final RotatingFileOutputStream stream = new RotatingFileOutputStream(config)) {
+
+            // Verify the file is truncated in place.
+            stream.write(new byte[]{'a', '\n'});
+            Object fileKey = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+            stream.rotate(policy, dateTime);
+            File rotatedFile = new File(directory, "app-2017.log").getAbsoluteFile();
+            assertThat(callback.getSuccessFiles().poll()).isEqualTo(rotatedFile);
+            assertThat(rotatedFile).hasContent("a\n");
+            assertThat(file).hasContent("");
+            stream.write(new byte[]{'b', '\n'});
+            assertThat(file).hasContent("b\n");
+            assertThat(Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey()).isEqualTo(fileKey);
+            stream.rotate(policy, dateTime.plusYears(1));
+
+            // Verify concurrent writes are not lost.
+            final CountDownLatch stopLatch = new CountDownLatch(1);
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (stopLatch.getCount() > 0) {
+                            String line = String.format("%d%n", lineCount.getAndIncrement());
+                            stream.write(line.getBytes(StandardCharsets.US_ASCII));
+                        }
+                    } catch (IOException error) {
+                        throw new RuntimeException(error);
+                    }
+                }
+            });
+            writer.start();
+            for (int rotationIndex = 0; rotationIndex < rotationCount; rotationIndex++) {
+                while (file.length() == 0) {
+                    Thread.sleep(1);
+                }
+                stream.rotate(policy, dateTime.plusYears(2 + rotationIndex));
+            }
+            stopLatch.countDown();
+            writer.join();
+
+        }
+
+        // Verify the lines.
+        StringBuilder expectedContentBuilder = new StringBuilder();
+        for (int lineIndex = 0; lineIndex < lineCount.get(); lineIndex++) {
+            expectedContentBuilder.append(String.format("%d%n", lineIndex));
+        }
+        ByteArrayOutputStream contentStream = new ByteArrayOutputStream();
+        for (int rotationIndex = 0; rotationIndex < rotationCount; rotationIndex++) {
+            File rotatedFile = new File(directory, String.format("app-%d.log", 2019 + rotationIndex));
+            contentStream.write(Files.readAllBytes(rotatedFile.toPath()));
+        }
+        contentStream.write(Files.readAllBytes(file.toPath()));
+        assertThat(new String(contentStream.toByteArray(), StandardCharsets.US_ASCII))
+                .isEqualTo(expectedContentBuilder.toString());
+        assertThat(callback.getFailureErrors()).isEmpty();
+
+    }
+
+    @Test
+    public void test_degraded_spillBuffer() throws Exception {
+
+        // Create the directory with a file blocking the directory of the file.
+        File directory = createDegradedDirectory("spillBuffer");
+        File blockingFile = new File(directory, "blocking");
+        write(blockingFile, new byte[0]);
+        File file = new File(blockingFile, "app.log");
+
+        // Create the stream.
+        RecordingRotationCallback callback = new RecordingRotationCallback();
+        RotationConfig config = createDegradedConfig(directory, file, callback)
+                .spillBufferSize(8)
+                .build();
+        try (RotatingFileOutputStream stream = new RotatingFileOutputStream(config)) {
+
+            // Verify the writes are spilled, and the overflowing ones are dropped.
+            stream.write(new byte[]{'a', 'b', 'c', '\n'});
+            assertThat(callback.getDegradedModeEnterErrors().poll()).hasMessageContaining("file open failure");
+            stream.write(new byte[]{'d', 'e', 'f', '\n'});
+            stream.write(new byte[]{'g', 'h', 'i', '\n'});
+            assertThat(file).doesNotExist();
+
+            // Verify the spilled writes are drained once the file is writable.
+            Filesystem.delete(blockingFile.getAbsolutePath());
+            Long droppedByteCount = callback.getDegradedModeExitDroppedByteCounts().poll(5, TimeUnit.SECONDS);
+            assertThat(droppedByteCount).isEqualTo(4L);
+            stream.write(new byte[]{'j', 'k', 'l', '\n'});
+
+        }
+
+        // Verify the file.
+        assertThat(file).hasContent("abc\ndef\njkl\n");
+        assertThat(callback.getDegradedModeEnterErrors()).isEmpty();
+
+    }
+
+    @Test
+    public void test_degraded_fallbackDirectory() throws Exception {
+
+        // Create the directory with a file blocking the directory of the file.
+        File directory = createDegradedDirectory("fallbackDirectory");
+        File blockingFile = new File(directory, "blocking");
+        write(blockingFile, new byte[0]);
+        File file = new File(blockingFile, "app.log");
+        File fallbackDirectory = new File(directory, "fallback");
+
+        // Create the stream.
+        RecordingRotationCallback callback = new RecordingRotationCallback();
+        RotationConfig config = createDegradedConfig(directory, file, callback)
+                .fallbackDirectory(fallbackDirectory)
+                .build();
+        try (RotatingFileOutputStream stream = new RotatingFileOutputStream(config)) {
+
+            // Verify the writes go to the fallback file.
+            stream.write(new byte[]{'a', 'b', 'c', '\n'});
+            stream.write('d');
+            stream.write('\n');
+            assertThat(callback.getDegradedModeEnterErrors()).hasSize(1);
+            File[] fallbackFiles = fallbackDirectory.listFiles();
+            assertThat(fallbackFiles).hasSize(1);
+            File fallbackFile = fallbackFiles[0];
+            assertThat(fallbackFile.getName()).startsWith(file.getName() + '.');
+            assertThat(fallbackFile).hasContent("abc\nd\n");
+
+            // Verify the fallback file is drained once the file is writable.
+            Filesystem.delete(blockingFile.getAbsolutePath());
+            Long droppedByteCount = callback.getDegradedModeExitDroppedByteCounts().poll(5, TimeUnit.SECONDS);
+            assertThat(droppedByteCount).isEqualTo(0L);
+            assertThat(fallbackFile).doesNotExist();
+            stream.write(new byte[]{'e', '\n'});
+
+        }
+
+        // Verify the file.
+        assertThat(file).hasContent("abc\nd\ne\n");
+
+    }
+
+    private static File createDegradedDirectory(String name) {
+        String className = RotatingFileOutputStream.class.getSimpleName();
+        File directory = new File(Filesystem.tmpDir(), className + "-degraded-" + name);
+        File fallbackDirectory = new File(directory, "fallback");
+        File[] fallbackFiles = fallbackDirectory.listFiles();
+        if (fallbackFiles != null) {
+            for (File fallbackFile : fallbackFiles) {
+                Filesystem.delete(fallbackFile.getAbsolutePath());
+            }
+        }
+        File[] files = {
+                new File(directory, "blocking/app.log"),
+                new File(directory, "blocking"),
+                fallbackDirectory
+        };
+        for (File file : files) {
+            Filesystem.delete(file.getAbsolutePath());
+        }
+        directory.mkdirs();
+        return directory;
+    }
+
+    private static RotationConfig.Builder createDegradedConfig(
+            File directory,
+            File file,
+            RotationCallback callback) {
+        RotationPolicy policy = new RotationPolicy() {
+            @Override
+            public void start(Rotatable rotatable) {
+                // Do nothing.
+            }
+        };
+        return RotationConfig
+                .builder()
+                .file(file)
+                .filePattern(new File(directory, "app-%d{yyyy}.log").getAbsolutePath())
+                .policy(policy)
+                .callback(callback)
+                .lazy(true)
+                .degradedCheckIntervalMillis(100);
+    }
+
+    private static RotationConfig createCoordinatedConfig(
+            File directory,
+            int streamIndex,
+            RotationPolicy policy,
+            RotationCallback callback,
+            RotationCoordinator coordinator) {
+        return RotationConfig
+                .builder()
+                .file(new File(directory, String.format("app%d.log", streamIndex)))
+                .filePattern(new File(directory, String.format("app%d-%%d{yyyy}.log", streamIndex)).getAbsolutePath())
+                .policy(policy)
+                .callback(callback)
+                .coordinator(coordinator)
+                .build();
+    }
+
+    private static RotationConfig createMultiProcessConfig(
+            File directory,
+            RotationPolicy policy,
+            RotationCallback callback,
+            long inodeCheckIntervalMillis) {
+        return RotationConfig
+                .builder()
+                .file(new File(directory, "app.log"))
+                .filePattern(new File(directory, "app-%d{yyyy}.log").getAbsolutePath())
+                .policy(policy)
+                .callback(callback)
+                .multiProcess(true)
+                .inodeCheckIntervalMillis(inodeCheckIntervalMillis)
+                .build();
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(content);
+        }
+    }
+
+    private static byte[] decompress(File file) throws IOException {
+        try (InputStream inputStream = new GZIPInputStream(new FileInputStream(file))) {
+            return read(inputStream);
+        }
+    }
+
+    private static byte[] read(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int readByteCount;
+        while ((readByteCount = inputStream.read(buffer)) > 0) {
+            outputStream.write(buffer, 0, readByteCount);
+        }
+        return outputStream.toByteArray();
+    }
+
 }
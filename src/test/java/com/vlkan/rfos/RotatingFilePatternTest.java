@@ -7,6 +7,7 @@ import org.junit.Test;
 
 import java.io.File;
 import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -28,7 +29,13 @@ public class RotatingFilePatternTest {
                 "foo%d",
                 "foo%d{",
                 "foo%d{T}",
-                "foo%%"
+                "foo%%",
+                "%s",
+                "foo%s",
+                "%d{yyyy}%h{0}",
+                "%d{yyyy}%h{foo}",
+                "%d{yyyy}%h{",
+                "%d{yyyy}%i%i"
         };
         for (final String invalidPattern : invalidPatterns) {
             ThrowableAssert.ThrowingCallable callable = new ThrowableAssert.ThrowingCallable() {
@@ -65,4 +72,125 @@ public class RotatingFilePatternTest {
         }
     }
 
+    @Test
+    public void test_matches() {
+        RotatingFilePattern pattern = new RotatingFilePattern("/tmp/app-%d{yyyyMMdd}.log");
+        assertThat(pattern.getDirectory()).isEqualTo(new File("/tmp/"));
+        assertThat(pattern.matches(new File("/tmp/app-20171231.log"))).isTrue();
+        assertThat(pattern.matches(new File("/tmp/app-20171231.log.gz"))).isFalse();
+        assertThat(pattern.matches(new File("/tmp/app.log"))).isFalse();
+        assertThat(pattern.matches(new File("/var/app-20171231.log"))).isFalse();
+        RotatingFilePattern relativePattern = new RotatingFilePattern("logs/%d{yyyy}/app.log");
+        assertThat(relativePattern.getDirectory()).isEqualTo(new File("logs").getAbsoluteFile());
+        assertThat(relativePattern.matches(new File("logs/2017/app.log"))).isTrue();
+        assertThat(relativePattern.matches(new File("logs/2017/app.log").getAbsoluteFile())).isTrue();
+        assertThat(relativePattern.matches(new File("logs/app.log"))).isFalse();
+        assertThat(relativePattern.getMaxDepth()).isEqualTo(2);
+    }
+
+    @Test
+    public void test_matches_dateTimeFormat() {
+        RotatingFilePattern pattern = new RotatingFilePattern("/tmp/app.log.%d{yyyy}", Locale.US);
+        assertThat(pattern.matches(new File("/tmp/app.log.2017"))).isTrue();
+        assertThat(pattern.matches(new File("/tmp/app.log.2017.gz"))).isFalse();
+        assertThat(pattern.matches(new File("/tmp/app.log.17"))).isFalse();
+        RotatingFilePattern textPattern =
+                new RotatingFilePattern("/tmp/app-%d{dd-MMM-yy'T'HH.mm.ss.SSS}.log", Locale.US);
+        File textFile = textPattern.create(LocalDateTime.parse("2017-12-31T01:02:03.004"));
+        assertThat(textFile).isEqualTo(new File("/tmp/app-31-Dec-17T01.02.03.004.log"));
+        assertThat(textPattern.matches(textFile)).isTrue();
+        assertThat(textPattern.matches(new File("/tmp/app-31-Dec-2017T01.02.03.004.log"))).isFalse();
+        assertThat(textPattern.matches(new File("/tmp/app-31-Dec-17T01.02.03.004.log.gz"))).isFalse();
+    }
+
+    @Test
+    public void test_maxDepth() {
+        RotatingFilePattern pattern = new RotatingFilePattern("%d{yyyy}.log");
+        assertThat(pattern.getDirectory()).isEqualTo(new File("").getAbsoluteFile());
+        assertThat(pattern.getMaxDepth()).isEqualTo(1);
+        RotatingFilePattern nestedPattern = new RotatingFilePattern("/tmp/%d{yyyy/MM}/%h{16}/app.log");
+        assertThat(nestedPattern.getDirectory()).isEqualTo(new File("/tmp/"));
+        assertThat(nestedPattern.getMaxDepth()).isEqualTo(4);
+    }
+
+    @Test
+    public void test_shard() {
+        LocalDateTime dateTime = LocalDateTime.parse("2017-12-31T00:00:00.000");
+        final RotatingFilePattern pattern = new RotatingFilePattern("/tmp/app-%s-%d{yyyy}.log");
+        assertThat(pattern.isSharded()).isTrue();
+        assertThatThrownBy(new ThrowableAssert.ThrowingCallable() {
+            @Override
+            public void call() {
+                pattern.create(LocalDateTime.now());
+            }
+        }).isInstanceOf(IllegalStateException.class);
+        RotatingFilePattern shardPattern = pattern.withShardIndex(7);
+        assertThat(shardPattern.getShardIndex()).isEqualTo(7);
+        assertThat(shardPattern).isNotEqualTo(pattern);
+        assertThat(shardPattern.create(dateTime)).isEqualTo(new File("/tmp/app-7-2017.log"));
+        assertThat(pattern.matches(new File("/tmp/app-7-2017.log"))).isTrue();
+        assertThat(shardPattern.matches(new File("/tmp/app-7-2017.log"))).isTrue();
+        assertThat(shardPattern.matches(new File("/tmp/app-8-2017.log"))).isFalse();
+        assertThat(new RotatingFilePattern("/tmp/app-%d{yyyy}.log").isSharded()).isFalse();
+    }
+
+    @Test
+    public void test_hash() {
+        LocalDateTime dateTime = LocalDateTime.parse("2017-12-31T00:00:00.000");
+        RotatingFilePattern pattern = new RotatingFilePattern("/tmp/%h{16}/app-%d{yyyy}.log");
+        int expectedHash = ("/tmp//app-2017.log".hashCode() & Integer.MAX_VALUE) % 16;
+        File expectedFile = new File(String.format("/tmp/%02d/app-2017.log", expectedHash));
+        assertThat(pattern.create(dateTime)).isEqualTo(expectedFile);
+        assertThat(pattern.matches(expectedFile)).isTrue();
+        assertThat(pattern.matches(new File("/tmp/1/app-2017.log"))).isFalse();
+        assertThat(new RotatingFilePattern("/tmp/%h{1}/app-%d{yyyy}.log").create(dateTime))
+                .isEqualTo(new File("/tmp/0/app-2017.log"));
+    }
+
+    @Test
+    public void test_index() {
+        LocalDateTime dateTime = LocalDateTime.parse("2017-12-31T00:00:00.000");
+        final RotatingFilePattern pattern = new RotatingFilePattern("/tmp/%h{4}/app-%d{yyyy}-%i.log");
+        assertThat(pattern.isIndexed()).isTrue();
+        assertThatThrownBy(new ThrowableAssert.ThrowingCallable() {
+            @Override
+            public void call() {
+                pattern.create(LocalDateTime.now());
+            }
+        }).isInstanceOf(IllegalStateException.class);
+        File file = pattern.create(dateTime, 3);
+        assertThat(file.getName()).isEqualTo("app-2017-3.log");
+        assertThat(pattern.create(dateTime, 0).getParentFile()).isEqualTo(file.getParentFile());
+        assertThat(pattern.matches(file)).isTrue();
+        assertThat(pattern.getIndex(file)).isEqualTo(3);
+        File compressedFile = new File(file.getPath() + ".gz");
+        assertThat(pattern.getIndex(compressedFile)).isEqualTo(3);
+        assertThat(pattern.getIndexBucket(compressedFile)).isEqualTo(pattern.create(dateTime, 0));
+        assertThat(pattern.getIndex(new File("/tmp/app.log"))).isEqualTo(-1);
+        assertThat(new RotatingFilePattern("/tmp/app-%d{yyyy}.log").isIndexed()).isFalse();
+    }
+
+    @Test
+    public void test_getDateTime() {
+        RotatingFilePattern pattern = new RotatingFilePattern("/tmp/%d{yyyy}/app-%d{MMdd-HH}-%i.log");
+        LocalDateTime dateTime = LocalDateTime.parse("2017-12-31T10:00:00.000");
+        File file = pattern.create(dateTime, 3);
+        assertThat(pattern.getDateTime(file)).isEqualTo(dateTime);
+        assertThat(pattern.getDateTime(new File(file.getPath() + ".gz"))).isEqualTo(dateTime);
+        assertThat(pattern.getDateTime(new File("/tmp/2017/app.log"))).isNull();
+    }
+
+    @Test
+    public void test_relative_current_directory() {
+        LocalDateTime dateTime = LocalDateTime.parse("2017-12-31T00:00:00.000");
+        String separator = File.separator;
+        RotatingFilePattern pattern = new RotatingFilePattern(
+                "." + separator + "logs" + separator + "app-%d{yyyy}-%i.log");
+        File file = new File("logs" + separator + "app-2017-3.log");
+        assertThat(pattern.matches(file)).isTrue();
+        assertThat(pattern.matches(pattern.create(dateTime, 3))).isTrue();
+        assertThat(pattern.getIndex(file)).isEqualTo(3);
+        assertThat(pattern.getIndexBucket(file)).isEqualTo(new File("logs" + separator + "app-2017-0.log"));
+    }
+
 }
@@ -0,0 +1,119 @@
+package com.vlkan.rfos;
+
+import com.vlkan.rfos.policy.RotationPolicy;
+import com.vlkan.rfos.job.CompactionJob;
+import org.joda.time.LocalDateTime;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.TimerTask;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class ShardedRotatingFileOutputStreamTest {
+
+    @Test
+    public void test() throws Exception {
+
+        // Create the directory.
+        String className = ShardedRotatingFileOutputStream.class.getSimpleName();
+        File directory = new File(Filesystem.tmpDir(), className);
+        directory.mkdirs();
+        File[] existingFiles = directory.listFiles();
+        if (existingFiles != null) {
+            for (File existingFile : existingFiles) {
+                Filesystem.delete(existingFile.getAbsolutePath());
+            }
+        }
+
+        // Create the stream.
+        RecordingRotationCallback callback = new RecordingRotationCallback();
+        RotationPolicy policy = new RotationPolicy() {
+            @Override
+            public void start(Rotatable rotatable) {
+                // Do nothing.
+            }
+        };
+        RotationConfig config = RotationConfig
+                .builder()
+                .file(new File(directory, "app.log"))
+                .filePattern(new File(directory, "app-%s-%d{yyyy}.log").getAbsolutePath())
+                .policy(policy)
+                .job(new CompactionJob(
+                        new RotatingFilePattern(new File(directory, "archive-%s-%d{yyyy}.log.gz").getAbsolutePath()),
+                        1_024,
+                        60_000))
+                .callback(callback)
+                .build();
+        int shardCount = 3;
+        LocalDateTime dateTime = LocalDateTime.parse("2017-12-31T00:00:00.000");
+        int keyShardIndex = ("foo".hashCode() & Integer.MAX_VALUE) % shardCount;
+        try (ShardedRotatingFileOutputStream stream = new ShardedRotatingFileOutputStream(config, shardCount)) {
+
+            // Write to every shard.
+            assertThat(stream.getShardCount()).isEqualTo(shardCount);
+            for (int shardIndex = 0; shardIndex < shardCount; shardIndex++) {
+                byte[] bytes = String.valueOf(shardIndex).getBytes(StandardCharsets.US_ASCII);
+                stream.getShard(shardIndex).write(bytes);
+            }
+
+            // Write with a key.
+            assertThat(stream.getShardByKey("foo")).isSameAs(stream.getShard(keyShardIndex));
+            stream.write("foo", new byte[]{'k'});
+
+            // Verify the shards compact into their own archives.
+            CompactionJob job = (CompactionJob) stream.getShard(1).getConfig().getJobs().iterator().next();
+            assertThat(job.getArchiveFilePattern().create(dateTime))
+                    .isEqualTo(new File(directory, "archive-1-2017.log.gz").getAbsoluteFile());
+
+            // Rotate twice for the same trigger, e.g., once per shard policy.
+            stream.rotate(policy, dateTime);
+            stream.rotate(policy, dateTime);
+
+            // Verify closing a shard leaves the timer of the others intact.
+            stream.getShard(0).close();
+            stream.getShard(1).getConfig().schedule(createNoopTask(), 60_000);
+            try {
+                stream.getShard(0).getConfig().schedule(createNoopTask(), 60_000);
+                fail("should have thrown");
+            } catch (IllegalStateException ignored) {
+                // Expected.
+            }
+
+        }
+
+        // Verify closing the stream cancels the shared timer.
+        try {
+            config.getTimer().schedule(createNoopTask(), 60_000);
+            fail("should have thrown");
+        } catch (IllegalStateException ignored) {
+            // Expected.
+        }
+
+        // Verify the rotated files.
+        assertThat(callback.getFailureErrors()).isEmpty();
+        assertThat(callback.getSuccessFiles()).hasSize(shardCount);
+        for (int shardIndex = 0; shardIndex < shardCount; shardIndex++) {
+            File shardFile = new File(directory, String.format("app.%d.log", shardIndex));
+            assertThat(shardFile.length()).isEqualTo(0);
+            File rotatedFile = new File(directory, String.format("app-%d-2017.log", shardIndex));
+            String content = new String(Files.readAllBytes(rotatedFile.toPath()), StandardCharsets.US_ASCII);
+            String expectedContent = shardIndex == keyShardIndex ? shardIndex + "k" : String.valueOf(shardIndex);
+            assertThat(content).isEqualTo(expectedContent);
+        }
+
+    }
+
+    private static TimerTask createNoopTask() {
+        return new TimerTask() {
+            @Override
+            public void run() {
+                // Do nothing.
+            }
+        };
+    }
+
+}
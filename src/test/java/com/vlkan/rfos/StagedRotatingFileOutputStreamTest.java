@@ -0,0 +1,125 @@
+package com.vlkan.rfos;
+
+import com.vlkan.rfos.policy.RotationPolicy;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StagedRotatingFileOutputStreamTest {
+
+    @Test
+    public void test() throws Exception {
+
+        // Create the file.
+        String className = StagedRotatingFileOutputStream.class.getSimpleName();
+        File file = new File(Filesystem.tmpDir(), className + ".log");
+        Filesystem.delete(file.getAbsolutePath());
+
+        // Create the stream.
+        RotationPolicy policy = new RotationPolicy() {
+            @Override
+            public void start(Rotatable rotatable) {
+                // Do nothing.
+            }
+        };
+        RotationConfig config = RotationConfig
+                .builder()
+                .file(file)
+                .filePattern(new File(Filesystem.tmpDir(), className + "-%d{yyyy}.log").getAbsolutePath())
+                .policy(policy)
+                .build();
+        final int threadCount = 4;
+        final int recordCount = 1000;
+        try (final StagedRotatingFileOutputStream stream = new StagedRotatingFileOutputStream(config, 1)) {
+
+            // Write concurrently.
+            final CountDownLatch startLatch = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>(threadCount);
+            for (int threadIndex = 0; threadIndex < threadCount; threadIndex++) {
+                final int finalThreadIndex = threadIndex;
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            startLatch.await();
+                            for (int recordIndex = 0; recordIndex < recordCount; recordIndex++) {
+                                String record = String.format("%d:%d%n", finalThreadIndex, recordIndex);
+                                stream.write(record.getBytes(StandardCharsets.US_ASCII));
+                            }
+                        } catch (Exception error) {
+                            throw new RuntimeException(error);
+                        }
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            startLatch.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            // Verify the flushed content.
+            stream.flush();
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII);
+            assertThat(lines).hasSize(threadCount * recordCount);
+            int[] nextRecordIndices = new int[threadCount];
+            for (String line : lines) {
+                String[] fields = line.split(":");
+                int threadIndex = Integer.parseInt(fields[0]);
+                int recordIndex = Integer.parseInt(fields[1]);
+                assertThat(recordIndex).isEqualTo(nextRecordIndices[threadIndex]++);
+            }
+
+        }
+
+    }
+
+    @Test
+    public void test_maxStagedRecordCount() throws Exception {
+
+        // Create the file.
+        String className = StagedRotatingFileOutputStream.class.getSimpleName();
+        File file = new File(Filesystem.tmpDir(), className + "-bounded.log");
+        Filesystem.delete(file.getAbsolutePath());
+
+        // Create the stream with a combiner that never wakes up during the test.
+        RotationPolicy policy = new RotationPolicy() {
+            @Override
+            public void start(Rotatable rotatable) {
+                // Do nothing.
+            }
+        };
+        RotationConfig config = RotationConfig
+                .builder()
+                .file(file)
+                .filePattern(new File(Filesystem.tmpDir(), className + "-bounded-%d{yyyy}.log").getAbsolutePath())
+                .policy(policy)
+                .build();
+        int maxStagedRecordCount = 4;
+        try (StagedRotatingFileOutputStream stream = new StagedRotatingFileOutputStream(
+                config, 60_000, maxStagedRecordCount)) {
+
+            // Verify the writer merges once its buffer is full.
+            for (int recordIndex = 0; recordIndex < maxStagedRecordCount + 1; recordIndex++) {
+                stream.write('a' + recordIndex);
+            }
+            stream.getStream().flush();
+            assertThat(file).hasContent("abcd");
+
+            // Verify the flush merges the rest.
+            stream.flush();
+            assertThat(file).hasContent("abcde");
+
+        }
+
+    }
+
+}
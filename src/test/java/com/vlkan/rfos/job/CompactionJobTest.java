@@ -0,0 +1,208 @@
+package com.vlkan.rfos.job;
+
+import com.vlkan.rfos.Filesystem;
+import com.vlkan.rfos.Rotatable;
+import com.vlkan.rfos.RotatingFilePattern;
+import com.vlkan.rfos.RotationConfig;
+import com.vlkan.rfos.policy.RotationPolicy;
+import org.joda.time.LocalDateTime;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompactionJobTest {
+
+    @Test
+    public void test_compact() throws Exception {
+
+        // Create the directory.
+        File directory = new File(Filesystem.tmpDir(), CompactionJob.class.getSimpleName());
+        directory.mkdirs();
+        File[] existingFiles = directory.listFiles();
+        if (existingFiles != null) {
+            for (File existingFile : existingFiles) {
+                Filesystem.delete(existingFile.getAbsolutePath());
+            }
+        }
+
+        // Create the segments of two different hours.
+        LocalDateTime dateTime = LocalDateTime.parse("2017-12-31T10:00:00.000");
+        File segment1 = writeSegment(directory, "app-20171231-1000.log.gz", "a", dateTime);
+        File segment2 = writeSegment(directory, "app-20171231-1010.log.gz", "bb", dateTime.plusMinutes(10));
+        File segment3 = writeSegment(directory, "app-20171231-1020.log.gz", "ccc", dateTime.plusMinutes(20));
+        File segment4 = writeSegment(directory, "app-20171231-1100.log.gz", "d", dateTime.plusHours(1));
+
+        // Compact the segments.
+        RotationPolicy policy = new RotationPolicy() {
+            @Override
+            public void start(Rotatable rotatable) {
+                // Do nothing.
+            }
+        };
+        RotationConfig config = RotationConfig
+                .builder()
+                .file(new File(directory, "app.log"))
+                .filePattern(new File(directory, "app-%d{yyyyMMdd-HHmm}.log").getAbsolutePath())
+                .policy(policy)
+                .lazy(true)
+                .build();
+        RotatingFilePattern archiveFilePattern =
+                new RotatingFilePattern(new File(directory, "archive-%d{yyyyMMdd-HH}.log.gz").getAbsolutePath());
+        CompactionJob job = new CompactionJob(archiveFilePattern, 1_024, 60_000);
+        job.compact(config);
+
+        // Verify the archive of the first hour.
+        File archiveFile = archiveFilePattern.create(dateTime);
+        assertThat(readCompressed(archiveFile)).isEqualTo("abbccc");
+        assertThat(segment1).doesNotExist();
+        assertThat(segment2).doesNotExist();
+        assertThat(segment3).doesNotExist();
+        List<CompactionJob.Member> members = CompactionJob.readMembers(archiveFile);
+        assertThat(members).hasSize(3);
+        assertThat(members.get(0).getOffset()).isEqualTo(0);
+        assertThat(members.get(0).getName()).isEqualTo(segment1.getName());
+        assertThat(members.get(2).getOffset() + members.get(2).getLength()).isEqualTo(archiveFile.length());
+
+        // Verify the sole segment of the second hour is left intact.
+        assertThat(segment4).exists();
+        assertThat(archiveFilePattern.create(dateTime.plusHours(1))).doesNotExist();
+
+        // Verify late segments get appended to the existing archive, grouped by their names.
+        File segment5 = writeSegment(directory, "app-20171231-1030.log.gz", "e", dateTime.plusHours(5));
+        job.compact(config);
+        assertThat(readCompressed(archiveFile)).isEqualTo("abbccce");
+        assertThat(segment5).doesNotExist();
+        members = CompactionJob.readMembers(archiveFile);
+        assertThat(members).hasSize(4);
+        assertThat(members.get(3).getName()).isEqualTo(segment5.getName());
+        assertThat(members.get(3).getOffset() + members.get(3).getLength()).isEqualTo(archiveFile.length());
+
+        // Verify segments left behind after merging (e.g., due to a crash) get deleted rather than duplicated.
+        writeSegment(directory, segment5.getName(), "e", dateTime.plusMinutes(30));
+        job.compact(config);
+        assertThat(readCompressed(archiveFile)).isEqualTo("abbccce");
+        assertThat(segment5).doesNotExist();
+        assertThat(CompactionJob.readMembers(archiveFile)).hasSize(4);
+
+        // Verify index members past the end of the archive (e.g., due to a crash) are skipped.
+        File indexFile = CompactionJob.getIndexFile(archiveFile);
+        String staleEntry = String.format("%d 1 app-20171231-1040.log.gz\n", archiveFile.length());
+        Files.write(indexFile.toPath(), staleEntry.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        assertThat(CompactionJob.readMembers(archiveFile)).hasSize(4);
+        File segment6 = writeSegment(directory, "app-20171231-1040.log.gz", "f", dateTime.plusMinutes(40));
+        job.compact(config);
+        assertThat(readCompressed(archiveFile)).isEqualTo("abbcccef");
+        assertThat(segment6).doesNotExist();
+
+    }
+
+    @Test
+    public void test_compact_nested() throws Exception {
+
+        // Create the directory.
+        File directory = new File(Filesystem.tmpDir(), CompactionJob.class.getSimpleName() + "-nested");
+        deleteRecursively(directory);
+        directory.mkdirs();
+
+        // Create the segments sharing a name in different directories.
+        LocalDateTime dateTime = LocalDateTime.parse("2017-12-30T10:00:00.000");
+        File directory1 = new File(directory, "20171230");
+        File directory2 = new File(directory, "20171231");
+        directory1.mkdirs();
+        directory2.mkdirs();
+        File segment1 = writeSegment(directory1, "app-10.log.gz", "a", dateTime);
+        File segment2 = writeSegment(directory2, "app-10.log.gz", "bb", dateTime.plusDays(1));
+
+        // Verify the archive is locked while compacting.
+        RotationPolicy policy = new RotationPolicy() {
+            @Override
+            public void start(Rotatable rotatable) {
+                // Do nothing.
+            }
+        };
+        RotationConfig config = RotationConfig
+                .builder()
+                .file(new File(directory, "app.log"))
+                .filePattern(new File(directory, "%d{yyyyMMdd}/app-%d{HH}.log").getAbsolutePath())
+                .policy(policy)
+                .lazy(true)
+                .build();
+        RotatingFilePattern archiveFilePattern =
+                new RotatingFilePattern(new File(directory, "archive-%d{yyyyMM}.log.gz").getAbsolutePath());
+        File archiveFile = archiveFilePattern.create(dateTime);
+        CompactionJob job = new CompactionJob(archiveFilePattern, 1_024, 60_000);
+        File lockFile = new File(archiveFile.getPath() + ".lock");
+        try (FileChannel lockChannel = FileChannel.open(
+                lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock ignored = lockChannel.lock()) {
+            job.compact(config);
+        }
+        assertThat(archiveFile).doesNotExist();
+        assertThat(segment1).exists();
+
+        // Verify both segments get merged and named by their paths.
+        job.compact(config);
+        assertThat(readCompressed(archiveFile)).isEqualTo("abb");
+        assertThat(segment1).doesNotExist();
+        assertThat(segment2).doesNotExist();
+        List<CompactionJob.Member> members = CompactionJob.readMembers(archiveFile);
+        assertThat(members).hasSize(2);
+        assertThat(members.get(0).getName()).isEqualTo("20171230" + File.separator + "app-10.log.gz");
+        assertThat(members.get(1).getName()).isEqualTo("20171231" + File.separator + "app-10.log.gz");
+
+        // Verify a segment reusing the name of a member with a different length gets merged.
+        writeSegment(directory2, "app-10.log.gz", "ccc", dateTime.plusDays(1));
+        job.compact(config);
+        assertThat(readCompressed(archiveFile)).isEqualTo("abbccc");
+        assertThat(segment2).doesNotExist();
+
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        Filesystem.delete(file.getAbsolutePath());
+    }
+
+    private static File writeSegment(File directory, String fileName, String content, LocalDateTime lastModified)
+            throws IOException {
+        File file = new File(directory, fileName);
+        try (GZIPOutputStream outputStream = new GZIPOutputStream(new FileOutputStream(file))) {
+            outputStream.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        file.setLastModified(lastModified.toDate().getTime());
+        return file;
+    }
+
+    private static String readCompressed(File file) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (InputStream inputStream = new GZIPInputStream(new FileInputStream(file))) {
+            byte[] buffer = new byte[64];
+            int readByteCount;
+            while ((readByteCount = inputStream.read(buffer)) > 0) {
+                outputStream.write(buffer, 0, readByteCount);
+            }
+        }
+        return new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,163 @@
+package com.vlkan.rfos.job;
+
+import com.vlkan.rfos.Filesystem;
+import com.vlkan.rfos.Rotatable;
+import com.vlkan.rfos.RotationConfig;
+import com.vlkan.rfos.policy.RotationPolicy;
+import com.vlkan.rfos.stage.CompressionBudget;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TieringJobTest {
+
+    @Test
+    public void test_maxAgeMillis() throws Exception {
+
+        // Create the rotated files.
+        File hotDirectory = createDirectory("hot");
+        File coldDirectory = createDirectory("cold");
+        long nowMillis = System.currentTimeMillis();
+        File oldFile = writeFile(new File(hotDirectory, "2017/app-20171230.log.gz"), 10, nowMillis - TimeUnit.DAYS.toMillis(2));
+        File oldSidecarFile = writeFile(new File(hotDirectory, "2017/app-20171230.log.crc32"), 1, nowMillis - TimeUnit.DAYS.toMillis(2));
+        File newFile = writeFile(new File(hotDirectory, "2017/app-20171231.log.gz"), 10, nowMillis - TimeUnit.HOURS.toMillis(1));
+        File otherFile = writeFile(new File(hotDirectory, "other.txt"), 10, nowMillis - TimeUnit.DAYS.toMillis(2));
+
+        // Run the job.
+        RotationConfig config = createConfig(hotDirectory);
+        TieringJob job = TieringJob
+                .builder()
+                .directory(coldDirectory)
+                .maxAgeMillis(TimeUnit.DAYS.toMillis(1))
+                .build();
+        job.run(config);
+
+        // Verify the moved files.
+        File movedFile = new File(coldDirectory, "2017/app-20171230.log.gz");
+        assertThat(oldFile).doesNotExist();
+        assertThat(movedFile).exists().hasBinaryContent(new byte[10]);
+        assertThat(oldSidecarFile).doesNotExist();
+        assertThat(new File(coldDirectory, "2017/app-20171230.log.crc32")).exists();
+        assertThat(newFile).exists();
+        assertThat(otherFile).exists();
+
+        // Verify the files are still addressable via their original names.
+        assertThat(job.locate(config.getFilePattern(), oldFile)).isEqualTo(movedFile.getAbsoluteFile());
+        assertThat(job.locate(config.getFilePattern(), newFile)).isEqualTo(newFile.getAbsoluteFile());
+
+    }
+
+    @Test
+    public void test_maxHotTierSize() throws Exception {
+
+        // Create the rotated files.
+        File hotDirectory = createDirectory("hot");
+        File coldDirectory = createDirectory("cold");
+        long nowMillis = System.currentTimeMillis();
+        File file1 = writeFile(new File(hotDirectory, "2017/app-20171229.log"), 10, nowMillis - TimeUnit.HOURS.toMillis(3));
+        File file2 = writeFile(new File(hotDirectory, "2017/app-20171230.log"), 10, nowMillis - TimeUnit.HOURS.toMillis(2));
+        File file3 = writeFile(new File(hotDirectory, "2017/app-20171231.log"), 10, nowMillis - TimeUnit.HOURS.toMillis(1));
+
+        // Run the job.
+        TieringJob job = TieringJob
+                .builder()
+                .directory(coldDirectory)
+                .maxHotTierSize(15)
+                .build();
+        job.run(createConfig(hotDirectory));
+
+        // Verify the oldest files are moved.
+        assertThat(file1).doesNotExist();
+        assertThat(file2).doesNotExist();
+        assertThat(file3).exists();
+        assertThat(new File(coldDirectory, "2017/" + file1.getName())).exists();
+        assertThat(new File(coldDirectory, "2017/" + file2.getName())).exists();
+
+    }
+
+    @Test
+    public void test_transfer() throws Exception {
+
+        // Create the rotated file.
+        File hotDirectory = createDirectory("hot");
+        File coldDirectory = createDirectory("cold");
+        long lastModified = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1);
+        lastModified -= lastModified % 1000;
+        byte[] content = new byte[100_000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        File file = new File(hotDirectory, "app-20171231.log");
+        Files.write(file.toPath(), content);
+        file.setLastModified(lastModified);
+
+        // Transfer the file.
+        TieringJob job = TieringJob
+                .builder()
+                .directory(coldDirectory)
+                .maxAgeMillis(0)
+                .budget(new CompressionBudget(1_000_000, 1, Long.MAX_VALUE))
+                .build();
+        File tieredFile = new File(coldDirectory, file.getName());
+        job.transfer(file, tieredFile);
+
+        // Verify the transferred file.
+        assertThat(file).doesNotExist();
+        assertThat(tieredFile).hasBinaryContent(content);
+        assertThat(tieredFile.lastModified()).isEqualTo(lastModified);
+        assertThat(new File(coldDirectory, file.getName() + ".tmp")).doesNotExist();
+
+    }
+
+    private static File createDirectory(String name) {
+        File directory = new File(Filesystem.tmpDir(), TieringJob.class.getSimpleName() + "-" + name);
+        if (directory.exists()) {
+            delete(directory);
+        }
+        directory.mkdirs();
+        return directory;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        Filesystem.delete(file.getAbsolutePath());
+    }
+
+    private static File writeFile(File file, int size, long lastModified) throws IOException {
+        file.getParentFile().mkdirs();
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(new byte[size]);
+        }
+        file.setLastModified(lastModified);
+        return file;
+    }
+
+    private static RotationConfig createConfig(File directory) {
+        RotationPolicy policy = new RotationPolicy() {
+            @Override
+            public void start(Rotatable rotatable) {
+                // Do nothing.
+            }
+        };
+        return RotationConfig
+                .builder()
+                .file(new File(directory, "app.log"))
+                .filePattern(new File(directory, "%d{yyyy}/app-%d{yyyyMMdd}.log").getAbsolutePath())
+                .policy(policy)
+                .lazy(true)
+                .build();
+    }
+
+}
@@ -0,0 +1,174 @@
+package com.vlkan.rfos.log4j2;
+
+import com.vlkan.rfos.DecryptionInputStream;
+import com.vlkan.rfos.EncryptionOutputStream;
+import com.vlkan.rfos.Filesystem;
+import com.vlkan.rfos.RotationConfig;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.joda.time.LocalDateTime;
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RotatingFileAppenderTest {
+
+    @Test
+    public void test_append() throws Exception {
+
+        // Create the files.
+        String className = RotatingFileAppender.class.getSimpleName();
+        File file = new File(Filesystem.tmpDir(), className + "-log4j2.log");
+        File rotatedFile = new File(Filesystem.tmpDir(), className + "-log4j2-2017.log");
+        Filesystem.delete(file.getAbsolutePath());
+        Filesystem.delete(rotatedFile.getAbsolutePath());
+
+        // Create the appender.
+        RotatingFileAppender appender = RotatingFileAppender
+                .newBuilder()
+                .setName("test")
+                .withFileName(file.getAbsolutePath())
+                .withFilePattern(new File(Filesystem.tmpDir(), className + "-log4j2-%d{yyyy}.log").getAbsolutePath())
+                .withDaily(true)
+                .withAppend(false)
+                .setLayout(PatternLayout
+                        .newBuilder()
+                        .withPattern("%level %msg%n")
+                        .withCharset(StandardCharsets.UTF_8)
+                        .build())
+                .build();
+        appender.start();
+
+        // Verify a reconfiguration reuses the manager without creating another timer.
+        int timerThreadCount = countTimerThreads();
+        RotatingFileAppender reconfiguredAppender = RotatingFileAppender
+                .newBuilder()
+                .setName("test")
+                .withFileName(file.getAbsolutePath())
+                .withFilePattern(new File(Filesystem.tmpDir(), className + "-log4j2-%d{yyyy}.log").getAbsolutePath())
+                .withDaily(true)
+                .setLayout(PatternLayout.newBuilder().withPattern("%level %msg%n").build())
+                .build();
+        reconfiguredAppender.start();
+        assertThat(reconfiguredAppender.getManager()).isSameAs(appender.getManager());
+        assertThat(countTimerThreads()).isEqualTo(timerThreadCount);
+        reconfiguredAppender.stop();
+
+        // Append events across a rotation.
+        appender.append(Log4jLogEvent
+                .newBuilder()
+                .setLevel(Level.INFO)
+                .setMessage(new SimpleMessage("foo"))
+                .build());
+        appender.getManager().getStream().rotate(null, LocalDateTime.parse("2017-12-31T00:00:00.000"));
+        appender.append(Log4jLogEvent
+                .newBuilder()
+                .setLevel(Level.WARN)
+                .setMessage(new SimpleMessage("bär"))
+                .build());
+        appender.stop();
+
+        // Verify the files.
+        assertThat(rotatedFile).hasContent("INFO foo");
+        assertThat(file).usingCharset(StandardCharsets.UTF_8).hasContent("WARN bär");
+
+    }
+
+    private static int countTimerThreads() {
+        int timerThreadCount = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("Timer-")) {
+                timerThreadCount++;
+            }
+        }
+        return timerThreadCount;
+    }
+
+    @Test
+    public void test_options() throws Exception {
+
+        // Create the files.
+        String className = RotatingFileAppender.class.getSimpleName();
+        File file = new File(Filesystem.tmpDir(), className + "-log4j2-options.log");
+        Filesystem.delete(file.getAbsolutePath());
+        String filePattern =
+                new File(Filesystem.tmpDir(), className + "-log4j2-options-%d{yyyy}.log").getAbsolutePath();
+        PatternLayout layout = PatternLayout
+                .newBuilder()
+                .withPattern("%level %msg%n")
+                .withCharset(StandardCharsets.UTF_8)
+                .build();
+
+        // Verify the encryption and degraded mode options.
+        String encryptionKey = "000102030405060708090a0b0c0d0e0f";
+        RotatingFileAppender appender = RotatingFileAppender
+                .newBuilder()
+                .setName("test")
+                .withFileName(file.getAbsolutePath())
+                .withFilePattern(filePattern)
+                .withDaily(true)
+                .withAppend(false)
+                .withEncryptionKey(encryptionKey)
+                .withDegradedCheckIntervalMillis(250)
+                .setLayout(layout)
+                .build();
+        appender.start();
+        RotationConfig config = appender.getManager().getStream().getConfig();
+        assertThat(config.getEncryptionKey()).isEqualTo(EncryptionOutputStream.parseKey(encryptionKey));
+        assertThat(config.getDegradedCheckIntervalMillis()).isEqualTo(250);
+        appender.append(Log4jLogEvent
+                .newBuilder()
+                .setLevel(Level.INFO)
+                .setMessage(new SimpleMessage("foo"))
+                .build());
+        appender.stop();
+        SecretKey key = config.getEncryptionKey();
+        try (InputStream inputStream = new DecryptionInputStream(new FileInputStream(file), key)) {
+            byte[] buffer = new byte[64];
+            int readByteCount = inputStream.read(buffer);
+            assertThat(new String(buffer, 0, readByteCount, StandardCharsets.UTF_8))
+                    .isEqualTo(String.format("INFO foo%n"));
+        }
+
+        // Verify the multi-process options.
+        appender = RotatingFileAppender
+                .newBuilder()
+                .setName("test")
+                .withFileName(file.getAbsolutePath())
+                .withFilePattern(filePattern)
+                .withDaily(true)
+                .withMultiProcess(true)
+                .withInodeCheckIntervalMillis(500)
+                .setLayout(layout)
+                .build();
+        appender.start();
+        config = appender.getManager().getStream().getConfig();
+        assertThat(config.isMultiProcess()).isTrue();
+        assertThat(config.getInodeCheckIntervalMillis()).isEqualTo(500);
+        appender.stop();
+
+        // Verify the copy-truncate option.
+        appender = RotatingFileAppender
+                .newBuilder()
+                .setName("test")
+                .withFileName(file.getAbsolutePath())
+                .withFilePattern(filePattern)
+                .withDaily(true)
+                .withCopyTruncate(true)
+                .setLayout(layout)
+                .build();
+        appender.start();
+        assertThat(appender.getManager().getStream().getConfig().isCopyTruncate()).isTrue();
+        appender.stop();
+
+    }
+
+}
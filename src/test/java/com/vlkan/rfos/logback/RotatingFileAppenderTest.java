@@ -0,0 +1,146 @@
+package com.vlkan.rfos.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import com.vlkan.rfos.DecryptionInputStream;
+import com.vlkan.rfos.EncryptionOutputStream;
+import com.vlkan.rfos.Filesystem;
+import com.vlkan.rfos.RotationConfig;
+import org.joda.time.LocalDateTime;
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RotatingFileAppenderTest {
+
+    @Test
+    public void test_append() throws Exception {
+
+        // Create the files.
+        String className = RotatingFileAppender.class.getSimpleName();
+        File file = new File(Filesystem.tmpDir(), className + "-logback.log");
+        File rotatedFile = new File(Filesystem.tmpDir(), className + "-logback-2017.log");
+        Filesystem.delete(file.getAbsolutePath());
+        Filesystem.delete(rotatedFile.getAbsolutePath());
+
+        // Create the appender.
+        LoggerContext context = new LoggerContext();
+        PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+        encoder.setContext(context);
+        encoder.setPattern("%level %msg%n");
+        encoder.setCharset(StandardCharsets.UTF_8);
+        encoder.start();
+        RotatingFileAppender<ILoggingEvent> appender = new RotatingFileAppender<>();
+        appender.setContext(context);
+        appender.setName("test");
+        appender.setEncoder(encoder);
+        appender.setFile(file.getAbsolutePath());
+        appender.setFilePattern(new File(Filesystem.tmpDir(), className + "-logback-%d{yyyy}.log").getAbsolutePath());
+        appender.setDaily(true);
+        appender.setAppend(false);
+        appender.start();
+        assertThat(appender.isStarted()).isTrue();
+
+        // Append events across a rotation.
+        Logger logger = context.getLogger(RotatingFileAppenderTest.class);
+        appender.doAppend(new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "foo", null, null));
+        appender.getStream().rotate(null, LocalDateTime.parse("2017-12-31T00:00:00.000"));
+        appender.doAppend(new LoggingEvent(Logger.class.getName(), logger, Level.WARN, "bär", null, null));
+        appender.stop();
+
+        // Verify the files.
+        assertThat(rotatedFile).hasContent("INFO foo");
+        assertThat(file).usingCharset(StandardCharsets.UTF_8).hasContent("WARN bär");
+
+    }
+
+    @Test
+    public void test_options() throws Exception {
+
+        // Create the files.
+        String className = RotatingFileAppender.class.getSimpleName();
+        File file = new File(Filesystem.tmpDir(), className + "-logback-options.log");
+        Filesystem.delete(file.getAbsolutePath());
+        String filePattern =
+                new File(Filesystem.tmpDir(), className + "-logback-options-%d{yyyy}.log").getAbsolutePath();
+
+        // Create the encoder.
+        LoggerContext context = new LoggerContext();
+        PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+        encoder.setContext(context);
+        encoder.setPattern("%level %msg%n");
+        encoder.setCharset(StandardCharsets.UTF_8);
+        encoder.start();
+
+        // Verify the encryption and degraded mode options.
+        String encryptionKey = "000102030405060708090a0b0c0d0e0f";
+        RotatingFileAppender<ILoggingEvent> appender = new RotatingFileAppender<>();
+        appender.setContext(context);
+        appender.setName("test");
+        appender.setEncoder(encoder);
+        appender.setFile(file.getAbsolutePath());
+        appender.setFilePattern(filePattern);
+        appender.setDaily(true);
+        appender.setAppend(false);
+        appender.setEncryptionKey(encryptionKey);
+        appender.setDegradedCheckIntervalMillis(250);
+        appender.start();
+        assertThat(appender.isStarted()).isTrue();
+        RotationConfig config = appender.getStream().getConfig();
+        assertThat(config.getEncryptionKey()).isEqualTo(EncryptionOutputStream.parseKey(encryptionKey));
+        assertThat(config.getDegradedCheckIntervalMillis()).isEqualTo(250);
+        Logger logger = context.getLogger(RotatingFileAppenderTest.class);
+        appender.doAppend(new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "foo", null, null));
+        appender.stop();
+        SecretKey key = config.getEncryptionKey();
+        try (InputStream inputStream = new DecryptionInputStream(new FileInputStream(file), key)) {
+            byte[] buffer = new byte[64];
+            int readByteCount = inputStream.read(buffer);
+            assertThat(new String(buffer, 0, readByteCount, StandardCharsets.UTF_8))
+                    .isEqualTo(String.format("INFO foo%n"));
+        }
+
+        // Verify the multi-process options.
+        appender = new RotatingFileAppender<>();
+        appender.setContext(context);
+        appender.setName("test");
+        appender.setEncoder(encoder);
+        appender.setFile(file.getAbsolutePath());
+        appender.setFilePattern(filePattern);
+        appender.setDaily(true);
+        appender.setMultiProcess(true);
+        appender.setInodeCheckIntervalMillis(500);
+        appender.start();
+        assertThat(appender.isStarted()).isTrue();
+        config = appender.getStream().getConfig();
+        assertThat(config.isMultiProcess()).isTrue();
+        assertThat(config.getInodeCheckIntervalMillis()).isEqualTo(500);
+        appender.stop();
+
+        // Verify the copy-truncate option.
+        appender = new RotatingFileAppender<>();
+        appender.setContext(context);
+        appender.setName("test");
+        appender.setEncoder(encoder);
+        appender.setFile(file.getAbsolutePath());
+        appender.setFilePattern(filePattern);
+        appender.setDaily(true);
+        appender.setCopyTruncate(true);
+        appender.start();
+        assertThat(appender.isStarted()).isTrue();
+        assertThat(appender.getStream().getConfig().isCopyTruncate()).isTrue();
+        appender.stop();
+
+    }
+
+}
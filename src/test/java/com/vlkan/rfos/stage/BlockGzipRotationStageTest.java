@@ -0,0 +1,105 @@
+package com.vlkan.rfos.stage;
+
+import com.vlkan.rfos.Filesystem;
+import org.joda.time.LocalDateTime;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BlockGzipRotationStageTest {
+
+    @Test
+    public void test_text() throws IOException {
+        StringBuilder contentBuilder = new StringBuilder();
+        for (int lineIndex = 0; contentBuilder.length() < 1_000_000; lineIndex++) {
+            contentBuilder.append(String.format("%08d INFO message%n", lineIndex));
+        }
+        test("text", contentBuilder.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void test_random() throws IOException {
+        byte[] content = new byte[3 * BlockGzipRotationStage.MAX_INPUT_BLOCK_SIZE + 1];
+        new Random(0).nextBytes(content);
+        test("random", content);
+    }
+
+    @Test
+    public void test_empty() throws IOException {
+        test("empty", new byte[0]);
+    }
+
+    private static void test(String name, byte[] content) throws IOException {
+
+        // Create the rotated file.
+        String className = BlockGzipRotationStage.class.getSimpleName();
+        File rotatedFile = new File(Filesystem.tmpDir(), className + "-" + name + ".log");
+        Files.write(rotatedFile.toPath(), content);
+
+        // Compress the file.
+        RotationStageContext context = new RotationStageContext(null, LocalDateTime.now(), rotatedFile);
+        RotationStageExecution execution = BlockGzipRotationStage.getInstance().start(context);
+        int chunkSize = 10_000;
+        for (int offset = 0; offset < content.length; offset += chunkSize) {
+            execution.update(content, offset, Math.min(chunkSize, content.length - offset));
+        }
+        execution.finish();
+
+        // Verify the files.
+        File compressedFile = GzipRotationStage.getCompressedFile(rotatedFile);
+        File indexFile = BlockGzipRotationStage.getIndexFile(compressedFile);
+        assertThat(rotatedFile).doesNotExist();
+        assertThat(context.getFile()).isEqualTo(compressedFile);
+        assertThat(context.getSidecarFiles()).containsExactly(indexFile);
+        assertThat(BlockGzipRotationStage.getInstance().getOutputFiles(rotatedFile))
+                .containsExactly(compressedFile, indexFile);
+        assertThat(decompress(compressedFile)).isEqualTo(content);
+
+        // Verify random reads.
+        int expectedBlockCount = Math.max(
+                1, (content.length + BlockGzipRotationStage.MAX_INPUT_BLOCK_SIZE - 1)
+                        / BlockGzipRotationStage.MAX_INPUT_BLOCK_SIZE);
+        try (BlockGzipFile blockGzipFile = new BlockGzipFile(compressedFile)) {
+            assertThat(blockGzipFile.getBlockCount()).isEqualTo(expectedBlockCount);
+            assertThat(blockGzipFile.getUncompressedSize()).isEqualTo(content.length);
+            assertThat(blockGzipFile.read(content.length, new byte[1], 0, 1)).isEqualTo(-1);
+            Random random = new Random(0);
+            for (int readIndex = 0; readIndex < 100 && content.length > 0; readIndex++) {
+                int position = random.nextInt(content.length);
+                int length = Math.min(random.nextInt(100_000), content.length - position);
+                byte[] buffer = new byte[length];
+                blockGzipFile.readFully(position, buffer, 0, length);
+                assertThat(buffer).isEqualTo(Arrays.copyOfRange(content, position, position + length));
+            }
+        }
+
+        // Clean up.
+        Filesystem.delete(compressedFile.getAbsolutePath());
+        Filesystem.delete(indexFile.getAbsolutePath());
+
+    }
+
+    private static byte[] decompress(File file) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (InputStream inputStream = new GZIPInputStream(new FileInputStream(file))) {
+            byte[] buffer = new byte[1024];
+            int readByteCount;
+            while ((readByteCount = inputStream.read(buffer)) > 0) {
+                outputStream.write(buffer, 0, readByteCount);
+            }
+        }
+        return outputStream.toByteArray();
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.vlkan.rfos.stage;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompressionBudgetTest {
+
+    @Test
+    public void test_pace() throws Exception {
+        CompressionBudget budget = new CompressionBudget(1_000_000, 1, Long.MAX_VALUE);
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            budget.pace(50_000);
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        assertThat(elapsedMillis).isGreaterThanOrEqualTo(150);
+    }
+
+    @Test
+    public void test_recordWriteLatency() {
+        long maxBytesPerSecond = 1_600_000;
+        long thresholdNanos = TimeUnit.MILLISECONDS.toNanos(1);
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(100);
+        CompressionBudget budget = new CompressionBudget(maxBytesPerSecond, 1, thresholdNanos);
+        long nowNanos = System.nanoTime();
+
+        // Verify the multiplicative decrease, which happens at most once per interval.
+        budget.recordWriteLatency(2 * thresholdNanos, nowNanos);
+        assertThat(budget.getBytesPerSecond()).isEqualTo(maxBytesPerSecond / 2);
+        budget.recordWriteLatency(2 * thresholdNanos, nowNanos);
+        assertThat(budget.getBytesPerSecond()).isEqualTo(maxBytesPerSecond / 2);
+
+        // Verify there is no increase within the interval of a slow write.
+        budget.recordWriteLatency(thresholdNanos / 2, nowNanos + intervalNanos / 2);
+        assertThat(budget.getBytesPerSecond()).isEqualTo(maxBytesPerSecond / 2);
+
+        // Verify the additive increase, which happens once per interval, regardless of the sample count.
+        nowNanos += intervalNanos;
+        for (int i = 0; i < 4; i++) {
+            budget.recordWriteLatency(thresholdNanos / 2, nowNanos);
+        }
+        assertThat(budget.getBytesPerSecond()).isEqualTo(maxBytesPerSecond / 2 + maxBytesPerSecond / 16);
+        for (int i = 0; i < 16; i++) {
+            nowNanos += intervalNanos;
+            budget.recordWriteLatency(thresholdNanos / 2, nowNanos);
+        }
+        assertThat(budget.getBytesPerSecond()).isEqualTo(maxBytesPerSecond);
+    }
+
+}
@@ -0,0 +1,198 @@
+package com.vlkan.rfos.stage;
+
+import com.vlkan.rfos.Filesystem;
+import org.joda.time.LocalDateTime;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DictionaryDeflateRotationStageTest {
+
+    @Test
+    public void test() throws IOException {
+
+        // Create the dictionary directory.
+        String className = DictionaryDeflateRotationStage.class.getSimpleName();
+        File dictionaryDirectory = new File(Filesystem.tmpDir(), className + "-dictionaries");
+        dictionaryDirectory.mkdirs();
+        File[] dictionaryFiles = dictionaryDirectory.listFiles();
+        if (dictionaryFiles != null) {
+            for (File dictionaryFile : dictionaryFiles) {
+                Filesystem.delete(dictionaryFile.getAbsolutePath());
+            }
+        }
+
+        // Compress the segments, training a dictionary after every 4 of them.
+        DictionaryDeflateRotationStage stage =
+                new DictionaryDeflateRotationStage(dictionaryDirectory, 16 * 1024, 4, Deflater.DEFAULT_COMPRESSION);
+        File file = new File(Filesystem.tmpDir(), className + ".log");
+        Random random = new Random(0);
+        int segmentCount = 12;
+        byte[][] contents = new byte[segmentCount][];
+        long[] plainCompressedLengths = new long[segmentCount];
+        long[] compressedLengths = new long[segmentCount];
+        for (int segmentIndex = 0; segmentIndex < segmentCount; segmentIndex++) {
+            contents[segmentIndex] = createSegment(random);
+            plainCompressedLengths[segmentIndex] = compress(contents[segmentIndex]).length;
+            File compressedFile = compress(stage, file, contents[segmentIndex]);
+            compressedLengths[segmentIndex] = compressedFile.length();
+
+            // Verify the compressed file.
+            try (InputStream inputStream = new DictionaryInflaterInputStream(
+                    new FileInputStream(compressedFile), dictionaryDirectory)) {
+                assertThat(readAll(inputStream)).isEqualTo(contents[segmentIndex]);
+            }
+            Filesystem.delete(compressedFile.getAbsolutePath());
+        }
+
+        // Verify the trained dictionaries.
+        dictionaryFiles = dictionaryDirectory.listFiles();
+        assertThat(dictionaryFiles).hasSize(3);
+        for (File dictionaryFile : dictionaryFiles) {
+            assertThat(dictionaryFile.length()).isBetween(1L, 16L * 1024);
+        }
+
+        // Verify the compression ratio.
+        for (int segmentIndex = 0; segmentIndex < 4; segmentIndex++) {
+            assertThat(compressedLengths[segmentIndex]).isEqualTo(plainCompressedLengths[segmentIndex]);
+        }
+        for (int segmentIndex = 4; segmentIndex < segmentCount; segmentIndex++) {
+            assertThat(compressedLengths[segmentIndex]).isLessThan(plainCompressedLengths[segmentIndex] * 3 / 4);
+        }
+
+        // Verify a new stage picks up the last dictionary.
+        DictionaryDeflateRotationStage newStage = new DictionaryDeflateRotationStage(dictionaryDirectory);
+        byte[] content = createSegment(random);
+        File compressedFile = compress(newStage, file, content);
+        assertThat(compressedFile.length()).isLessThan(compress(content).length * 3 / 4);
+        Filesystem.delete(compressedFile.getAbsolutePath());
+
+    }
+
+    @Test
+    public void test_collision() throws IOException {
+
+        // Train a dictionary to find out its file.
+        String className = DictionaryDeflateRotationStage.class.getSimpleName();
+        File dictionaryDirectory = createDictionaryDirectory(className + "-collision");
+        File file = new File(Filesystem.tmpDir(), className + "-collision.log");
+        compressSegments(dictionaryDirectory, file);
+        File[] dictionaryFiles = dictionaryDirectory.listFiles();
+        assertThat(dictionaryFiles).hasSize(1);
+        File dictionaryFile = dictionaryFiles[0];
+
+        // Replace the dictionary with different bytes of the same Adler-32, and train it again.
+        byte[] collidingBytes = createAdler32Collision(Files.readAllBytes(dictionaryFile.toPath()));
+        Files.write(dictionaryFile.toPath(), collidingBytes);
+        List<File> compressedFiles = compressSegments(dictionaryDirectory, file);
+
+        // Verify the existing dictionary is kept, and the files are still readable.
+        assertThat(dictionaryDirectory.listFiles()).containsExactly(dictionaryFile);
+        assertThat(dictionaryFile).hasBinaryContent(collidingBytes);
+        for (File compressedFile : compressedFiles) {
+            try (InputStream inputStream = new DictionaryInflaterInputStream(
+                    new FileInputStream(compressedFile), dictionaryDirectory)) {
+                assertThat(readAll(inputStream)).isNotEmpty();
+            }
+            Filesystem.delete(compressedFile.getAbsolutePath());
+        }
+
+    }
+
+    // Adding 1, -2, and 1 to 3 consecutive bytes changes neither of the Adler-32 sums.
+    private static byte[] createAdler32Collision(byte[] bytes) {
+        byte[] collidingBytes = bytes.clone();
+        for (int byteIndex = 0; byteIndex + 2 < bytes.length; byteIndex++) {
+            if ((bytes[byteIndex] & 0xff) < 0xff &&
+                    (bytes[byteIndex + 1] & 0xff) >= 2 &&
+                    (bytes[byteIndex + 2] & 0xff) < 0xff) {
+                collidingBytes[byteIndex]++;
+                collidingBytes[byteIndex + 1] -= 2;
+                collidingBytes[byteIndex + 2]++;
+                return collidingBytes;
+            }
+        }
+        throw new IllegalArgumentException("no collision");
+    }
+
+    private static File createDictionaryDirectory(String name) {
+        File dictionaryDirectory = new File(Filesystem.tmpDir(), name);
+        dictionaryDirectory.mkdirs();
+        File[] dictionaryFiles = dictionaryDirectory.listFiles();
+        if (dictionaryFiles != null) {
+            for (File dictionaryFile : dictionaryFiles) {
+                Filesystem.delete(dictionaryFile.getAbsolutePath());
+            }
+        }
+        return dictionaryDirectory;
+    }
+
+    // Compresses 5 segments with a new stage, training a dictionary after the 4th one.
+    private static List<File> compressSegments(File dictionaryDirectory, File file) throws IOException {
+        DictionaryDeflateRotationStage stage =
+                new DictionaryDeflateRotationStage(dictionaryDirectory, 16 * 1024, 4, Deflater.DEFAULT_COMPRESSION);
+        Random random = new Random(0);
+        List<File> compressedFiles = new ArrayList<>();
+        for (int segmentIndex = 0; segmentIndex < 5; segmentIndex++) {
+            File segmentFile = new File(file.getPath() + '.' + segmentIndex);
+            compressedFiles.add(compress(stage, segmentFile, createSegment(random)));
+        }
+        return compressedFiles;
+    }
+
+    // Creates JSON lines with the same keys, but random values.
+    private static byte[] createSegment(Random random) {
+        StringBuilder segmentBuilder = new StringBuilder();
+        for (int lineIndex = 0; lineIndex < 10; lineIndex++) {
+            segmentBuilder.append(String.format(
+                    "{\"timestamp\":\"2017-12-31T%02d:%02d:%02d.%03dZ\",\"level\":\"INFO\"," +
+                            "\"logger\":\"com.example.service.OrderService\",\"thread\":\"worker-%d\"," +
+                            "\"message\":\"processed order\",\"orderId\":%d,\"durationMillis\":%d}%n",
+                    random.nextInt(24), random.nextInt(60), random.nextInt(60), random.nextInt(1000),
+                    random.nextInt(16), random.nextInt(1_000_000), random.nextInt(1000)));
+        }
+        return segmentBuilder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static File compress(DictionaryDeflateRotationStage stage, File file, byte[] content) throws IOException {
+        Files.write(file.toPath(), content);
+        RotationStageContext context = new RotationStageContext(null, LocalDateTime.now(), file);
+        RotationStageExecution execution = stage.start(context);
+        execution.update(content, 0, content.length);
+        execution.finish();
+        assertThat(file).doesNotExist();
+        return context.getFile();
+    }
+
+    private static byte[] compress(byte[] content) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflaterStream = new DeflaterOutputStream(outputStream)) {
+            deflaterStream.write(content);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int readByteCount;
+        while ((readByteCount = inputStream.read(buffer)) > 0) {
+            outputStream.write(buffer, 0, readByteCount);
+        }
+        return outputStream.toByteArray();
+    }
+
+}
@@ -0,0 +1,152 @@
+package com.vlkan.rfos.stage;
+
+import com.vlkan.rfos.Filesystem;
+import com.vlkan.rfos.RecordingRotationCallback;
+import com.vlkan.rfos.RotationConfig;
+import com.vlkan.rfos.policy.DailyRotationPolicy;
+import org.assertj.core.api.ThrowableAssert;
+import org.joda.time.LocalDateTime;
+import org.junit.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class RotationPipelineTest {
+
+    @Test
+    public void test() throws IOException {
+
+        // Create the rotated file.
+        String className = RotationPipeline.class.getSimpleName();
+        File rotatedFile = new File(Filesystem.tmpDir(), className + ".log");
+        File directory = new File(Filesystem.tmpDir(), className);
+        File compressedFile = new File(directory, rotatedFile.getName() + ".gz");
+        File checksumFile = new File(directory, rotatedFile.getName() + ".crc32");
+        Filesystem.delete(compressedFile.getAbsolutePath());
+        Filesystem.delete(checksumFile.getAbsolutePath());
+        byte[] content = "Hello, world!\n".getBytes(StandardCharsets.US_ASCII);
+        try (OutputStream outputStream = new FileOutputStream(rotatedFile)) {
+            outputStream.write(content);
+        }
+
+        // Execute the pipeline.
+        RecordingRotationCallback callback = new RecordingRotationCallback();
+        MoveRotationStage moveStage = new MoveRotationStage(directory);
+        List<RotationStage> stages = Arrays.asList(
+                GzipRotationStage.getInstance(),
+                ChecksumRotationStage.getInstance(),
+                moveStage);
+        RotationPipeline pipeline = new RotationPipeline(stages, callback);
+        pipeline.execute(new RotationStageContext(null, LocalDateTime.now(), rotatedFile));
+
+        // Verify the callback.
+        assertThat(callback.getFailureErrors()).isEmpty();
+        assertThat(callback.getStageSuccessStages()).containsExactlyElementsOf(stages);
+        assertThat(callback.getSuccessFiles()).containsExactly(compressedFile.getAbsoluteFile());
+
+        // Verify the files.
+        assertThat(rotatedFile).doesNotExist();
+        assertThat(decompress(compressedFile)).isEqualTo(content);
+        CRC32 checksum = new CRC32();
+        checksum.update(content);
+        String checksumText = new String(Files.readAllBytes(checksumFile.toPath()), StandardCharsets.US_ASCII).trim();
+        assertThat(checksumText).isEqualTo(String.format("%08x", checksum.getValue()));
+
+    }
+
+    @Test
+    public void test_failure() throws IOException {
+
+        // Create the rotated file.
+        String className = RotationPipeline.class.getSimpleName();
+        File rotatedFile = new File(Filesystem.tmpDir(), className + "-failure.log");
+        File compressedFile = GzipRotationStage.getCompressedFile(rotatedFile);
+        try (OutputStream outputStream = new FileOutputStream(rotatedFile)) {
+            outputStream.write(1);
+        }
+
+        // Execute the pipeline with a failing stage.
+        RecordingRotationCallback callback = new RecordingRotationCallback();
+        File blockingFile = new File(Filesystem.tmpDir(), className + "-blocking");
+        try (OutputStream outputStream = new FileOutputStream(blockingFile)) {
+            outputStream.write(1);
+        }
+        List<RotationStage> stages = Arrays.asList(
+                GzipRotationStage.getInstance(),
+                new MoveRotationStage(new File(blockingFile, "directory")));
+        new RotationPipeline(stages, callback).execute(new RotationStageContext(null, LocalDateTime.now(), rotatedFile));
+
+        // Verify the failure. (Completed stages are not rolled back.)
+        assertThat(callback.getSuccessFiles()).isEmpty();
+        assertThat(callback.getStageSuccessStages()).containsExactly(GzipRotationStage.getInstance());
+        assertThat(callback.getFailureErrors()).hasSize(1);
+        assertThat(compressedFile).exists();
+        Filesystem.delete(compressedFile.getAbsolutePath());
+        Filesystem.delete(blockingFile.getAbsolutePath());
+
+    }
+
+    @Test
+    public void test_stage_after_move() {
+        final RotationConfig.Builder builder = RotationConfig
+                .builder()
+                .file("/tmp/app.log")
+                .filePattern("/tmp/app-%d{yyyy}.log")
+                .policy(DailyRotationPolicy.getInstance())
+                .lazy(true)
+                .stage(new MoveRotationStage(new File("/tmp/archive")))
+                .stage(GzipRotationStage.getInstance());
+        assertThatThrownBy(new ThrowableAssert.ThrowingCallable() {
+            @Override
+            public void call() {
+                builder.build();
+            }
+        }).isInstanceOf(IllegalArgumentException.class).hasMessageContaining("stage after move");
+    }
+
+    @Test
+    public void test_block_gzip_with_encryption() {
+        final RotationConfig.Builder builder = RotationConfig
+                .builder()
+                .file("/tmp/app.log")
+                .filePattern("/tmp/app-%d{yyyy}.log")
+                .policy(DailyRotationPolicy.getInstance())
+                .lazy(true)
+                .encryptionKey(new SecretKeySpec(new byte[16], "AES"))
+                .stage(BlockGzipRotationStage.getInstance());
+        assertThatThrownBy(new ThrowableAssert.ThrowingCallable() {
+            @Override
+            public void call() {
+                builder.build();
+            }
+        }).isInstanceOf(IllegalArgumentException.class).hasMessageContaining("compression stage with encryption");
+    }
+
+    private static byte[] decompress(File file) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (InputStream inputStream = new GZIPInputStream(new FileInputStream(file))) {
+            byte[] buffer = new byte[1024];
+            int readByteCount;
+            while ((readByteCount = inputStream.read(buffer)) > 0) {
+                outputStream.write(buffer, 0, readByteCount);
+            }
+        }
+        return outputStream.toByteArray();
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.vlkan.rfos.event;
+
+import com.vlkan.rfos.Filesystem;
+import com.vlkan.rfos.Rotatable;
+import com.vlkan.rfos.RotatingFileOutputStream;
+import com.vlkan.rfos.RotationConfig;
+import com.vlkan.rfos.policy.RotationPolicy;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.joda.time.LocalDateTime;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RotationEventsTest {
+
+    @Test
+    public void test() throws Exception {
+
+        // Skip the test, if JFR is not available.
+        Assume.assumeTrue(isJfrAvailable());
+
+        // Set file names.
+        File directory = new File(Filesystem.tmpDir(), RotationEventsTest.class.getSimpleName());
+        directory.mkdirs();
+        File[] existingFiles = directory.listFiles();
+        if (existingFiles != null) {
+            for (File existingFile : existingFiles) {
+                Filesystem.delete(existingFile.getAbsolutePath());
+            }
+        }
+        File file = new File(directory, "app.log");
+
+        // Create the stream.
+        RotationPolicy policy = new RotationPolicy() {
+            @Override
+            public void start(Rotatable rotatable) {
+                // Do nothing.
+            }
+        };
+        RotationConfig config = RotationConfig
+                .builder()
+                .file(file)
+                .filePattern(new File(directory, "app-%d{yyyy}.log").getAbsolutePath())
+                .policy(policy)
+                .compress(true)
+                .build();
+
+        // Record a rotation along with the compression.
+        Path recordingFile = new File(directory, "recording.jfr").toPath();
+        byte[] bytes = "Hello, world!".getBytes(StandardCharsets.US_ASCII);
+        try (Recording recording = new Recording()) {
+            recording.enable("com.vlkan.rfos.Rotation");
+            recording.enable("com.vlkan.rfos.Compression");
+            recording.start();
+            RotatingFileOutputStream stream = new RotatingFileOutputStream(config);
+            stream.write(bytes);
+            stream.rotate(policy, LocalDateTime.parse("2017-12-31T00:00:00.000"));
+            stream.close();
+            config.getExecutor().awaitTermination(5, TimeUnit.SECONDS);
+            recording.stop();
+            recording.dump(recordingFile);
+        }
+
+        // Verify the events.
+        Map<String, RecordedEvent> eventByName = new HashMap<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(recordingFile)) {
+            eventByName.put(event.getEventType().getName(), event);
+        }
+        RecordedEvent rotationEvent = eventByName.get("com.vlkan.rfos.Rotation");
+        assertThat(rotationEvent).isNotNull();
+        assertThat(rotationEvent.getString("rotatedFile")).endsWith("app-2017.log");
+        RecordedEvent compressionEvent = eventByName.get("com.vlkan.rfos.Compression");
+        assertThat(compressionEvent).isNotNull();
+        assertThat(compressionEvent.getLong("inputByteCount")).isEqualTo(bytes.length);
+        assertThat(compressionEvent.getLong("outputByteCount")).isGreaterThan(0);
+
+    }
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Recording");
+            return true;
+        } catch (ClassNotFoundException ignored) {
+            return false;
+        }
+    }
+
+}